@@ -0,0 +1,145 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides, right after accept, whether a new connection may proceed. Enforces
+ * the connection limit and smooths reconnect storms with a token bucket, so a
+ * fleet reconnecting after a network blip is admitted at a steady rate instead
+ * of all at once. Rejected sockets are reset before any handler thread, session
+ * or buffer is allocated for them.
+ */
+public final class AdmissionController {
+
+    private final int maxConnections;
+    private final double tokensPerNano;
+    private final double burst;
+    private final LongSupplier clock;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejectedByLimit = new LongAdder();
+    private final LongAdder rejectedByRate = new LongAdder();
+
+    // Token bucket state, guarded by this
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param maxConnections Most concurrent connections, or 0 for no limit
+     * @param connectRate    New connections admitted per second, or 0 for no
+     *                       rate limit
+     * @param burst          Connections admitted back-to-back before the rate
+     *                       applies
+     */
+    public AdmissionController(int maxConnections, int connectRate, int burst) {
+        this(maxConnections, connectRate, burst, System::nanoTime);
+    }
+
+    AdmissionController(int maxConnections, int connectRate, int burst, LongSupplier clock) {
+        this.maxConnections = maxConnections > 0 ? maxConnections : Integer.MAX_VALUE;
+        this.tokensPerNano = connectRate > 0 ? connectRate / (double) TimeUnit.SECONDS.toNanos(1) : 0;
+        this.burst = Math.max(1, burst);
+        this.clock = clock;
+        this.tokens = this.burst;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Creates a controller from {@code mqtt.maxConnections},
+     * {@code mqtt.connectRate} and {@code mqtt.connectBurst}.
+     *
+     * @return The configured controller
+     */
+    public static AdmissionController fromProperties() {
+        int connectRate = MqttProperties.getIntProperty("mqtt.connectRate", 0);
+        return new AdmissionController(
+                MqttProperties.getIntProperty("mqtt.maxConnections", 0),
+                connectRate,
+                MqttProperties.getIntProperty("mqtt.connectBurst", Math.max(1, connectRate)));
+    }
+
+    /**
+     * Admits a new connection if it is within both the connection limit and
+     * the connect rate. Every admitted connection must be released exactly
+     * once when it closes.
+     *
+     * @return true if the connection may proceed
+     */
+    public boolean tryAdmit() {
+        int current;
+        do {
+            current = active.get();
+            if (current >= maxConnections) {
+                rejectedByLimit.increment();
+                return false;
+            }
+        } while (!active.compareAndSet(current, current + 1));
+
+        if (tokensPerNano > 0 && !takeToken()) {
+            active.decrementAndGet();
+            rejectedByRate.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the slot of a connection admitted by {@link #tryAdmit()}.
+     */
+    public void release() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Closes a rejected connection with a reset rather than a graceful FIN,
+     * so it leaves no TIME_WAIT state behind.
+     *
+     * @param channel The rejected connection
+     */
+    public static void reject(SocketChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    /**
+     * Connections refused because the broker was at its connection limit.
+     */
+    public long getRejectedByLimit() {
+        return rejectedByLimit.sum();
+    }
+
+    /**
+     * Connections refused because they arrived faster than the connect rate.
+     */
+    public long getRejectedByRate() {
+        return rejectedByRate.sum();
+    }
+
+    private synchronized boolean takeToken() {
+        long now = clock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+package in.co.abi.dev.mqtt;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor that runs blocking {@link ClientHandler}s.
+ * Virtual threads are looked up reflectively so the same sources still build a
+ * Java 8 artifact; on a Java 21+ runtime each connection then gets a virtual
+ * thread instead of a platform thread from a cached pool.
+ */
+final class ClientExecutors {
+
+    private static final Logger logger = LogManager.getLogger(ClientExecutors.class);
+
+    private ClientExecutors() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * Creates a client executor for the configured threading mode.
+     *
+     * @param threads "virtual" for one virtual thread per connection, anything
+     *                else for a cached platform thread pool
+     * @return The executor to submit client handlers to
+     */
+    static ExecutorService create(String threads) {
+        if ("virtual".equalsIgnoreCase(threads != null ? threads.trim() : null)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                logger.info("Running client handlers on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads require Java 21+ (running {}), using platform threads",
+                        System.getProperty("java.version"));
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -1,33 +1,126 @@
 package in.co.abi.dev.mqtt;
 
+import in.co.abi.dev.mqtt.codec.TopicCache;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Connected client. Outbound frames go through an {@link OutboundQueue} so a
+ * sender never blocks on this client's socket; a writer task drains the queue
+ * with gathered writes. The base class drains a blocking channel on the
+ * supplied writer executor, transports with their own I/O threads override
+ * {@link #scheduleFlush()}.
+ */
 public class ClientSession {
-    private final Socket socket;
-    private final OutputStream out;
-    private final String clientId;
+    private static final Logger logger = LogManager.getLogger(ClientSession.class);
+    // Coalescing limits for one gathered write
+    private static final int MAX_BATCH_FRAMES = MqttProperties.getIntProperty("mqtt.outbound.maxBatchFrames", 64);
+    private static final int MAX_BATCH_BYTES = MqttProperties.getIntProperty("mqtt.outbound.maxBatchBytes", 64 * 1024);
+    // How long a blocking writer waits for more frames before writing a batch
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            MqttProperties.getIntProperty("mqtt.outbound.lingerMicros", 0));
+    // Slow-consumer limits: frames/bytes waiting for one client, and what to do beyond them
+    private static final int MAX_QUEUED_FRAMES = MqttProperties.getIntProperty("mqtt.outbound.maxQueuedFrames", 10000);
+    private static final int MAX_QUEUED_BYTES = MqttProperties.getIntProperty("mqtt.outbound.maxQueuedBytes",
+            16 * 1024 * 1024);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.fromProperty(
+            MqttProperties.getProperty("mqtt.outbound.overflowPolicy", "drop_oldest"));
+    private static final OverflowCounters OVERFLOW_COUNTERS = new OverflowCounters();
+    // QoS 1 and 2 delivery: unacknowledged messages, messages waiting behind them, and resend interval
+    private static final int INFLIGHT_WINDOW = MqttProperties.getIntProperty("mqtt.inflight.window", 32);
+    private static final int INFLIGHT_MAX_QUEUED = MqttProperties.getIntProperty("mqtt.inflight.maxQueued", 1000);
+    private static final long INFLIGHT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(
+            MqttProperties.getIntProperty("mqtt.inflight.retrySeconds", 20));
+
+    private final SocketChannel channel;
+    private final Executor writer;
+    private final OutboundQueue outbound = new OutboundQueue(MAX_BATCH_FRAMES, MAX_BATCH_BYTES,
+            MAX_QUEUED_FRAMES, MAX_QUEUED_BYTES, OVERFLOW_POLICY, OVERFLOW_COUNTERS);
+    private final Runnable drainTask = this::drain;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    private volatile boolean closeWhenDrained;
+    private volatile String clientId; // transport-assigned until CONNECT names the client
+    private volatile boolean persistent; // clean-session=false: state outlives the connection
     private String username; // Authenticated username (null if anonymous)
     private boolean authenticated; // Authentication status
+    private final TopicCache topicCache = new TopicCache(); // Decoded PUBLISH topics
+    private final Map<String, Integer> subscriptions = new ConcurrentHashMap<>(); // Filter -> granted QoS
+    private volatile long lastActivity; // nanoTime of the last inbound packet
+    private volatile HashedTimingWheel.Timeout keepAliveTimeout;
+    private volatile InflightWindow inflight; // created on the first QoS 1 or 2 delivery
+    private PacketIdMap awaitingRelease; // inbound QoS 2 ids before PUBREL; reader thread only
 
-    public ClientSession(Socket socket, String clientId) throws IOException {
-        this.socket = socket;
-        this.out = socket.getOutputStream();
+    /**
+     * Creates a session over a blocking channel.
+     *
+     * @param channel  The client channel, in blocking mode
+     * @param clientId The client identifier
+     * @param writer   Executor that runs this session's drain task
+     */
+    public ClientSession(SocketChannel channel, String clientId, Executor writer) {
+        this.channel = channel;
+        this.writer = writer;
         this.clientId = clientId;
         this.username = null;
         this.authenticated = false;
     }
 
-    public OutputStream getOut() {
-        return out;
+    /**
+     * Constructor for transports that drive writes from their own I/O threads.
+     * Subclasses must override {@link #scheduleFlush()}.
+     */
+    protected ClientSession(SocketChannel channel, String clientId) {
+        this(channel, clientId, null);
+    }
+
+    /**
+     * Broker-wide counts of slow-consumer overflow outcomes.
+     */
+    public static OverflowCounters getOverflowCounters() {
+        return OVERFLOW_COUNTERS;
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    /**
+     * Replaces the transport-assigned identifier with the one sent in
+     * CONNECT.
+     */
+    void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * Whether the client connected with clean-session=false, so its
+     * subscriptions and undelivered messages are kept after disconnect.
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -44,32 +137,287 @@ public class ClientSession {
         this.authenticated = authenticated;
     }
 
+    TopicCache getTopicCache() {
+        return topicCache;
+    }
+
+    /**
+     * Topic filters this session is subscribed to, so disconnect cleanup only
+     * visits the subscriber lists the session actually joined.
+     */
+    Set<String> getSubscriptions() {
+        return subscriptions.keySet();
+    }
+
+    /**
+     * Filters with their granted QoS, e.g. to save them for a persistent
+     * session.
+     */
+    Map<String, Integer> getSubscriptionQos() {
+        return subscriptions;
+    }
+
+    /**
+     * Records a subscription, or updates the QoS of an existing one.
+     *
+     * @param filter     The topic filter
+     * @param grantedQos QoS granted in SUBACK
+     */
+    void addSubscription(String filter, int grantedQos) {
+        subscriptions.put(filter, grantedQos);
+    }
+
+    /**
+     * Highest QoS granted to a subscription of this session matching a topic.
+     *
+     * @param topic The topic name
+     * @return The QoS, or 0 if only QoS 0 subscriptions match
+     */
+    int subscriptionQos(String topic) {
+        int qos = 0;
+        for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+            int granted = entry.getValue();
+            if (granted > qos) {
+                String filter = entry.getKey();
+                if (SharedSubscriptionGroup.isShared(filter)) {
+                    filter = SharedSubscriptionGroup.filterOf(filter);
+                }
+                if (SubscriptionTrie.matches(filter, topic)) {
+                    qos = granted;
+                }
+            }
+        }
+        return qos;
+    }
+
+    /**
+     * Packet identifiers of QoS 2 messages received from this client and
+     * awaiting PUBREL, created on first use. Only touched by the thread
+     * reading this session's packets.
+     */
+    PacketIdMap awaitingRelease() {
+        if (awaitingRelease == null) {
+            awaitingRelease = new PacketIdMap();
+        }
+        return awaitingRelease;
+    }
+
+    /**
+     * The inbound QoS 2 ids, or null if none were ever recorded.
+     */
+    PacketIdMap getAwaitingRelease() {
+        return awaitingRelease;
+    }
+
+    /**
+     * Adopts the inbound QoS 2 ids of a resumed session.
+     */
+    void setAwaitingRelease(PacketIdMap awaitingRelease) {
+        this.awaitingRelease = awaitingRelease;
+    }
+
+    /**
+     * The session's QoS 1 and 2 in-flight window, created on first use.
+     *
+     * @param wheel Timer redeliveries are scheduled on
+     * @return The window
+     */
+    InflightWindow inflight(HashedTimingWheel wheel) {
+        InflightWindow window = inflight;
+        if (window == null) {
+            synchronized (this) {
+                window = inflight;
+                if (window == null) {
+                    window = new InflightWindow(this, INFLIGHT_WINDOW, INFLIGHT_MAX_QUEUED, wheel,
+                            INFLIGHT_RETRY_NANOS, System::nanoTime);
+                    inflight = window;
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * The in-flight window, or null if nothing was ever sent at QoS 1 or 2.
+     */
+    InflightWindow getInflight() {
+        return inflight;
+    }
+
+    /**
+     * Records that a packet arrived from the client.
+     *
+     * @param nanoTime Current {@link System#nanoTime()}
+     */
+    void touch(long nanoTime) {
+        lastActivity = nanoTime;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    HashedTimingWheel.Timeout getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    void setKeepAliveTimeout(HashedTimingWheel.Timeout keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
     public void sendBytes(byte[] data) throws IOException {
-        synchronized (out) {
-            out.write(data);
-            out.flush();
+        send(OutboundFrame.of(ByteBuffer.wrap(data)));
+    }
+
+    /**
+     * Queues an encoded frame for this client. Never blocks on the socket.
+     * The session takes over the frame and releases it once written or
+     * discarded. If the client has fallen too far behind, the configured
+     * {@link OverflowPolicy} decides what is dropped.
+     *
+     * @param frame The frame; its buffers must not be modified after the call
+     * @throws IOException if the session is already closed, or was closed
+     *                     because its outbound queue is full
+     */
+    public void send(OutboundFrame frame) throws IOException {
+        if (closed.get()) {
+            frame.release();
+            throw new IOException("Connection closed");
+        }
+        try {
+            if (outbound.offer(frame)) {
+                scheduleFlush();
+            }
+        } catch (OutboundOverflowException e) {
+            logger.warn("Disconnecting slow consumer {}: {}", clientId, e.getMessage());
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Queues several frames and schedules a single drain for all of them, so
+     * they leave in as few gathered writes as the batch limits allow.
+     *
+     * @param frames The frames, taken over as with {@link #send(OutboundFrame)}
+     * @throws IOException if the session is already closed, or was closed
+     *                     because its outbound queue is full
+     */
+    public void sendAll(List<OutboundFrame> frames) throws IOException {
+        int i = 0;
+        boolean flush = false;
+        try {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            for (; i < frames.size(); i++) {
+                flush |= outbound.offer(frames.get(i));
+            }
+        } catch (OutboundOverflowException e) {
+            logger.warn("Disconnecting slow consumer {}: {}", clientId, e.getMessage());
+            close();
+            i++; // the queue already released the rejected frame
+            throw e;
+        } finally {
+            for (int j = i; j < frames.size(); j++) {
+                frames.get(j).release();
+            }
+            if (flush && !closed.get()) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection once every frame queued so far has been written.
+     */
+    public void closeAfterFlush() {
+        closeWhenDrained = true;
+        if (outbound.schedule()) {
+            scheduleFlush();
         }
     }
 
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            socket.close();
+            channel.close();
         } catch (IOException ignored) {
         }
+        outbound.clear();
+        onClose();
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o)
-            return true;
-        if (o == null || getClass() != o.getClass())
-            return false;
-        ClientSession that = (ClientSession) o;
-        return Objects.equals(clientId, that.clientId);
+    public boolean isClosed() {
+        return closed.get();
     }
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(clientId);
+    /**
+     * Claims the disconnect cleanup, which both the transport and the
+     * keep-alive eviction may trigger.
+     *
+     * @return true for the first caller only
+     */
+    boolean markDisconnected() {
+        return disconnected.compareAndSet(false, true);
+    }
+
+    protected SocketChannel getChannel() {
+        return channel;
+    }
+
+    protected OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * Arranges for the outbound queue to be drained. Called when a send claims
+     * the drain.
+     */
+    protected void scheduleFlush() {
+        try {
+            writer.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            close();
+        }
+    }
+
+    /**
+     * Called by drainers once the outbound queue has been fully written.
+     */
+    protected void onDrained() {
+        if (closeWhenDrained) {
+            close();
+        }
+    }
+
+    /**
+     * Called once when the session is closed.
+     */
+    protected void onClose() {
+    }
+
+    private void drain() {
+        try {
+            do {
+                if (LINGER_NANOS > 0) {
+                    // let a burst accumulate so it leaves in one write
+                    LockSupport.parkNanos(LINGER_NANOS);
+                }
+                while (!outbound.drainTo(channel)) {
+                    // blocking channel: keep writing until the batch is out
+                }
+            } while (outbound.finishDrain());
+            onDrained();
+        } catch (IOException e) {
+            if (!closed.get()) {
+                logger.warn("Write to {} failed: {}", clientId, e.getMessage());
+            }
+            close();
+            // still the drain owner: release the frames of the unfinished batch
+            outbound.abandonDrain();
+        }
     }
 }
@@ -0,0 +1,237 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues a PUBLISH for every matching subscriber. Small fan-outs run inline on
+ * the publisher's thread. Large ones are split into partitions that run on a
+ * work-stealing pool, so the publisher is released after handing out one task
+ * per partition instead of after delivering to every subscriber.
+ *
+ * <p>
+ * A subscriber always belongs to the same partition, and each partition is a
+ * serial lane: its tasks run one after another in submission order. The
+ * publisher takes one snapshot of the subscribers and sorts it into a bucket
+ * per partition, so each lane visits only its own subscribers and later
+ * subscription changes do not affect a fan-out already handed out. While any
+ * partitioned fan-out is still running, small fan-outs go through the lanes
+ * too, so a subscriber never receives a later message ahead of an earlier one.
+ */
+public class FanOutDispatcher {
+    private static final Logger logger = LogManager.getLogger(FanOutDispatcher.class);
+    // Lane tasks run before a lane yields its pool thread
+    private static final int LANE_BATCH = 16;
+
+    /**
+     * Hands one message to one subscriber.
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        /**
+         * @param session The subscriber
+         * @param topic   The topic
+         * @param payload The shared topic and payload; retain to keep it
+         * @param qos     QoS of the PUBLISH as received
+         * @throws IOException if the subscriber cannot take the message
+         */
+        void deliver(ClientSession session, String topic, SharedPayload payload, int qos) throws IOException;
+    }
+
+    private final int threshold;
+    private final Lane[] lanes;
+    private final Executor pool;
+    private final Delivery delivery;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param threshold  Smallest subscriber count fanned out in parallel
+     * @param partitions Number of lanes; 1 or less keeps every fan-out inline
+     * @param pool       Executor running the lanes
+     * @param delivery   Hands the message to each subscriber
+     */
+    public FanOutDispatcher(int threshold, int partitions, Executor pool, Delivery delivery) {
+        this.threshold = Math.max(1, threshold);
+        this.pool = pool;
+        this.delivery = delivery;
+        this.lanes = new Lane[Math.max(1, partitions)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Creates a dispatcher from {@code mqtt.fanout.*} settings, running its
+     * lanes on a dedicated work-stealing pool.
+     *
+     * @param delivery Hands the message to each subscriber
+     */
+    public static FanOutDispatcher fromProperties(Delivery delivery) {
+        int threshold = MqttProperties.getIntProperty("mqtt.fanout.parallelThreshold", 1000);
+        int partitions = MqttProperties.getIntProperty("mqtt.fanout.partitions",
+                Runtime.getRuntime().availableProcessors());
+        return new FanOutDispatcher(threshold, partitions, partitions > 1 ? newPool(partitions) : Runnable::run,
+                delivery);
+    }
+
+    /**
+     * Creates a work-stealing pool with one daemon thread per partition.
+     *
+     * @param partitions Number of partitions
+     * @return The pool
+     */
+    public static ForkJoinPool newPool(int partitions) {
+        AtomicInteger ids = new AtomicInteger();
+        return new ForkJoinPool(Math.max(1, partitions), p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("mqtt-fanout-" + ids.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Queues one PUBLISH per subscriber. Takes its own references on
+     * {@code payload}; the caller keeps and releases its own.
+     *
+     * @param topic       The topic
+     * @param subscribers The matching subscribers
+     * @param payload     The shared topic and payload
+     * @param qos         QoS of the PUBLISH as received
+     */
+    public void dispatch(String topic, Collection<ClientSession> subscribers, SharedPayload payload, int qos) {
+        if (lanes.length == 1 || (subscribers.size() < threshold && pending.get() == 0)) {
+            subscribers.forEach(s -> deliver(s, topic, payload, qos));
+            return;
+        }
+        ClientSession[][] buckets = partition(subscribers);
+        int used = 0;
+        for (ClientSession[] bucket : buckets) {
+            if (bucket.length > 0) {
+                used++;
+            }
+        }
+        if (used == 0) {
+            return;
+        }
+        pending.incrementAndGet();
+        AtomicInteger remaining = new AtomicInteger(used);
+        for (int i = 0; i < lanes.length; i++) {
+            ClientSession[] bucket = buckets[i];
+            if (bucket.length == 0) {
+                continue;
+            }
+            payload.retain();
+            lanes[i].submit(() -> {
+                try {
+                    for (ClientSession s : bucket) {
+                        deliver(s, topic, payload, qos);
+                    }
+                } finally {
+                    payload.release();
+                    if (remaining.decrementAndGet() == 0) {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Sorts a snapshot of the subscribers into one array per lane.
+     */
+    private ClientSession[][] partition(Collection<ClientSession> subscribers) {
+        ClientSession[] all = subscribers.toArray(new ClientSession[0]);
+        int[] laneOf = new int[all.length];
+        int[] counts = new int[lanes.length];
+        for (int i = 0; i < all.length; i++) {
+            laneOf[i] = laneOf(all[i]);
+            counts[laneOf[i]]++;
+        }
+        ClientSession[][] buckets = new ClientSession[lanes.length][];
+        for (int i = 0; i < lanes.length; i++) {
+            buckets[i] = new ClientSession[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 0; i < all.length; i++) {
+            buckets[laneOf[i]][counts[laneOf[i]]++] = all[i];
+        }
+        return buckets;
+    }
+
+    private int laneOf(ClientSession session) {
+        return (System.identityHashCode(session) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private void deliver(ClientSession session, String topic, SharedPayload payload, int qos) {
+        try {
+            delivery.deliver(session, topic, payload, qos);
+        } catch (IOException e) {
+            logger.warn("Failed to forward to {}: {}", session.getClientId(), e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Failed to forward to {}", session.getClientId(), e);
+        }
+    }
+
+    /**
+     * Serial queue of fan-out tasks, drained by at most one pool thread at a
+     * time.
+     */
+    private final class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < LANE_BATCH; i++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        // the lane must keep running for its other subscribers
+                        logger.error("Fan-out task failed", e);
+                    }
+                }
+            } finally {
+                // even an Error must not leave the lane claimed for good
+                scheduled.set(false);
+            }
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException e) {
+                // pool shut down: finish on the caller rather than lose messages
+                run();
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * QoS 1 and 2 messages sent to one client and not yet completed. At most
+ * {@code capacity} messages are in flight; further ones wait in a bounded
+ * queue and are sent as completions free slots. A QoS 1 message completes on
+ * PUBACK. A QoS 2 message is released on PUBREC, answered with PUBREL, and
+ * completes on PUBCOMP. Anything unanswered is resent once the retry interval
+ * passes: the PUBLISH with the DUP flag, or the PUBREL.
+ *
+ * <p>
+ * State lives in parallel arrays indexed by slot and is only allocated for
+ * sessions that actually receive QoS 1 or 2 messages. Packet identifiers map
+ * to slots through a {@link PacketIdMap}, so a window of a few hundred
+ * messages costs a few KB and no per-message objects beyond the queue. A
+ * window has at most one timeout on the shared {@link HashedTimingWheel},
+ * armed while anything is in flight.
+ */
+public final class InflightWindow {
+    // Slot states
+    private static final byte FREE = 0;
+    private static final byte AWAITING_ACK = 1; // QoS 1 PUBLISH sent
+    private static final byte AWAITING_REC = 2; // QoS 2 PUBLISH sent
+    private static final byte AWAITING_COMP = 3; // PUBREL sent
+
+    /**
+     * Source of further messages once the window and its queue run empty,
+     * e.g. a persistent session's offline queue.
+     */
+    public interface Backlog {
+        /**
+         * Publishes the next message into the window.
+         *
+         * @param window The window to publish into
+         * @return false if the backlog is empty
+         * @throws IOException if the session is closed
+         */
+        boolean next(InflightWindow window) throws IOException;
+    }
+
+    /**
+     * Receives the deliveries left unfinished when a window is cleared.
+     */
+    public interface Sink {
+        /**
+         * @param packetId Identifier the message was sent under, or 0 if it
+         *                 was still queued
+         * @param topic    The topic, or null once only PUBREL is outstanding
+         * @param payload  The payload, or null once only PUBREL is
+         *                 outstanding; only valid during the call
+         * @param qos      Delivery QoS
+         */
+        void accept(int packetId, String topic, SharedPayload payload, int qos);
+    }
+
+    /**
+     * Message waiting for a free slot.
+     */
+    private static final class Queued {
+        final String topic;
+        final SharedPayload payload;
+        final int qos;
+        final boolean retain;
+
+        Queued(String topic, SharedPayload payload, int qos, boolean retain) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retain = retain;
+        }
+    }
+
+    private final ClientSession session;
+    private final int maxQueued;
+    private final HashedTimingWheel wheel;
+    private final long retryNanos;
+    private final LongSupplier clock;
+
+    private final PacketIdMap slots; // packet id -> slot
+    private final int[] ids;
+    private final byte[] states;
+    private final boolean[] retain;
+    private final String[] topics;
+    private final SharedPayload[] payloads;
+    private final long[] sentAt;
+    private final int[] freeSlots; // stack of unused slot indices
+    private int freeCount;
+    private final ArrayDeque<Queued> queued = new ArrayDeque<>();
+    private int lastId;
+    private long dropped;
+    private boolean closed;
+    private HashedTimingWheel.Timeout retry;
+    private Backlog backlog;
+    private int retryGeneration; // tells a stale retry that lost a race with cancel apart
+
+    /**
+     * @param session    The receiving session
+     * @param capacity   Most incomplete messages at a time
+     * @param maxQueued  Most messages waiting for a slot; newer ones are
+     *                   dropped
+     * @param wheel      Timer redeliveries are scheduled on
+     * @param retryNanos Time after which an unanswered message is resent
+     * @param clock      Nanosecond clock matching the wheel's
+     */
+    public InflightWindow(ClientSession session, int capacity, int maxQueued, HashedTimingWheel wheel,
+            long retryNanos, LongSupplier clock) {
+        this.session = session;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.wheel = wheel;
+        this.retryNanos = Math.max(1, retryNanos);
+        this.clock = clock;
+        int count = Math.min(Math.max(1, capacity), 0xFFFF);
+        this.slots = new PacketIdMap(count);
+        this.ids = new int[count];
+        this.states = new byte[count];
+        this.retain = new boolean[count];
+        this.topics = new String[count];
+        this.payloads = new SharedPayload[count];
+        this.sentAt = new long[count];
+        this.freeSlots = new int[count];
+        for (int i = 0; i < count; i++) {
+            freeSlots[i] = count - 1 - i;
+        }
+        this.freeCount = count;
+    }
+
+    /**
+     * Sends a message, or queues it while the window is full. Takes its own
+     * reference on {@code payload}.
+     *
+     * @param topic   The topic
+     * @param payload The shared topic and payload
+     * @param qos     Delivery QoS, 1 or 2
+     * @throws IOException if the session is closed
+     */
+    public void publish(String topic, SharedPayload payload, int qos) throws IOException {
+        publish(topic, payload, qos, false);
+    }
+
+    /**
+     * Sends a message, or queues it while the window is full. Takes its own
+     * reference on {@code payload}.
+     *
+     * @param topic    The topic
+     * @param payload  The shared topic and payload
+     * @param qos      Delivery QoS, 1 or 2
+     * @param retained Whether this is a retained message sent on SUBSCRIBE
+     * @throws IOException if the session is closed
+     */
+    public synchronized void publish(String topic, SharedPayload payload, int qos, boolean retained)
+            throws IOException {
+        if (closed) {
+            return;
+        }
+        if (freeCount == 0) {
+            if (queued.size() >= maxQueued) {
+                dropped++;
+                return;
+            }
+            queued.add(new Queued(topic, payload.retain(), qos, retained));
+            return;
+        }
+        start(topic, payload.retain(), qos, retained);
+    }
+
+    /**
+     * Takes over a message an earlier connection of the same client left
+     * unacknowledged, resending it with the DUP flag under its original
+     * packet identifier. Takes its own reference on {@code payload}. Without
+     * a free slot, or with the identifier already in use, the message is
+     * published afresh instead.
+     *
+     * @param packetId Identifier the message was sent under
+     * @param topic    The topic
+     * @param payload  The shared topic and payload
+     * @param qos      Delivery QoS, 1 or 2
+     * @throws IOException if the session is closed
+     */
+    public synchronized void resume(int packetId, String topic, SharedPayload payload, int qos)
+            throws IOException {
+        if (closed) {
+            return;
+        }
+        if (freeCount == 0 || slots.containsKey(packetId)) {
+            publish(topic, payload, qos, false);
+            return;
+        }
+        int slot = occupy(packetId, qos == 1 ? AWAITING_ACK : AWAITING_REC);
+        topics[slot] = topic;
+        payloads[slot] = payload.retain();
+        session.send(OutboundFrame.publish(topic, payload, qos, packetId, true, false));
+    }
+
+    /**
+     * Takes over a QoS 2 delivery an earlier connection left waiting for
+     * PUBCOMP, sending its PUBREL again under the original identifier.
+     *
+     * @param packetId Identifier of the PUBREL
+     * @throws IOException if the session is closed
+     */
+    public synchronized void resumeRelease(int packetId) throws IOException {
+        if (closed) {
+            return;
+        }
+        if (freeCount > 0 && !slots.containsKey(packetId)) {
+            occupy(packetId, AWAITING_COMP);
+        }
+        sendPubRel(packetId);
+    }
+
+    /**
+     * Completes a QoS 1 delivery on PUBACK and sends the next queued message.
+     *
+     * @param packetId Identifier from the PUBACK
+     * @return true if a QoS 1 message with this identifier was in flight
+     * @throws IOException if the session is closed
+     */
+    public synchronized boolean acknowledge(int packetId) throws IOException {
+        return complete(packetId, AWAITING_ACK);
+    }
+
+    /**
+     * Handles PUBREC for a QoS 2 delivery: the client now owns the message,
+     * so the payload is released and PUBREL sent. A repeated PUBREC gets
+     * PUBREL again.
+     *
+     * @param packetId Identifier from the PUBREC
+     * @return true if a QoS 2 message with this identifier was in flight
+     * @throws IOException if the session is closed
+     */
+    public synchronized boolean received(int packetId) throws IOException {
+        int slot = slots.get(packetId);
+        if (slot < 0 || (states[slot] != AWAITING_REC && states[slot] != AWAITING_COMP)) {
+            return false;
+        }
+        if (states[slot] == AWAITING_REC) {
+            states[slot] = AWAITING_COMP;
+            payloads[slot].release();
+            payloads[slot] = null;
+            topics[slot] = null;
+        }
+        sentAt[slot] = clock.getAsLong();
+        sendPubRel(packetId);
+        return true;
+    }
+
+    /**
+     * Completes a QoS 2 delivery on PUBCOMP and sends the next queued
+     * message.
+     *
+     * @param packetId Identifier from the PUBCOMP
+     * @return true if a PUBREL with this identifier was outstanding
+     * @throws IOException if the session is closed
+     */
+    public synchronized boolean completed(int packetId) throws IOException {
+        return complete(packetId, AWAITING_COMP);
+    }
+
+    /**
+     * Sets where further messages come from once the queue is empty.
+     */
+    public synchronized void setBacklog(Backlog backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Pulls messages from the backlog while slots are free and nothing is
+     * queued ahead of them.
+     *
+     * @throws IOException if the session is closed
+     */
+    public synchronized void refill() throws IOException {
+        while (!closed && backlog != null && freeCount > 0 && queued.isEmpty() && backlog.next(this)) {
+            // next() published into a free slot
+        }
+    }
+
+    /**
+     * Releases everything held, handing the deliveries the client has not
+     * completed to {@code unfinished}: those in flight oldest first with
+     * their packet identifiers, PUBRELs still awaiting PUBCOMP included,
+     * then the queued ones, which were never sent.
+     *
+     * @param unfinished Receiver of the unfinished deliveries
+     */
+    public synchronized void clear(Sink unfinished) {
+        capture(unfinished);
+        clear();
+    }
+
+    /**
+     * Hands the deliveries the client has not completed to {@code sink} as
+     * {@link #clear(Sink)} does, but keeps them, e.g. for a snapshot.
+     *
+     * @param sink Receiver of the unfinished deliveries
+     */
+    public synchronized void capture(Sink sink) {
+        Integer[] order = new Integer[ids.length - freeCount];
+        int count = 0;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (states[slot] != FREE) {
+                order[count++] = slot;
+            }
+        }
+        Arrays.sort(order, 0, count, (a, b) -> Long.compare(sentAt[a], sentAt[b]));
+        for (int i = 0; i < count; i++) {
+            int slot = order[i];
+            sink.accept(ids[slot], topics[slot], payloads[slot], states[slot] == AWAITING_ACK ? 1 : 2);
+        }
+        for (Queued q : queued) {
+            sink.accept(0, q.topic, q.payload, q.qos);
+        }
+    }
+
+    /**
+     * Write-ahead log offset of a message sent and not yet acknowledged or
+     * received.
+     *
+     * @param packetId Identifier the message was sent under
+     * @return The offset, or -1 if unknown or not logged
+     */
+    public synchronized long logOffset(int packetId) {
+        int slot = slots.get(packetId);
+        return slot < 0 || payloads[slot] == null ? -1 : payloads[slot].getLogOffset();
+    }
+
+    /**
+     * Releases everything held, e.g. once the connection is gone.
+     */
+    public synchronized void clear() {
+        closed = true;
+        backlog = null;
+        cancelRetry();
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (states[slot] != FREE) {
+                free(slot);
+            }
+        }
+        Queued q;
+        while ((q = queued.poll()) != null) {
+            q.payload.release();
+        }
+    }
+
+    /**
+     * Number of messages sent and not yet completed.
+     */
+    public synchronized int inFlight() {
+        return ids.length - freeCount;
+    }
+
+    /**
+     * Number of messages waiting for a free slot.
+     */
+    public synchronized int queued() {
+        return queued.size();
+    }
+
+    /**
+     * Number of messages dropped because the queue was full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private boolean complete(int packetId, byte expected) throws IOException {
+        int slot = slots.get(packetId);
+        if (slot < 0 || states[slot] != expected) {
+            return false;
+        }
+        free(slot);
+        Queued next;
+        while (!closed && freeCount > 0 && (next = queued.poll()) != null) {
+            start(next.topic, next.payload, next.qos, next.retain);
+        }
+        refill();
+        if (freeCount == ids.length) {
+            cancelRetry();
+        }
+        return true;
+    }
+
+    private void start(String topic, SharedPayload payload, int qos, boolean retained) throws IOException {
+        int packetId = nextId();
+        int slot = occupy(packetId, qos == 1 ? AWAITING_ACK : AWAITING_REC);
+        retain[slot] = retained;
+        topics[slot] = topic;
+        payloads[slot] = payload;
+        session.send(OutboundFrame.publish(topic, payload, qos, packetId, false, retained));
+    }
+
+    /**
+     * Takes a free slot for {@code packetId}, arming the retry timer if
+     * nothing else is in flight.
+     */
+    private int occupy(int packetId, byte state) {
+        int slot = freeSlots[--freeCount];
+        slots.put(packetId, slot);
+        ids[slot] = packetId;
+        states[slot] = state;
+        retain[slot] = false;
+        sentAt[slot] = clock.getAsLong();
+        if (retry == null) {
+            arm(retryNanos);
+        }
+        return slot;
+    }
+
+    private void resend(int slot) throws IOException {
+        if (states[slot] == AWAITING_COMP) {
+            sendPubRel(ids[slot]);
+        } else {
+            int qos = states[slot] == AWAITING_ACK ? 1 : 2;
+            session.send(OutboundFrame.publish(topics[slot], payloads[slot], qos, ids[slot], true, retain[slot]));
+        }
+    }
+
+    private void sendPubRel(int packetId) throws IOException {
+        session.sendBytes(new byte[] { 0x62, 0x02, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    private void free(int slot) {
+        if (payloads[slot] != null) {
+            payloads[slot].release();
+            payloads[slot] = null;
+        }
+        topics[slot] = null;
+        slots.remove(ids[slot]);
+        ids[slot] = 0;
+        states[slot] = FREE;
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Next identifier in 1..65535 that is not in flight.
+     */
+    private int nextId() {
+        do {
+            lastId = lastId == 0xFFFF ? 1 : lastId + 1;
+        } while (slots.containsKey(lastId));
+        return lastId;
+    }
+
+    private void cancelRetry() {
+        if (retry != null) {
+            retry.cancel();
+            retry = null;
+            retryGeneration++;
+        }
+    }
+
+    private void arm(long delayNanos) {
+        int generation = ++retryGeneration;
+        retry = wheel.schedule(() -> redeliver(generation), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void redeliver(int generation) {
+        if (generation != retryGeneration) {
+            return;
+        }
+        retry = null;
+        if (closed || freeCount == ids.length) {
+            return;
+        }
+        long now = clock.getAsLong();
+        long nextDue = Long.MAX_VALUE;
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (states[slot] == FREE) {
+                continue;
+            }
+            if (now - sentAt[slot] >= retryNanos) {
+                sentAt[slot] = now;
+                try {
+                    resend(slot);
+                } catch (IOException e) {
+                    return; // closed: disconnect cleanup clears the window
+                }
+            }
+            nextDue = Math.min(nextDue, sentAt[slot] + retryNanos - now);
+        }
+        arm(Math.max(1, nextDue));
+    }
+}
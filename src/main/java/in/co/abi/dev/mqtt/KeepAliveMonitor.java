@@ -0,0 +1,98 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Evicts sessions that stay silent for longer than one and a half times the
+ * keep-alive they announced in CONNECT, as MQTT 3.1.1 section 3.1.2.10
+ * requires. Each watched session has a single timeout on the shared
+ * {@link HashedTimingWheel}; inbound packets only stamp the session's last
+ * activity, and the timeout re-arms itself for the remaining time when it
+ * finds the session was active in the meantime.
+ */
+public class KeepAliveMonitor {
+    private static final Logger logger = LogManager.getLogger(KeepAliveMonitor.class);
+
+    private final HashedTimingWheel wheel;
+    private final Consumer<ClientSession> evict;
+    private final LongSupplier clock;
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param wheel Timer the checks are scheduled on
+     * @param evict Called on the timer thread with each idle session
+     */
+    public KeepAliveMonitor(HashedTimingWheel wheel, Consumer<ClientSession> evict) {
+        this(wheel, evict, System::nanoTime);
+    }
+
+    KeepAliveMonitor(HashedTimingWheel wheel, Consumer<ClientSession> evict, LongSupplier clock) {
+        this.wheel = wheel;
+        this.evict = evict;
+        this.clock = clock;
+    }
+
+    /**
+     * Starts watching a session after a successful CONNECT. A keep-alive of
+     * zero disables the check, as the specification allows.
+     *
+     * @param session          The connected session
+     * @param keepAliveSeconds Keep-alive from the CONNECT packet
+     */
+    public void watch(ClientSession session, int keepAliveSeconds) {
+        unwatch(session);
+        if (keepAliveSeconds <= 0) {
+            return;
+        }
+        long limitNanos = TimeUnit.SECONDS.toNanos(keepAliveSeconds) * 3 / 2;
+        session.touch(clock.getAsLong());
+        arm(session, limitNanos, limitNanos);
+    }
+
+    /**
+     * Stops watching a session, e.g. once it has disconnected.
+     *
+     * @param session The session
+     */
+    public void unwatch(ClientSession session) {
+        HashedTimingWheel.Timeout timeout = session.getKeepAliveTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+            session.setKeepAliveTimeout(null);
+        }
+    }
+
+    /**
+     * Number of sessions evicted for exceeding their keep-alive.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private void arm(ClientSession session, long limitNanos, long delayNanos) {
+        session.setKeepAliveTimeout(
+                wheel.schedule(() -> check(session, limitNanos), delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    private void check(ClientSession session, long limitNanos) {
+        if (session.isClosed()) {
+            return;
+        }
+        long idle = clock.getAsLong() - session.getLastActivity();
+        if (idle < limitNanos) {
+            arm(session, limitNanos, limitNanos - idle);
+            return;
+        }
+        evictions.increment();
+        logger.info("Evicting {}: no packet for {} ms", session.getClientId(),
+                TimeUnit.NANOSECONDS.toMillis(idle));
+        evict.accept(session);
+    }
+}
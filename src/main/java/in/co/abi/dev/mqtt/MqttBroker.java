@@ -1,34 +1,75 @@
 package in.co.abi.dev.mqtt;
 
+import in.co.abi.dev.mqtt.nio.NioServer;
 import in.co.abi.dev.mqtt.properties.MqttProperties;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MqttBroker {
     private static final Logger logger = LogManager.getLogger(MqttBroker.class);
     private final int port;
-    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private final TransportMode transport;
+    private final PacketProcessor processor = new PacketProcessor();
+    private final AdmissionController admission = AdmissionController.fromProperties();
+    private final SocketSettings socketSettings = SocketSettings.fromProperties();
+    private final ExecutorService clients = ClientExecutors.create(
+            MqttProperties.getProperty("mqtt.blocking.threads", "platform"));
 
     public MqttBroker(int port) {
+        this(port, TransportMode.fromProperty(MqttProperties.getProperty("mqtt.transport", "blocking")));
+    }
+
+    public MqttBroker(int port, TransportMode transport) {
         this.port = port;
+        this.transport = transport;
     }
 
     public void start() throws IOException {
-        ServerSocket server = new ServerSocket(port);
-        logger.info("MQTT broker started on port {}", port);
+        // sessions and queued messages from before the restart, if persistence is on
+        processor.recover();
+        processor.startExpirySweeper();
+        logger.info("MQTT broker started on port {} ({} transport)", port, transport);
         logger.info("Connect URL: mqtt://localhost:{}", port);
         logger.info("Connect URL: mqtt://127.0.0.1:{}", port);
-        while (!server.isClosed()) {
-            Socket socket = server.accept();
-            logger.info("Accepted connection from {}", socket.getRemoteSocketAddress());
-            clients.submit(new ClientHandler(socket));
+        if (transport == TransportMode.NIO) {
+            int eventLoops = MqttProperties.getIntProperty("mqtt.nio.eventLoops",
+                    Runtime.getRuntime().availableProcessors());
+            new NioServer(port, eventLoops, processor, admission, socketSettings).start();
+            return;
         }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            socketSettings.bind(server, port);
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                if (!admission.tryAdmit()) {
+                    // refuse before a thread or session exists for it
+                    AdmissionController.reject(channel);
+                    continue;
+                }
+                logger.info("Accepted connection from {}", channel.getRemoteAddress());
+                try {
+                    socketSettings.configure(channel);
+                    // reader and drain tasks share the executor, so virtual-thread
+                    // mode covers writes too
+                    clients.submit(new ClientHandler(channel, processor, clients, admission));
+                } catch (IOException | RejectedExecutionException e) {
+                    logger.warn("Dropping connection: {}", e.getMessage());
+                    admission.release();
+                    AdmissionController.reject(channel);
+                }
+            }
+        }
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admission;
     }
 
     public static void main(String[] args) throws Exception {
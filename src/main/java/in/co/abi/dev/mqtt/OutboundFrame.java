@@ -0,0 +1,178 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.MqttEncoder;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * One frame queued for a client, written as a gathered sequence of buffers.
+ * A PUBLISH frame is a small per-subscriber fixed header around views of a
+ * {@link SharedPayload}; the payload reference is released once the frame has
+ * been written or discarded.
+ */
+public final class OutboundFrame {
+
+    /**
+     * Most buffers a single frame is split into.
+     */
+    public static final int MAX_PARTS = 4;
+
+    private static final AtomicIntegerFieldUpdater<OutboundFrame> CLAIMED = AtomicIntegerFieldUpdater
+            .newUpdater(OutboundFrame.class, "claimed");
+
+    private final ByteBuffer[] parts;
+    private final SharedPayload payload;
+    private final String topic;
+    private final int qos;
+    private final int size;
+    // set once by whoever takes the frame out of its queue: the drainer or a discard
+    private volatile int claimed;
+
+    private OutboundFrame(ByteBuffer[] parts, SharedPayload payload, String topic, int qos) {
+        this.parts = parts;
+        this.payload = payload;
+        this.topic = topic;
+        this.qos = qos;
+        int total = 0;
+        for (ByteBuffer part : parts) {
+            total += part.remaining();
+        }
+        this.size = total;
+    }
+
+    /**
+     * Wraps a fully encoded frame.
+     *
+     * @param frame The encoded frame, positioned at its first byte
+     * @return The outbound frame
+     */
+    public static OutboundFrame of(ByteBuffer frame) {
+        return new OutboundFrame(new ByteBuffer[] { frame }, null, null, 0);
+    }
+
+    /**
+     * Builds a QoS 0 PUBLISH for one subscriber. Takes its own reference on
+     * {@code payload}.
+     *
+     * @param topic   The topic, used to conflate queued messages
+     * @param payload The shared topic and payload
+     * @return The outbound frame
+     */
+    public static OutboundFrame publish(String topic, SharedPayload payload) {
+        return publish(topic, payload, false);
+    }
+
+    /**
+     * Builds a QoS 0 PUBLISH for one subscriber. Takes its own reference on
+     * {@code payload}.
+     *
+     * @param topic   The topic, used to conflate queued messages
+     * @param payload The shared topic and payload
+     * @param retain  Whether to set RETAIN, i.e. this is a retained message
+     *                sent on SUBSCRIBE
+     * @return The outbound frame
+     */
+    public static OutboundFrame publish(String topic, SharedPayload payload, boolean retain) {
+        int remaining = payload.length();
+        ByteBuffer header = ByteBuffer.allocate(1 + MqttEncoder.remainingLengthSize(remaining));
+        header.put((byte) (retain ? 0x31 : 0x30)); // PUBLISH, QoS 0
+        MqttEncoder.writeRemainingLength(header, remaining);
+        header.flip();
+        return new OutboundFrame(new ByteBuffer[] { header, payload.retain().bodyView() }, payload, topic, 0);
+    }
+
+    /**
+     * Builds a QoS 1 or 2 PUBLISH for one subscriber. The packet identifier
+     * sits between the shared topic and payload views. Takes its own
+     * reference on {@code payload}.
+     *
+     * @param topic    The topic
+     * @param payload  The shared topic and payload
+     * @param qos      1 or 2
+     * @param packetId The packet identifier allocated by the session
+     * @param dup      Whether this is a redelivery
+     * @return The outbound frame
+     */
+    public static OutboundFrame publish(String topic, SharedPayload payload, int qos, int packetId, boolean dup) {
+        return publish(topic, payload, qos, packetId, dup, false);
+    }
+
+    /**
+     * Builds a QoS 1 or 2 PUBLISH for one subscriber, optionally with RETAIN
+     * set. Takes its own reference on {@code payload}.
+     *
+     * @param topic    The topic
+     * @param payload  The shared topic and payload
+     * @param qos      1 or 2
+     * @param packetId The packet identifier allocated by the session
+     * @param dup      Whether this is a redelivery
+     * @param retain   Whether this is a retained message sent on SUBSCRIBE
+     * @return The outbound frame
+     */
+    public static OutboundFrame publish(String topic, SharedPayload payload, int qos, int packetId, boolean dup,
+            boolean retain) {
+        int remaining = payload.length() + 2;
+        ByteBuffer header = ByteBuffer.allocate(1 + MqttEncoder.remainingLengthSize(remaining));
+        header.put((byte) (0x30 | (dup ? 0x08 : 0) | (qos << 1) | (retain ? 0x01 : 0)));
+        MqttEncoder.writeRemainingLength(header, remaining);
+        header.flip();
+        ByteBuffer id = ByteBuffer.allocate(2);
+        id.putShort((short) packetId).flip();
+        payload.retain();
+        return new OutboundFrame(new ByteBuffer[] { header, payload.topicView(), id, payload.payloadView() },
+                payload, topic, qos);
+    }
+
+    ByteBuffer[] parts() {
+        return parts;
+    }
+
+    /**
+     * Topic of a PUBLISH frame, null for other packets.
+     */
+    String topic() {
+        return topic;
+    }
+
+    /**
+     * Whether an {@link OverflowPolicy} may discard this frame. Only QoS 0
+     * PUBLISH frames are; dropping a protocol reply would break the session,
+     * and QoS 1 and 2 messages are already bounded by the in-flight window.
+     */
+    boolean isDroppable() {
+        return topic != null && qos == 0;
+    }
+
+    /**
+     * Encoded size in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Takes ownership of a queued frame, so exactly one of the drainer and
+     * the overflow policy writes or discards it.
+     *
+     * @return true for the first caller only
+     */
+    boolean claim() {
+        return CLAIMED.compareAndSet(this, 0, 1);
+    }
+
+    boolean isClaimed() {
+        return claimed != 0;
+    }
+
+    /**
+     * Drops this frame's payload reference. Called exactly once, after the
+     * frame has been written or discarded.
+     */
+    void release() {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package in.co.abi.dev.mqtt;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a frame cannot be queued for a client whose outbound queue is
+ * full and whose {@link OverflowPolicy} is DISCONNECT.
+ */
+public class OutboundOverflowException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public OutboundOverflowException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,361 @@
+package in.co.abi.dev.mqtt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-session queue of encoded frames waiting to be written.
+ * Any thread may {@link #offer(OutboundFrame)} frames; exactly one drainer at
+ * a time writes them out, coalescing up to a frame/byte limit into a single
+ * gathering write so a burst of small frames costs one syscall rather than
+ * one per frame. Shared payload views are written as-is, never copied.
+ *
+ * <p>
+ * Drain protocol: {@code offer} returns true when the caller must schedule a
+ * drain. The drainer calls {@link #drainTo(GatheringByteChannel)} until it
+ * returns true (or, for a non-blocking channel, waits for writability while
+ * still owning the drain), then calls {@link #finishDrain()} and keeps
+ * draining while that returns true.
+ *
+ * <p>
+ * Queued frames are bounded by a frame count and a byte count. A PUBLISH that
+ * takes the queue past either limit is handled by the {@link OverflowPolicy},
+ * so a client with a stalled TCP window costs a bounded amount of memory and
+ * never slows down the publisher. Frames already taken into a batch no longer
+ * count against the limits. Discarded frames are claimed and left where they
+ * are rather than unlinked from the middle of the queue; the drainer skips
+ * them. CONFLATE keeps an index of the latest PUBLISH per topic, so finding
+ * the superseded ones costs nothing extra when the limit is hit.
+ *
+ * <p>
+ * Only the drain owner touches the batch in progress, so frames taken into it
+ * are released by the owner once the queue is {@link #clear() cleared}: on its
+ * next {@link #drainTo(GatheringByteChannel)} or {@link #finishDrain()}, or by
+ * {@link #abandonDrain()} when it stops draining after a failed write. If no
+ * drain is owned at that moment, {@code clear()} claims it and releases the
+ * batch itself.
+ */
+public final class OutboundQueue {
+
+    private final Queue<OutboundFrame> frames = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private final int maxBatchBytes;
+    private final int maxQueuedFrames;
+    private final long maxQueuedBytes;
+    private final OverflowPolicy policy;
+    private final OverflowCounters counters;
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // CONFLATE only: latest queued PUBLISH per topic, and the queued ones it replaced
+    private final Map<String, OutboundFrame> latest;
+    private final Queue<OutboundFrame> superseded;
+
+    // Batch being written; only touched by the active drainer
+    private final OutboundFrame[] batchFrames;
+    private final int[] batchFrameEnd; // index after each frame's last buffer
+    private final ByteBuffer[] batch;
+    private int frameStart;
+    private int frameEnd;
+    private int batchStart;
+    private int batchEnd;
+
+    /**
+     * Creates an unbounded queue.
+     *
+     * @param maxBatchFrames Most frames coalesced into one write
+     * @param maxBatchBytes  Byte budget after which a batch is written even if
+     *                       more frames are queued
+     */
+    public OutboundQueue(int maxBatchFrames, int maxBatchBytes) {
+        this(maxBatchFrames, maxBatchBytes, Integer.MAX_VALUE, Long.MAX_VALUE, OverflowPolicy.DROP_OLDEST,
+                new OverflowCounters());
+    }
+
+    /**
+     * @param maxBatchFrames  Most frames coalesced into one write
+     * @param maxBatchBytes   Byte budget after which a batch is written even if
+     *                        more frames are queued
+     * @param maxQueuedFrames Most frames waiting to be written
+     * @param maxQueuedBytes  Most bytes waiting to be written
+     * @param policy          What to do with a PUBLISH that exceeds a limit
+     * @param counters        Where overflow outcomes are counted
+     */
+    public OutboundQueue(int maxBatchFrames, int maxBatchBytes, int maxQueuedFrames, long maxQueuedBytes,
+            OverflowPolicy policy, OverflowCounters counters) {
+        this.maxQueuedFrames = Math.max(1, maxQueuedFrames);
+        this.maxQueuedBytes = Math.max(1, maxQueuedBytes);
+        this.policy = policy;
+        this.counters = counters;
+        this.latest = policy == OverflowPolicy.CONFLATE ? new ConcurrentHashMap<>() : null;
+        this.superseded = policy == OverflowPolicy.CONFLATE ? new ConcurrentLinkedQueue<>() : null;
+        int frameCapacity = Math.max(1, maxBatchFrames);
+        this.batchFrames = new OutboundFrame[frameCapacity];
+        this.batchFrameEnd = new int[frameCapacity];
+        this.batch = new ByteBuffer[frameCapacity * OutboundFrame.MAX_PARTS];
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    /**
+     * Queues a frame. Its buffers must not be modified afterwards. A frame
+     * discarded by the overflow policy is released here.
+     *
+     * @param frame The frame to queue
+     * @return true if the caller must schedule a drain
+     * @throws OutboundOverflowException if the queue is full and the policy is
+     *                                   DISCONNECT
+     */
+    public boolean offer(OutboundFrame frame) throws OutboundOverflowException {
+        if (closed) {
+            frame.release();
+            return false;
+        }
+        int count = queuedFrames.incrementAndGet();
+        long bytes = queuedBytes.addAndGet(frame.size());
+        boolean overflow = frame.isDroppable() && (count > maxQueuedFrames || bytes > maxQueuedBytes);
+        if (overflow && policy == OverflowPolicy.DROP_NEWEST) {
+            discard(frame);
+            counters.onDroppedNewest();
+            return false;
+        }
+        if (overflow && policy == OverflowPolicy.DISCONNECT) {
+            discard(frame);
+            counters.onDisconnect();
+            throw new OutboundOverflowException("Outbound queue full (" + count + " frames, " + bytes + " bytes)");
+        }
+        frames.add(frame);
+        if (latest != null && frame.isDroppable()) {
+            OutboundFrame previous = latest.put(frame.topic(), frame);
+            if (previous != null) {
+                superseded.add(previous);
+                pruneSuperseded();
+            }
+        }
+        if (overflow) {
+            if (policy == OverflowPolicy.CONFLATE) {
+                conflate();
+            }
+            dropOldest();
+        }
+        if (closed) {
+            // cleared while this frame was being added
+            discardQueued();
+            return false;
+        }
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Claims the drain without queueing anything, e.g. to run a final drain
+     * before closing.
+     *
+     * @return true if the caller must schedule a drain
+     */
+    public boolean schedule() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Writes queued frames in gathered batches, releasing each frame once it
+     * is fully written.
+     *
+     * @param channel The channel to write to
+     * @return true once everything queued has been written, false if the
+     *         channel accepted only part of a batch
+     * @throws IOException if the write fails
+     */
+    public boolean drainTo(GatheringByteChannel channel) throws IOException {
+        while (true) {
+            if (closed) {
+                abandonDrain();
+                return true;
+            }
+            if (batchStart == batchEnd && !fillBatch()) {
+                return true;
+            }
+            channel.write(batch, batchStart, batchEnd - batchStart);
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+            }
+            while (frameStart < frameEnd && batchFrameEnd[frameStart] <= batchStart) {
+                batchFrames[frameStart].release();
+                batchFrames[frameStart++] = null;
+            }
+            if (batchStart < batchEnd) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Releases the drain after {@link #drainTo(GatheringByteChannel)} returned
+     * true, re-claiming it if frames arrived in the meantime.
+     *
+     * @return true if the caller must keep draining
+     */
+    public boolean finishDrain() {
+        if (closed) {
+            // keep the drain claimed so nobody drains a cleared queue again
+            abandonDrain();
+            return false;
+        }
+        scheduled.set(false);
+        return !frames.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+
+    public boolean isEmpty() {
+        return batchStart == batchEnd && frames.isEmpty();
+    }
+
+    /**
+     * Number of frames waiting to be written, excluding the batch in progress.
+     */
+    public int queuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /**
+     * Number of bytes waiting to be written, excluding the batch in progress.
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Discards everything queued, e.g. once the connection is closed. Frames
+     * offered afterwards are released straight away. The batch in progress is
+     * released here if no drain is owned, and otherwise by the owner.
+     */
+    public void clear() {
+        closed = true;
+        discardQueued();
+        if (scheduled.compareAndSet(false, true)) {
+            discardBatch();
+        }
+    }
+
+    /**
+     * Releases the batch in progress and everything queued. Only the drain
+     * owner may call this, when it stops draining for good, e.g. because the
+     * write failed or the connection was closed while it waited for
+     * writability. The drain stays claimed.
+     */
+    public void abandonDrain() {
+        discardBatch();
+        discardQueued();
+    }
+
+    private void discardQueued() {
+        OutboundFrame frame;
+        while ((frame = frames.poll()) != null) {
+            if (frame.claim()) {
+                discard(frame);
+            }
+        }
+    }
+
+    private void discardBatch() {
+        while (frameStart < frameEnd) {
+            batchFrames[frameStart].release();
+            batchFrames[frameStart++] = null;
+        }
+        while (batchStart < batchEnd) {
+            batch[batchStart++] = null;
+        }
+        frameStart = frameEnd = batchStart = batchEnd = 0;
+    }
+
+    private boolean overLimit() {
+        return queuedFrames.get() > maxQueuedFrames || queuedBytes.get() > maxQueuedBytes;
+    }
+
+    /**
+     * Discards the oldest droppable frames until the queue is within its
+     * limits, in one pass from the head. Discarding competes with the
+     * drainer; whoever claims a frame owns it. Frames discarded earlier are
+     * unlinked on the way past.
+     */
+    private void dropOldest() {
+        Iterator<OutboundFrame> it = frames.iterator();
+        while (overLimit() && it.hasNext()) {
+            OutboundFrame frame = it.next();
+            if (frame.isClaimed()) {
+                it.remove();
+            } else if (frame.isDroppable() && frame.claim()) {
+                it.remove();
+                discard(frame);
+                counters.onDroppedOldest();
+            }
+        }
+    }
+
+    /**
+     * Discards every queued PUBLISH that has a newer one on the same topic
+     * behind it. They were recorded as they were replaced, so this only
+     * visits them, not the whole queue.
+     */
+    private void conflate() {
+        OutboundFrame stale;
+        while ((stale = superseded.poll()) != null) {
+            if (stale.claim()) {
+                discard(stale);
+                counters.onConflated();
+            }
+        }
+    }
+
+    /**
+     * Forgets replaced frames the drainer has meanwhile taken. They leave in
+     * queue order, so they gather at the head of the superseded list.
+     */
+    private void pruneSuperseded() {
+        OutboundFrame head;
+        while ((head = superseded.peek()) != null && head.isClaimed()) {
+            superseded.remove(head);
+        }
+    }
+
+    private void discard(OutboundFrame frame) {
+        dequeued(frame);
+        frame.release();
+    }
+
+    private void dequeued(OutboundFrame frame) {
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-frame.size());
+        if (latest != null && frame.isDroppable()) {
+            latest.remove(frame.topic(), frame);
+        }
+    }
+
+    private boolean fillBatch() {
+        frameStart = 0;
+        frameEnd = 0;
+        batchStart = 0;
+        batchEnd = 0;
+        long bytes = 0;
+        OutboundFrame frame;
+        while (frameEnd < batchFrames.length && bytes < maxBatchBytes && (frame = frames.poll()) != null) {
+            if (!frame.claim()) {
+                continue; // discarded while queued
+            }
+            dequeued(frame);
+            for (ByteBuffer part : frame.parts()) {
+                batch[batchEnd++] = part;
+            }
+            batchFrames[frameEnd] = frame;
+            batchFrameEnd[frameEnd++] = batchEnd;
+            bytes += frame.size();
+        }
+        return frameEnd > 0;
+    }
+}
@@ -0,0 +1,65 @@
+package in.co.abi.dev.mqtt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Broker-wide counts of what outbound queues did when a slow client hit its
+ * limit, one counter per {@link OverflowPolicy} outcome.
+ */
+public final class OverflowCounters {
+
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder droppedNewest = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    void onDroppedOldest() {
+        droppedOldest.increment();
+    }
+
+    void onDroppedNewest() {
+        droppedNewest.increment();
+    }
+
+    void onConflated() {
+        conflated.increment();
+    }
+
+    void onDisconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * Queued PUBLISH frames discarded to make room for newer ones.
+     */
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    /**
+     * PUBLISH frames discarded because the queue was full.
+     */
+    public long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    /**
+     * Queued PUBLISH frames replaced by a newer message on the same topic.
+     */
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    /**
+     * Clients disconnected for exceeding their queue limit.
+     */
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "droppedOldest=" + getDroppedOldest() + ", droppedNewest=" + getDroppedNewest()
+                + ", conflated=" + getConflated() + ", disconnects=" + getDisconnects();
+    }
+}
@@ -0,0 +1,48 @@
+package in.co.abi.dev.mqtt;
+
+/**
+ * What a session does when a client reads more slowly than messages arrive
+ * for it and its outbound queue reaches the configured frame or byte limit.
+ * Only QoS 0 PUBLISH frames are ever dropped; protocol replies such as
+ * CONNACK and SUBACK are always queued.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the oldest queued PUBLISH to make room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the PUBLISH being queued
+     */
+    DROP_NEWEST,
+
+    /**
+     * Close the connection of the slow client
+     */
+    DISCONNECT,
+
+    /**
+     * Keep only the latest queued PUBLISH per topic, falling back to
+     * DROP_OLDEST if that is not enough
+     */
+    CONFLATE;
+
+    /**
+     * Parses a configuration value, falling back to DROP_OLDEST when unset or
+     * unrecognised.
+     *
+     * @param value The configured value (e.g. "drop_oldest" or "conflate")
+     * @return The matching OverflowPolicy
+     */
+    public static OverflowPolicy fromProperty(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DROP_OLDEST;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return DROP_OLDEST;
+        }
+    }
+}
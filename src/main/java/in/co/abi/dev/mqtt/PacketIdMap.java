@@ -0,0 +1,155 @@
+package in.co.abi.dev.mqtt;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from an MQTT packet identifier (1..65535) to a value in
+ * 0..65535. Each entry is packed into a single int, identifier in the high
+ * half and value in the low half, so a table costs four bytes per slot and
+ * no boxed keys or entry objects. Zero marks an empty slot, which is why
+ * identifier 0, invalid in MQTT anyway, cannot be stored.
+ *
+ * <p>
+ * Linear probing with backward-shift deletion keeps probe chains short
+ * without tombstones. Identifiers are mostly allocated in sequence, so they
+ * are used as their own hash. Not thread-safe.
+ */
+public final class PacketIdMap {
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] table;
+    private int mask;
+    private int size;
+
+    public PacketIdMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expected Number of entries to hold without resizing
+     */
+    public PacketIdMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param packetId Identifier in 1..65535
+     * @return The value, or -1 if absent
+     */
+    public int get(int packetId) {
+        int i = indexOf(packetId);
+        return i < 0 ? -1 : table[i] & 0xFFFF;
+    }
+
+    public boolean containsKey(int packetId) {
+        return indexOf(packetId) >= 0;
+    }
+
+    /**
+     * @param packetId Identifier in 1..65535
+     * @param value    Value in 0..65535
+     * @return The previous value, or -1 if absent
+     */
+    public int put(int packetId, int value) {
+        if (packetId <= 0 || packetId > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid packet id " + packetId);
+        }
+        if (value < 0 || value > 0xFFFF) {
+            throw new IllegalArgumentException("Value out of range " + value);
+        }
+        int entry = (packetId << 16) | value;
+        for (int i = packetId & mask;; i = (i + 1) & mask) {
+            int current = table[i];
+            if (current == 0) {
+                table[i] = entry;
+                if (++size * 2 > table.length) {
+                    resize();
+                }
+                return -1;
+            }
+            if (current >>> 16 == packetId) {
+                table[i] = entry;
+                return current & 0xFFFF;
+            }
+        }
+    }
+
+    /**
+     * @param packetId Identifier in 1..65535
+     * @return The removed value, or -1 if absent
+     */
+    public int remove(int packetId) {
+        int i = indexOf(packetId);
+        if (i < 0) {
+            return -1;
+        }
+        int removed = table[i] & 0xFFFF;
+        // shift later entries of the probe chain back into the gap
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = (table[j] >>> 16) & mask;
+            boolean movable = i <= j ? home <= i || home > j : home <= i && home > j;
+            if (movable) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    /**
+     * Number of slots in the table, for sizing checks.
+     */
+    int capacity() {
+        return table.length;
+    }
+
+    private int indexOf(int packetId) {
+        if (packetId <= 0 || packetId > 0xFFFF) {
+            return -1;
+        }
+        for (int i = packetId & mask;; i = (i + 1) & mask) {
+            int current = table[i];
+            if (current == 0) {
+                return -1;
+            }
+            if (current >>> 16 == packetId) {
+                return i;
+            }
+        }
+    }
+
+    private void resize() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        mask = table.length - 1;
+        for (int entry : old) {
+            if (entry != 0) {
+                int i = (entry >>> 16) & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = entry;
+            }
+        }
+    }
+}
@@ -0,0 +1,1176 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.BufferPool;
+import in.co.abi.dev.mqtt.codec.MqttFrameDecoder;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.expiry.ExpiryPolicy;
+import in.co.abi.dev.mqtt.expiry.ExpirySweeper;
+import in.co.abi.dev.mqtt.message.DefaultMessageHandler;
+import in.co.abi.dev.mqtt.message.HandlerPipeline;
+import in.co.abi.dev.mqtt.message.MessageHandler;
+import in.co.abi.dev.mqtt.message.MessageType;
+import in.co.abi.dev.mqtt.message.MqttMessage;
+import in.co.abi.dev.mqtt.persistence.RecoveryStats;
+import in.co.abi.dev.mqtt.persistence.SnapshotFile;
+import in.co.abi.dev.mqtt.persistence.WriteAheadLog;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.retained.RetainedMessage;
+import in.co.abi.dev.mqtt.retained.RetainedStore;
+import in.co.abi.dev.mqtt.security.AuthenticationManager;
+import in.co.abi.dev.mqtt.session.OfflineMessage;
+import in.co.abi.dev.mqtt.session.PersistentSession;
+import in.co.abi.dev.mqtt.session.SessionImage;
+import in.co.abi.dev.mqtt.session.SessionStore;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Transport-independent MQTT packet processing.
+ * Both the blocking {@link ClientHandler} and the NIO event loops decode frames
+ * and hand them to {@link #process(int, ByteBuffer, int, int, ClientSession)}, so protocol
+ * behaviour is identical regardless of how the bytes arrived.
+ */
+public class PacketProcessor {
+    private static final Logger logger = LogManager.getLogger(PacketProcessor.class);
+    // Highest QoS granted to subscriptions
+    private static final int MAX_QOS = 2;
+    // Write-ahead log record types, tagged like the packets they stand for
+    private static final int LOG_PUBLISH = 0x30; // low bits: QoS and RETAIN; then expiry time (long)
+    private static final int LOG_DELIVERED = 0x40; // persistent session acknowledged a QoS 1 message
+    private static final int LOG_RECEIVED = 0x50; // persistent session received a QoS 2 message
+    private static final int LOG_COMPLETED = 0x70; // persistent session completed a QoS 2 delivery
+    private static final int LOG_SESSION = 0x80; // subscriptions of a persistent session
+    private static final int LOG_DISCARD = 0xE0; // persistent session dropped
+    private static final WriteAheadLog.Callback NO_CALLBACK = error -> {
+    };
+    // topic filter -> subscribers, matched with + and # wildcards
+    private final SubscriptionTrie<ClientSession> subscriptions = new SubscriptionTrie<>();
+    // $share/<group>/<filter> -> group, and each group indexed by its filter
+    private final ConcurrentMap<String, SharedSubscriptionGroup> sharedGroups = new ConcurrentHashMap<>();
+    private final SubscriptionTrie<SharedSubscriptionGroup> sharedSubscriptions = new SubscriptionTrie<>();
+    private final ShareStrategy shareStrategy = ShareStrategy.fromProperty(
+            MqttProperties.getProperty("mqtt.share.strategy", "round_robin"));
+    // Message handler for type-specific processing
+    private final MessageHandler messageHandler = DefaultMessageHandler.fromProperties();
+    // Runs the handler inline or, with workers configured, off the reading thread
+    private final HandlerPipeline handlerPipeline = HandlerPipeline.fromProperties(messageHandler);
+    // Authentication manager
+    private final AuthenticationManager authManager = new AuthenticationManager();
+    // Largest packet body accepted from a client; a connection's read buffer
+    // may grow to this size while a packet is arriving
+    private final int maxPacketSize = MqttProperties.getIntProperty("mqtt.maxPacketSize", 1024 * 1024);
+    // Direct buffers backing PUBLISH payloads shared across subscribers
+    private final BufferPool payloadPool = new BufferPool(
+            MqttProperties.getIntProperty("mqtt.payloadPool.maxBufferSize", 4 * 1024 * 1024),
+            MqttProperties.getIntProperty("mqtt.payloadPool.maxIdleBytes", 64 * 1024 * 1024));
+    // Last retained message per topic, sent to new subscribers
+    private final RetainedStore retainedStore = RetainedStore.fromProperties();
+    // Connection currently holding each client id, for session takeover
+    private final ConcurrentMap<String, ClientSession> connected = new ConcurrentHashMap<>();
+    // clean-session=false clients: saved state, and filters of those offline
+    private final SessionStore sessionStore;
+    // Accepted QoS 1 and 2 messages, acknowledged once durable; null if not configured
+    private final WriteAheadLog wal;
+    // Publishes hold the read side from log append to offline queueing; a snapshot takes the write side
+    private final ReadWriteLock snapshotGate = new ReentrantReadWriteLock();
+    private final int snapshotIntervalSeconds = MqttProperties.getIntProperty("mqtt.wal.snapshotIntervalSeconds",
+            300);
+    private final SubscriptionTrie<PersistentSession> offlineSubscriptions = new SubscriptionTrie<>();
+    // Expiry interval per topic filter, and the sweep reclaiming expired queued and retained messages
+    private final ExpiryPolicy expiryPolicy = ExpiryPolicy.fromProperties();
+    private final ExpirySweeper expirySweeper;
+    // Whether QoS 0 messages are queued for offline clients too
+    private final boolean queueQos0 = Boolean.parseBoolean(
+            MqttProperties.getProperty("mqtt.session.queueQos0", "false"));
+    // Fans large subscriber lists out in parallel, small ones inline
+    private final FanOutDispatcher fanOut = FanOutDispatcher.fromProperties(this::deliver);
+    // Shared timer for per-session deadlines
+    private final HashedTimingWheel timer = new HashedTimingWheel("mqtt-timer",
+            MqttProperties.getIntProperty("mqtt.timer.tickMillis", 100), TimeUnit.MILLISECONDS,
+            MqttProperties.getIntProperty("mqtt.timer.wheelSize", 512));
+    // Evicts sessions silent for longer than 1.5x their keep-alive
+    private final KeepAliveMonitor keepAliveMonitor = new KeepAliveMonitor(timer, this::evict);
+
+    public PacketProcessor() {
+        this(SessionStore.fromProperties(), WriteAheadLog.fromProperties());
+    }
+
+    PacketProcessor(SessionStore sessionStore, WriteAheadLog wal) {
+        this.sessionStore = sessionStore;
+        this.wal = wal;
+        this.expirySweeper = new ExpirySweeper(sessionStore, retainedStore,
+                MqttProperties.getIntProperty("mqtt.expiry.sweepBudget", 10000));
+    }
+
+    /**
+     * Creates the frame decoder a new connection should use.
+     *
+     * @return A decoder enforcing the configured maximum packet size
+     */
+    public MqttFrameDecoder newDecoder() {
+        return new MqttFrameDecoder(maxPacketSize);
+    }
+
+    /**
+     * Processes one complete MQTT control packet. The body is read in place
+     * from {@code buffer}; it is only valid for the duration of the call.
+     *
+     * @param first   The first byte of the fixed header (type and flags)
+     * @param buffer  Heap buffer holding the packet body
+     * @param offset  Absolute index of the first body byte
+     * @param length  Body length in bytes
+     * @param session The session the packet arrived on
+     * @throws IOException if the packet is malformed or a reply cannot be sent
+     */
+    public void process(int first, ByteBuffer buffer, int offset, int length, ClientSession session)
+            throws IOException {
+        // any control packet counts as keep-alive activity
+        session.touch(System.nanoTime());
+        int packetType = (first >> 4) & 0x0F;
+        switch (packetType) {
+            case 1: // CONNECT
+                handleConnect(buffer, offset, length, session);
+                break;
+            case 3: // PUBLISH
+                handlePublish(first, buffer, offset, length, session);
+                break;
+            case 4: // PUBACK
+                handlePubAck(buffer, offset, length, session);
+                break;
+            case 5: // PUBREC
+                handlePubRec(buffer, offset, length, session);
+                break;
+            case 6: // PUBREL
+                handlePubRel(buffer, offset, length, session);
+                break;
+            case 7: // PUBCOMP
+                handlePubComp(buffer, offset, length, session);
+                break;
+            case 8: // SUBSCRIBE
+                handleSubscribe(buffer, offset, length, session);
+                break;
+            case 12: // PINGREQ
+                sendPingResp(session);
+                break;
+            default:
+                logger.warn("Unsupported packet type: {}", packetType);
+                break;
+        }
+    }
+
+    /**
+     * Releases all broker state held for a session once its connection is gone.
+     *
+     * @param session The disconnected session
+     */
+    public void disconnect(ClientSession session) {
+        if (!session.markDisconnected()) {
+            return;
+        }
+        keepAliveMonitor.unwatch(session);
+        connected.remove(session.getClientId(), session);
+        PersistentSession stored = session.isPersistent() ? sessionStore.get(session.getClientId()) : null;
+        if (stored != null) {
+            park(session, stored);
+            return;
+        }
+        removeSessionFromAllTopics(session);
+        InflightWindow inflight = session.getInflight();
+        if (inflight != null) {
+            inflight.clear();
+        }
+    }
+
+    public KeepAliveMonitor getKeepAliveMonitor() {
+        return keepAliveMonitor;
+    }
+
+    public RetainedStore getRetainedStore() {
+        return retainedStore;
+    }
+
+    public SessionStore getSessionStore() {
+        return sessionStore;
+    }
+
+    public ExpirySweeper getExpirySweeper() {
+        return expirySweeper;
+    }
+
+    public HandlerPipeline getHandlerPipeline() {
+        return handlerPipeline;
+    }
+
+    /**
+     * Starts reclaiming expired queued and retained messages in the
+     * background.
+     */
+    public void startExpirySweeper() {
+        expirySweeper.start();
+    }
+
+    /**
+     * Restores persistent sessions from the newest snapshot and replays the
+     * write-ahead log after it, then starts taking periodic snapshots. Call
+     * once, before accepting connections.
+     *
+     * @return What was recovered and how long it took, or null without a
+     *         write-ahead log
+     * @throws IOException if the snapshot or log cannot be read
+     */
+    public RecoveryStats recover() throws IOException {
+        if (wal == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        SnapshotFile snapshot = SnapshotFile.readLatest(wal.getDirectory());
+        long from = 0;
+        if (snapshot != null) {
+            from = snapshot.getWalOffset();
+            for (PersistentSession stored : sessionStore.loadSnapshot(snapshot.getBody())) {
+                for (String filter : stored.getSubscriptions().keySet()) {
+                    if (!SharedSubscriptionGroup.isShared(filter)) {
+                        offlineSubscriptions.subscribe(filter, stored);
+                    }
+                }
+            }
+        }
+        long loaded = System.nanoTime();
+        Map<PersistentSession, Set<Long>> delivered = new HashMap<>();
+        long replayed = wal.replay(from, (offset, body) -> replayLogged(offset, body, delivered));
+        for (Map.Entry<PersistentSession, Set<Long>> entry : delivered.entrySet()) {
+            sessionStore.removeDelivered(entry.getKey(), entry.getValue());
+        }
+        RecoveryStats stats = new RecoveryStats(snapshot != null ? from : -1, sessionStore.size(), replayed,
+                loaded - start, System.nanoTime() - loaded);
+        logger.info("Restart: {}", stats);
+        if (snapshotIntervalSeconds > 0) {
+            ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "mqtt-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalSeconds,
+                    snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+        return stats;
+    }
+
+    /**
+     * Writes a snapshot of the persistent sessions and deletes the log
+     * segments it makes redundant. Publishers are held back only while the
+     * session table and the in-flight windows of connected persistent
+     * clients are copied, not while the snapshot is written. The snapshot is
+     * written only once every record below its offset is durable, so it
+     * never claims records the log could still lose.
+     *
+     * @return The snapshot file, or null without a write-ahead log
+     * @throws IOException if the snapshot cannot be written
+     */
+    public Path snapshot() throws IOException {
+        if (wal == null) {
+            return null;
+        }
+        long offset;
+        List<SessionImage> images;
+        snapshotGate.writeLock().lock();
+        try {
+            offset = wal.position();
+            for (ClientSession client : connected.values()) {
+                PersistentSession stored = client.isPersistent() ? sessionStore.get(client.getClientId()) : null;
+                if (stored != null) {
+                    stored.setSubscriptions(client.getSubscriptionQos());
+                }
+            }
+            images = sessionStore.capture();
+            for (SessionImage image : images) {
+                ClientSession client = connected.get(image.getClientId());
+                InflightWindow window = client != null && client.isPersistent() ? client.getInflight() : null;
+                if (window != null) {
+                    window.capture((packetId, topic, payload, qos) -> image.addLive(packetId, qos, payload));
+                }
+            }
+        } finally {
+            snapshotGate.writeLock().unlock();
+        }
+        Path file;
+        try {
+            wal.sync();
+            file = SnapshotFile.write(wal.getDirectory(), offset, out -> sessionStore.writeSnapshot(images, out));
+        } finally {
+            for (SessionImage image : images) {
+                image.release();
+            }
+        }
+        int truncated = wal.truncateBefore(offset);
+        logger.info("Snapshot {} written ({} sessions), {} log segments deleted", file.getFileName(),
+                images.size(), truncated);
+        return file;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Snapshot failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Applies one write-ahead log record on restart. Messages acknowledged by
+     * a session are collected in {@code delivered}, to be dropped from its
+     * queue once the whole log is replayed.
+     */
+    private void replayLogged(long offset, ByteBuffer body, Map<PersistentSession, Set<Long>> delivered) {
+        int type = body.get(0) & 0xF0;
+        if (type == LOG_PUBLISH) {
+            replayPublish(offset, body);
+            return;
+        }
+        ByteBuffer in = body.duplicate();
+        in.position(1);
+        String clientId = readLogString(in);
+        if (type == LOG_DELIVERED || type == LOG_RECEIVED || type == LOG_COMPLETED) {
+            PersistentSession stored = sessionStore.get(clientId);
+            if (stored == null) {
+                return;
+            }
+            if (type != LOG_COMPLETED) {
+                delivered.computeIfAbsent(stored, s -> new HashSet<>()).add(in.getLong());
+            }
+            if (type != LOG_DELIVERED) {
+                int packetId = in.getShort() & 0xFFFF;
+                sessionStore.completeInflight(stored, packetId);
+                if (type == LOG_RECEIVED) {
+                    try {
+                        sessionStore.keepInflight(stored, packetId, 2, null);
+                    } catch (IOException e) {
+                        // nothing is written for a PUBREL
+                    }
+                }
+            }
+        } else if (type == LOG_DISCARD) {
+            discardSession(clientId);
+        } else if (type == LOG_SESSION) {
+            PersistentSession stored = sessionStore.getOrCreate(clientId);
+            for (String filter : stored.getSubscriptions().keySet()) {
+                offlineSubscriptions.unsubscribe(filter, stored);
+            }
+            Map<String, Integer> filters = new HashMap<>();
+            for (int i = in.getInt(); i > 0; i--) {
+                String filter = readLogString(in);
+                filters.put(filter, (int) in.get());
+            }
+            stored.setSubscriptions(filters);
+            for (String filter : filters.keySet()) {
+                if (!SharedSubscriptionGroup.isShared(filter)) {
+                    offlineSubscriptions.subscribe(filter, stored);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a logged message for the restored sessions it matches. Sessions
+     * that went on to acknowledge it have it dropped again once their
+     * acknowledgements are replayed.
+     */
+    private void replayPublish(long offset, ByteBuffer body) {
+        int qos = (body.get(0) >> 1) & 0x03;
+        long expiresAt = body.getLong(1);
+        if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        ByteBuffer encoded = body.duplicate();
+        encoded.position(9);
+        SharedPayload payload = SharedPayload.wrap(encoded).setLogOffset(offset);
+        ByteBuffer topicView = payload.topicView();
+        byte[] topicBytes = new byte[topicView.remaining() - 2];
+        topicView.position(2);
+        topicView.get(topicBytes);
+        String topic = new String(topicBytes, StandardCharsets.UTF_8);
+        enqueueOffline(offlineSubscriptions.match(topic), topic, payload, qos, expiresAt);
+    }
+
+    private void evict(ClientSession session) {
+        // closing ends the transport's read loop, which calls disconnect
+        // again; cleaning up here frees the subscriptions right away
+        disconnect(session);
+        session.close();
+    }
+
+    private void handleConnect(ByteBuffer buf, int offset, int length, ClientSession session)
+            throws IOException {
+        int end = offset + length;
+        int pos = offset;
+        int protoNameLen = readUnsignedShort(buf, pos, end);
+        pos += 2;
+        String protoName = readString(buf, pos, protoNameLen, end);
+        pos += protoNameLen;
+        checkAvailable(pos, 4, end);
+        int protoLevel = buf.get(pos++) & 0xFF;
+        int connectFlags = buf.get(pos++) & 0xFF;
+        int keepAlive = readUnsignedShort(buf, pos, end);
+        pos += 2;
+
+        int clientIdLen = readUnsignedShort(buf, pos, end);
+        String clientId = readString(buf, pos + 2, clientIdLen, end);
+        pos += 2 + clientIdLen;
+        boolean cleanSession = (connectFlags & 0x02) != 0;
+
+        // Parse username and password if present
+        String username = null;
+        String password = null;
+        boolean hasUsername = (connectFlags & 0x80) != 0;
+        boolean hasPassword = (connectFlags & 0x40) != 0;
+
+        if (hasUsername) {
+            int len = readUnsignedShort(buf, pos, end);
+            username = readString(buf, pos + 2, len, end);
+            pos += 2 + len;
+        }
+        if (hasPassword) {
+            int len = readUnsignedShort(buf, pos, end);
+            password = readString(buf, pos + 2, len, end);
+            pos += 2 + len;
+        }
+
+        // Authenticate
+        boolean authenticated = false;
+        byte returnCode = 0x00; // Connection Accepted
+
+        if (clientId.isEmpty() && !cleanSession) {
+            returnCode = 0x02; // Identifier rejected: nothing to resume the session by
+            logger.warn("Rejecting empty client id with clean-session=0");
+        } else if (authManager.isAuthEnabled()) {
+            if (username != null && password != null) {
+                authenticated = authManager.authenticate(username, password);
+                if (!authenticated) {
+                    returnCode = 0x04; // Bad username or password
+                    logger.warn("Authentication failed for user '{}'", username);
+                }
+            } else if (!authManager.isAnonymousAllowed()) {
+                returnCode = 0x05; // Not authorized
+                logger.warn("Anonymous connection rejected (auth required)");
+            }
+        }
+
+        // Update session
+        if (authenticated) {
+            session.setUsername(username);
+            session.setAuthenticated(true);
+        }
+
+        PersistentSession stored = null;
+        boolean sessionPresent = false;
+        if (returnCode == 0x00 && !clientId.isEmpty()) {
+            session.setClientId(clientId);
+            snapshotGate.readLock().lock();
+            try {
+                takeOver(session);
+                if (cleanSession) {
+                    if (discardSession(clientId)) {
+                        logSessionChange(LOG_DISCARD, clientId, null);
+                    }
+                } else {
+                    sessionPresent = sessionStore.get(clientId) != null;
+                    stored = sessionStore.getOrCreate(clientId);
+                    session.setPersistent(true);
+                    if (!sessionPresent) {
+                        logSessionChange(LOG_SESSION, clientId, stored.getSubscriptions());
+                    }
+                }
+            } finally {
+                snapshotGate.readLock().unlock();
+            }
+        }
+
+        // Send CONNACK
+        byte[] connack = new byte[] { 0x20, 0x02, (byte) (sessionPresent ? 0x01 : 0x00), returnCode };
+        session.sendBytes(connack);
+
+        if (returnCode == 0x00) {
+            if (stored != null) {
+                resume(session, stored);
+            }
+            keepAliveMonitor.watch(session, keepAlive);
+            logger.info("Client CONNECTED: {} (proto={}, level={}, keepAlive={}, user={})",
+                    clientId, protoName, protoLevel, keepAlive,
+                    username != null ? username : "anonymous");
+        } else {
+            // Close connection on auth failure, once the CONNACK is out
+            session.closeAfterFlush();
+        }
+    }
+
+    private void handlePublish(int firstByte, ByteBuffer buf, int offset, int length, ClientSession session)
+            throws IOException {
+        int end = offset + length;
+        int qos = (firstByte >> 1) & 0x03;
+        if (qos == 3) {
+            throw new IOException("Malformed PUBLISH: QoS 3");
+        }
+        int topicLen = readUnsignedShort(buf, offset, end);
+        checkAvailable(offset + 2, topicLen, end);
+        String topic = session.getTopicCache().get(buf, offset + 2, topicLen);
+        if (!SubscriptionTrie.isValidTopicName(topic)) {
+            logger.warn("Dropping PUBLISH from {} to invalid topic '{}'", session.getClientId(), topic);
+            return;
+        }
+
+        // QoS 1 and 2 carry a packet id between topic and payload
+        int packetId = qos > 0 ? readUnsignedShort(buf, offset + 2 + topicLen, end) : 0;
+        if (qos > 0 && packetId == 0) {
+            throw new IOException("Malformed PUBLISH: packet id 0");
+        }
+        int payloadOffset = offset + 2 + topicLen + (qos > 0 ? 2 : 0);
+        int payloadLen = end - payloadOffset;
+        if (qos == 2 && session.awaitingRelease().put(packetId, 0) >= 0) {
+            // redelivery of a message already forwarded: exactly once means not again
+            acknowledgeDurable(session, qos, packetId, null);
+            return;
+        }
+
+        // Check authorization
+        if (!authManager.canPublish(session.getUsername(), topic)) {
+            logger.warn("Publish denied: user '{}' to topic '{}'",
+                    session.getUsername() != null ? session.getUsername() : "anonymous", topic);
+            // Silently drop; still acknowledge so the client stops retrying
+            acknowledgeDurable(session, qos, packetId, null);
+            return;
+        }
+
+        // The payload is copied once, into a pooled buffer that the handler's
+        // message and every subscriber view; the frame buffer is reused after this
+        SharedPayload shared = SharedPayload.copyOf(buf, offset, payloadOffset, payloadLen, payloadPool);
+        try {
+            // Typed view of the payload, its type detected on first use unless the
+            // handler only wants bytes; its timestamp starts the topic's expiry interval
+            MqttMessage message = MqttMessage.wrap(topic, shared,
+                    messageHandler.isBytesOnly(topic) ? MessageType.BYTES : null);
+            message = message.withExpiryInterval(expiryPolicy.intervalFor(topic));
+            long expiresAt = message.getExpiresAt();
+
+            if ((firstByte & 0x01) != 0) {
+                // RETAIN: keep as the topic's last message; an empty payload clears it
+                ByteBuffer retained = buf.duplicate();
+                retained.limit(end).position(payloadOffset);
+                retainedStore.put(topic, qos, retained, expiresAt);
+            }
+
+            // The handler logs the type, detecting it only if it needs it
+            logger.info("PUBLISH topic='{}' size={} bytes from={}",
+                    topic, message.getPayloadSize(),
+                    session.getUsername() != null ? session.getUsername() : "anonymous");
+
+            // Process message through type-specific handler; a queued message
+            // retains the pooled payload until a worker has handled it
+            handlerPipeline.submit(message, session);
+
+            if (qos == 0 || wal == null) {
+                forward(topic, shared, qos, expiresAt);
+                acknowledgePublish(session, qos, packetId);
+                return;
+            }
+            // log before forwarding; the acknowledgement waits for the fsync. A
+            // snapshot sees either both the record and its effect, or neither.
+            snapshotGate.readLock().lock();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(9);
+                header.put((byte) (LOG_PUBLISH | (firstByte & 0x07))).putLong(expiresAt).flip();
+                ByteBuffer[] record = { header, view(buf, offset, 2 + topicLen), view(buf, payloadOffset, payloadLen) };
+                shared.setLogOffset(acknowledgeDurable(session, qos, packetId, record));
+                forward(topic, shared, qos, expiresAt);
+            } finally {
+                snapshotGate.readLock().unlock();
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    /**
+     * Sends a message to its subscribers and queues it for matching offline
+     * sessions.
+     */
+    private void forward(String topic, SharedPayload shared, int qos, long expiresAt) throws IOException {
+        Collection<ClientSession> subs = subscriptions.match(topic);
+        Collection<SharedSubscriptionGroup> groups = sharedSubscriptions.match(topic);
+        if (!groups.isEmpty()) {
+            subs = withGroupMembers(subs, groups);
+        }
+        Collection<PersistentSession> parked = offlineSubscriptions.match(topic);
+        // each subscriber gets its own header around views of the shared body
+        if (!subs.isEmpty()) {
+            fanOut.dispatch(topic, subs, shared, qos);
+        }
+        enqueueOffline(parked, topic, shared, qos, expiresAt);
+    }
+
+    /**
+     * Acknowledges a QoS 1 or 2 PUBLISH once the write-ahead log has made
+     * {@code record} durable. Without a record the acknowledgement still
+     * waits for everything logged before it, so a client's acknowledgements
+     * leave in the order its messages arrived.
+     *
+     * @return Offset of the record, or -1 if none was logged
+     */
+    private long acknowledgeDurable(ClientSession session, int qos, int packetId, ByteBuffer[] record)
+            throws IOException {
+        if (wal == null) {
+            acknowledgePublish(session, qos, packetId);
+            return -1;
+        }
+        WriteAheadLog.Callback ack = error -> {
+            if (error != null) {
+                // unacknowledged, the client resends once reconnected
+                logger.warn("Closing {}: message {} could not be logged", session.getClientId(), packetId);
+                session.close();
+                return;
+            }
+            try {
+                acknowledgePublish(session, qos, packetId);
+            } catch (IOException e) {
+                logger.debug("Client {} gone before its acknowledgement", session.getClientId());
+            }
+        };
+        if (record != null) {
+            return wal.append(record, ack);
+        }
+        wal.barrier(ack);
+        return -1;
+    }
+
+    private void acknowledgePublish(ClientSession session, int qos, int packetId) throws IOException {
+        if (qos == 1) {
+            sendPubAck(session, packetId);
+        } else if (qos == 2) {
+            sendPubRec(session, packetId);
+        }
+    }
+
+    /**
+     * Sends one message to one subscriber at the lower of the publish QoS and
+     * the QoS granted to the subscriber.
+     */
+    private void deliver(ClientSession session, String topic, SharedPayload payload, int qos) throws IOException {
+        int granted = qos == 0 ? 0 : Math.min(qos, session.subscriptionQos(topic));
+        if (granted == 0) {
+            session.send(OutboundFrame.publish(topic, payload));
+        } else {
+            session.inflight(timer).publish(topic, payload, granted);
+        }
+    }
+
+    /**
+     * Appends a message for the matching offline persistent sessions to the
+     * session log, once for all of them. A client that reconnected meanwhile
+     * pulls it from there.
+     */
+    private void enqueueOffline(Collection<PersistentSession> parked, String topic, SharedPayload payload, int qos,
+            long expiresAt) {
+        if (parked.isEmpty()) {
+            return;
+        }
+        PersistentSession[] targets = new PersistentSession[parked.size()];
+        int[] granted = new int[targets.length];
+        int count = 0;
+        for (PersistentSession stored : parked) {
+            int q = Math.min(qos, stored.subscriptionQos(topic));
+            if (q > 0 || (q == 0 && queueQos0)) {
+                targets[count] = stored;
+                granted[count++] = q;
+            }
+        }
+        int queued;
+        try {
+            queued = sessionStore.enqueue(targets, granted, count, topic, payload, expiresAt);
+        } catch (IOException e) {
+            logger.warn("Cannot queue message on {} for {} offline sessions: {}", topic, count, e.getMessage());
+            return;
+        }
+        for (int i = 0; i < queued; i++) {
+            if (targets[i].isOnline()) {
+                ClientSession client = connected.get(targets[i].getClientId());
+                if (client == null) {
+                    continue;
+                }
+                try {
+                    client.inflight(timer).refill();
+                } catch (IOException e) {
+                    logger.warn("Cannot send queued message on {} to {}: {}", topic, client.getClientId(),
+                            e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the connection already holding a client id, as a new CONNECT
+     * with the same id takes the session over.
+     */
+    private void takeOver(ClientSession session) {
+        ClientSession previous = connected.put(session.getClientId(), session);
+        if (previous != null && previous != session) {
+            logger.info("Client {} connected again, closing the previous connection", session.getClientId());
+            disconnect(previous);
+            previous.close();
+        }
+    }
+
+    /**
+     * Drops a stored session, e.g. when the client connects with
+     * clean-session=1.
+     */
+    private boolean discardSession(String clientId) {
+        PersistentSession stored = sessionStore.remove(clientId);
+        if (stored == null) {
+            return false;
+        }
+        for (String filter : stored.getSubscriptions().keySet()) {
+            offlineSubscriptions.unsubscribe(filter, stored);
+        }
+        return true;
+    }
+
+    /**
+     * Logs a persistent session being created, resubscribed or dropped, so a
+     * restart restores sessions changed since the last snapshot. Session
+     * records are not waited for.
+     */
+    private void logSessionChange(int type, String clientId, Map<String, Integer> subscriptions)
+            throws IOException {
+        if (wal == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeLogString(out, clientId);
+        if (subscriptions != null) {
+            out.writeInt(subscriptions.size());
+            for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+                writeLogString(out, entry.getKey());
+                out.writeByte(entry.getValue());
+            }
+        }
+        wal.append(ByteBuffer.wrap(bytes.toByteArray()), NO_CALLBACK);
+    }
+
+    private static void writeLogString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLogString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hands a stored session to its new connection: the saved subscriptions
+     * go live again, deliveries left unfinished are resent under their
+     * original packet ids (PUBLISH with DUP, or PUBREL), and then the offline
+     * queue drains through the in-flight window as it has room.
+     */
+    private void resume(ClientSession session, PersistentSession stored) throws IOException {
+        PacketIdMap awaitingRelease = stored.takeAwaitingRelease();
+        if (awaitingRelease != null) {
+            session.setAwaitingRelease(awaitingRelease);
+        }
+        // before any live delivery can take one of the ids
+        InflightWindow window = session.inflight(timer);
+        sessionStore.resumeInflight(stored, (packetId, message) -> {
+            if (message == null) {
+                window.resumeRelease(packetId);
+                return;
+            }
+            try {
+                window.resume(packetId, message.getTopic(), message.getPayload(), message.getQos());
+            } finally {
+                message.getPayload().release();
+            }
+        });
+        int resent = window.inFlight();
+        Map<String, Integer> saved = stored.getSubscriptions();
+        for (Map.Entry<String, Integer> entry : saved.entrySet()) {
+            subscribe(session, entry.getKey(), entry.getValue());
+        }
+        window.setBacklog(w -> replayNext(session, stored, w));
+        stored.setOnline(true);
+        for (String filter : saved.keySet()) {
+            offlineSubscriptions.unsubscribe(filter, stored);
+        }
+        window.refill();
+        logger.info("Resumed session {} ({} subscriptions, {} resent, {} queued messages)", session.getClientId(),
+                saved.size(), resent, stored.backlogSize());
+    }
+
+    private boolean replayNext(ClientSession session, PersistentSession stored, InflightWindow window)
+            throws IOException {
+        long offset = stored.poll();
+        if (offset < 0) {
+            return false;
+        }
+        OfflineMessage message;
+        try {
+            message = sessionStore.read(offset);
+        } catch (IOException e) {
+            logger.warn("Skipping unreadable queued message for {}: {}", stored.getClientId(), e.getMessage());
+            return true;
+        } finally {
+            sessionStore.release(offset);
+        }
+        SharedPayload payload = message.getPayload();
+        if (message.isExpired(System.currentTimeMillis())) {
+            sessionStore.onExpired();
+            payload.release();
+            return true;
+        }
+        try {
+            if (message.getQos() == 0) {
+                session.send(OutboundFrame.publish(message.getTopic(), payload));
+            } else {
+                window.publish(message.getTopic(), payload, message.getQos());
+            }
+        } finally {
+            payload.release();
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a persistent session's state once its connection is gone: its
+     * filters move to the offline trie, deliveries in flight are kept with
+     * their packet ids and states for the next connection to resend, and
+     * messages still waiting for a slot go back to the front of its queue.
+     * Those have lost their original expiry time and get a fresh interval
+     * for their topic; messages already sent do not expire, as the client
+     * may hold their packet ids.
+     */
+    private void park(ClientSession session, PersistentSession stored) {
+        stored.setSubscriptions(session.getSubscriptionQos());
+        // offline first, so a concurrent publish reaches one trie or both
+        for (String filter : stored.getSubscriptions().keySet()) {
+            if (!SharedSubscriptionGroup.isShared(filter)) {
+                offlineSubscriptions.subscribe(filter, stored);
+            }
+        }
+        removeSessionFromAllTopics(session);
+        stored.setAwaitingRelease(session.getAwaitingRelease());
+        InflightWindow inflight = session.getInflight();
+        if (inflight != null) {
+            long[][] offsets = { new long[8], new long[8] };
+            int[] count = { 0 };
+            long now = System.currentTimeMillis();
+            inflight.clear((packetId, topic, payload, qos) -> {
+                try {
+                    if (packetId != 0) {
+                        sessionStore.keepInflight(stored, packetId, qos, payload);
+                        return;
+                    }
+                    long interval = expiryPolicy.intervalFor(topic);
+                    long expiresAt = interval == 0 ? 0 : now + interval * 1000;
+                    long offset = sessionStore.write(stored, qos, payload, expiresAt);
+                    if (count[0] == offsets[0].length) {
+                        offsets[0] = Arrays.copyOf(offsets[0], count[0] * 2);
+                        offsets[1] = Arrays.copyOf(offsets[1], count[0] * 2);
+                    }
+                    offsets[1][count[0]] = expiresAt;
+                    offsets[0][count[0]++] = offset;
+                } catch (IOException e) {
+                    logger.warn("Cannot requeue message on {} for {}: {}", topic, stored.getClientId(),
+                            e.getMessage());
+                }
+            });
+            sessionStore.requeueFirst(stored, offsets[0], offsets[1], count[0]);
+        }
+        stored.setOnline(false);
+    }
+
+    private void handlePubAck(ByteBuffer buf, int offset, int length, ClientSession session) throws IOException {
+        int packetId = readUnsignedShort(buf, offset, offset + length);
+        InflightWindow inflight = session.getInflight();
+        long logged = inflight != null ? inflight.logOffset(packetId) : -1;
+        if (inflight == null || !inflight.acknowledge(packetId)) {
+            logger.debug("Ignoring PUBACK for unknown packet {} from {}", packetId, session.getClientId());
+            return;
+        }
+        if (logged >= 0) {
+            logDelivery(LOG_DELIVERED, session, logged, packetId, NO_CALLBACK);
+        }
+    }
+
+    private void handlePubRec(ByteBuffer buf, int offset, int length, ClientSession session) throws IOException {
+        int packetId = readUnsignedShort(buf, offset, offset + length);
+        InflightWindow inflight = session.getInflight();
+        long logged = inflight != null ? inflight.logOffset(packetId) : -1;
+        if (logged >= 0 && wal != null && session.isPersistent()) {
+            // PUBREL only once the log knows the client has the message, so a
+            // restart cannot send it a second time
+            logDelivery(LOG_RECEIVED, session, logged, packetId, error -> {
+                if (error != null) {
+                    logger.warn("Closing {}: receipt of message {} could not be logged", session.getClientId(),
+                            packetId);
+                    session.close();
+                    return;
+                }
+                try {
+                    inflight.received(packetId);
+                } catch (IOException e) {
+                    logger.debug("Client {} gone before its PUBREL", session.getClientId());
+                }
+            });
+            return;
+        }
+        if (inflight == null || !inflight.received(packetId)) {
+            logger.debug("Ignoring PUBREC for unknown packet {} from {}", packetId, session.getClientId());
+        }
+    }
+
+    private void handlePubRel(ByteBuffer buf, int offset, int length, ClientSession session) throws IOException {
+        int packetId = readUnsignedShort(buf, offset, offset + length);
+        // the message was forwarded on receipt; forget its id and confirm
+        session.awaitingRelease().remove(packetId);
+        session.sendBytes(new byte[] { 0x70, 0x02, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    private void handlePubComp(ByteBuffer buf, int offset, int length, ClientSession session)
+            throws IOException {
+        int packetId = readUnsignedShort(buf, offset, offset + length);
+        InflightWindow inflight = session.getInflight();
+        if (inflight == null || !inflight.completed(packetId)) {
+            logger.debug("Ignoring PUBCOMP for unknown packet {} from {}", packetId, session.getClientId());
+            return;
+        }
+        logDelivery(LOG_COMPLETED, session, -1, packetId, NO_CALLBACK);
+    }
+
+    /**
+     * Logs a persistent session acknowledging a logged message (PUBACK),
+     * receiving one (PUBREC) or completing a QoS 2 delivery (PUBCOMP), so a
+     * restart does not queue it for the session again.
+     */
+    private void logDelivery(int type, ClientSession session, long logOffset, int packetId,
+            WriteAheadLog.Callback callback) throws IOException {
+        if (wal == null || !session.isPersistent()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeLogString(out, session.getClientId());
+        if (type != LOG_COMPLETED) {
+            out.writeLong(logOffset);
+        }
+        if (type != LOG_DELIVERED) {
+            out.writeShort(packetId);
+        }
+        wal.append(ByteBuffer.wrap(bytes.toByteArray()), callback);
+    }
+
+    private void sendPubAck(ClientSession session, int packetId) throws IOException {
+        session.sendBytes(new byte[] { 0x40, 0x02, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    private void sendPubRec(ClientSession session, int packetId) throws IOException {
+        session.sendBytes(new byte[] { 0x50, 0x02, (byte) (packetId >> 8), (byte) packetId });
+    }
+
+    private void handleSubscribe(ByteBuffer buf, int offset, int length, ClientSession session)
+            throws IOException {
+        int end = offset + length;
+        int packetId = readUnsignedShort(buf, offset, end);
+        int topicLen = readUnsignedShort(buf, offset + 2, end);
+        String topic = readString(buf, offset + 4, topicLen, end);
+        checkAvailable(offset + 4 + topicLen, 1, end);
+        int requestedQos = buf.get(offset + 4 + topicLen) & 0xFF;
+
+        // Check authorization
+        byte grantedQos = (byte) Math.min(requestedQos, MAX_QOS);
+        boolean shared = SharedSubscriptionGroup.isShared(topic);
+        if (requestedQos > 2) {
+            logger.warn("Subscribe rejected: invalid QoS {} from {}", requestedQos, session.getClientId());
+            grantedQos = (byte) 0x80; // Failure
+        } else if (shared ? SharedSubscriptionGroup.groupOf(topic) == null
+                : !SubscriptionTrie.isValidFilter(topic)) {
+            logger.warn("Subscribe rejected: invalid topic filter '{}' from {}", topic, session.getClientId());
+            grantedQos = (byte) 0x80; // Failure
+        } else if (!authManager.canSubscribe(session.getUsername(),
+                shared ? SharedSubscriptionGroup.filterOf(topic) : topic)) {
+            logger.warn("Subscribe denied: user '{}' to topic '{}'",
+                    session.getUsername() != null ? session.getUsername() : "anonymous", topic);
+            grantedQos = (byte) 0x80; // Failure
+        } else {
+            snapshotGate.readLock().lock();
+            try {
+                subscribe(session, topic, grantedQos);
+                if (session.isPersistent()) {
+                    logSessionChange(LOG_SESSION, session.getClientId(), session.getSubscriptionQos());
+                }
+            } finally {
+                snapshotGate.readLock().unlock();
+            }
+            logger.info("Client {} subscribed to '{}' (QoS {})", session.getClientId(), topic, grantedQos);
+        }
+
+        // Send SUBACK
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        bout.write(0x90);
+        bout.write(0x03);
+        bout.write((packetId >> 8) & 0xFF);
+        bout.write(packetId & 0xFF);
+        bout.write(grantedQos);
+        session.sendBytes(bout.toByteArray());
+
+        if ((grantedQos & 0x80) == 0 && !shared) {
+            deliverRetained(session, topic, grantedQos);
+        }
+    }
+
+    /**
+     * Sends the retained messages matching a new subscription. QoS 0 ones
+     * are queued together and leave in one batched write.
+     */
+    private void deliverRetained(ClientSession session, String filter, int grantedQos) throws IOException {
+        List<RetainedMessage> retained = retainedStore.match(filter);
+        if (retained.isEmpty()) {
+            return;
+        }
+        List<OutboundFrame> batch = new ArrayList<>(retained.size());
+        for (RetainedMessage message : retained) {
+            SharedPayload payload = message.payload();
+            try {
+                int qos = Math.min(message.getQos(), grantedQos);
+                if (qos == 0) {
+                    batch.add(OutboundFrame.publish(message.getTopic(), payload, true));
+                } else {
+                    session.inflight(timer).publish(message.getTopic(), payload, qos, true);
+                }
+            } finally {
+                payload.release();
+            }
+        }
+        session.sendAll(batch);
+    }
+
+    private void sendPingResp(ClientSession session) throws IOException {
+        byte[] resp = new byte[] { (byte) 0xD0, 0x00 };
+        session.sendBytes(resp);
+    }
+
+    private static void checkAvailable(int pos, int count, int end) throws IOException {
+        if (count < 0 || pos + count > end) {
+            throw new EOFException("Packet truncated");
+        }
+    }
+
+    private static int readUnsignedShort(ByteBuffer buf, int pos, int end) throws IOException {
+        checkAvailable(pos, 2, end);
+        return ((buf.get(pos) & 0xFF) << 8) | (buf.get(pos + 1) & 0xFF);
+    }
+
+    private static String readString(ByteBuffer buf, int pos, int len, int end) throws IOException {
+        checkAvailable(pos, len, end);
+        return new String(buf.array(), buf.arrayOffset() + pos, len, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer view(ByteBuffer buf, int pos, int len) {
+        ByteBuffer view = buf.duplicate();
+        view.limit(pos + len).position(pos);
+        return view;
+    }
+
+    private void subscribe(ClientSession session, String filter, int grantedQos) {
+        // index first: a disconnect running concurrently either sees the
+        // filter and removes it, or runs before and the re-check below does
+        session.addSubscription(filter, grantedQos);
+        if (SharedSubscriptionGroup.isShared(filter)) {
+            joinGroup(session, filter);
+        } else {
+            subscriptions.subscribe(filter, session);
+        }
+        if (session.isClosed()) {
+            removeSessionFromAllTopics(session);
+        }
+    }
+
+    private void removeSessionFromAllTopics(ClientSession session) {
+        // only the filters this session joined, not every subscription
+        Iterator<String> it = session.getSubscriptions().iterator();
+        while (it.hasNext()) {
+            String filter = it.next();
+            if (SharedSubscriptionGroup.isShared(filter)) {
+                leaveGroup(session, filter);
+            } else {
+                subscriptions.unsubscribe(filter, session);
+            }
+            it.remove();
+        }
+    }
+
+    private void joinGroup(ClientSession session, String shareFilter) {
+        // compute serialises membership changes and group creation per share
+        sharedGroups.compute(shareFilter, (key, group) -> {
+            if (group == null) {
+                group = new SharedSubscriptionGroup(SharedSubscriptionGroup.groupOf(key),
+                        SharedSubscriptionGroup.filterOf(key), shareStrategy);
+                sharedSubscriptions.subscribe(group.getFilter(), group);
+            }
+            group.add(session);
+            return group;
+        });
+    }
+
+    private void leaveGroup(ClientSession session, String shareFilter) {
+        sharedGroups.computeIfPresent(shareFilter, (key, group) -> {
+            group.remove(session);
+            if (!group.isEmpty()) {
+                return group;
+            }
+            sharedSubscriptions.unsubscribe(group.getFilter(), group);
+            return null;
+        });
+    }
+
+    /**
+     * Adds one member of each matching shared group to the plain subscribers.
+     */
+    private static Collection<ClientSession> withGroupMembers(Collection<ClientSession> subs,
+            Collection<SharedSubscriptionGroup> groups) {
+        List<ClientSession> targets = new ArrayList<>(subs.size() + groups.size());
+        targets.addAll(subs);
+        for (SharedSubscriptionGroup group : groups) {
+            ClientSession member = group.pick();
+            if (member != null) {
+                targets.add(member);
+            }
+        }
+        return targets;
+    }
+}
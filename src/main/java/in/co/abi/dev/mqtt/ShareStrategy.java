@@ -0,0 +1,35 @@
+package in.co.abi.dev.mqtt;
+
+/**
+ * How a shared subscription group picks the member that receives a message.
+ */
+public enum ShareStrategy {
+    /**
+     * Cycle through the members in turn
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Pick the member with the fewest bytes waiting in its outbound queue, so
+     * a slow consumer is given less work
+     */
+    LEAST_OUTSTANDING_BYTES;
+
+    /**
+     * Parses a configuration value, falling back to ROUND_ROBIN when unset or
+     * unrecognised.
+     *
+     * @param value The configured value (e.g. "round_robin")
+     * @return The matching ShareStrategy
+     */
+    public static ShareStrategy fromProperty(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return ROUND_ROBIN;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return ROUND_ROBIN;
+        }
+    }
+}
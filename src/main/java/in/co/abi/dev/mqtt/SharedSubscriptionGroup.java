@@ -0,0 +1,166 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Members of one {@code $share/<group>/<filter>} subscription. Each message
+ * matching the filter goes to a single member, chosen by the group's
+ * {@link ShareStrategy}, so consumers of one group split the stream between
+ * them instead of each processing all of it.
+ *
+ * <p>
+ * Members are kept in a copy-on-write array: groups are small and change
+ * rarely, while {@link #pick()} runs on every matching PUBLISH. Callers
+ * serialise {@link #add} and {@link #remove}.
+ */
+public final class SharedSubscriptionGroup {
+    public static final String PREFIX = "$share/";
+    private static final ClientSession[] NO_MEMBERS = new ClientSession[0];
+
+    private final String name;
+    private final String filter;
+    private final ShareStrategy strategy;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile ClientSession[] members = NO_MEMBERS;
+
+    /**
+     * @param name     The share name
+     * @param filter   The topic filter the group subscribes to
+     * @param strategy How a member is picked for each message
+     */
+    public SharedSubscriptionGroup(String name, String filter, ShareStrategy strategy) {
+        this.name = name;
+        this.filter = filter;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Checks whether a subscription filter names a shared subscription.
+     *
+     * @param filter The filter from SUBSCRIBE
+     * @return true if it starts with {@code $share/}
+     */
+    public static boolean isShared(String filter) {
+        return filter.startsWith(PREFIX);
+    }
+
+    /**
+     * Extracts the share name from {@code $share/<group>/<filter>}.
+     *
+     * @param shareFilter The full shared subscription filter
+     * @return The share name, or null if the filter is not a valid shared
+     *         subscription
+     */
+    public static String groupOf(String shareFilter) {
+        if (!isShared(shareFilter)) {
+            return null;
+        }
+        int slash = shareFilter.indexOf('/', PREFIX.length());
+        if (slash <= PREFIX.length() || slash == shareFilter.length() - 1) {
+            return null;
+        }
+        String group = shareFilter.substring(PREFIX.length(), slash);
+        if (group.indexOf('+') >= 0 || group.indexOf('#') >= 0) {
+            return null;
+        }
+        return SubscriptionTrie.isValidFilter(shareFilter.substring(slash + 1)) ? group : null;
+    }
+
+    /**
+     * Extracts the topic filter from a shared subscription accepted by
+     * {@link #groupOf(String)}.
+     *
+     * @param shareFilter The full shared subscription filter
+     * @return The topic filter after the share name
+     */
+    public static String filterOf(String shareFilter) {
+        return shareFilter.substring(shareFilter.indexOf('/', PREFIX.length()) + 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param session The joining session
+     * @return true if the session was not already a member
+     */
+    public boolean add(ClientSession session) {
+        ClientSession[] current = members;
+        for (ClientSession member : current) {
+            if (member == session) {
+                return false;
+            }
+        }
+        ClientSession[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = session;
+        members = updated;
+        return true;
+    }
+
+    /**
+     * @param session The leaving session
+     * @return true if the session was a member
+     */
+    public boolean remove(ClientSession session) {
+        ClientSession[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                ClientSession[] updated = new ClientSession[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                members = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return members.length == 0;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Chooses the member that receives the next message. Closed members are
+     * skipped.
+     *
+     * @return The chosen member, or null if no member is open
+     */
+    public ClientSession pick() {
+        ClientSession[] current = members;
+        int n = current.length;
+        if (n == 0) {
+            return null;
+        }
+        // rotating start point: round-robin order, and ties spread evenly
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        ClientSession best = null;
+        long bestBytes = Long.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            ClientSession member = current[(start + i) % n];
+            if (member.isClosed()) {
+                continue;
+            }
+            if (strategy == ShareStrategy.ROUND_ROBIN) {
+                return member;
+            }
+            long bytes = member.getOutbound().queuedBytes();
+            if (bytes < bestBytes) {
+                best = member;
+                bestBytes = bytes;
+            }
+        }
+        return best;
+    }
+}
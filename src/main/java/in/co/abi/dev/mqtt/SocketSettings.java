@@ -0,0 +1,78 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listen backlog and per-connection socket options, read from
+ * {@code mqtt-server.properties}. Shared by all transports.
+ */
+public final class SocketSettings {
+
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+
+    /**
+     * @param backlog           Pending connections the OS queues before
+     *                          accept, or 0 for the platform default
+     * @param tcpNoDelay        Disable Nagle's algorithm
+     * @param keepAlive         Enable TCP keep-alive probes
+     * @param receiveBufferSize SO_RCVBUF in bytes, or 0 for the OS default
+     * @param sendBufferSize    SO_SNDBUF in bytes, or 0 for the OS default
+     */
+    public SocketSettings(int backlog, boolean tcpNoDelay, boolean keepAlive, int receiveBufferSize,
+            int sendBufferSize) {
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.receiveBufferSize = receiveBufferSize;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public static SocketSettings fromProperties() {
+        return new SocketSettings(
+                MqttProperties.getIntProperty("mqtt.acceptBacklog", 1024),
+                Boolean.parseBoolean(MqttProperties.getProperty("mqtt.socket.tcpNoDelay", "true")),
+                Boolean.parseBoolean(MqttProperties.getProperty("mqtt.socket.keepAlive", "false")),
+                MqttProperties.getIntProperty("mqtt.socket.receiveBufferSize", 0),
+                MqttProperties.getIntProperty("mqtt.socket.sendBufferSize", 0));
+    }
+
+    /**
+     * Binds a listening channel. The receive buffer is set on the listener so
+     * accepted sockets inherit it before their TCP window is negotiated.
+     *
+     * @param server The unbound server channel
+     * @param port   The port to listen on
+     * @throws IOException if binding fails
+     */
+    public void bind(ServerSocketChannel server, int port) throws IOException {
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (receiveBufferSize > 0) {
+            server.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        server.bind(new InetSocketAddress(port), backlog);
+    }
+
+    /**
+     * Applies per-connection options to an accepted channel.
+     *
+     * @param channel The accepted channel
+     * @throws IOException if an option cannot be set
+     */
+    public void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, keepAlive);
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+    }
+}
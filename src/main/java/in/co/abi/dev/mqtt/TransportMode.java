@@ -0,0 +1,34 @@
+package in.co.abi.dev.mqtt;
+
+/**
+ * Defines how the broker accepts and services client connections.
+ */
+public enum TransportMode {
+    /**
+     * One blocking thread per connection (the original broker model)
+     */
+    BLOCKING,
+
+    /**
+     * A small pool of selector event loops owning non-blocking channels
+     */
+    NIO;
+
+    /**
+     * Parses a configuration value, falling back to BLOCKING when unset or
+     * unrecognised.
+     *
+     * @param value The configured value (e.g. "blocking" or "nio")
+     * @return The matching TransportMode
+     */
+    public static TransportMode fromProperty(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return BLOCKING;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return BLOCKING;
+        }
+    }
+}
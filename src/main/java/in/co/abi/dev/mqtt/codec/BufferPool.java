@@ -0,0 +1,101 @@
+package in.co.abi.dev.mqtt.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power-of-two size classes.
+ * Direct buffers are written to sockets without the JDK copying them into a
+ * temporary native buffer first, but they are expensive to allocate, so
+ * reference-counted owners such as {@link SharedPayload} hand them back here
+ * once the last reader is done. Requests larger than the biggest class get an
+ * unpooled heap buffer.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 10; // 1 KB
+
+    private final int maxShift;
+    private final long maxIdleBytes;
+    private final Queue<ByteBuffer>[] classes;
+    private final AtomicInteger idleBuffers = new AtomicInteger();
+    private final AtomicLong idleBytes = new AtomicLong();
+
+    /**
+     * @param maxBufferSize Largest buffer served from the pool, rounded up to a
+     *                      power of two
+     * @param maxIdleBytes  Most bytes kept in idle buffers across all classes
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBufferSize, long maxIdleBytes) {
+        this.maxShift = Math.max(MIN_SHIFT, shiftFor(Math.max(1, maxBufferSize)));
+        this.maxIdleBytes = maxIdleBytes;
+        int count = maxShift - MIN_SHIFT + 1;
+        this.classes = new Queue[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Returns a cleared buffer with its limit set to {@code size}.
+     *
+     * @param size Bytes required
+     * @return A pooled direct buffer, or a heap buffer if {@code size} exceeds
+     *         the largest class
+     */
+    public ByteBuffer acquire(int size) {
+        int shift = Math.max(MIN_SHIFT, shiftFor(size));
+        if (shift > maxShift) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = classes[shift - MIN_SHIFT].poll();
+        if (buffer != null) {
+            idleBuffers.decrementAndGet();
+            idleBytes.addAndGet(-buffer.capacity());
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)}. The caller must not
+     * touch it, or any view of it, afterwards.
+     *
+     * @param buffer The buffer to recycle
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int shift = shiftFor(capacity);
+        if ((1 << shift) != capacity || shift < MIN_SHIFT || shift > maxShift) {
+            return;
+        }
+        if (idleBytes.addAndGet(capacity) <= maxIdleBytes) {
+            idleBuffers.incrementAndGet();
+            classes[shift - MIN_SHIFT].offer(buffer);
+        } else {
+            // over budget: let the GC reclaim it
+            idleBytes.addAndGet(-capacity);
+        }
+    }
+
+    /**
+     * Number of idle buffers currently held by the pool.
+     */
+    public int idleCount() {
+        return idleBuffers.get();
+    }
+
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
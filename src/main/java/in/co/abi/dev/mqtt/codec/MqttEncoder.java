@@ -0,0 +1,44 @@
+package in.co.abi.dev.mqtt.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding helpers shared by everything that builds outbound frames.
+ */
+public final class MqttEncoder {
+
+    private MqttEncoder() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * Number of bytes the variable-length encoding of {@code length} takes.
+     *
+     * @param length The remaining length
+     * @return 1 to 4
+     */
+    public static int remainingLengthSize(int length) {
+        int size = 1;
+        while (length >= 128) {
+            length /= 128;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the variable-length remaining-length field.
+     *
+     * @param out    Destination buffer
+     * @param length The remaining length
+     */
+    public static void writeRemainingLength(ByteBuffer out, int length) {
+        do {
+            int digit = length % 128;
+            length /= 128;
+            if (length > 0)
+                digit |= 0x80;
+            out.put((byte) digit);
+        } while (length > 0);
+    }
+}
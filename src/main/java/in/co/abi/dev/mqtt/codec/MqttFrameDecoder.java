@@ -0,0 +1,155 @@
+package in.co.abi.dev.mqtt.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental, reusable decoder for MQTT fixed-header framing.
+ * One instance lives per connection and keeps its position in the current
+ * frame across reads, so partial headers, split remaining-length fields and
+ * partial bodies are all resumed where they stopped. Complete frames are
+ * handed to a {@link FrameHandler} as an offset/length view into the
+ * connection's own buffer; nothing is copied or allocated per frame. The
+ * buffer grows for a frame larger than it and goes back to its original size
+ * once that frame has been consumed, so one large packet does not pin memory
+ * for the rest of the connection.
+ */
+public final class MqttFrameDecoder {
+
+    /**
+     * Largest remaining length the protocol can encode (four length bytes).
+     */
+    public static final int MAX_REMAINING_LENGTH = 268_435_455;
+
+    /**
+     * Receives decoded frames.
+     */
+    public interface FrameHandler {
+        /**
+         * Called once per complete frame. The bytes at
+         * {@code [offset, offset + length)} are only valid for the duration of
+         * the call; copy anything that must outlive it.
+         *
+         * @param header The first byte of the fixed header (type and flags)
+         * @param buffer The buffer holding the frame body
+         * @param offset Absolute index of the first body byte
+         * @param length Body length in bytes
+         * @throws IOException if the frame cannot be processed
+         */
+        void onFrame(int header, ByteBuffer buffer, int offset, int length) throws IOException;
+    }
+
+    private static final int READ_HEADER = 0;
+    private static final int READ_LENGTH = 1;
+    private static final int READ_BODY = 2;
+
+    private final int maxFrameSize;
+    private int state = READ_HEADER;
+    private int header;
+    private int remainingLength;
+    private int multiplier;
+    private int baseCapacity; // buffer size before it first grew, 0 until then
+
+    public MqttFrameDecoder() {
+        this(MAX_REMAINING_LENGTH);
+    }
+
+    /**
+     * @param maxFrameSize Largest body accepted before the connection is
+     *                     treated as malformed
+     */
+    public MqttFrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Consumes every complete frame in {@code in} (which must be in read mode).
+     * Header bytes are always consumed; an incomplete body is left in the
+     * buffer so the caller can compact and read more.
+     *
+     * @param in      The connection buffer, flipped for reading
+     * @param handler Receiver for complete frames
+     * @throws IOException if the remaining length is malformed or too large,
+     *                     or if the handler fails
+     */
+    public void decode(ByteBuffer in, FrameHandler handler) throws IOException {
+        while (true) {
+            if (state == READ_HEADER) {
+                if (!in.hasRemaining()) {
+                    return;
+                }
+                header = in.get() & 0xFF;
+                remainingLength = 0;
+                multiplier = 1;
+                state = READ_LENGTH;
+            }
+
+            if (state == READ_LENGTH) {
+                int digit;
+                do {
+                    if (!in.hasRemaining()) {
+                        return;
+                    }
+                    digit = in.get() & 0xFF;
+                    remainingLength += (digit & 127) * multiplier;
+                    if ((digit & 128) != 0 && multiplier == 128 * 128 * 128)
+                        throw new IOException("Malformed Remaining Length");
+                    multiplier *= 128;
+                } while ((digit & 128) != 0);
+
+                if (remainingLength > maxFrameSize) {
+                    throw new IOException("Packet of " + remainingLength
+                            + " bytes exceeds maximum of " + maxFrameSize);
+                }
+                state = READ_BODY;
+            }
+
+            if (in.remaining() < remainingLength) {
+                return;
+            }
+            int offset = in.position();
+            in.position(offset + remainingLength);
+            state = READ_HEADER;
+            handler.onFrame(header, in, offset, remainingLength);
+        }
+    }
+
+    /**
+     * Makes sure a compacted buffer (write mode) can hold the body of the frame
+     * currently being decoded, growing it if required. A buffer grown for an
+     * earlier frame is swapped back for one of the original size as soon as
+     * what it holds and the current frame fit in that again.
+     *
+     * @param buffer The connection buffer after {@link ByteBuffer#compact()}
+     * @return The same buffer, or a copy of it with a different capacity
+     */
+    public ByteBuffer ensureCapacity(ByteBuffer buffer) {
+        int needed = state == READ_BODY ? remainingLength : 0;
+        if (buffer.capacity() < needed) {
+            if (baseCapacity == 0) {
+                baseCapacity = buffer.capacity();
+            }
+            return copy(buffer, needed);
+        }
+        if (baseCapacity != 0 && buffer.capacity() > baseCapacity && needed <= baseCapacity
+                && buffer.position() <= baseCapacity) {
+            return copy(buffer, baseCapacity);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer, int capacity) {
+        ByteBuffer resized = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        resized.put(buffer);
+        return resized;
+    }
+
+    /**
+     * Resets the decoder to expect a new frame.
+     */
+    public void reset() {
+        state = READ_HEADER;
+        remainingLength = 0;
+    }
+}
@@ -0,0 +1,159 @@
+package in.co.abi.dev.mqtt.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted, encoded PUBLISH body shared by every subscriber of one
+ * message. Holds the length-prefixed topic followed by the application
+ * payload; per-subscriber parts (fixed header, packet identifier) are written
+ * around read-only views of it, so the payload is copied once per publish no
+ * matter how many subscribers receive it.
+ *
+ * <p>
+ * The creator owns one reference. Every holder calls {@link #retain()} before
+ * keeping a view and {@link #release()} when done; the last release returns
+ * the backing buffer to its pool.
+ */
+public final class SharedPayload {
+
+    private final ByteBuffer buffer;
+    private final int topicEnd;
+    private final BufferPool pool;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+    // where the message was logged; tells its deliveries apart across restarts
+    private volatile long logOffset = -1;
+
+    private SharedPayload(ByteBuffer buffer, int topicEnd, BufferPool pool) {
+        this.buffer = buffer;
+        this.topicEnd = topicEnd;
+        this.pool = pool;
+    }
+
+    /**
+     * Copies a topic field and payload out of a decoded frame.
+     *
+     * @param src           Buffer holding the inbound frame body
+     * @param topicOffset   Index of the topic length prefix
+     * @param payloadOffset Index of the first payload byte
+     * @param payloadLength Payload length in bytes
+     * @param pool          Pool to take the backing buffer from
+     * @return A payload with one reference owned by the caller
+     */
+    public static SharedPayload copyOf(ByteBuffer src, int topicOffset, int payloadOffset, int payloadLength,
+            BufferPool pool) {
+        int topicField = 2 + (((src.get(topicOffset) & 0xFF) << 8) | (src.get(topicOffset + 1) & 0xFF));
+        ByteBuffer buffer = pool.acquire(topicField + payloadLength);
+
+        ByteBuffer source = src.duplicate();
+        source.limit(topicOffset + topicField).position(topicOffset);
+        buffer.put(source);
+        source.limit(payloadOffset + payloadLength).position(payloadOffset);
+        buffer.put(source);
+        buffer.flip();
+        return new SharedPayload(buffer, topicField, pool);
+    }
+
+    /**
+     * Wraps an already encoded topic field and payload without copying.
+     *
+     * @param encoded Buffer holding length-prefixed topic followed by payload,
+     *                from position to limit
+     * @return A payload with one reference owned by the caller
+     */
+    public static SharedPayload wrap(ByteBuffer encoded) {
+        ByteBuffer buffer = encoded.slice();
+        int topicField = 2 + (((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF));
+        return new SharedPayload(buffer, topicField, null);
+    }
+
+    public SharedPayload retain() {
+        int count;
+        do {
+            count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Payload already released");
+            }
+        } while (!refCnt.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = refCnt.decrementAndGet();
+        if (count == 0 && pool != null) {
+            pool.release(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("Payload released too often");
+        }
+    }
+
+    public int refCount() {
+        return refCnt.get();
+    }
+
+    /**
+     * Offset of the message's record in the write-ahead log, or -1 if it was
+     * not logged.
+     */
+    public long getLogOffset() {
+        return logOffset;
+    }
+
+    /**
+     * Records where the message was logged; set before the payload is
+     * shared.
+     *
+     * @param logOffset Offset of the record in the write-ahead log
+     * @return This payload
+     */
+    public SharedPayload setLogOffset(long logOffset) {
+        this.logOffset = logOffset;
+        return this;
+    }
+
+    /**
+     * Encoded size of topic field plus payload.
+     */
+    public int length() {
+        return buffer.limit();
+    }
+
+    /**
+     * Size of the length-prefixed topic field.
+     */
+    public int topicFieldLength() {
+        return topicEnd;
+    }
+
+    public int payloadLength() {
+        return buffer.limit() - topicEnd;
+    }
+
+    /**
+     * Read-only view of the length-prefixed topic field.
+     */
+    public ByteBuffer topicView() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(0).limit(topicEnd);
+        return view;
+    }
+
+    /**
+     * Read-only view of the application payload.
+     */
+    public ByteBuffer payloadView() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(topicEnd);
+        return view;
+    }
+
+    /**
+     * Read-only view of topic field and payload together, i.e. a complete
+     * QoS 0 PUBLISH body.
+     */
+    public ByteBuffer bodyView() {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(0);
+        return view;
+    }
+}
@@ -0,0 +1,58 @@
+package in.co.abi.dev.mqtt.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Small direct-mapped cache from encoded topic bytes to decoded topic strings.
+ * Devices publish to the same handful of topics over and over, so keeping one
+ * per connection turns the per-PUBLISH UTF-8 decode into a byte comparison.
+ * Not thread-safe; each connection owns its own instance.
+ */
+public final class TopicCache {
+
+    private static final int SLOTS = 8;
+
+    private final byte[][] keys = new byte[SLOTS][];
+    private final String[] values = new String[SLOTS];
+
+    /**
+     * Returns the topic encoded at {@code [offset, offset + length)} of a heap
+     * buffer, decoding it only on a cache miss.
+     *
+     * @param buffer Heap buffer holding the encoded topic
+     * @param offset Absolute index of the first topic byte
+     * @param length Encoded topic length
+     * @return The decoded topic
+     */
+    public String get(ByteBuffer buffer, int offset, int length) {
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + offset;
+
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + array[start + i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+
+        byte[] key = keys[slot];
+        if (key != null && key.length == length && regionEquals(key, array, start)) {
+            return values[slot];
+        }
+
+        String topic = new String(array, start, length, StandardCharsets.UTF_8);
+        keys[slot] = Arrays.copyOfRange(array, start, start + length);
+        values[slot] = topic;
+        return topic;
+    }
+
+    private static boolean regionEquals(byte[] key, byte[] array, int start) {
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != array[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
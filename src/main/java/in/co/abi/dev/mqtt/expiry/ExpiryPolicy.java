@@ -0,0 +1,101 @@
+package in.co.abi.dev.mqtt.expiry;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Expiry intervals configured per topic filter. A message published to a
+ * topic lives as long as the shortest interval among the filters matching
+ * it, or the default interval if none does; it expires that many seconds
+ * after its {@code MqttMessage} timestamp. A filter with interval 0 keeps
+ * its topics from the default.
+ */
+public final class ExpiryPolicy {
+    private static final Logger logger = LogManager.getLogger(ExpiryPolicy.class);
+
+    /**
+     * One configured filter; identity-compared, so equal intervals on
+     * overlapping filters are still matched separately.
+     */
+    private static final class Rule {
+        final long seconds;
+
+        Rule(long seconds) {
+            this.seconds = seconds;
+        }
+    }
+
+    private final long defaultSeconds;
+    private final SubscriptionTrie<Rule> rules = new SubscriptionTrie<>();
+
+    /**
+     * @param defaultSeconds Interval for topics no filter matches; 0 for none
+     * @param filters        Topic filter to interval in seconds
+     */
+    public ExpiryPolicy(long defaultSeconds, Map<String, Long> filters) {
+        this.defaultSeconds = Math.max(0, defaultSeconds);
+        for (Map.Entry<String, Long> entry : filters.entrySet()) {
+            rules.subscribe(entry.getKey(), new Rule(Math.max(0, entry.getValue())));
+        }
+    }
+
+    /**
+     * Creates a policy from {@code mqtt.expiry.defaultSeconds} and
+     * {@code mqtt.expiry.filters}, a comma-separated list of
+     * {@code filter=seconds} pairs. Malformed entries are logged and skipped.
+     */
+    public static ExpiryPolicy fromProperties() {
+        long defaultSeconds = MqttProperties.getIntProperty("mqtt.expiry.defaultSeconds", 0);
+        return new ExpiryPolicy(defaultSeconds, parse(MqttProperties.getProperty("mqtt.expiry.filters", "")));
+    }
+
+    static Map<String, Long> parse(String value) {
+        Map<String, Long> filters = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int eq = entry.lastIndexOf('=');
+            String filter = eq > 0 ? entry.substring(0, eq).trim() : "";
+            try {
+                if (!SubscriptionTrie.isValidFilter(filter)) {
+                    throw new NumberFormatException();
+                }
+                filters.put(filter, Long.parseLong(entry.substring(eq + 1).trim()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring malformed expiry rule '{}', expected filter=seconds", entry);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Whether any message can get an expiry interval from this policy.
+     */
+    public boolean isEnabled() {
+        return defaultSeconds > 0 || !rules.isEmpty();
+    }
+
+    /**
+     * @param topic A topic name
+     * @return Expiry interval in seconds for messages on the topic; 0 for none
+     */
+    public long intervalFor(String topic) {
+        if (rules.isEmpty()) {
+            return defaultSeconds;
+        }
+        long seconds = -1;
+        for (Rule rule : rules.match(topic)) {
+            if (seconds < 0 || (rule.seconds > 0 && (seconds == 0 || rule.seconds < seconds))) {
+                seconds = rule.seconds;
+            }
+        }
+        return seconds < 0 ? defaultSeconds : seconds;
+    }
+}
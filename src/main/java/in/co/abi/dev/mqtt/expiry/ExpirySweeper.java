@@ -0,0 +1,86 @@
+package in.co.abi.dev.mqtt.expiry;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.retained.RetainedStore;
+import in.co.abi.dev.mqtt.session.SessionStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Reclaims expired offline-queue and retained messages in the background.
+ * Each run does a bounded amount of work in each store and picks up where
+ * the previous run stopped, so neither store is ever scanned in one go and
+ * publishers contend with the sweep only for short stretches. Messages that
+ * expire between runs are still never delivered: both stores check expiry
+ * when a message is read.
+ */
+public final class ExpirySweeper {
+    private static final Logger logger = LogManager.getLogger(ExpirySweeper.class);
+
+    private final SessionStore sessions;
+    private final RetainedStore retained;
+    private final int budget;
+    private final LongSupplier clock;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param sessions Offline queues to sweep
+     * @param retained Retained messages to sweep
+     * @param budget   Most messages each store looks at per run
+     */
+    public ExpirySweeper(SessionStore sessions, RetainedStore retained, int budget) {
+        this(sessions, retained, budget, System::currentTimeMillis);
+    }
+
+    ExpirySweeper(SessionStore sessions, RetainedStore retained, int budget, LongSupplier clock) {
+        this.sessions = sessions;
+        this.retained = retained;
+        this.budget = Math.max(1, budget);
+        this.clock = clock;
+    }
+
+    /**
+     * Runs one bounded pass over both stores.
+     *
+     * @return Number of messages reclaimed
+     */
+    public int sweep() {
+        long now = clock.getAsLong();
+        int queued = sessions.sweepExpired(now, budget);
+        int kept = retained.sweepExpired(now, budget);
+        if (queued + kept > 0) {
+            logger.debug("Expired {} queued and {} retained messages", queued, kept);
+        }
+        return queued + kept;
+    }
+
+    /**
+     * Starts sweeping every {@code mqtt.expiry.sweepIntervalMillis} on a
+     * daemon thread. Does nothing if already started or the interval is 0.
+     */
+    public synchronized void start() {
+        long interval = MqttProperties.getIntProperty("mqtt.expiry.sweepIntervalMillis", 1000);
+        if (executor != null || interval <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mqtt-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweepQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            logger.error("Expiry sweep failed: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package in.co.abi.dev.mqtt.message;
+
+/**
+ * What the {@link HandlerPipeline} does with a message whose lane is full
+ * because the handler is slower than messages arrive. Forwarding to
+ * subscribers is not affected by any of them; only the handler call is.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Wait for room, holding up the publishing connection's thread. Not
+     * available with the NIO transport, where that thread is an event loop
+     * serving many connections.
+     */
+    BLOCK,
+
+    /**
+     * Skip the handler for the message being submitted
+     */
+    DROP_NEWEST,
+
+    /**
+     * Skip the handler for the oldest queued message in the lane to make
+     * room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Run the handler on the publishing thread, which may then overtake
+     * earlier queued messages on the same topic. The default with the NIO
+     * transport, where the other connections on the event loop wait for that
+     * one handler call.
+     */
+    CALLER_RUNS;
+
+    /**
+     * Parses a configuration value, falling back to BLOCK when unset or
+     * unrecognised.
+     *
+     * @param value The configured value (e.g. "block" or "drop_newest")
+     * @return The matching BackpressurePolicy
+     */
+    public static BackpressurePolicy fromProperty(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return BLOCK;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            return BLOCK;
+        }
+    }
+}
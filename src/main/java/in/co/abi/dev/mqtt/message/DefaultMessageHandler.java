@@ -1,17 +1,60 @@
 package in.co.abi.dev.mqtt.message;
 
 import in.co.abi.dev.mqtt.ClientSession;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
 /**
  * Default implementation of MessageHandler that logs message processing.
- * Extend this class to add custom processing logic.
+ * Extend this class to add custom processing logic. Topics matching one of
+ * the configured bytes-only filters are handled as raw bytes without type
+ * detection.
  */
 public class DefaultMessageHandler implements MessageHandler {
 
     private static final Logger logger = LogManager.getLogger(DefaultMessageHandler.class);
 
+    private final SubscriptionTrie<String> bytesOnly = new SubscriptionTrie<>();
+
+    public DefaultMessageHandler() {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * @param bytesOnlyFilters Topic filters whose messages are handled as
+     *                         bytes without detecting their type
+     */
+    public DefaultMessageHandler(Collection<String> bytesOnlyFilters) {
+        for (String filter : bytesOnlyFilters) {
+            if (SubscriptionTrie.isValidFilter(filter)) {
+                bytesOnly.subscribe(filter, filter);
+            } else {
+                logger.warn("Ignoring invalid bytes-only topic filter '{}'", filter);
+            }
+        }
+    }
+
+    /**
+     * Creates a handler with the bytes-only filters listed, comma-separated,
+     * in {@code mqtt.handler.bytesOnlyTopics}.
+     */
+    public static DefaultMessageHandler fromProperties() {
+        String filters = MqttProperties.getProperty("mqtt.handler.bytesOnlyTopics", "").trim();
+        return filters.isEmpty() ? new DefaultMessageHandler()
+                : new DefaultMessageHandler(Arrays.asList(filters.split("\\s*,\\s*")));
+    }
+
+    @Override
+    public boolean isBytesOnly(String topic) {
+        return !bytesOnly.isEmpty() && !bytesOnly.match(topic).isEmpty();
+    }
+
     @Override
     public void handleBytes(String topic, byte[] payload, ClientSession session) {
         String clientId = session != null ? session.getClientId() : "internal";
@@ -46,7 +89,7 @@ public class DefaultMessageHandler implements MessageHandler {
 
         if (logger.isDebugEnabled()) {
             try {
-                String pretty = JsonUtil.prettyPrint(message.asBytes());
+                String pretty = JsonUtil.prettyPrint(message.asJsonNode());
                 logger.debug("[JSON] Pretty printed:\n{}", pretty);
             } catch (Exception e) {
                 logger.debug("[JSON] Failed to pretty print: {}", e.getMessage());
@@ -0,0 +1,426 @@
+package in.co.abi.dev.mqtt.message;
+
+import in.co.abi.dev.mqtt.ClientSession;
+import in.co.abi.dev.mqtt.TransportMode;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the {@link MessageHandler} for each PUBLISH, either inline on the
+ * publishing connection's thread or, with workers configured, on a pool of
+ * handler threads so a slow handler no longer holds up reading and
+ * forwarding.
+ *
+ * <p>
+ * Each worker consumes one lane: a bounded ring whose slots are allocated
+ * up front, so queueing a message allocates nothing. A topic always maps to
+ * the same lane, so messages on one topic are handled one at a time in the
+ * order they arrived. When a lane is full the {@link BackpressurePolicy}
+ * decides what happens. Queued messages are retained and released once
+ * handled, so pooled payloads stay valid until the worker is done with them.
+ *
+ * <p>
+ * A handler that throws, errors included, is counted and logged, and the
+ * worker moves on to the next message. Should a worker die anyway, its lane
+ * stops taking messages: what was queued is dropped, blocked publishers are
+ * let go, and later messages for the lane are treated as if it were full.
+ *
+ * <p>
+ * Queue depth, outcomes, time spent queued and time spent in the handler are
+ * counted for monitoring.
+ */
+public final class HandlerPipeline {
+    private static final Logger logger = LogManager.getLogger(HandlerPipeline.class);
+
+    private final MessageHandler handler;
+    private final BackpressurePolicy policy;
+    private final Lane[] lanes;
+    private volatile boolean closed;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAccumulator peakDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder handlerNanos = new LongAdder();
+    private final LongAccumulator maxHandlerNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param handler  The handler to run
+     * @param workers  Number of handler threads, each with its own lane; 0 or
+     *                 less runs the handler inline
+     * @param capacity Messages queued across all lanes before backpressure
+     *                 applies
+     * @param policy   What to do when a lane is full
+     */
+    public HandlerPipeline(MessageHandler handler, int workers, int capacity, BackpressurePolicy policy) {
+        this.handler = handler;
+        this.policy = policy;
+        int count = Math.max(0, workers);
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(Math.max(1, (capacity + count - 1) / count));
+            Thread thread = new Thread(lanes[i], "mqtt-handler-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates a pipeline from {@code mqtt.handler.pipeline.*} settings. With
+     * the default of no workers the handler runs inline, as before.
+     *
+     * @param handler The handler to run
+     */
+    public static HandlerPipeline fromProperties(MessageHandler handler) {
+        int workers = MqttProperties.getIntProperty("mqtt.handler.pipeline.workers", 0);
+        int capacity = MqttProperties.getIntProperty("mqtt.handler.pipeline.capacity", 4096);
+        BackpressurePolicy policy = policyFor(
+                MqttProperties.getProperty("mqtt.handler.pipeline.backpressure"),
+                TransportMode.fromProperty(MqttProperties.getProperty("mqtt.transport", "blocking")));
+        if (workers > 0) {
+            logger.info("Handler pipeline: {} workers, {} queued messages, backpressure {}", workers, capacity,
+                    policy);
+        }
+        return new HandlerPipeline(handler, workers, capacity, policy);
+    }
+
+    /**
+     * Resolves the configured backpressure policy for a transport. BLOCK,
+     * the default otherwise, would park an NIO event loop and stall every
+     * connection on it, so with NIO the default is CALLER_RUNS and BLOCK is
+     * refused in its favour.
+     *
+     * @param value     The configured value, or null when unset
+     * @param transport The broker's transport
+     * @return The policy to use
+     */
+    static BackpressurePolicy policyFor(String value, TransportMode transport) {
+        BackpressurePolicy policy = BackpressurePolicy.fromProperty(value);
+        if (transport != TransportMode.NIO || policy != BackpressurePolicy.BLOCK) {
+            return policy;
+        }
+        if (value != null && !value.trim().isEmpty()) {
+            logger.warn("Handler pipeline backpressure {} would block the NIO event loop; using caller_runs",
+                    value.trim());
+        }
+        return BackpressurePolicy.CALLER_RUNS;
+    }
+
+    /**
+     * Hands a message to the handler. The message may be a view of a pooled
+     * payload; it is retained while queued.
+     *
+     * @param message The message
+     * @param session The publishing client
+     */
+    public void submit(MqttMessage message, ClientSession session) {
+        if (lanes.length == 0 || closed) {
+            run(message, session);
+            return;
+        }
+        Lane lane = lanes[(spread(message.getTopic().hashCode()) & Integer.MAX_VALUE) % lanes.length];
+        if (!lane.offer(message, session)) {
+            if (policy == BackpressurePolicy.CALLER_RUNS) {
+                callerRuns.increment();
+                run(message, session);
+            } else {
+                dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers once their lanes are empty. Messages submitted
+     * afterwards run inline.
+     */
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.wake();
+        }
+    }
+
+    /**
+     * Whether messages are handled by worker threads rather than inline.
+     */
+    public boolean isAsync() {
+        return lanes.length > 0;
+    }
+
+    /**
+     * Messages waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Most messages that have been waiting at once.
+     */
+    public long getPeakQueueDepth() {
+        return peakDepth.get();
+    }
+
+    /**
+     * Messages the handler has been called for, including failed calls.
+     */
+    public long getHandledCount() {
+        return handled.sum();
+    }
+
+    /**
+     * Handler calls that threw.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Messages the handler never saw because their lane was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Messages handled on the publishing thread because their lane was full.
+     */
+    public long getCallerRunsCount() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * Mean time a message waited in its lane, in microseconds.
+     */
+    public double getMeanQueueWaitMicros() {
+        long count = dequeued.sum();
+        return count == 0 ? 0 : queueWaitNanos.sum() / 1000.0 / count;
+    }
+
+    /**
+     * Mean time spent in the handler per message, in microseconds.
+     */
+    public double getMeanHandlerMicros() {
+        long count = handled.sum();
+        return count == 0 ? 0 : handlerNanos.sum() / 1000.0 / count;
+    }
+
+    /**
+     * Longest single handler call, in microseconds.
+     */
+    public long getMaxHandlerMicros() {
+        return maxHandlerNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queueDepth=%d, peakQueueDepth=%d, handled=%d, failed=%d, dropped=%d, callerRuns=%d,"
+                + " meanQueueWaitMicros=%.1f, meanHandlerMicros=%.1f, maxHandlerMicros=%d", getQueueDepth(),
+                getPeakQueueDepth(), getHandledCount(), getFailedCount(), getDroppedCount(), getCallerRunsCount(),
+                getMeanQueueWaitMicros(), getMeanHandlerMicros(), getMaxHandlerMicros());
+    }
+
+    private void run(MqttMessage message, ClientSession session) {
+        long start = System.nanoTime();
+        try {
+            handler.handle(message, session);
+        } catch (Throwable e) {
+            onFailure(message, e);
+        } finally {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    private void onFailure(MqttMessage message, Throwable e) {
+        failed.increment();
+        if (e instanceof Error) {
+            logger.error("Handler failed for topic '{}'", message.getTopic(), e);
+        } else {
+            logger.warn("Handler failed for topic '{}': {}", message.getTopic(), e.toString());
+        }
+    }
+
+    private void record(long nanos) {
+        handled.increment();
+        handlerNanos.add(nanos);
+        maxHandlerNanos.accumulate(nanos);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Bounded ring of queued messages consumed by one worker thread. The
+     * slots are parallel arrays allocated once; producers and the worker
+     * meet under a lock.
+     */
+    private final class Lane implements Runnable {
+        private final MqttMessage[] messages;
+        private final ClientSession[] sessions;
+        private final long[] enqueuedAt;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private int head;
+        private int count;
+        private boolean dead; // the worker is gone; guarded by lock
+
+        Lane(int capacity) {
+            this.messages = new MqttMessage[capacity];
+            this.sessions = new ClientSession[capacity];
+            this.enqueuedAt = new long[capacity];
+        }
+
+        /**
+         * Queues a message, applying the backpressure policy if the lane is
+         * full.
+         *
+         * @return false if the message was not queued
+         */
+        boolean offer(MqttMessage message, ClientSession session) {
+            MqttMessage evicted = null;
+            lock.lock();
+            try {
+                if (dead) {
+                    return false;
+                }
+                while (count == messages.length) {
+                    if (policy == BackpressurePolicy.DROP_OLDEST) {
+                        evicted = messages[head];
+                        clear(head);
+                        head = (head + 1) % messages.length;
+                        count--;
+                        depth.decrementAndGet();
+                        break;
+                    }
+                    if (policy != BackpressurePolicy.BLOCK || closed) {
+                        return false;
+                    }
+                    notFull.awaitUninterruptibly();
+                    if (dead) {
+                        return false;
+                    }
+                }
+                int slot = (head + count) % messages.length;
+                messages[slot] = message.retain();
+                sessions[slot] = session;
+                enqueuedAt[slot] = System.nanoTime();
+                count++;
+                peakDepth.accumulate(depth.incrementAndGet());
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (evicted != null) {
+                evicted.release();
+                dropped.increment();
+            }
+            return true;
+        }
+
+        void wake() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            try {
+                work();
+                stopped = true;
+            } finally {
+                if (!stopped) {
+                    die();
+                }
+            }
+        }
+
+        private void work() {
+            while (true) {
+                MqttMessage message;
+                ClientSession session;
+                long queuedAt;
+                lock.lock();
+                try {
+                    while (count == 0) {
+                        if (closed) {
+                            return;
+                        }
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    message = messages[head];
+                    session = sessions[head];
+                    queuedAt = enqueuedAt[head];
+                    clear(head);
+                    head = (head + 1) % messages.length;
+                    count--;
+                    depth.decrementAndGet();
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+
+                long start = System.nanoTime();
+                dequeued.increment();
+                queueWaitNanos.add(start - queuedAt);
+                try {
+                    handler.handle(message, session);
+                } catch (Throwable e) {
+                    onFailure(message, e);
+                } finally {
+                    record(System.nanoTime() - start);
+                    message.release();
+                }
+            }
+        }
+
+        /**
+         * Retires the lane after its worker died: drops what it holds and
+         * lets blocked publishers go.
+         */
+        private void die() {
+            int lost = 0;
+            lock.lock();
+            try {
+                dead = true;
+                while (count > 0) {
+                    messages[head].release();
+                    clear(head);
+                    head = (head + 1) % messages.length;
+                    count--;
+                    depth.decrementAndGet();
+                    lost++;
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            dropped.add(lost);
+            logger.error("Handler worker {} died, {} queued messages dropped", Thread.currentThread().getName(),
+                    lost);
+        }
+
+        private void clear(int slot) {
+            messages[slot] = null;
+            sessions[slot] = null;
+        }
+    }
+}
@@ -3,10 +3,12 @@ package in.co.abi.dev.mqtt.message;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -57,6 +59,38 @@ public final class JsonUtil {
         return MAPPER.readValue(bytes, clazz);
     }
 
+    /**
+     * Deserializes JSON from a buffer's remaining bytes without copying them
+     * out first. The buffer's position is not changed.
+     *
+     * @param buffer The JSON bytes, from position to limit
+     * @param clazz  The target class
+     * @param <T>    The type parameter
+     * @return The deserialized object
+     * @throws IOException if deserialization fails
+     */
+    public static <T> T fromJson(ByteBuffer buffer, Class<T> clazz) throws IOException {
+        if (buffer.hasArray()) {
+            return MAPPER.readValue(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                    clazz);
+        }
+        return MAPPER.readValue(new ByteBufferBackedInputStream(buffer.duplicate()), clazz);
+    }
+
+    /**
+     * Converts an already parsed JSON tree to an object of the specified
+     * class, without going back to the bytes.
+     *
+     * @param node  The JSON tree
+     * @param clazz The target class
+     * @param <T>   The type parameter
+     * @return The deserialized object
+     * @throws IOException if conversion fails
+     */
+    public static <T> T fromJson(JsonNode node, Class<T> clazz) throws IOException {
+        return MAPPER.treeToValue(node, clazz);
+    }
+
     /**
      * Deserializes a JSON string to an object of the specified class.
      *
@@ -81,6 +115,21 @@ public final class JsonUtil {
         return MAPPER.readTree(bytes);
     }
 
+    /**
+     * Parses a buffer's remaining bytes into a JsonNode without copying them
+     * out first. The buffer's position is not changed.
+     *
+     * @param buffer The JSON bytes, from position to limit
+     * @return JsonNode representation
+     * @throws IOException if parsing fails
+     */
+    public static JsonNode parseJson(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            return MAPPER.readTree(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return MAPPER.readTree(new ByteBufferBackedInputStream(buffer.duplicate()));
+    }
+
     /**
      * Parses JSON string into a JsonNode for dynamic access.
      *
@@ -110,6 +159,26 @@ public final class JsonUtil {
         }
     }
 
+    /**
+     * Validates if a range of a byte array contains valid JSON.
+     *
+     * @param bytes  The bytes to validate
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return true if valid JSON, false otherwise
+     */
+    public static boolean isValidJson(byte[] bytes, int offset, int length) {
+        if (bytes == null || length == 0) {
+            return false;
+        }
+        try {
+            MAPPER.readTree(bytes, offset, length);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Validates if the string contains valid JSON.
      *
@@ -144,6 +213,21 @@ public final class JsonUtil {
         }
     }
 
+    /**
+     * Pretty prints an already parsed JSON tree.
+     *
+     * @param node The JSON tree
+     * @return Pretty-printed JSON string
+     */
+    public static String prettyPrint(JsonNode node) {
+        try {
+            return MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(node);
+        } catch (JsonProcessingException e) {
+            logger.warn("Failed to pretty print JSON: {}", e.getMessage());
+            return node.toString();
+        }
+    }
+
     /**
      * Gets the shared ObjectMapper instance.
      * Use with caution - prefer the utility methods for thread safety.
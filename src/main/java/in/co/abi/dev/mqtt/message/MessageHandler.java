@@ -2,6 +2,8 @@ package in.co.abi.dev.mqtt.message;
 
 import in.co.abi.dev.mqtt.ClientSession;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface for processing MQTT messages based on their type.
  * Implement this interface to provide custom handling logic for different
@@ -18,6 +20,21 @@ public interface MessageHandler {
      */
     void handleBytes(String topic, byte[] payload, ClientSession session);
 
+    /**
+     * Handles a raw bytes message given as a read-only view. The view is only
+     * valid during the call. The default copies it and calls
+     * {@link #handleBytes}; override to read large payloads without a copy.
+     *
+     * @param topic   The MQTT topic
+     * @param payload The raw payload, from position to limit
+     * @param session The client session (can be null for internal processing)
+     */
+    default void handleBuffer(String topic, ByteBuffer payload, ClientSession session) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        handleBytes(topic, bytes, session);
+    }
+
     /**
      * Handles a string message.
      *
@@ -36,6 +53,18 @@ public interface MessageHandler {
      */
     void handleJson(String topic, MqttMessage message, ClientSession session);
 
+    /**
+     * Whether messages on a topic only ever need {@link #handleBytes}. The
+     * broker then skips payload type detection for them and they are
+     * dispatched as BYTES, so binary telemetry never pays for JSON parsing.
+     *
+     * @param topic The MQTT topic
+     * @return true to skip type detection on this topic
+     */
+    default boolean isBytesOnly(String topic) {
+        return false;
+    }
+
     /**
      * Dispatches the message to the appropriate handler method based on type.
      *
@@ -43,9 +72,13 @@ public interface MessageHandler {
      * @param session The client session
      */
     default void handle(MqttMessage message, ClientSession session) {
+        if (isBytesOnly(message.getTopic())) {
+            handleBuffer(message.getTopic(), message.asByteBuffer(), session);
+            return;
+        }
         switch (message.getType()) {
             case BYTES:
-                handleBytes(message.getTopic(), message.asBytes(), session);
+                handleBuffer(message.getTopic(), message.asByteBuffer(), session);
                 break;
             case STRING:
                 handleString(message.getTopic(), message.asString(), session);
@@ -1,14 +1,58 @@
 package in.co.abi.dev.mqtt.message;
 
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Utility class for detecting the type of MQTT message payload.
  * Uses content-based analysis to determine if payload is JSON, String, or
  * Bytes.
+ *
+ * <p>
+ * Detection is a single pass over the bytes that allocates nothing: it
+ * validates UTF-8, counts printable characters and runs a streaming JSON
+ * tokenizer side by side, and stops at the first byte that is not UTF-8.
+ * By default the whole payload is inspected, so JSON means the payload
+ * parses. Setting {@code mqtt.detector.maxInspectBytes} limits detection to a
+ * prefix; a longer payload whose prefix is well-formed JSON so far is then
+ * taken to be JSON even if the rest is not, and parsing it may still fail.
+ * Buffers with an accessible array are read in place; of any other buffer
+ * only the inspected prefix is copied.
  */
 public final class MessageTypeDetector {
 
+    private static final int MAX_INSPECT_BYTES = MqttProperties.getIntProperty("mqtt.detector.maxInspectBytes", 0);
+    // Deeper documents are rare enough to hand to Jackson
+    private static final int MAX_DEPTH = 64;
+    private static final byte[][] LITERALS = { "true".getBytes(StandardCharsets.US_ASCII),
+            "false".getBytes(StandardCharsets.US_ASCII), "null".getBytes(StandardCharsets.US_ASCII) };
+
+    // JSON tokenizer states
+    private static final int FAIL = -1;
+    private static final int START = 0; // before the root, which must be an object or array
+    private static final int VALUE = 1; // after ':' or ',' in an array
+    private static final int VALUE_OR_END = 2; // after '['
+    private static final int KEY = 3; // after ',' in an object
+    private static final int KEY_OR_END = 4; // after '{'
+    private static final int COLON = 5;
+    private static final int NEXT = 6; // after a value: ',' or a closing bracket
+    private static final int DONE = 7; // root closed, only whitespace may follow
+    private static final int DEEP = 8; // nested beyond MAX_DEPTH
+    private static final int STRING = 9;
+    private static final int ESCAPE = 10;
+    private static final int UNICODE = 11;
+    private static final int LITERAL = 12;
+    private static final int MINUS = 13;
+    private static final int ZERO = 14;
+    private static final int INT = 15;
+    private static final int DOT = 16;
+    private static final int FRACTION = 17;
+    private static final int EXP_MARK = 18;
+    private static final int EXP_SIGN = 19;
+    private static final int EXPONENT = 20;
+
     private MessageTypeDetector() {
         // Utility class - prevent instantiation
     }
@@ -21,88 +65,319 @@ public final class MessageTypeDetector {
      * @return The detected MessageType
      */
     public static MessageType detect(byte[] payload) {
+        return detect(payload, MAX_INSPECT_BYTES);
+    }
+
+    /**
+     * Detects the message type from at most the first
+     * {@code maxInspectBytes} bytes of the payload.
+     *
+     * @param payload         The raw message payload
+     * @param maxInspectBytes Bytes to look at; 0 or less for all
+     * @return The detected MessageType
+     */
+    public static MessageType detect(byte[] payload, int maxInspectBytes) {
         if (payload == null || payload.length == 0) {
             return MessageType.BYTES;
         }
-
-        // Try JSON first
-        if (isValidJson(payload)) {
-            return MessageType.JSON;
-        }
-
-        // Try UTF-8 String
-        if (isValidUtf8(payload)) {
-            return MessageType.STRING;
-        }
-
-        // Default to binary
-        return MessageType.BYTES;
+        int end = maxInspectBytes > 0 ? Math.min(payload.length, maxInspectBytes) : payload.length;
+        return classify(payload, 0, end, end < payload.length);
     }
 
     /**
-     * Quick check if payload looks like JSON (starts with { or [).
-     * Validates full JSON structure for accuracy.
+     * Detects the message type of a buffer's remaining bytes. The buffer's
+     * position is not changed.
+     *
+     * @param payload The raw message payload, from position to limit
+     * @return The detected MessageType
      */
-    private static boolean isValidJson(byte[] payload) {
-        if (payload.length < 2) {
-            return false;
-        }
-
-        // Skip leading whitespace and check for JSON start characters
-        int start = 0;
-        while (start < payload.length && isWhitespace(payload[start])) {
-            start++;
-        }
+    public static MessageType detectBuffer(ByteBuffer payload) {
+        return detectBuffer(payload, MAX_INSPECT_BYTES);
+    }
 
-        if (start >= payload.length) {
-            return false;
+    /**
+     * Detects the message type from at most the first
+     * {@code maxInspectBytes} remaining bytes of a buffer.
+     *
+     * @param payload         The raw message payload, from position to limit
+     * @param maxInspectBytes Bytes to look at; 0 or less for all
+     * @return The detected MessageType
+     */
+    public static MessageType detectBuffer(ByteBuffer payload, int maxInspectBytes) {
+        int length = payload == null ? 0 : payload.remaining();
+        if (length == 0) {
+            return MessageType.BYTES;
         }
-
-        byte firstChar = payload[start];
-        if (firstChar != '{' && firstChar != '[') {
-            return false;
+        int inspected = maxInspectBytes > 0 ? Math.min(length, maxInspectBytes) : length;
+        if (payload.hasArray()) {
+            int from = payload.arrayOffset() + payload.position();
+            return classify(payload.array(), from, from + inspected, inspected < length);
         }
-
-        // Validate using JsonUtil
-        return JsonUtil.isValidJson(payload);
+        byte[] prefix = new byte[inspected];
+        payload.duplicate().get(prefix);
+        return classify(prefix, 0, inspected, inspected < length);
     }
 
     /**
-     * Checks if the byte array represents valid UTF-8 encoded text.
-     * Also verifies the content contains printable characters.
+     * Classifies {@code payload[from, end)}; {@code truncated} tells whether
+     * the payload goes on beyond {@code end}.
      */
-    private static boolean isValidUtf8(byte[] payload) {
-        try {
-            String decoded = new String(payload, StandardCharsets.UTF_8);
-
-            // Check if round-trip encoding produces same bytes
-            byte[] reEncoded = decoded.getBytes(StandardCharsets.UTF_8);
-            if (reEncoded.length != payload.length) {
-                return false;
-            }
+    private static MessageType classify(byte[] payload, int from, int end, boolean truncated) {
+        int state = end - from >= 2 || truncated ? START : FAIL;
+        long objects = 0; // one bit per open container, set for objects
+        int depth = 0;
+        boolean key = false; // whether the current string is an object key
+        int hexLeft = 0;
+        byte[] literal = null;
+        int literalPos = 0;
+        int units = 0; // UTF-16 code units, as String.length() would count them
+        int printable = 0;
 
-            // Check for high ratio of printable/text characters
-            int printableCount = 0;
-            for (char c : decoded.toCharArray()) {
-                if (isPrintableChar(c)) {
-                    printableCount++;
+        int i = from;
+        while (i < end) {
+            if (state == STRING) {
+                // plain printable ASCII inside a string needs no tokenizer step
+                int run = i;
+                while (run < end) {
+                    int c = payload[run];
+                    if (c < 0x20 || c == 0x7F || c == '"' || c == '\\') {
+                        break;
+                    }
+                    run++;
+                }
+                units += run - i;
+                printable += run - i;
+                i = run;
+                if (i == end) {
+                    break;
+                }
+            }
+            int b = payload[i] & 0xFF;
+            if (b >= 0x80) {
+                // multi-byte UTF-8 sequence: only valid inside a JSON string
+                int extra;
+                int cp;
+                if (b >= 0xC2 && b <= 0xDF) {
+                    extra = 1;
+                    cp = b & 0x1F;
+                } else if (b >= 0xE0 && b <= 0xEF) {
+                    extra = 2;
+                    cp = b & 0x0F;
+                } else if (b >= 0xF0 && b <= 0xF4) {
+                    extra = 3;
+                    cp = b & 0x07;
+                } else {
+                    return MessageType.BYTES;
+                }
+                if (i + extra >= end) {
+                    if (truncated) {
+                        break; // cut off by the inspection limit, not malformed
+                    }
+                    return MessageType.BYTES;
                 }
+                for (int k = 1; k <= extra; k++) {
+                    int c = payload[i + k] & 0xFF;
+                    if ((c & 0xC0) != 0x80) {
+                        return MessageType.BYTES;
+                    }
+                    cp = (cp << 6) | (c & 0x3F);
+                }
+                if ((extra == 2 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF)))
+                        || (extra == 3 && (cp < 0x10000 || cp > 0x10FFFF))) {
+                    return MessageType.BYTES; // overlong, surrogate or out of range
+                }
+                if (extra == 3) {
+                    units += 2;
+                    printable += 2;
+                } else {
+                    units++;
+                    if (cp > 0x9F) {
+                        printable++; // U+0080..U+009F are C1 controls
+                    }
+                }
+                if (state != STRING && state != DEEP) {
+                    state = FAIL;
+                }
+                i += extra + 1;
+                continue;
             }
 
-            // Consider it a string if >80% printable
-            double ratio = (double) printableCount / decoded.length();
-            return ratio > 0.8;
+            units++;
+            if ((b >= 0x20 && b != 0x7F) || b == '\n' || b == '\r' || b == '\t') {
+                printable++;
+            }
+            i++;
+            if (state == FAIL || state == DEEP) {
+                continue;
+            }
 
-        } catch (Exception e) {
-            return false;
+            // one JSON tokenizer step; a byte that ends a number is looked at again
+            while (true) {
+                switch (state) {
+                case START:
+                case VALUE:
+                case VALUE_OR_END:
+                    if (isWhitespace(b)) {
+                        break;
+                    }
+                    if (b == '{' || b == '[') {
+                        if (depth == MAX_DEPTH) {
+                            state = DEEP;
+                            break;
+                        }
+                        objects = b == '{' ? objects | (1L << depth) : objects & ~(1L << depth);
+                        depth++;
+                        state = b == '{' ? KEY_OR_END : VALUE_OR_END;
+                    } else if (state == START) {
+                        state = FAIL;
+                    } else if (b == ']' && state == VALUE_OR_END) {
+                        depth--;
+                        state = depth == 0 ? DONE : NEXT;
+                    } else if (b == '"') {
+                        key = false;
+                        state = STRING;
+                    } else if (b == '-') {
+                        state = MINUS;
+                    } else if (b == '0') {
+                        state = ZERO;
+                    } else if (b >= '1' && b <= '9') {
+                        state = INT;
+                    } else if (b == 't' || b == 'f' || b == 'n') {
+                        literal = LITERALS[b == 't' ? 0 : b == 'f' ? 1 : 2];
+                        literalPos = 1;
+                        state = LITERAL;
+                    } else {
+                        state = FAIL;
+                    }
+                    break;
+                case KEY:
+                case KEY_OR_END:
+                    if (isWhitespace(b)) {
+                        break;
+                    }
+                    if (b == '"') {
+                        key = true;
+                        state = STRING;
+                    } else if (b == '}' && state == KEY_OR_END) {
+                        depth--;
+                        state = depth == 0 ? DONE : NEXT;
+                    } else {
+                        state = FAIL;
+                    }
+                    break;
+                case COLON:
+                    if (b == ':') {
+                        state = VALUE;
+                    } else if (!isWhitespace(b)) {
+                        state = FAIL;
+                    }
+                    break;
+                case NEXT:
+                    if (isWhitespace(b)) {
+                        break;
+                    }
+                    boolean inObject = (objects & (1L << (depth - 1))) != 0;
+                    if (b == ',') {
+                        state = inObject ? KEY : VALUE;
+                    } else if (b == (inObject ? '}' : ']')) {
+                        depth--;
+                        state = depth == 0 ? DONE : NEXT;
+                    } else {
+                        state = FAIL;
+                    }
+                    break;
+                case DONE:
+                    if (!isWhitespace(b)) {
+                        state = FAIL;
+                    }
+                    break;
+                case STRING:
+                    if (b == '"') {
+                        state = key ? COLON : NEXT;
+                    } else if (b == '\\') {
+                        state = ESCAPE;
+                    } else if (b < 0x20) {
+                        state = FAIL;
+                    }
+                    break;
+                case ESCAPE:
+                    if (b == 'u') {
+                        hexLeft = 4;
+                        state = UNICODE;
+                    } else if (b == '"' || b == '\\' || b == '/' || b == 'b' || b == 'f' || b == 'n' || b == 'r'
+                            || b == 't') {
+                        state = STRING;
+                    } else {
+                        state = FAIL;
+                    }
+                    break;
+                case UNICODE:
+                    if ((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F')) {
+                        if (--hexLeft == 0) {
+                            state = STRING;
+                        }
+                    } else {
+                        state = FAIL;
+                    }
+                    break;
+                case LITERAL:
+                    if (b != literal[literalPos]) {
+                        state = FAIL;
+                    } else if (++literalPos == literal.length) {
+                        state = NEXT;
+                    }
+                    break;
+                case MINUS:
+                    state = b == '0' ? ZERO : b >= '1' && b <= '9' ? INT : FAIL;
+                    break;
+                case DOT:
+                    state = isDigit(b) ? FRACTION : FAIL;
+                    break;
+                case EXP_MARK:
+                    state = b == '+' || b == '-' ? EXP_SIGN : isDigit(b) ? EXPONENT : FAIL;
+                    break;
+                case EXP_SIGN:
+                    state = isDigit(b) ? EXPONENT : FAIL;
+                    break;
+                case ZERO:
+                case INT:
+                case FRACTION:
+                case EXPONENT:
+                    if (isDigit(b) && state != ZERO) {
+                        break;
+                    }
+                    if (b == '.' && (state == ZERO || state == INT)) {
+                        state = DOT;
+                        break;
+                    }
+                    if ((b == 'e' || b == 'E') && state != EXPONENT) {
+                        state = EXP_MARK;
+                        break;
+                    }
+                    // the number is complete; this byte follows it
+                    state = NEXT;
+                    continue;
+                default:
+                    state = FAIL;
+                    break;
+                }
+                break;
+            }
+        }
+
+        if (state == DEEP ? truncated || JsonUtil.isValidJson(payload, from, end - from)
+                : state == DONE || (truncated && state != FAIL && state != START)) {
+            return MessageType.JSON;
         }
+        // Consider it a string if >80% printable
+        return 5L * printable > 4L * units ? MessageType.STRING : MessageType.BYTES;
     }
 
-    private static boolean isWhitespace(byte b) {
+    private static boolean isWhitespace(int b) {
         return b == ' ' || b == '\t' || b == '\n' || b == '\r';
     }
 
-    private static boolean isPrintableChar(char c) {
-        return !Character.isISOControl(c) || c == '\n' || c == '\r' || c == '\t';
+    private static boolean isDigit(int b) {
+        return b >= '0' && b <= '9';
     }
 }
@@ -1,38 +1,65 @@
 package in.co.abi.dev.mqtt.message;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
  * Immutable wrapper for MQTT messages with type-aware access methods.
  * Encapsulates the raw payload, detected type, and provides convenient
- * accessors.
+ * accessors. Unless given explicitly, the type is detected on the first call
+ * to {@link #getType()} and remembered, so messages nobody asks the type of
+ * never pay for JSON parsing or UTF-8 scanning.
+ *
+ * <p>
+ * The payload is held as a read-only {@link ByteBuffer}. Messages built from a
+ * byte array own a private copy of it; messages built with
+ * {@link #wrap(String, SharedPayload, MessageType)} are views of the broker's
+ * pooled copy of the inbound frame and are only valid while the handler runs,
+ * unless the handler calls {@link #retain()} and later {@link #release()}.
+ * {@link #asByteBuffer()} and {@link #writeTo(WritableByteChannel)} read the
+ * payload without copying it.
+ *
+ * <p>
+ * A JSON payload is parsed into a tree at most once: {@link #asJsonNode()}
+ * keeps the result and {@link #asJson(Class)} converts from it, so handler
+ * chains share one parse. Payloads larger than
+ * {@code mqtt.message.jsonCacheMaxBytes} are not cached and are parsed on
+ * every call instead, bounding the memory a message can pin.
  */
 public final class MqttMessage {
 
     private static final Logger logger = LogManager.getLogger(MqttMessage.class);
+    private static final int JSON_CACHE_MAX_BYTES = MqttProperties.getIntProperty("mqtt.message.jsonCacheMaxBytes",
+            1024 * 1024);
 
     private final String topic;
-    private final byte[] rawPayload;
-    private final MessageType type;
+    private final ByteBuffer payload; // read-only, position 0
+    private final byte[] array; // backing array when the message owns a heap copy
+    private final SharedPayload owner; // pooled buffer the view belongs to, if any
+    // detected on first use; racing threads compute the same value
+    private volatile MessageType type;
+    // parsed on first use if small enough; racing threads may both parse
+    private volatile JsonNode json;
     private final long timestamp;
+    private final long expiryInterval;
 
     /**
-     * Creates a new MqttMessage with auto-detected type.
+     * Creates a new MqttMessage whose type is detected when first asked for.
      *
      * @param topic   The MQTT topic
      * @param payload The raw message payload
      */
     public MqttMessage(String topic, byte[] payload) {
-        this.topic = topic;
-        this.rawPayload = payload != null ? Arrays.copyOf(payload, payload.length) : new byte[0];
-        this.type = MessageTypeDetector.detect(this.rawPayload);
-        this.timestamp = System.currentTimeMillis();
+        this(topic, payload, null);
     }
 
     /**
@@ -40,13 +67,37 @@ public final class MqttMessage {
      *
      * @param topic   The MQTT topic
      * @param payload The raw message payload
-     * @param type    The message type
+     * @param type    The message type, or null to detect it on first use
      */
     public MqttMessage(String topic, byte[] payload, MessageType type) {
         this.topic = topic;
-        this.rawPayload = payload != null ? Arrays.copyOf(payload, payload.length) : new byte[0];
+        this.array = payload != null ? Arrays.copyOf(payload, payload.length) : new byte[0];
+        this.payload = ByteBuffer.wrap(array).asReadOnlyBuffer();
+        this.owner = null;
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.expiryInterval = 0;
+    }
+
+    private MqttMessage(String topic, ByteBuffer payload, SharedPayload owner, MessageType type) {
+        this.topic = topic;
+        this.payload = payload;
+        this.array = null;
+        this.owner = owner;
         this.type = type;
         this.timestamp = System.currentTimeMillis();
+        this.expiryInterval = 0;
+    }
+
+    private MqttMessage(MqttMessage message, long expiryInterval) {
+        this.topic = message.topic;
+        this.payload = message.payload;
+        this.array = message.array;
+        this.owner = message.owner;
+        this.type = message.type;
+        this.json = message.json;
+        this.timestamp = message.timestamp;
+        this.expiryInterval = expiryInterval;
     }
 
     /**
@@ -61,6 +112,34 @@ public final class MqttMessage {
         return new MqttMessage(topic, bytes, MessageType.STRING);
     }
 
+    /**
+     * Wraps a buffer's remaining bytes without copying them. The caller must
+     * not modify them while the message is in use.
+     *
+     * @param topic   The MQTT topic
+     * @param payload The payload, from position to limit
+     * @param type    The message type, or null to detect it on first use
+     * @return New MqttMessage viewing the buffer
+     */
+    public static MqttMessage wrap(String topic, ByteBuffer payload, MessageType type) {
+        return new MqttMessage(topic, payload.slice().asReadOnlyBuffer(), null, type);
+    }
+
+    /**
+     * Wraps the application payload of a pooled, reference-counted PUBLISH
+     * body without copying it. The message does not take a reference: it is
+     * valid as long as the caller's reference, unless {@link #retain()} is
+     * called.
+     *
+     * @param topic   The MQTT topic
+     * @param payload The shared PUBLISH body
+     * @param type    The message type, or null to detect it on first use
+     * @return New MqttMessage viewing the shared payload
+     */
+    public static MqttMessage wrap(String topic, SharedPayload payload, MessageType type) {
+        return new MqttMessage(topic, payload.payloadView().slice(), payload, type);
+    }
+
     /**
      * Creates an MqttMessage from a JSON object.
      *
@@ -74,14 +153,40 @@ public final class MqttMessage {
         return new MqttMessage(topic, bytes, MessageType.JSON);
     }
 
+    /**
+     * Returns this message with an expiry interval, counted from its
+     * timestamp. The payload is shared, not copied.
+     *
+     * @param seconds Lifetime in seconds; 0 for none
+     * @return The message with the interval set
+     */
+    public MqttMessage withExpiryInterval(long seconds) {
+        return seconds == expiryInterval ? this : new MqttMessage(this, Math.max(0, seconds));
+    }
+
     // ========== Getters ==========
 
     public String getTopic() {
         return topic;
     }
 
+    /**
+     * Returns the payload type, detecting it on the first call.
+     */
     public MessageType getType() {
-        return type;
+        MessageType detected = type;
+        if (detected == null) {
+            detected = array != null ? MessageTypeDetector.detect(array) : MessageTypeDetector.detectBuffer(payload);
+            type = detected;
+        }
+        return detected;
+    }
+
+    /**
+     * Whether the type is already known, i.e. given explicitly or detected.
+     */
+    boolean isTypeKnown() {
+        return type != null;
     }
 
     public long getTimestamp() {
@@ -89,10 +194,88 @@ public final class MqttMessage {
     }
 
     /**
-     * Returns a copy of the raw payload bytes.
+     * Lifetime in seconds, or 0 if the message never expires.
+     */
+    public long getExpiryInterval() {
+        return expiryInterval;
+    }
+
+    /**
+     * Wall-clock time in milliseconds at which the message expires, or 0 if
+     * it never does.
+     */
+    public long getExpiresAt() {
+        return expiryInterval == 0 ? 0 : timestamp + expiryInterval * 1000;
+    }
+
+    /**
+     * @param now Current wall-clock time in milliseconds
+     * @return true if the message has outlived its expiry interval
+     */
+    public boolean isExpired(long now) {
+        return expiryInterval != 0 && now >= getExpiresAt();
+    }
+
+    /**
+     * Returns a copy of the raw payload bytes. Prefer {@link #asByteBuffer()}
+     * where a view will do.
      */
     public byte[] asBytes() {
-        return Arrays.copyOf(rawPayload, rawPayload.length);
+        if (array != null) {
+            return Arrays.copyOf(array, array.length);
+        }
+        byte[] bytes = new byte[payload.limit()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a read-only view of the payload, positioned at its first byte.
+     * Each call returns an independent view.
+     */
+    public ByteBuffer asByteBuffer() {
+        return payload.duplicate();
+    }
+
+    /**
+     * Writes the payload to a channel without copying it. Stops early if a
+     * non-blocking channel accepts no more bytes.
+     *
+     * @param channel The channel to write to
+     * @return Number of bytes written
+     * @throws IOException if the write fails
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer view = payload.duplicate();
+        while (view.hasRemaining() && channel.write(view) > 0) {
+            // keep writing until done or the channel is full
+        }
+        return view.position();
+    }
+
+    /**
+     * Keeps a wrapped pooled payload alive beyond the handler call. Every
+     * retain must be matched by a {@link #release()}; for messages that own
+     * their payload both are no-ops.
+     *
+     * @return This message
+     * @throws IllegalStateException if the payload was already released
+     */
+    public MqttMessage retain() {
+        if (owner != null) {
+            owner.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Gives back a reference taken with {@link #retain()}; the last one
+     * returns the payload buffer to its pool.
+     */
+    public void release() {
+        if (owner != null) {
+            owner.release();
+        }
     }
 
     /**
@@ -100,11 +283,15 @@ public final class MqttMessage {
      * For BYTES type, this may produce garbage - check type first.
      */
     public String asString() {
-        return new String(rawPayload, StandardCharsets.UTF_8);
+        if (array != null) {
+            return new String(array, StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
     }
 
     /**
-     * Parses the JSON payload into the specified class.
+     * Parses the JSON payload into the specified class, converting from the
+     * cached tree if {@link #asJsonNode()} has already built one.
      *
      * @param clazz The target class
      * @param <T>   The type parameter
@@ -113,38 +300,60 @@ public final class MqttMessage {
      * @throws IllegalStateException if message type is not JSON
      */
     public <T> T asJson(Class<T> clazz) throws IOException {
-        if (type != MessageType.JSON) {
-            throw new IllegalStateException("Message type is " + type + ", not JSON");
+        requireJson();
+        JsonNode node = json;
+        if (node != null) {
+            return JsonUtil.fromJson(node, clazz);
         }
-        return JsonUtil.fromJson(rawPayload, clazz);
+        return array != null ? JsonUtil.fromJson(array, clazz) : JsonUtil.fromJson(payload, clazz);
     }
 
     /**
-     * Parses the JSON payload into a JsonNode for dynamic access.
+     * Parses the JSON payload into a JsonNode for dynamic access. The tree is
+     * parsed once and shared by every caller, so it must not be modified.
      *
      * @return JsonNode representation
      * @throws IOException           if parsing fails
      * @throws IllegalStateException if message type is not JSON
      */
     public JsonNode asJsonNode() throws IOException {
+        requireJson();
+        JsonNode node = json;
+        if (node == null) {
+            node = array != null ? JsonUtil.parseJson(array) : JsonUtil.parseJson(payload);
+            if (payload.limit() <= JSON_CACHE_MAX_BYTES) {
+                json = node;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Whether a parsed JSON tree is cached.
+     */
+    boolean isJsonCached() {
+        return json != null;
+    }
+
+    private void requireJson() {
+        MessageType type = getType();
         if (type != MessageType.JSON) {
             throw new IllegalStateException("Message type is " + type + ", not JSON");
         }
-        return JsonUtil.parseJson(rawPayload);
     }
 
     /**
      * Returns the payload length in bytes.
      */
     public int getPayloadSize() {
-        return rawPayload.length;
+        return payload.limit();
     }
 
     /**
      * Checks if the payload is empty.
      */
     public boolean isEmpty() {
-        return rawPayload.length == 0;
+        return payload.limit() == 0;
     }
 
     /**
@@ -161,7 +370,7 @@ public final class MqttMessage {
      */
     public String getPayloadPreview(int maxLength) {
         String preview;
-        switch (type) {
+        switch (getType()) {
             case JSON:
                 preview = asString();
                 break;
@@ -170,7 +379,7 @@ public final class MqttMessage {
                 break;
             case BYTES:
             default:
-                preview = bytesToHex(rawPayload, Math.min(maxLength / 3, 32));
+                preview = bytesToHex(payload, Math.min(maxLength / 3, 32));
                 break;
         }
 
@@ -180,15 +389,15 @@ public final class MqttMessage {
         return preview;
     }
 
-    private static String bytesToHex(byte[] bytes, int maxBytes) {
+    private static String bytesToHex(ByteBuffer bytes, int maxBytes) {
         StringBuilder sb = new StringBuilder("[");
-        int limit = Math.min(bytes.length, maxBytes);
+        int limit = Math.min(bytes.limit(), maxBytes);
         for (int i = 0; i < limit; i++) {
             if (i > 0)
                 sb.append(" ");
-            sb.append(String.format("%02X", bytes[i]));
+            sb.append(String.format("%02X", bytes.get(i)));
         }
-        if (bytes.length > maxBytes) {
+        if (bytes.limit() > maxBytes) {
             sb.append("...");
         }
         sb.append("]");
@@ -198,6 +407,6 @@ public final class MqttMessage {
     @Override
     public String toString() {
         return String.format("MqttMessage{topic='%s', type=%s, size=%d}",
-                topic, type, rawPayload.length);
+                topic, getType(), payload.limit());
     }
 }
@@ -0,0 +1,130 @@
+package in.co.abi.dev.mqtt.nio;
+
+import in.co.abi.dev.mqtt.AdmissionController;
+import in.co.abi.dev.mqtt.ClientSession;
+import in.co.abi.dev.mqtt.OutboundQueue;
+import in.co.abi.dev.mqtt.PacketProcessor;
+import in.co.abi.dev.mqtt.codec.MqttFrameDecoder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client session bound to a non-blocking channel owned by an
+ * {@link NioEventLoop}. Inbound bytes are framed by a per-connection
+ * {@link MqttFrameDecoder} and dispatched to the {@link PacketProcessor}.
+ * Outbound frames are drained by the loop: frames queued while the loop is
+ * busy with other keys leave together in one gathered write, and a full
+ * socket buffer parks the drain on OP_WRITE.
+ */
+public class NioClientSession extends ClientSession {
+    private static final Logger logger = LogManager.getLogger(NioClientSession.class);
+    private static final int INITIAL_READ_BUFFER = 4096;
+
+    private final NioEventLoop loop;
+    private final PacketProcessor processor;
+    private final AdmissionController admission;
+    private final Runnable flushTask = this::flush;
+    private final MqttFrameDecoder decoder;
+    private final MqttFrameDecoder.FrameHandler frameHandler = this::onFrame;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private SelectionKey key;
+
+    public NioClientSession(SocketChannel channel, NioEventLoop loop, PacketProcessor processor,
+            AdmissionController admission, String clientId) {
+        super(channel, clientId);
+        this.loop = loop;
+        this.processor = processor;
+        this.admission = admission;
+        this.decoder = processor.newDecoder();
+    }
+
+    void register(Selector selector) throws IOException {
+        key = getChannel().register(selector, SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    protected void scheduleFlush() {
+        loop.execute(flushTask);
+    }
+
+    @Override
+    protected void onClose() {
+        processor.disconnect(this);
+        admission.release();
+        if (key != null) {
+            key.cancel();
+        }
+        // a drain parked on OP_WRITE is never woken again: let it release its batch
+        loop.execute(flushTask);
+    }
+
+    void onReadable() {
+        int n;
+        try {
+            n = getChannel().read(readBuffer);
+        } catch (IOException e) {
+            logger.info("Client disconnected: {}", getClientId());
+            close();
+            return;
+        }
+        if (n < 0) {
+            logger.info("Client disconnected: {}", getClientId());
+            close();
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            decoder.decode(readBuffer, frameHandler);
+        } catch (IOException e) {
+            logger.warn("Closing {}: {}", getClientId(), e.getMessage());
+            close();
+            return;
+        }
+        readBuffer.compact();
+        readBuffer = decoder.ensureCapacity(readBuffer);
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    private void onFrame(int header, ByteBuffer buffer, int offset, int length) throws IOException {
+        if (!isClosed()) {
+            processor.process(header, buffer, offset, length, this);
+        }
+    }
+
+    private void flush() {
+        OutboundQueue outbound = getOutbound();
+        if (isClosed()) {
+            outbound.abandonDrain();
+            return;
+        }
+        if (key == null) {
+            return;
+        }
+        try {
+            do {
+                if (!outbound.drainTo(getChannel())) {
+                    // socket buffer full: keep the drain and resume when writable
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            } while (outbound.finishDrain());
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            onDrained();
+        } catch (IOException e) {
+            logger.warn("Write to {} failed: {}", getClientId(), e.getMessage());
+            close();
+            outbound.abandonDrain();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package in.co.abi.dev.mqtt.nio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded selector loop that owns a set of non-blocking client
+ * channels. All reads, writes and interest-op changes for a channel happen on
+ * the loop thread; other threads hand work over through {@link #execute(Runnable)}.
+ * A connection whose handling fails unexpectedly is closed on its own; the
+ * loop carries on with the others.
+ */
+public class NioEventLoop implements Runnable {
+    private static final Logger logger = LogManager.getLogger(NioEventLoop.class);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a new connection to this loop. Registration happens on the loop
+     * thread so the selector is never touched concurrently.
+     *
+     * @param session The connection to register for reads
+     */
+    public void register(NioClientSession session) {
+        execute(() -> {
+            try {
+                session.register(selector);
+            } catch (IOException e) {
+                logger.warn("Failed to register {}: {}", session.getClientId(), e.getMessage());
+                session.close();
+            }
+        });
+    }
+
+    /**
+     * Queues a task to run on the loop thread.
+     *
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    processKey(key);
+                }
+                runTasks();
+            } catch (IOException e) {
+                logger.error("Selector failure in {}", thread.getName(), e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioClientSession session = (NioClientSession) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                session.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                session.onWritable();
+            }
+        } catch (CancelledKeyException e) {
+            session.close();
+        } catch (RuntimeException e) {
+            // one misbehaving connection must not take the loop down with it
+            logger.error("Closing {} after an unexpected failure", session.getClientId(), e);
+            try {
+                session.close();
+            } catch (RuntimeException closeFailure) {
+                logger.error("Failed to close {}", session.getClientId(), closeFailure);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Event loop task failed", e);
+            }
+        }
+    }
+}
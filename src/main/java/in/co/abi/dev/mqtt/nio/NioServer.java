@@ -0,0 +1,79 @@
+package in.co.abi.dev.mqtt.nio;
+
+import in.co.abi.dev.mqtt.AdmissionController;
+import in.co.abi.dev.mqtt.PacketProcessor;
+import in.co.abi.dev.mqtt.SocketSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking transport. The calling thread accepts connections and spreads
+ * them round-robin over a fixed pool of {@link NioEventLoop}s, so the thread
+ * count stays constant regardless of how many clients are connected.
+ * Connections refused by the {@link AdmissionController} are reset before a
+ * session is created.
+ */
+public class NioServer {
+    private static final Logger logger = LogManager.getLogger(NioServer.class);
+
+    private final int port;
+    private final PacketProcessor processor;
+    private final AdmissionController admission;
+    private final SocketSettings socketSettings;
+    private final NioEventLoop[] loops;
+
+    public NioServer(int port, int eventLoops, PacketProcessor processor, AdmissionController admission,
+            SocketSettings socketSettings) throws IOException {
+        this.port = port;
+        this.processor = processor;
+        this.admission = admission;
+        this.socketSettings = socketSettings;
+        this.loops = new NioEventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("mqtt-nio-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            socketSettings.bind(server, port);
+            for (NioEventLoop loop : loops) {
+                loop.start();
+            }
+            logger.info("NIO transport started with {} event loop(s)", loops.length);
+
+            int next = 0;
+            while (server.isOpen()) {
+                SocketChannel channel = server.accept();
+                if (!admission.tryAdmit()) {
+                    AdmissionController.reject(channel);
+                    continue;
+                }
+                String clientId;
+                try {
+                    clientId = channel.getRemoteAddress().toString();
+                    socketSettings.configure(channel);
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    logger.warn("Dropping connection: {}", e.getMessage());
+                    admission.release();
+                    AdmissionController.reject(channel);
+                    continue;
+                }
+                logger.info("Accepted connection from {}", clientId);
+
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(new NioClientSession(channel, loop, processor, admission, clientId));
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+}
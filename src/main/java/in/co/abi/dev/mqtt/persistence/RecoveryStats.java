@@ -0,0 +1,65 @@
+package in.co.abi.dev.mqtt.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a broker restart recovered and how long it took.
+ */
+public final class RecoveryStats {
+
+    private final long snapshotOffset;
+    private final int sessions;
+    private final long replayedRecords;
+    private final long snapshotNanos;
+    private final long replayNanos;
+
+    /**
+     * @param snapshotOffset  Log offset of the snapshot loaded, -1 if none
+     * @param sessions        Persistent sessions restored
+     * @param replayedRecords Log records replayed after the snapshot
+     * @param snapshotNanos   Time spent loading the snapshot
+     * @param replayNanos     Time spent replaying the log
+     */
+    public RecoveryStats(long snapshotOffset, int sessions, long replayedRecords, long snapshotNanos,
+            long replayNanos) {
+        this.snapshotOffset = snapshotOffset;
+        this.sessions = sessions;
+        this.replayedRecords = replayedRecords;
+        this.snapshotNanos = snapshotNanos;
+        this.replayNanos = replayNanos;
+    }
+
+    public long getSnapshotOffset() {
+        return snapshotOffset;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public long getSnapshotMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(snapshotNanos);
+    }
+
+    public long getReplayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(replayNanos);
+    }
+
+    /**
+     * Total restart time spent on recovery.
+     */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(snapshotNanos + replayNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "recovered " + sessions + " sessions and " + replayedRecords + " log records in "
+                + getTotalMillis() + " ms (snapshot " + getSnapshotMillis() + " ms, replay " + getReplayMillis()
+                + " ms)";
+    }
+}
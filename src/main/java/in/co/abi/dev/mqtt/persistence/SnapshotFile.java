@@ -0,0 +1,192 @@
+package in.co.abi.dev.mqtt.persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point-in-time image of broker state, tagged with the write-ahead log offset
+ * it covers: every record below the offset is reflected in the image, so
+ * recovery loads it and replays only the log from there on.
+ *
+ * <p>
+ * Layout: magic "MQSN", version (int), log offset (long), body length (long),
+ * body, CRC32 of the body (int). The body is written by the
+ * caller. A snapshot is written to a temporary file and moved into place, so
+ * a crash mid-write leaves the previous snapshot intact; files are named by
+ * their log offset and only the newest is kept.
+ */
+public final class SnapshotFile {
+    private static final Logger logger = LogManager.getLogger(SnapshotFile.class);
+    private static final int MAGIC = 0x4D51534E; // "MQSN"
+    // 2: queued messages carry an expiry time; 3: shared messages written once;
+    // 4: in-flight deliveries, and messages carry their log offset
+    private static final int VERSION = 4;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final String SUFFIX = ".snap";
+
+    /**
+     * Writes the body of a snapshot.
+     */
+    public interface Body {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private final long walOffset;
+    private final ByteBuffer body;
+
+    private SnapshotFile(long walOffset, ByteBuffer body) {
+        this.walOffset = walOffset;
+        this.body = body;
+    }
+
+    /**
+     * Log offset replay resumes from.
+     */
+    public long getWalOffset() {
+        return walOffset;
+    }
+
+    /**
+     * Read-only view of the body, mapped from the file.
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    /**
+     * Writes a snapshot and deletes older ones.
+     *
+     * @param dir       Directory holding snapshots
+     * @param walOffset Log offset the snapshot covers
+     * @param body      Writes the body
+     * @return The snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static Path write(Path dir, long walOffset, Body body) throws IOException {
+        Files.createDirectories(dir);
+        Path target = dir.resolve(String.format("%020d%s", walOffset, SUFFIX));
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_BYTES);
+            OutputStream file = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(file, crc), 64 * 1024));
+            body.writeTo(out);
+            out.flush();
+            long length = channel.position() - HEADER_BYTES;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(walOffset).putLong(length).flip();
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            trailer.putInt((int) crc.getValue()).flip();
+            channel.write(header, 0);
+            channel.write(trailer, HEADER_BYTES + length);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteOlder(dir, walOffset);
+        return target;
+    }
+
+    /**
+     * Loads the newest intact snapshot.
+     *
+     * @param dir Directory holding snapshots
+     * @return The snapshot, or null if there is none
+     * @throws IOException if the directory cannot be read
+     */
+    public static SnapshotFile readLatest(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return null;
+        }
+        for (Path path : list(dir).descendingMap().values()) {
+            SnapshotFile snapshot = read(path);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            logger.warn("Ignoring damaged snapshot {}", path);
+        }
+        return null;
+    }
+
+    /**
+     * Log offset of the newest snapshot file, intact or not.
+     *
+     * @param dir Directory holding snapshots
+     * @return The offset, or 0 if there is none
+     * @throws IOException if the directory cannot be read
+     */
+    public static long latestOffset(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        TreeMap<Long, Path> snapshots = list(dir);
+        return snapshots.isEmpty() ? 0 : snapshots.lastKey();
+    }
+
+    private static SnapshotFile read(Path path) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES + 4 || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            return null;
+        }
+        long walOffset = data.getLong(8);
+        long length = data.getLong(16);
+        if (length < 0 || HEADER_BYTES + length + 4 != data.capacity()) {
+            return null;
+        }
+        ByteBuffer body = data.duplicate();
+        body.position(HEADER_BYTES).limit((int) (HEADER_BYTES + length));
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != data.getInt((int) (HEADER_BYTES + length))) {
+            return null;
+        }
+        return new SnapshotFile(walOffset, body.slice().asReadOnlyBuffer());
+    }
+
+    private static void deleteOlder(Path dir, long walOffset) throws IOException {
+        for (Map.Entry<Long, Path> entry : list(dir).headMap(walOffset).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+    }
+
+    private static TreeMap<Long, Path> list(Path dir) throws IOException {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    snapshots.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,591 @@
+package in.co.abi.dev.mqtt.persistence;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log with group commit. Any thread may {@link #append} a record;
+ * a single committer thread writes everything that has queued up with one
+ * gathering write, makes it durable with one {@link FileChannel#force}, and
+ * only then runs the records' callbacks. Under load one fsync covers many
+ * records from many connections, so throughput is bounded by the disk's
+ * bandwidth rather than its sync latency.
+ *
+ * <p>
+ * A batch is closed when it holds {@code maxBatchRecords}, or when its first
+ * record has waited {@code maxLatencyNanos}; with a latency of zero it holds
+ * whatever queued up while the previous fsync ran. Appends block once
+ * {@code maxPending} records are waiting, which pushes back on publishers
+ * when the disk cannot keep up.
+ *
+ * <p>
+ * Record layout: length (int), CRC32 of the body (int), body. The log is
+ * split into segment files named by the offset of their first record.
+ *
+ * <p>
+ * A batch that cannot be written or synced is cut off the segment again, and
+ * writing carries on in a new segment based after the offsets the batch was
+ * given, so every later record still lands at the offset {@link #append}
+ * promised. If even that fails the log refuses further records.
+ */
+public final class WriteAheadLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger(WriteAheadLog.class);
+    private static final String SUFFIX = ".wal";
+    static final int HEADER_BYTES = 8;
+
+    /**
+     * Told when a record's batch is durable, or that it never will be.
+     */
+    public interface Callback {
+        /**
+         * @param error null once the record is durable, otherwise the write
+         *              or sync failure
+         */
+        void done(IOException error);
+    }
+
+    /**
+     * Receives records read back by {@link #replay(long, RecordHandler)}.
+     */
+    public interface RecordHandler {
+        /**
+         * @param offset Offset of the record
+         * @param body   The record body; only valid during the call
+         */
+        void record(long offset, ByteBuffer body);
+    }
+
+    /**
+     * Record waiting for the committer; a null record is a barrier.
+     */
+    private static final class Pending {
+        final ByteBuffer record;
+        final Callback callback;
+        final long queuedAt;
+
+        Pending(ByteBuffer record, Callback callback, long queuedAt) {
+            this.record = record;
+            this.callback = callback;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static final Pending STOP = new Pending(null, null, 0);
+
+    /**
+     * Opens a segment file for appending.
+     */
+    interface SegmentOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private static final SegmentOpener APPEND = path -> FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+    private final Path dir;
+    private final SegmentOpener opener;
+    private final long segmentBytes;
+    private final int maxBatchRecords;
+    private final long maxLatencyNanos;
+    private final BlockingQueue<Pending> pending;
+    private final Thread committer;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32(); // committer thread only
+    private final LongAdder records = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Object appendLock = new Object(); // queue order is offset order
+    private long nextOffset; // guarded by appendLock
+    private FileChannel active; // committer thread only
+    private long activeBase; // written by the committer, under this
+    private long activeSize;
+    private volatile boolean closed;
+    private volatile IOException failure; // set once the log cannot be written any more
+
+    /**
+     * Opens a log in {@code dir}. Existing segments are kept, and new records
+     * go to a fresh segment after them and after the offset of the newest
+     * snapshot there, so no new record falls below what a snapshot claims to
+     * cover even if the records it was taken at never reached the disk.
+     *
+     * @param dir             Directory holding the segment files
+     * @param segmentBytes    Size after which a new segment is started
+     * @param maxBatchRecords Most records made durable by one fsync
+     * @param maxLatencyNanos Longest a record waits for its batch to fill
+     * @param maxPending      Most records waiting for the committer
+     * @throws IOException if the directory cannot be prepared
+     */
+    public WriteAheadLog(Path dir, long segmentBytes, int maxBatchRecords, long maxLatencyNanos, int maxPending)
+            throws IOException {
+        this(dir, segmentBytes, maxBatchRecords, maxLatencyNanos, maxPending, APPEND);
+    }
+
+    WriteAheadLog(Path dir, long segmentBytes, int maxBatchRecords, long maxLatencyNanos, int maxPending,
+            SegmentOpener opener) throws IOException {
+        this.dir = dir;
+        this.opener = opener;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxBatchRecords = Math.max(1, maxBatchRecords);
+        this.maxLatencyNanos = Math.max(0, maxLatencyNanos);
+        this.pending = new ArrayBlockingQueue<>(Math.max(this.maxBatchRecords, maxPending));
+        Files.createDirectories(dir);
+        long end = 0;
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : existing) {
+                long base = baseOf(path);
+                segments.put(base, path);
+                end = Math.max(end, base + Files.size(path));
+            }
+        }
+        end = Math.max(end, SnapshotFile.latestOffset(dir));
+        roll(end);
+        this.nextOffset = end;
+        this.committer = new Thread(this::commitLoop, "mqtt-wal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Creates a log from {@code mqtt.wal.*} settings.
+     *
+     * @return The log, or null if {@code mqtt.wal.dir} is not set or cannot
+     *         be opened
+     */
+    public static WriteAheadLog fromProperties() {
+        String dir = MqttProperties.getProperty("mqtt.wal.dir", "").trim();
+        if (dir.isEmpty()) {
+            return null;
+        }
+        try {
+            return new WriteAheadLog(Paths.get(dir),
+                    MqttProperties.getIntProperty("mqtt.wal.segmentBytes", 64 * 1024 * 1024),
+                    MqttProperties.getIntProperty("mqtt.wal.batchSize", 512),
+                    TimeUnit.MICROSECONDS.toNanos(MqttProperties.getIntProperty("mqtt.wal.maxLatencyMicros", 0)),
+                    MqttProperties.getIntProperty("mqtt.wal.maxPending", 16384));
+        } catch (IOException e) {
+            logger.error("Cannot open write-ahead log {}, QoS 1 and 2 messages will not be logged: {}", dir,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queues a record. Blocks while the log is {@code maxPending} records
+     * behind.
+     *
+     * @param body     The record body, from position to limit; not modified
+     * @param callback Run on the committer thread once the record is durable
+     * @return Offset of the record
+     * @throws IOException if the log is closed or has failed, or the caller is
+     *                     interrupted
+     */
+    public long append(ByteBuffer body, Callback callback) throws IOException {
+        return append(new ByteBuffer[] { body }, callback);
+    }
+
+    /**
+     * Queues a record whose body is the concatenation of several buffers.
+     * Blocks while the log is {@code maxPending} records behind.
+     *
+     * @param body     The parts of the body, each from position to limit; not
+     *                 modified
+     * @param callback Run on the committer thread once the record is durable
+     * @return Offset of the record
+     * @throws IOException if the log is closed or has failed, or the caller is
+     *                     interrupted
+     */
+    public long append(ByteBuffer[] body, Callback callback) throws IOException {
+        int length = 0;
+        for (ByteBuffer part : body) {
+            length += part.remaining();
+        }
+        // the committer fills in the checksum, off the publisher's thread
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + length);
+        record.putInt(length).putInt(0);
+        for (ByteBuffer part : body) {
+            record.put(part.duplicate());
+        }
+        record.flip();
+        synchronized (appendLock) {
+            enqueue(new Pending(record, callback, System.nanoTime()));
+            long offset = nextOffset;
+            nextOffset += HEADER_BYTES + length;
+            return offset;
+        }
+    }
+
+    /**
+     * Runs a callback once every record appended before it is durable,
+     * without writing anything itself.
+     *
+     * @param callback The callback
+     * @throws IOException if the log is closed or the caller is interrupted
+     */
+    public void barrier(Callback callback) throws IOException {
+        enqueue(new Pending(null, callback, System.nanoTime()));
+    }
+
+    /**
+     * Waits until every record appended before the call is durable.
+     *
+     * @throws IOException if one of them could not be written, the log is
+     *                     closed or the caller is interrupted
+     */
+    public void sync() throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        IOException[] failed = new IOException[1];
+        barrier(error -> {
+            failed[0] = error;
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the write-ahead log", e);
+        }
+        if (failed[0] != null) {
+            throw failed[0];
+        }
+    }
+
+    /**
+     * Directory holding the segment files.
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Offset the next appended record will get. Every record appended before
+     * the call lies below it.
+     */
+    public long position() {
+        synchronized (appendLock) {
+            return nextOffset;
+        }
+    }
+
+    /**
+     * Deletes segments holding only records below an offset, e.g. once a
+     * snapshot covers them. The segment being written is kept.
+     *
+     * @param offset First offset still needed
+     * @return Number of segments deleted
+     */
+    public int truncateBefore(long offset) {
+        List<Path> obsolete = new ArrayList<>();
+        synchronized (this) {
+            Long base;
+            while ((base = segments.firstKey()) != activeBase) {
+                Long next = segments.higherKey(base);
+                if (next == null || next > offset) {
+                    break;
+                }
+                obsolete.add(segments.remove(base));
+            }
+        }
+        for (Path path : obsolete) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warn("Cannot delete log segment {}: {}", path, e.getMessage());
+            }
+        }
+        return obsolete.size();
+    }
+
+    /**
+     * Reads back every intact record at or after an offset, in order. A
+     * record that fails its length or checksum test, as a write torn by a
+     * crash would, ends its segment; reading resumes with the next one. An
+     * offset past the end of its segment, e.g. in the gap left by a failed
+     * write, resumes with the next segment too.
+     *
+     * @param from    First offset wanted
+     * @param handler Receives the records
+     * @return Number of records read
+     * @throws IOException if a segment cannot be read
+     */
+    public long replay(long from, RecordHandler handler) throws IOException {
+        List<Map.Entry<Long, Path>> toRead;
+        synchronized (this) {
+            Long first = segments.floorKey(from);
+            toRead = new ArrayList<>((first != null ? segments.tailMap(first) : segments).entrySet());
+        }
+        CRC32 check = new CRC32();
+        long count = 0;
+        for (Map.Entry<Long, Path> segment : toRead) {
+            long base = segment.getKey();
+            ByteBuffer data;
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            long skip = from - base;
+            if (skip > data.limit()) {
+                continue;
+            }
+            data.position((int) Math.max(0, skip));
+            while (data.remaining() >= HEADER_BYTES) {
+                int start = data.position();
+                int length = data.getInt();
+                int crc = data.getInt();
+                if (length < 0 || length > data.remaining()) {
+                    logger.warn("Truncated record at offset {} in {}", base + start, segment.getValue());
+                    break;
+                }
+                ByteBuffer body = data.slice();
+                body.limit(length);
+                check.reset();
+                check.update(body.duplicate());
+                if ((int) check.getValue() != crc) {
+                    logger.warn("Corrupt record at offset {} in {}", base + start, segment.getValue());
+                    break;
+                }
+                handler.record(base + start, body);
+                data.position(start + HEADER_BYTES + length);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether a write failed in a way the log could not recover from; appends
+     * are refused from then on.
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Records made durable so far.
+     */
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * Number of fsyncs so far; {@link #getRecords()} divided by this is the
+     * average group size.
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * Bytes written so far, headers included.
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Segment files, oldest first.
+     */
+    public synchronized List<Path> segments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    /**
+     * Stops the committer after it has made everything queued durable.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            pending.put(STOP);
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        active.close();
+    }
+
+    private void enqueue(Pending entry) throws IOException {
+        if (closed) {
+            throw new IOException("Write-ahead log closed");
+        }
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+        }
+        try {
+            pending.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the write-ahead log", e);
+        }
+    }
+
+    private int checksum(ByteBuffer record) {
+        crc.reset();
+        crc.update(record.array(), record.arrayOffset() + HEADER_BYTES, record.remaining() - HEADER_BYTES);
+        return (int) crc.getValue();
+    }
+
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatchRecords);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                stop = collect(batch);
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            IOException error = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                logger.error("Write-ahead log write failed: {}", e.getMessage());
+                error = e;
+            }
+            for (Pending entry : batch) {
+                try {
+                    entry.callback.done(error);
+                } catch (RuntimeException e) {
+                    logger.warn("Write-ahead log callback failed", e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits for the next batch.
+     *
+     * @return true if the log is closing
+     */
+    private boolean collect(List<Pending> batch) throws InterruptedException {
+        Pending first = pending.take();
+        if (first == STOP) {
+            return drainRest(batch);
+        }
+        batch.add(first);
+        pending.drainTo(batch, maxBatchRecords - batch.size());
+        long deadline = first.queuedAt + maxLatencyNanos;
+        while (batch.size() < maxBatchRecords && maxLatencyNanos > 0) {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            Pending next = pending.poll(wait, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            if (next == STOP) {
+                return drainRest(batch);
+            }
+            batch.add(next);
+            pending.drainTo(batch, maxBatchRecords - batch.size());
+        }
+        if (batch.remove(STOP)) {
+            return drainRest(batch);
+        }
+        return false;
+    }
+
+    private boolean drainRest(List<Pending> batch) {
+        pending.drainTo(batch);
+        batch.remove(STOP);
+        return true;
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed: " + failure.getMessage(), failure);
+        }
+        ByteBuffer[] parts = new ByteBuffer[batch.size()];
+        int count = 0;
+        long size = 0;
+        for (Pending entry : batch) {
+            if (entry.record != null) {
+                entry.record.putInt(4, checksum(entry.record));
+                parts[count++] = entry.record;
+                size += entry.record.remaining();
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        if (activeSize > 0 && activeSize + size > segmentBytes) {
+            roll(activeBase + activeSize);
+        }
+        try {
+            long written = 0;
+            while (written < size) {
+                written += active.write(parts, 0, count);
+            }
+            active.force(false);
+        } catch (IOException e) {
+            discard(size);
+            throw e;
+        }
+        activeSize += size;
+        records.add(count);
+        batches.increment();
+        bytes.add(size);
+    }
+
+    /**
+     * Cuts whatever part of a failed batch reached the file off again and
+     * moves on to a new segment starting after the batch's offsets, leaving a
+     * gap replay steps over. Fails the log if the segment cannot be repaired.
+     *
+     * @param size Bytes the batch was given
+     */
+    private void discard(long size) {
+        try {
+            active.truncate(activeSize);
+            roll(activeBase + activeSize + size);
+        } catch (IOException e) {
+            logger.error("Write-ahead log cannot recover from a failed write, refusing further records: {}",
+                    e.getMessage());
+            failure = e;
+        }
+    }
+
+    private void roll(long base) throws IOException {
+        if (active != null) {
+            active.close();
+        }
+        Path path = dir.resolve(String.format("%020d%s", base, SUFFIX));
+        active = opener.open(path);
+        activeSize = active.size();
+        synchronized (this) {
+            activeBase = base;
+            segments.put(base, path);
+        }
+    }
+
+    static long baseOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+}
@@ -35,4 +35,17 @@ public class MqttProperties {
 		return properties.getProperty(key, defaultValue);
 	}
 
+	public static int getIntProperty(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("Invalid integer for '{}': '{}', using default {}", key, value, defaultValue);
+			return defaultValue;
+		}
+	}
+
 }
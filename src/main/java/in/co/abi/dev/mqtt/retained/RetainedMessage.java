@@ -0,0 +1,81 @@
+package in.co.abi.dev.mqtt.retained;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last retained PUBLISH on one topic. The message is kept encoded as a
+ * length-prefixed topic followed by the payload, either in a heap buffer or
+ * as a view into the store's memory-mapped file, so delivering it to a new
+ * subscriber wraps it in a {@link SharedPayload} without copying.
+ */
+public final class RetainedMessage {
+
+    private final String topic;
+    private final int qos;
+    private final long expiresAt;
+    private final ByteBuffer encoded;
+    private final boolean mapped;
+
+    RetainedMessage(String topic, int qos, long expiresAt, ByteBuffer encoded, boolean mapped) {
+        this.topic = topic;
+        this.qos = qos;
+        this.expiresAt = expiresAt;
+        this.encoded = encoded.asReadOnlyBuffer();
+        this.mapped = mapped;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Expiry time in epoch millis, or 0 if the message never expires.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @param now Wall-clock time in milliseconds
+     * @return true if the message has expired
+     */
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    /**
+     * Whether the payload is served from the memory-mapped file rather than
+     * the heap.
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    public int getPayloadLength() {
+        return encoded.remaining() - 2 - (((encoded.get(0) & 0xFF) << 8) | (encoded.get(1) & 0xFF));
+    }
+
+    /**
+     * Wraps the encoded topic and payload for sending. The returned payload
+     * is not pooled; the caller owns its single reference.
+     */
+    public SharedPayload payload() {
+        return SharedPayload.wrap(encoded.duplicate());
+    }
+
+    /**
+     * Copy of the payload bytes.
+     */
+    public byte[] getPayload() {
+        ByteBuffer view = payload().payloadView();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+}
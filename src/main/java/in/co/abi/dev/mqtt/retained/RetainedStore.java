@@ -0,0 +1,537 @@
+package in.co.abi.dev.mqtt.retained;
+
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retained messages, one per topic, indexed in a topic tree so a SUBSCRIBE
+ * only visits the branches its filter can match.
+ *
+ * <p>
+ * With a backing file, every retained message is appended to a
+ * memory-mapped log; payloads up to {@code spillBytes} are also kept on the
+ * heap, larger ones are served straight from the mapping so they cost no
+ * heap at all. Replacing or clearing a topic appends a newer record or a
+ * tombstone. On start the file is remapped and scanned, the last record per
+ * topic wins, and once the mapping is full the live records are compacted
+ * into a fresh file. The mapping is left to the OS to write back, so the
+ * store survives a broker restart or crash but not a power loss.
+ *
+ * <p>
+ * A message may carry an expiry time. Expired messages are never matched,
+ * and {@link #sweepExpired(long, int)} unlinks them from the tree a bounded
+ * number at a time, in expiry order, from a queue that holds at most one
+ * entry per topic. Their records are not tombstoned: loading skips expired
+ * records and compaction drops them.
+ *
+ * <p>
+ * Record layout: record length (int, excluding itself), flags (byte: QoS,
+ * 0x80 for a tombstone), expiry time (long, epoch millis, 0 for none), topic
+ * length (short), topic, payload. The length is written last, so a torn
+ * record reads as the end of the log.
+ */
+public final class RetainedStore {
+    private static final Logger logger = LogManager.getLogger(RetainedStore.class);
+    private static final int MAGIC = 0x4D515254; // "MQRT"
+    private static final int HEADER = 8; // magic + version
+    private static final int VERSION = 2; // 2: records carry an expiry time
+    private static final int TOMBSTONE = 0x80;
+    private static final int RECORD_HEADER = 1 + 8 + 2; // flags, expiry, topic length
+
+    /**
+     * One topic level. Writers are serialised by the store; readers walk the
+     * tree without locking.
+     */
+    private static final class Node {
+        final Node parent;
+        final String level;
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        volatile RetainedMessage message;
+        // due time of this node's entry in the expiry queue, 0 if it has none
+        long scheduledAt;
+
+        Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Expiry queue entry. A node keeps its entry when a later-expiring
+     * message replaces the one it was queued for; the sweep finds the node's
+     * message not yet due and queues it again for the new time.
+     */
+    private static final class Due implements Comparable<Due> {
+        final long at;
+        final Node node;
+
+        Due(long at, Node node) {
+            this.at = at;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(Due other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    private final Node root = new Node(null, null);
+    private final PriorityQueue<Due> expiryQueue = new PriorityQueue<>();
+    private final LongAdder expired = new LongAdder();
+    private final int spillBytes;
+    private final Path file;
+    private final int maxFileBytes;
+    private MappedByteBuffer mapping;
+    private int writePos;
+    private int count;
+
+    /**
+     * Creates a heap-only store.
+     */
+    public RetainedStore() {
+        this.spillBytes = Integer.MAX_VALUE;
+        this.file = null;
+        this.maxFileBytes = 0;
+    }
+
+    /**
+     * Creates a store backed by a memory-mapped file, loading whatever the
+     * file already holds.
+     *
+     * @param file         The backing file, created if missing
+     * @param spillBytes   Largest payload also kept on the heap
+     * @param maxFileBytes Size of the mapping
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public RetainedStore(Path file, int spillBytes, int maxFileBytes) throws IOException {
+        this.spillBytes = Math.max(0, spillBytes);
+        this.file = file;
+        this.maxFileBytes = Math.max(HEADER + 64, maxFileBytes);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.mapping = map(file);
+        load();
+    }
+
+    /**
+     * Creates a store from {@code mqtt.retained.*} settings. Without
+     * {@code mqtt.retained.file} the store lives on the heap only.
+     */
+    public static RetainedStore fromProperties() {
+        String path = MqttProperties.getProperty("mqtt.retained.file", "");
+        if (path.trim().isEmpty()) {
+            return new RetainedStore();
+        }
+        try {
+            return new RetainedStore(Paths.get(path.trim()),
+                    MqttProperties.getIntProperty("mqtt.retained.spillBytes", 4096),
+                    MqttProperties.getIntProperty("mqtt.retained.maxFileBytes", 256 * 1024 * 1024));
+        } catch (IOException e) {
+            logger.error("Cannot open retained store {}, keeping retained messages in memory: {}", path,
+                    e.getMessage());
+            return new RetainedStore();
+        }
+    }
+
+    /**
+     * Retains a message, replacing the previous one on its topic. An empty
+     * payload clears the topic instead, as MQTT specifies.
+     *
+     * @param topic   The topic name
+     * @param qos     QoS of the PUBLISH
+     * @param payload The payload, from position to limit; not modified
+     */
+    public void put(String topic, int qos, ByteBuffer payload) {
+        put(topic, qos, payload, 0);
+    }
+
+    /**
+     * Retains a message that expires, replacing the previous one on its
+     * topic. An empty payload clears the topic instead.
+     *
+     * @param topic     The topic name
+     * @param qos       QoS of the PUBLISH
+     * @param payload   The payload, from position to limit; not modified
+     * @param expiresAt Expiry time in epoch millis, 0 for none
+     */
+    public synchronized void put(String topic, int qos, ByteBuffer payload, long expiresAt) {
+        if (!payload.hasRemaining()) {
+            remove(topic);
+            return;
+        }
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        RetainedMessage message = null;
+        if (mapping != null) {
+            int offset = append(name, qos, expiresAt, payload);
+            if (offset >= 0) {
+                message = fromRecord(topic, qos, expiresAt, offset, name.length, payload.remaining());
+            }
+        }
+        if (message == null) {
+            ByteBuffer encoded = ByteBuffer.allocate(2 + name.length + payload.remaining());
+            encoded.putShort((short) name.length).put(name).put(payload.duplicate()).flip();
+            message = new RetainedMessage(topic, qos, expiresAt, encoded, false);
+        }
+        install(message);
+    }
+
+    /**
+     * Clears the retained message on a topic.
+     *
+     * @param topic The topic name
+     * @return true if a message was retained
+     */
+    public synchronized boolean remove(String topic) {
+        Node node = find(topic);
+        if (node == null || node.message == null) {
+            return false;
+        }
+        clear(topic);
+        if (mapping != null) {
+            append(topic.getBytes(StandardCharsets.UTF_8), TOMBSTONE, 0, ByteBuffer.allocate(0));
+        }
+        return true;
+    }
+
+    /**
+     * @param topic The topic name
+     * @return The retained message, or null if none or expired
+     */
+    public RetainedMessage get(String topic) {
+        Node node = find(topic);
+        RetainedMessage message = node == null ? null : node.message;
+        return message == null || message.isExpired(System.currentTimeMillis()) ? null : message;
+    }
+
+    /**
+     * Finds every retained message whose topic matches a filter, with the
+     * same wildcard rules as {@link SubscriptionTrie}.
+     *
+     * @param filter A valid topic filter
+     * @return The matching messages that have not expired
+     */
+    public List<RetainedMessage> match(String filter) {
+        List<RetainedMessage> out = new ArrayList<>();
+        match(root, split(filter), 0, out);
+        long now = System.currentTimeMillis();
+        for (int i = out.size() - 1; i >= 0; i--) {
+            if (out.get(i).isExpired(now)) {
+                out.remove(i);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Removes messages that have expired by {@code now}, at most
+     * {@code budget} of them; the rest wait for the next call.
+     *
+     * @param now    Wall-clock time in milliseconds
+     * @param budget Most expiry queue entries to process
+     * @return Number of messages removed
+     */
+    public synchronized int sweepExpired(long now, int budget) {
+        int removed = 0;
+        for (int i = 0; i < budget; i++) {
+            Due due = expiryQueue.peek();
+            if (due == null || due.at > now) {
+                break;
+            }
+            expiryQueue.poll();
+            Node node = due.node;
+            node.scheduledAt = 0;
+            RetainedMessage message = node.message;
+            if (message == null || message.getExpiresAt() == 0) {
+                continue; // cleared or replaced by one that never expires
+            }
+            if (!message.isExpired(now)) {
+                schedule(node, message.getExpiresAt());
+                continue;
+            }
+            clear(message.getTopic());
+            removed++;
+        }
+        expired.add(removed);
+        return removed;
+    }
+
+    /**
+     * Number of retained messages removed because they expired.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Number of retained topics.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Flushes the mapping to disk.
+     */
+    public synchronized void force() {
+        if (mapping != null) {
+            mapping.force();
+        }
+    }
+
+    private void match(Node node, String[] levels, int depth, List<RetainedMessage> out) {
+        if (depth == levels.length) {
+            RetainedMessage message = node.message;
+            if (message != null) {
+                out.add(message);
+            }
+            return;
+        }
+        String level = levels[depth];
+        if (SubscriptionTrie.MULTI_LEVEL.equals(level)) {
+            // "a/#" also matches "a" itself
+            RetainedMessage message = node.message;
+            if (depth > 0 && message != null) {
+                out.add(message);
+            }
+            for (Node child : node.children.values()) {
+                if (depth > 0 || !child.level.startsWith("$")) {
+                    collect(child, out);
+                }
+            }
+        } else if (SubscriptionTrie.SINGLE_LEVEL.equals(level)) {
+            for (Node child : node.children.values()) {
+                if (depth > 0 || !child.level.startsWith("$")) {
+                    match(child, levels, depth + 1, out);
+                }
+            }
+        } else {
+            Node child = node.children.get(level);
+            if (child != null) {
+                match(child, levels, depth + 1, out);
+            }
+        }
+    }
+
+    private static void collect(Node node, List<RetainedMessage> out) {
+        RetainedMessage message = node.message;
+        if (message != null) {
+            out.add(message);
+        }
+        for (Node child : node.children.values()) {
+            collect(child, out);
+        }
+    }
+
+    private Node find(String topic) {
+        Node node = root;
+        for (String level : split(topic)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Unlinks empty nodes from a cleared topic upwards. Runs under the store
+     * lock, so no writer can be adding below a node being unlinked.
+     */
+    private static void prune(Node node) {
+        while (node.parent != null && node.message == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.level, node);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * Appends a record to the mapping, compacting first if it does not fit.
+     *
+     * @return Offset of the record, or -1 if it cannot be stored
+     */
+    private int append(byte[] name, int flags, long expiresAt, ByteBuffer payload) {
+        int length = RECORD_HEADER + name.length + payload.remaining();
+        if (writePos + 4 + length > mapping.capacity()) {
+            compact();
+            if (writePos + 4 + length > mapping.capacity()) {
+                logger.warn("Retained store {} is full; keeping message on the heap only", file);
+                return -1;
+            }
+        }
+        return write(name, flags, expiresAt, payload);
+    }
+
+    private int write(byte[] name, int flags, long expiresAt, ByteBuffer payload) {
+        int length = RECORD_HEADER + name.length + payload.remaining();
+        int offset = writePos;
+        ByteBuffer out = mapping.duplicate();
+        out.position(offset + 4);
+        out.put((byte) flags).putLong(expiresAt).putShort((short) name.length).put(name).put(payload.duplicate());
+        mapping.putInt(offset, length); // last: marks the record complete
+        writePos = offset + 4 + length;
+        return offset;
+    }
+
+    private RetainedMessage fromRecord(String topic, int qos, long expiresAt, int offset, int nameLength,
+            int payloadLength) {
+        int start = offset + 4 + RECORD_HEADER - 2;
+        int end = start + 2 + nameLength + payloadLength;
+        ByteBuffer view = mapping.duplicate();
+        view.limit(end).position(start);
+        if (payloadLength <= spillBytes) {
+            ByteBuffer copy = ByteBuffer.allocate(end - start);
+            copy.put(view).flip();
+            return new RetainedMessage(topic, qos, expiresAt, copy, false);
+        }
+        return new RetainedMessage(topic, qos, expiresAt, view.slice(), true);
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping outlives the channel
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, maxFileBytes);
+        }
+    }
+
+    private void load() throws IOException {
+        if (mapping.getInt(0) == 0) {
+            mapping.putInt(0, MAGIC);
+            mapping.putInt(4, VERSION);
+            writePos = HEADER;
+            return;
+        }
+        if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+            throw new IOException("Not a retained store: " + file);
+        }
+        long now = System.currentTimeMillis();
+        int pos = HEADER;
+        while (pos + 4 <= mapping.capacity()) {
+            int length = mapping.getInt(pos);
+            if (length < RECORD_HEADER || pos + 4 + length > mapping.capacity()) {
+                break;
+            }
+            int flags = mapping.get(pos + 4) & 0xFF;
+            long expiresAt = mapping.getLong(pos + 5);
+            int nameLength = mapping.getShort(pos + 13) & 0xFFFF;
+            int payloadLength = length - RECORD_HEADER - nameLength;
+            if (payloadLength < 0) {
+                break;
+            }
+            byte[] name = new byte[nameLength];
+            ByteBuffer view = mapping.duplicate();
+            view.position(pos + 4 + RECORD_HEADER);
+            view.get(name);
+            String topic = new String(name, StandardCharsets.UTF_8);
+            if ((flags & TOMBSTONE) != 0 || (expiresAt != 0 && expiresAt <= now)) {
+                clear(topic);
+            } else {
+                install(fromRecord(topic, flags & 0x03, expiresAt, pos, nameLength, payloadLength));
+            }
+            pos += 4 + length;
+        }
+        writePos = pos;
+        logger.info("Loaded {} retained messages from {}", count, file);
+    }
+
+    /**
+     * Rewrites the live records into a fresh file and swaps it in.
+     */
+    private void compact() {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        List<RetainedMessage> live = new ArrayList<>();
+        collect(root, live);
+        MappedByteBuffer old = mapping;
+        int oldPos = writePos;
+        try {
+            Files.deleteIfExists(tmp);
+            mapping = map(tmp);
+            mapping.putInt(0, MAGIC);
+            mapping.putInt(4, VERSION);
+            writePos = HEADER;
+            List<RetainedMessage> moved = new ArrayList<>(live.size());
+            long now = System.currentTimeMillis();
+            for (RetainedMessage message : live) {
+                if (message.isExpired(now)) {
+                    continue; // left to the sweep, which unlinks it
+                }
+                byte[] name = message.getTopic().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer payload = message.payload().payloadView();
+                // live records always fit: they were a subset of the old file
+                int offset = write(name, message.getQos(), message.getExpiresAt(), payload);
+                moved.add(fromRecord(message.getTopic(), message.getQos(), message.getExpiresAt(), offset,
+                        name.length, payload.remaining()));
+            }
+            mapping.force();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            for (RetainedMessage message : moved) {
+                install(message);
+            }
+            logger.info("Compacted retained store {}: {} -> {} bytes", file, oldPos, writePos);
+        } catch (IOException e) {
+            logger.warn("Compacting retained store {} failed: {}", file, e.getMessage());
+            mapping = old;
+            writePos = oldPos;
+        }
+    }
+
+    private void install(RetainedMessage message) {
+        Node node = root;
+        for (String level : split(message.getTopic())) {
+            Node parent = node;
+            node = parent.children.computeIfAbsent(level, l -> new Node(parent, l));
+        }
+        if (node.message == null) {
+            count++;
+        }
+        node.message = message;
+        if (message.getExpiresAt() != 0) {
+            schedule(node, message.getExpiresAt());
+        }
+    }
+
+    /**
+     * Queues a node for the sweep unless it is already queued for an
+     * earlier time.
+     */
+    private void schedule(Node node, long at) {
+        if (node.scheduledAt == 0 || at < node.scheduledAt) {
+            node.scheduledAt = at;
+            expiryQueue.add(new Due(at, node));
+        }
+    }
+
+    private void clear(String topic) {
+        Node node = find(topic);
+        if (node != null && node.message != null) {
+            node.message = null;
+            count--;
+            prune(node);
+        }
+    }
+
+    private static String[] split(String topic) {
+        return topic.split("/", -1);
+    }
+}
@@ -151,8 +151,9 @@ public class AuthenticationManager {
      * @return true if authorized, false otherwise
      */
     public boolean canSubscribe(String username, String topic) {
-        // Private topics ALWAYS require authentication
-        if (isPrivateTopic(topic)) {
+        // Private topics ALWAYS require authentication, including wildcard
+        // filters that could match one
+        if (isPrivateTopic(topic) || filterReachesPrivateTopic(topic)) {
             if (username == null) {
                 logger.warn("Subscribe denied: private topic '{}' requires authentication", topic);
                 return false;
@@ -184,6 +185,39 @@ public class AuthenticationManager {
         return allowAnonymous;
     }
 
+    /**
+     * Checks whether a wildcard filter could match a private topic or a topic
+     * below one, e.g. "#" or "admin/+" when "admin/commands" is private.
+     */
+    private boolean filterReachesPrivateTopic(String filter) {
+        if (filter == null || (filter.indexOf('+') < 0 && filter.indexOf('#') < 0)) {
+            return false;
+        }
+        String[] filterLevels = filter.split("/", -1);
+        for (String privateTopic : privateTopics) {
+            String[] topicLevels = privateTopic.split("/", -1);
+            boolean overlaps = true;
+            for (int i = 0; i < topicLevels.length; i++) {
+                if (i >= filterLevels.length) {
+                    overlaps = false;
+                    break;
+                }
+                String level = filterLevels[i];
+                if (level.equals("#")) {
+                    break;
+                }
+                if (!level.equals("+") && !level.equals(topicLevels[i])) {
+                    overlaps = false;
+                    break;
+                }
+            }
+            if (overlaps) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Simple topic matching (exact match for now, can be extended for wildcards).
      */
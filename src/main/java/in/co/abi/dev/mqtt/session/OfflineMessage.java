@@ -0,0 +1,51 @@
+package in.co.abi.dev.mqtt.session;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+
+/**
+ * A message read back from the offline queue.
+ */
+public final class OfflineMessage {
+
+    private final String topic;
+    private final int qos;
+    private final long expiresAt;
+    private final SharedPayload payload;
+
+    OfflineMessage(String topic, int qos, long expiresAt, SharedPayload payload) {
+        this.topic = topic;
+        this.qos = qos;
+        this.expiresAt = expiresAt;
+        this.payload = payload;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Expiry time in epoch millis, or 0 if the message never expires.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @param now Wall-clock time in milliseconds
+     * @return true if the message expired before it could be delivered
+     */
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    /**
+     * The encoded topic and payload; the caller owns its single reference.
+     */
+    public SharedPayload getPayload() {
+        return payload;
+    }
+}
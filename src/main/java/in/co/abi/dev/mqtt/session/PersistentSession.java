@@ -0,0 +1,311 @@
+package in.co.abi.dev.mqtt.session;
+
+import in.co.abi.dev.mqtt.PacketIdMap;
+import in.co.abi.dev.mqtt.SharedSubscriptionGroup;
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * State of a clean-session=false client that outlives its connections: the
+ * subscriptions to restore, the QoS 2 packet ids still awaiting PUBREL, the
+ * deliveries to the client left unfinished with their packet ids, and the
+ * offsets of messages queued in the {@link SegmentLog} while the client
+ * was away. Only the offsets and expiry times live on the heap, sixteen bytes
+ * per message; the messages themselves stay on disk until they are replayed.
+ * The expiry times let {@link #removeExpired} reclaim dead messages without
+ * reading them back.
+ */
+public final class PersistentSession {
+
+    private final String clientId;
+    private Map<String, Integer> subscriptions = Collections.emptyMap();
+    private PacketIdMap awaitingRelease;
+    private boolean online;
+    // deliveries in flight at disconnect, oldest first: packet id and
+    // backlog entry (negative once only PUBREL is outstanding)
+    private int[] inflightIds = new int[0];
+    private long[] inflightEntries = new long[0];
+    private int inflightCount;
+    // ring buffer of queued log offsets, oldest at head, and their expiry
+    // times (0 for none) at the same indexes
+    private long[] backlog = new long[8];
+    private long[] expiries = new long[8];
+    private int head;
+    private int size;
+    // no queued message expires before this; 0 if none expires at all
+    private long earliestExpiry;
+
+    PersistentSession(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Filters and granted QoS saved when the client last disconnected.
+     */
+    public synchronized Map<String, Integer> getSubscriptions() {
+        return subscriptions;
+    }
+
+    public synchronized void setSubscriptions(Map<String, Integer> subscriptions) {
+        this.subscriptions = Collections.unmodifiableMap(new HashMap<>(subscriptions));
+    }
+
+    /**
+     * Highest QoS granted to a saved non-shared subscription matching a
+     * topic, or -1 if none matches.
+     *
+     * @param topic The topic name
+     * @return The QoS, or -1
+     */
+    public synchronized int subscriptionQos(String topic) {
+        int qos = -1;
+        for (Map.Entry<String, Integer> entry : subscriptions.entrySet()) {
+            String filter = entry.getKey();
+            if (entry.getValue() > qos && !SharedSubscriptionGroup.isShared(filter)
+                    && SubscriptionTrie.matches(filter, topic)) {
+                qos = entry.getValue();
+            }
+        }
+        return qos;
+    }
+
+    public synchronized boolean isOnline() {
+        return online;
+    }
+
+    public synchronized void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    /**
+     * Hands over the inbound QoS 2 state, leaving none behind.
+     */
+    public synchronized PacketIdMap takeAwaitingRelease() {
+        PacketIdMap ids = awaitingRelease;
+        awaitingRelease = null;
+        return ids;
+    }
+
+    public synchronized void setAwaitingRelease(PacketIdMap awaitingRelease) {
+        this.awaitingRelease = awaitingRelease;
+    }
+
+    /**
+     * Number of deliveries left in flight when the client disconnected.
+     */
+    public synchronized int inflightSize() {
+        return inflightCount;
+    }
+
+    synchronized void addInflight(int packetId, long entry) {
+        if (inflightCount == inflightIds.length) {
+            int grown = Math.max(8, inflightCount * 2);
+            inflightIds = Arrays.copyOf(inflightIds, grown);
+            inflightEntries = Arrays.copyOf(inflightEntries, grown);
+        }
+        inflightIds[inflightCount] = packetId;
+        inflightEntries[inflightCount++] = entry;
+    }
+
+    /**
+     * Hands over the deliveries left in flight, oldest first, leaving none
+     * behind.
+     *
+     * @return Pairs of packet id and backlog entry
+     */
+    synchronized long[] takeInflight() {
+        long[] pairs = inflightPairs();
+        inflightCount = 0;
+        return pairs;
+    }
+
+    /**
+     * Copy of the deliveries left in flight, oldest first.
+     *
+     * @return Pairs of packet id and backlog entry
+     */
+    synchronized long[] inflightPairs() {
+        long[] pairs = new long[inflightCount * 2];
+        for (int i = 0; i < inflightCount; i++) {
+            pairs[2 * i] = inflightIds[i];
+            pairs[2 * i + 1] = inflightEntries[i];
+        }
+        return pairs;
+    }
+
+    /**
+     * Forgets the oldest delivery left in flight under {@code packetId} with
+     * exactly {@code entry}.
+     *
+     * @return true if there was one
+     */
+    synchronized boolean removeInflight(int packetId, long entry) {
+        for (int i = 0; i < inflightCount; i++) {
+            if (inflightIds[i] == packetId && inflightEntries[i] == entry) {
+                System.arraycopy(inflightIds, i + 1, inflightIds, i, inflightCount - i - 1);
+                System.arraycopy(inflightEntries, i + 1, inflightEntries, i, inflightCount - i - 1);
+                inflightCount--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops queued messages and messages left in flight whose backlog entry
+     * matches, keeping the order of the rest.
+     *
+     * @param matches  Tells the entries to drop
+     * @param released Receives every dropped entry
+     * @return Number of messages dropped
+     */
+    synchronized int removeIf(LongPredicate matches, LongConsumer released) {
+        int kept = 0;
+        for (int i = 0; i < inflightCount; i++) {
+            if (inflightEntries[i] >= 0 && matches.test(inflightEntries[i])) {
+                released.accept(inflightEntries[i]);
+                continue;
+            }
+            inflightIds[kept] = inflightIds[i];
+            inflightEntries[kept++] = inflightEntries[i];
+        }
+        int dropped = inflightCount - kept;
+        inflightCount = kept;
+        return dropped + remove(matches, 0, released);
+    }
+
+    /**
+     * Number of queued messages.
+     */
+    public synchronized int backlogSize() {
+        return size;
+    }
+
+    /**
+     * Takes the oldest queued offset.
+     *
+     * @return The offset, or -1 if nothing is queued
+     */
+    public synchronized long poll() {
+        if (size == 0) {
+            return -1;
+        }
+        long offset = backlog[head];
+        head = (head + 1) % backlog.length;
+        size--;
+        return offset;
+    }
+
+    /**
+     * Whether a queued message may have expired by {@code now}, without
+     * looking at each one.
+     *
+     * @param now Wall-clock time in milliseconds
+     */
+    public synchronized boolean mayHaveExpired(long now) {
+        return earliestExpiry != 0 && earliestExpiry <= now;
+    }
+
+    /**
+     * Drops queued messages that have expired by {@code now}, keeping the
+     * order of the rest.
+     *
+     * @param now      Wall-clock time in milliseconds
+     * @param released Receives the offset of every dropped message
+     * @return Number of messages dropped
+     */
+    public synchronized int removeExpired(long now, LongConsumer released) {
+        if (!mayHaveExpired(now)) {
+            return 0;
+        }
+        return remove(entry -> false, now, released);
+    }
+
+    /**
+     * Drops queued messages that match or have expired by {@code now} (0 to
+     * ignore expiry), keeping the order of the rest.
+     */
+    private int remove(LongPredicate matches, long now, LongConsumer released) {
+        int kept = 0;
+        long earliest = 0;
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) % backlog.length;
+            long expiresAt = expiries[from];
+            if ((now != 0 && expiresAt != 0 && expiresAt <= now) || matches.test(backlog[from])) {
+                released.accept(backlog[from]);
+                continue;
+            }
+            int to = (head + kept) % backlog.length;
+            backlog[to] = backlog[from];
+            expiries[to] = expiresAt;
+            kept++;
+            if (expiresAt != 0 && (earliest == 0 || expiresAt < earliest)) {
+                earliest = expiresAt;
+            }
+        }
+        int dropped = size - kept;
+        size = kept;
+        earliestExpiry = earliest;
+        return dropped;
+    }
+
+    /**
+     * Copy of the queued offsets, oldest first.
+     */
+    synchronized long[] backlogOffsets() {
+        long[] offsets = new long[size];
+        for (int i = 0; i < size; i++) {
+            offsets[i] = backlog[(head + i) % backlog.length];
+        }
+        return offsets;
+    }
+
+    synchronized void add(long offset, long expiresAt) {
+        ensureCapacity();
+        int index = (head + size) % backlog.length;
+        backlog[index] = offset;
+        expiries[index] = expiresAt;
+        size++;
+        noteExpiry(expiresAt);
+    }
+
+    synchronized void addFirst(long offset, long expiresAt) {
+        ensureCapacity();
+        head = (head - 1 + backlog.length) % backlog.length;
+        backlog[head] = offset;
+        expiries[head] = expiresAt;
+        size++;
+        noteExpiry(expiresAt);
+    }
+
+    private void noteExpiry(long expiresAt) {
+        if (expiresAt != 0 && (earliestExpiry == 0 || expiresAt < earliestExpiry)) {
+            earliestExpiry = expiresAt;
+        }
+    }
+
+    private void ensureCapacity() {
+        if (size < backlog.length) {
+            return;
+        }
+        long[] grown = new long[backlog.length * 2];
+        long[] grownExpiries = new long[grown.length];
+        for (int i = 0; i < size; i++) {
+            grown[i] = backlog[(head + i) % backlog.length];
+            grownExpiries[i] = expiries[(head + i) % backlog.length];
+        }
+        backlog = grown;
+        expiries = grownExpiries;
+        head = 0;
+    }
+}
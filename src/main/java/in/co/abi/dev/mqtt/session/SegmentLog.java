@@ -0,0 +1,266 @@
+package in.co.abi.dev.mqtt.session;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only log split into fixed-size segment files. Records are addressed
+ * by a log-wide offset: the segment's base offset, which is also its file
+ * name, plus the position inside the file. Appends go to the newest segment
+ * through a {@link FileChannel}; reads use positional reads, so any number of
+ * threads can read while one appends.
+ *
+ * <p>
+ * Every record starts out live. Consumers {@link #release(long)} records once
+ * they no longer need them, and a segment other than the one being written
+ * is deleted as soon as none of its records are live, so disk use follows the
+ * oldest unconsumed record rather than growing forever.
+ *
+ * <p>
+ * Small appends are gathered in a write buffer and reach the file together,
+ * when the buffer fills or a read needs them, so queueing a burst of
+ * messages costs a few writes rather than one per message.
+ */
+public final class SegmentLog implements Closeable {
+    private static final Logger logger = LogManager.getLogger(SegmentLog.class);
+    private static final String SUFFIX = ".log";
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * One segment file.
+     */
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        int live;
+
+        Segment(long base, Path path) throws IOException {
+            this.base = base;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+    private Segment active;
+    private long written; // bytes of the active segment already in the file
+
+    /**
+     * Opens a log in {@code dir}, discarding segments left by an earlier run.
+     *
+     * @param dir          Directory holding the segment files
+     * @param segmentBytes Size after which a new segment is started
+     * @throws IOException if the directory cannot be prepared
+     */
+    public SegmentLog(Path dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.max(1024, segmentBytes);
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stale) {
+                Files.delete(path);
+            }
+        }
+        roll(0);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param record The record, from position to limit
+     * @return The record's offset
+     * @throws IOException if the write fails
+     */
+    public long append(ByteBuffer record) throws IOException {
+        return append(record, 1);
+    }
+
+    /**
+     * Appends a record that several consumers read, each releasing it once.
+     *
+     * @param record     The record, from position to limit
+     * @param references Number of {@link #release(long)} calls before the
+     *                   record is no longer live
+     * @return The record's offset
+     * @throws IOException if the write fails
+     */
+    public synchronized long append(ByteBuffer record, int references) throws IOException {
+        int length = record.remaining();
+        if (active.size > 0 && active.size + 4 + length > segmentBytes) {
+            roll(active.base + active.size);
+        }
+        long offset = active.base + active.size;
+        if (4 + length > writeBuffer.remaining()) {
+            flush();
+        }
+        if (4 + length <= writeBuffer.remaining()) {
+            writeBuffer.putInt(length).put(record.duplicate());
+        } else {
+            // larger than the buffer: straight to the file
+            lengthBuffer.clear();
+            lengthBuffer.putInt(length).flip();
+            ByteBuffer[] parts = { lengthBuffer, record.duplicate() };
+            active.channel.position(active.size);
+            while (parts[1].hasRemaining()) {
+                active.channel.write(parts);
+            }
+            written = active.size + 4 + length;
+        }
+        active.size += 4 + length;
+        active.live += references;
+        return offset;
+    }
+
+    /**
+     * Adds a consumer to a live record, which then needs one more
+     * {@link #release(long)}.
+     *
+     * @param offset Offset returned by {@link #append(ByteBuffer)}
+     */
+    public synchronized void retain(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry != null) {
+            entry.getValue().live++;
+        }
+    }
+
+    /**
+     * Reads the record at an offset.
+     *
+     * @param offset Offset returned by {@link #append(ByteBuffer)}
+     * @return A heap buffer holding the record
+     * @throws IOException if the record does not exist or cannot be read
+     */
+    public ByteBuffer read(long offset) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            segment = segmentFor(offset);
+            if (segment == active && writeBuffer.position() > 0) {
+                flush();
+            }
+        }
+        long position = offset - segment.base;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(segment.channel, length, position);
+        ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+        readFully(segment.channel, record, position + 4);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Marks a record as no longer needed, deleting its segment once nothing
+     * in it is live.
+     *
+     * @param offset Offset returned by {@link #append(ByteBuffer)}
+     */
+    public synchronized void release(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            return;
+        }
+        Segment segment = entry.getValue();
+        if (--segment.live <= 0 && segment != active) {
+            segments.remove(segment.base);
+            delete(segment);
+        }
+    }
+
+    /**
+     * Number of segment files currently on disk.
+     */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Bytes currently held in segment files.
+     */
+    public synchronized long size() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (active != null && active.channel.isOpen()) {
+            flush();
+        }
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+
+    private synchronized Segment segmentFor(long offset) throws IOException {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null || offset - entry.getKey() >= entry.getValue().size) {
+            throw new IOException("No record at offset " + offset);
+        }
+        return entry.getValue();
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            written += active.channel.write(writeBuffer, written);
+        }
+        writeBuffer.clear();
+    }
+
+    private void roll(long base) throws IOException {
+        if (active != null) {
+            flush();
+        }
+        Segment previous = active;
+        active = new Segment(base, dir.resolve(String.format("%020d%s", base, SUFFIX)));
+        segments.put(base, active);
+        written = active.size;
+        if (previous != null && previous.live <= 0) {
+            segments.remove(previous.base);
+            delete(previous);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Cannot delete log segment {}: {}", segment.path, e.getMessage());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Truncated record");
+            }
+            position += n;
+        }
+    }
+}
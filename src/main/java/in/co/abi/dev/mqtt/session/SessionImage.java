@@ -0,0 +1,79 @@
+package in.co.abi.dev.mqtt.session;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent session's state as captured for a snapshot.
+ */
+public final class SessionImage {
+
+    /**
+     * Delivery held in memory by the client's connection at capture time.
+     */
+    static final class Live {
+        final int packetId;
+        final int qos;
+        final SharedPayload payload;
+
+        Live(int packetId, int qos, SharedPayload payload) {
+            this.packetId = packetId;
+            this.qos = qos;
+            this.payload = payload;
+        }
+    }
+
+    final String clientId;
+    final Map<String, Integer> subscriptions;
+    final long[] inflight;
+    final long[] backlog;
+    final List<Live> live = new ArrayList<>();
+
+    SessionImage(String clientId, Map<String, Integer> subscriptions, long[] inflight, long[] backlog) {
+        this.clientId = clientId;
+        this.subscriptions = subscriptions;
+        this.inflight = inflight;
+        this.backlog = backlog;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Number of messages queued at capture time.
+     */
+    public int backlogSize() {
+        return backlog.length;
+    }
+
+    /**
+     * Adds a delivery the connected client has not completed, in the order
+     * they are to be resent: those in flight first, then those waiting for a
+     * slot. Retains {@code payload} until {@link #release()}.
+     *
+     * @param packetId Identifier the message was sent under, 0 if not sent
+     *                 yet
+     * @param qos      Delivery QoS
+     * @param payload  The encoded topic and payload, or null once only
+     *                 PUBREL is outstanding
+     */
+    public void addLive(int packetId, int qos, SharedPayload payload) {
+        live.add(new Live(packetId, qos, payload != null ? payload.retain() : null));
+    }
+
+    /**
+     * Releases the payloads retained by {@link #addLive}.
+     */
+    public void release() {
+        for (Live delivery : live) {
+            if (delivery.payload != null) {
+                delivery.payload.release();
+            }
+        }
+        live.clear();
+    }
+}
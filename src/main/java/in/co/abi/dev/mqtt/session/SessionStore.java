@@ -0,0 +1,673 @@
+package in.co.abi.dev.mqtt.session;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.properties.MqttProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent sessions keyed by client id, and the broker-wide
+ * {@link SegmentLog} their offline messages are queued in. The log is opened
+ * on the first queued message, so brokers without persistent clients never
+ * touch the disk.
+ *
+ * <p>
+ * Record layout: expiry time (long, epoch millis, 0 for none), the message's
+ * write-ahead log offset (long, -1 if not logged), then the length-prefixed
+ * topic and payload exactly as a PUBLISH body carries them, so a replayed
+ * record is wrapped for sending without another copy.
+ *
+ * <p>
+ * A message queued for several clients is written once. Each backlog holds
+ * an entry for it: the record offset shifted left by two, with the QoS
+ * granted to that client in the low bits. The record stays live until every
+ * client queueing it has released its entry.
+ *
+ * <p>
+ * Expired messages are dropped when read back, and reclaimed ahead of that by
+ * {@link #sweepExpired(long, int)}, which visits a bounded number of queued
+ * messages per call and resumes where the previous call stopped.
+ */
+public final class SessionStore {
+    private static final Logger logger = LogManager.getLogger(SessionStore.class);
+    // in-flight entry of a QoS 2 delivery with only its PUBREL outstanding
+    private static final long RELEASED = -1;
+
+    /**
+     * Receives the deliveries a client left in flight, on resumption.
+     */
+    public interface InflightConsumer {
+        /**
+         * @param packetId Identifier the delivery was sent under
+         * @param message  The message, or null once only PUBREL is
+         *                 outstanding; the consumer owns its payload
+         * @throws IOException if the session is closed
+         */
+        void accept(int packetId, OfflineMessage message) throws IOException;
+    }
+
+    private final ConcurrentMap<String, PersistentSession> sessions = new ConcurrentHashMap<>();
+    private final Path logDir;
+    private final int segmentBytes;
+    private final int maxOfflineMessages;
+    private volatile SegmentLog log;
+    private final LongAdder expired = new LongAdder();
+    // where the next sweep resumes; only touched by the sweeping thread
+    private Iterator<PersistentSession> sweepCursor;
+
+    /**
+     * @param logDir             Directory of the offline queue segments
+     * @param segmentBytes       Size of one segment file
+     * @param maxOfflineMessages Most messages queued per client; newer ones
+     *                           are dropped
+     */
+    public SessionStore(Path logDir, int segmentBytes, int maxOfflineMessages) {
+        this.logDir = logDir;
+        this.segmentBytes = segmentBytes;
+        this.maxOfflineMessages = maxOfflineMessages;
+    }
+
+    /**
+     * Creates a store from {@code mqtt.session.*} settings.
+     */
+    public static SessionStore fromProperties() {
+        return new SessionStore(Paths.get(MqttProperties.getProperty("mqtt.session.logDir", "data/sessions")),
+                MqttProperties.getIntProperty("mqtt.session.segmentBytes", 64 * 1024 * 1024),
+                MqttProperties.getIntProperty("mqtt.session.maxOfflineMessages", 10000));
+    }
+
+    /**
+     * @param clientId The client id
+     * @return The client's persistent session, or null
+     */
+    public PersistentSession get(String clientId) {
+        return sessions.get(clientId);
+    }
+
+    /**
+     * @param clientId The client id
+     * @return The client's persistent session, created if missing
+     */
+    public PersistentSession getOrCreate(String clientId) {
+        return sessions.computeIfAbsent(clientId, PersistentSession::new);
+    }
+
+    /**
+     * Discards a client's session together with its queued messages.
+     *
+     * @param clientId The client id
+     * @return The removed session, or null
+     */
+    public PersistentSession remove(String clientId) {
+        PersistentSession session = sessions.remove(clientId);
+        if (session != null) {
+            long offset;
+            while ((offset = session.poll()) >= 0) {
+                release(offset);
+            }
+            long[] inflight = session.takeInflight();
+            for (int i = 1; i < inflight.length; i += 2) {
+                if (inflight[i] != RELEASED) {
+                    release(inflight[i]);
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Number of persistent sessions, online or not.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Queues a message for a client at the end of its backlog.
+     *
+     * @param session The client's session
+     * @param qos     QoS to deliver the message at
+     * @param topic   The topic
+     * @param payload The encoded topic and payload
+     * @return true if queued, false if the client's backlog is full
+     * @throws IOException if the log cannot be written
+     */
+    public boolean enqueue(PersistentSession session, int qos, String topic, SharedPayload payload)
+            throws IOException {
+        return enqueue(session, qos, topic, payload, 0);
+    }
+
+    /**
+     * Queues a message that expires, at the end of a client's backlog.
+     *
+     * @param session   The client's session
+     * @param qos       QoS to deliver the message at
+     * @param topic     The topic
+     * @param payload   The encoded topic and payload
+     * @param expiresAt Expiry time in epoch millis, 0 for none
+     * @return true if queued, false if the client's backlog is full
+     * @throws IOException if the log cannot be written
+     */
+    public boolean enqueue(PersistentSession session, int qos, String topic, SharedPayload payload,
+            long expiresAt) throws IOException {
+        return enqueue(new PersistentSession[] { session }, new int[] { qos }, 1, topic, payload, expiresAt) == 1;
+    }
+
+    /**
+     * Queues one message at the end of several clients' backlogs, writing it
+     * to the log once however many clients it is queued for. Clients whose
+     * backlog is full are skipped; on return the first entries of
+     * {@code sessions} and {@code qos} are the ones it was queued for.
+     *
+     * @param sessions  The clients' sessions
+     * @param qos       QoS to deliver the message at, per session
+     * @param count     Number of sessions used
+     * @param topic     The topic
+     * @param payload   The encoded topic and payload
+     * @param expiresAt Expiry time in epoch millis, 0 for none
+     * @return Number of sessions the message was queued for
+     * @throws IOException if the log cannot be written
+     */
+    public int enqueue(PersistentSession[] sessions, int[] qos, int count, String topic, SharedPayload payload,
+            long expiresAt) throws IOException {
+        int accepted = 0;
+        for (int i = 0; i < count; i++) {
+            if (sessions[i].backlogSize() >= maxOfflineMessages) {
+                logger.debug("Offline queue of {} full, dropping message on {}", sessions[i].getClientId(), topic);
+                continue;
+            }
+            sessions[accepted] = sessions[i];
+            qos[accepted++] = qos[i];
+        }
+        if (accepted == 0) {
+            return 0;
+        }
+        long offset = log().append(encode(expiresAt, payload), accepted);
+        for (int i = 0; i < accepted; i++) {
+            sessions[i].add(entry(offset, qos[i]), expiresAt);
+        }
+        return accepted;
+    }
+
+    /**
+     * Queues messages ahead of a client's backlog, e.g. deliveries that were
+     * still unacknowledged when it disconnected.
+     *
+     * @param session The client's session
+     * @param qos     QoS to deliver the message at
+     * @param payload The encoded topic and payload
+     * @return The backlog entry, to be passed to
+     *         {@link #requeueFirst(PersistentSession, long[], int)}
+     * @throws IOException if the log cannot be written
+     */
+    public long write(PersistentSession session, int qos, SharedPayload payload) throws IOException {
+        return write(session, qos, payload, 0);
+    }
+
+    /**
+     * Writes a message that expires, to be queued with
+     * {@link #requeueFirst(PersistentSession, long[], long[], int)}.
+     *
+     * @param session   The client's session
+     * @param qos       QoS to deliver the message at
+     * @param payload   The encoded topic and payload
+     * @param expiresAt Expiry time in epoch millis, 0 for none
+     * @return The backlog entry
+     * @throws IOException if the log cannot be written
+     */
+    public long write(PersistentSession session, int qos, SharedPayload payload, long expiresAt)
+            throws IOException {
+        return entry(log().append(encode(expiresAt, payload)), qos);
+    }
+
+    /**
+     * Keeps a delivery the client left unfinished at disconnect, to be sent
+     * again under the same packet id by
+     * {@link #resumeInflight(PersistentSession, InflightConsumer)}. Call in
+     * the order the deliveries were sent.
+     *
+     * @param session  The client's session
+     * @param packetId Identifier the delivery was sent under
+     * @param qos      Delivery QoS
+     * @param payload  The encoded topic and payload, or null once only PUBREL
+     *                 is outstanding
+     * @throws IOException if the log cannot be written
+     */
+    public void keepInflight(PersistentSession session, int packetId, int qos, SharedPayload payload)
+            throws IOException {
+        session.addInflight(packetId, payload == null ? RELEASED : entry(log().append(encode(0, payload)), qos));
+    }
+
+    /**
+     * Hands the deliveries kept with {@link #keepInflight} back, oldest
+     * first, and forgets them. Unreadable ones are skipped. Should the
+     * consumer fail, the deliveries not yet handed over are kept.
+     *
+     * @param session  The client's session
+     * @param consumer Receiver of each delivery
+     * @throws IOException if the consumer fails
+     */
+    public void resumeInflight(PersistentSession session, InflightConsumer consumer) throws IOException {
+        long[] inflight = session.takeInflight();
+        for (int i = 0; i < inflight.length; i += 2) {
+            try {
+                resumeInflight(session, (int) inflight[i], inflight[i + 1], consumer);
+            } catch (IOException e) {
+                for (int k = i + 2; k < inflight.length; k += 2) {
+                    session.addInflight((int) inflight[k], inflight[k + 1]);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Puts records written with {@link #write} in front of the backlog,
+     * keeping their order.
+     *
+     * @param session The client's session
+     * @param offsets Backlog entries, oldest first
+     * @param count   Number of entries used
+     */
+    public void requeueFirst(PersistentSession session, long[] offsets, int count) {
+        requeueFirst(session, offsets, null, count);
+    }
+
+    /**
+     * Puts records written with {@link #write} in front of the backlog,
+     * keeping their order.
+     *
+     * @param session  The client's session
+     * @param offsets  Backlog entries, oldest first
+     * @param expiries Expiry time of each record, or null if none expires
+     * @param count    Number of entries used
+     */
+    public void requeueFirst(PersistentSession session, long[] offsets, long[] expiries, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            session.addFirst(offsets[i], expiries != null ? expiries[i] : 0);
+        }
+    }
+
+    /**
+     * Reads a queued message back.
+     *
+     * @param entry Entry taken from {@link PersistentSession#poll()}
+     * @return The message
+     * @throws IOException if the record cannot be read
+     */
+    public OfflineMessage read(long entry) throws IOException {
+        ByteBuffer record = log().read(offsetOf(entry));
+        long expiresAt = record.getLong();
+        long logOffset = record.getLong();
+        ByteBuffer encoded = record.slice();
+        int topicLength = encoded.getShort(0) & 0xFFFF;
+        String topic = new String(encoded.array(), encoded.arrayOffset() + 2, topicLength, StandardCharsets.UTF_8);
+        return new OfflineMessage(topic, qosOf(entry), expiresAt,
+                SharedPayload.wrap(encoded).setLogOffset(logOffset));
+    }
+
+    /**
+     * Marks a queued message as delivered or discarded for one client.
+     *
+     * @param entry The backlog entry
+     */
+    public void release(long entry) {
+        SegmentLog current = log;
+        if (current != null) {
+            current.release(offsetOf(entry));
+        }
+    }
+
+    /**
+     * Forgets a QoS 2 delivery left in flight once its PUBREL is answered,
+     * e.g. when a restart replays the completion.
+     *
+     * @param session  The client's session
+     * @param packetId Identifier of the PUBREL
+     * @return true if the delivery was still kept
+     */
+    public boolean completeInflight(PersistentSession session, int packetId) {
+        return session.removeInflight(packetId, RELEASED);
+    }
+
+    /**
+     * Drops a client's queued and in-flight messages that it has already
+     * received, e.g. when a restart replays the acknowledgements logged after
+     * the snapshot. Reads back each message the client holds, so call once
+     * per client with every acknowledgement collected.
+     *
+     * @param session    The client's session
+     * @param logOffsets Write-ahead log offsets of the received messages
+     * @return Number of messages dropped
+     */
+    public int removeDelivered(PersistentSession session, Set<Long> logOffsets) {
+        return session.removeIf(entry -> logOffsets.contains(logOffsetOf(entry)), this::release);
+    }
+
+    /**
+     * Drops expired messages from the backlogs, visiting at most
+     * {@code budget} queued messages; sessions with nothing due are skipped
+     * without looking at their messages. The next call carries on with the
+     * sessions after the last one visited. Not thread-safe: one sweeper only.
+     *
+     * @param now    Wall-clock time in milliseconds
+     * @param budget Most queued messages to look at
+     * @return Number of messages dropped
+     */
+    public int sweepExpired(long now, int budget) {
+        int dropped = 0;
+        int visited = 0;
+        boolean restarted = false;
+        while (visited < budget) {
+            if (sweepCursor == null || !sweepCursor.hasNext()) {
+                if (restarted) {
+                    break; // every session seen once this call
+                }
+                sweepCursor = sessions.values().iterator();
+                restarted = true;
+                if (!sweepCursor.hasNext()) {
+                    break;
+                }
+            }
+            PersistentSession session = sweepCursor.next();
+            if (session.mayHaveExpired(now)) {
+                visited += session.backlogSize();
+                dropped += session.removeExpired(now, this::release);
+            }
+            visited++;
+        }
+        expired.add(dropped);
+        return dropped;
+    }
+
+    /**
+     * Number of queued messages dropped because they expired.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Counts a queued message found expired when it was read back.
+     */
+    public void onExpired() {
+        expired.increment();
+    }
+
+    /**
+     * Copies the session table for a snapshot: subscriptions, deliveries left
+     * in flight and the offsets of queued messages. Cheap enough to run while
+     * publishers are held back; {@link #writeSnapshot} then reads the
+     * messages themselves. Deliveries held by connected clients are added to
+     * the images by the caller.
+     *
+     * @return One image per session
+     */
+    public List<SessionImage> capture() {
+        List<SessionImage> images = new ArrayList<>(sessions.size());
+        for (PersistentSession session : sessions.values()) {
+            images.add(new SessionImage(session.getClientId(), session.getSubscriptions(),
+                    session.inflightPairs(), session.backlogOffsets()));
+        }
+        return images;
+    }
+
+    /**
+     * Writes captured sessions with their unfinished deliveries and queued
+     * messages: those in flight first, with their packet ids, then the ones
+     * waiting for a slot, then the backlog. Messages consumed since the
+     * capture are skipped when their records are gone, and written
+     * otherwise; expired queued ones are left out. A message queued for
+     * several sessions is written with the first of them and referred to by
+     * its index afterwards.
+     *
+     * @param images Sessions from {@link #capture()}
+     * @param out    Snapshot body
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void writeSnapshot(List<SessionImage> images, DataOutputStream out) throws IOException {
+        long now = System.currentTimeMillis();
+        Map<Long, Integer> written = new HashMap<>();
+        int messages = 0; // kind 1 entries so far, which kind 2 entries refer to by index
+        out.writeInt(images.size());
+        for (SessionImage image : images) {
+            writeString(out, image.clientId);
+            out.writeInt(image.subscriptions.size());
+            for (Map.Entry<String, Integer> entry : image.subscriptions.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeByte(entry.getValue());
+            }
+            for (int i = 0; i < image.inflight.length; i += 2) {
+                int packetId = (int) image.inflight[i];
+                long entry = image.inflight[i + 1];
+                if (entry == RELEASED) {
+                    out.writeByte(4);
+                    out.writeShort(packetId);
+                    continue;
+                }
+                ByteBuffer record;
+                try {
+                    record = log().read(offsetOf(entry));
+                } catch (IOException e) {
+                    continue; // resent since the capture
+                }
+                out.writeByte(3);
+                out.writeShort(packetId);
+                writeMessage(out, qosOf(entry), record);
+            }
+            for (SessionImage.Live delivery : image.live) {
+                if (delivery.payload == null) {
+                    out.writeByte(4);
+                    out.writeShort(delivery.packetId);
+                    continue;
+                }
+                if (delivery.packetId != 0) {
+                    out.writeByte(3);
+                    out.writeShort(delivery.packetId);
+                } else {
+                    out.writeByte(1);
+                    messages++;
+                }
+                writeMessage(out, delivery.qos, encode(0, delivery.payload));
+            }
+            for (long entry : image.backlog) {
+                Integer index = written.get(offsetOf(entry));
+                if (index != null) {
+                    out.writeByte(2);
+                    out.writeByte(qosOf(entry));
+                    out.writeInt(index);
+                    continue;
+                }
+                ByteBuffer record;
+                try {
+                    record = log().read(offsetOf(entry));
+                } catch (IOException e) {
+                    continue; // delivered since the capture
+                }
+                long expiresAt = record.getLong(record.position());
+                if (expiresAt != 0 && expiresAt <= now) {
+                    continue;
+                }
+                written.put(offsetOf(entry), messages++);
+                out.writeByte(1);
+                writeMessage(out, qosOf(entry), record);
+            }
+            out.writeByte(0);
+        }
+    }
+
+    /**
+     * Writes a QoS and a record as laid out in the log.
+     */
+    private static void writeMessage(DataOutputStream out, int qos, ByteBuffer record) throws IOException {
+        out.writeByte(qos);
+        out.writeInt(record.remaining());
+        out.write(record.array(), record.arrayOffset() + record.position(), record.remaining());
+    }
+
+    /**
+     * Restores sessions from a snapshot body, queueing their messages in the
+     * (fresh) log again, once per message however many sessions it is queued
+     * for.
+     *
+     * @param in Snapshot body written by {@link #writeSnapshot}
+     * @return The restored sessions
+     * @throws IOException if the messages cannot be queued
+     */
+    public List<PersistentSession> loadSnapshot(ByteBuffer in) throws IOException {
+        long now = System.currentTimeMillis();
+        int count = in.getInt();
+        List<PersistentSession> restored = new ArrayList<>(count);
+        List<Long> offsets = new ArrayList<>();
+        List<Long> expiries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PersistentSession session = getOrCreate(readString(in));
+            int subscriptionCount = in.getInt();
+            Map<String, Integer> filters = new HashMap<>();
+            for (int k = 0; k < subscriptionCount; k++) {
+                String filter = readString(in);
+                filters.put(filter, (int) in.get());
+            }
+            session.setSubscriptions(filters);
+            int kind;
+            while ((kind = in.get()) != 0) {
+                if (kind == 4) {
+                    session.addInflight(in.getShort() & 0xFFFF, RELEASED);
+                    continue;
+                }
+                int packetId = kind == 3 ? in.getShort() & 0xFFFF : 0;
+                int qos = in.get();
+                if (kind == 2) {
+                    int index = in.getInt();
+                    long offset = offsets.get(index);
+                    if (offset < 0) {
+                        expired.increment();
+                        continue;
+                    }
+                    log().retain(offset);
+                    session.add(entry(offset, qos), expiries.get(index));
+                    continue;
+                }
+                int length = in.getInt();
+                ByteBuffer record = in.slice();
+                record.limit(length);
+                in.position(in.position() + length);
+                if (kind == 3) {
+                    // sent before, so kept whatever its expiry
+                    session.addInflight(packetId, entry(log().append(record), qos));
+                    continue;
+                }
+                long expiresAt = record.getLong(0);
+                if (expiresAt != 0 && expiresAt <= now) {
+                    expired.increment();
+                    offsets.add(-1L);
+                    expiries.add(expiresAt);
+                    continue;
+                }
+                long offset = log().append(record);
+                offsets.add(offset);
+                expiries.add(expiresAt);
+                session.add(entry(offset, qos), expiresAt);
+            }
+            restored.add(session);
+        }
+        return restored;
+    }
+
+    /**
+     * The offline queue log, or null if nothing was ever queued.
+     */
+    public SegmentLog getLog() {
+        return log;
+    }
+
+    private void resumeInflight(PersistentSession session, int packetId, long entry, InflightConsumer consumer)
+            throws IOException {
+        if (entry == RELEASED) {
+            consumer.accept(packetId, null);
+            return;
+        }
+        OfflineMessage message;
+        try {
+            message = read(entry);
+        } catch (IOException e) {
+            logger.warn("Skipping unreadable in-flight message for {}: {}", session.getClientId(),
+                    e.getMessage());
+            return;
+        } finally {
+            release(entry);
+        }
+        consumer.accept(packetId, message);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer encode(long expiresAt, SharedPayload payload) {
+        ByteBuffer record = ByteBuffer.allocate(16 + payload.length());
+        record.putLong(expiresAt).putLong(payload.getLogOffset()).put(payload.bodyView()).flip();
+        return record;
+    }
+
+    private static long entry(long offset, int qos) {
+        return offset << 2 | qos;
+    }
+
+    private static long offsetOf(long entry) {
+        return entry >>> 2;
+    }
+
+    private static int qosOf(long entry) {
+        return (int) (entry & 0x03);
+    }
+
+    /**
+     * Write-ahead log offset of a queued message, or -1 if unreadable.
+     */
+    private long logOffsetOf(long entry) {
+        try {
+            return log().read(offsetOf(entry)).getLong(8);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private SegmentLog log() throws IOException {
+        SegmentLog current = log;
+        if (current == null) {
+            synchronized (this) {
+                current = log;
+                if (current == null) {
+                    current = new SegmentLog(logDir, segmentBytes);
+                    log = current;
+                }
+            }
+        }
+        return current;
+    }
+}
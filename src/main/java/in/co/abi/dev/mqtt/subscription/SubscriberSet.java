@@ -0,0 +1,244 @@
+package in.co.abi.dev.mqtt.subscription;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Subscribers of one topic filter, built for constant churn on large sets.
+ * Slots live in fixed-size chunks; adding a subscriber fills a free slot and
+ * removing one leaves a tombstone, so neither copies the set the way a
+ * copy-on-write list does. Growing allocates one more chunk. When tombstones
+ * outnumber live entries the set is compacted into fresh chunks and published
+ * in one step.
+ *
+ * <p>
+ * Iteration takes no lock and never blocks writers; it reads plain arrays, as
+ * fast as a copy-on-write list. Every write ends with a volatile write of the
+ * table's high-water mark, which an iterator reads when it starts, so it sees
+ * all writes made before then. An iterator works on the table it started
+ * with: every subscriber present for the whole iteration is returned exactly
+ * once, and subscribers added or removed meanwhile may or may not be (one
+ * removed and re-added mid-iteration can show up twice). Writers are
+ * serialised on the set.
+ *
+ * @param <S> Subscriber type; equality decides membership
+ */
+public final class SubscriberSet<S> extends AbstractCollection<S> {
+
+    static final int CHUNK_SIZE = 64;
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Chunks plus the number of slots ever used in them. Replaced, never
+     * shrunk in place, so an iterator can keep using the one it read.
+     */
+    private static final class Table {
+        final Object[][] chunks;
+        volatile int high;
+
+        Table(Object[][] chunks, int high) {
+            this.chunks = chunks;
+            this.high = high;
+        }
+    }
+
+    private static final Object[][] NO_CHUNKS = new Object[0][];
+
+    private volatile Table table = new Table(NO_CHUNKS, 0);
+    private volatile int size;
+
+    // Writer state, guarded by this
+    private final Map<S, Integer> positions = new HashMap<>();
+    private int[] free = new int[8];
+    private int freeCount;
+
+    @Override
+    public synchronized boolean add(S subscriber) {
+        if (positions.containsKey(subscriber)) {
+            return false;
+        }
+        Table t = table;
+        int slot;
+        if (freeCount > 0) {
+            slot = free[--freeCount];
+            t.chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = subscriber;
+            t.high = t.high; // publish
+        } else {
+            slot = t.high;
+            if ((slot >>> CHUNK_SHIFT) == t.chunks.length) {
+                t = grow(t);
+            }
+            t.chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = subscriber;
+            // publish the slot only after it holds the subscriber
+            t.high = slot + 1;
+        }
+        positions.put(subscriber, slot);
+        size++;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object subscriber) {
+        Integer slot = positions.remove(subscriber);
+        if (slot == null) {
+            return false;
+        }
+        Table t = table;
+        t.chunks[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = null;
+        t.high = t.high; // publish
+        size--;
+        if (size == 0) {
+            table = new Table(NO_CHUNKS, 0);
+            freeCount = 0;
+        } else if (t.high - size > size && t.high > CHUNK_SIZE) {
+            compact(t);
+        } else {
+            pushFree(slot);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object subscriber) {
+        return positions.containsKey(subscriber);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+        Table t = table;
+        return new Itr(t, t.high);
+    }
+
+    /**
+     * Visits every subscriber with the same guarantees as {@link #iterator()}.
+     * Cheaper than the iterator for large sets; fan-out should prefer it.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super S> action) {
+        Table t = table;
+        int high = t.high;
+        Object[][] chunks = t.chunks;
+        for (int base = 0, c = 0; base < high; base += CHUNK_SIZE, c++) {
+            Object[] chunk = chunks[c];
+            int limit = Math.min(CHUNK_SIZE, high - base);
+            for (int i = 0; i < limit; i++) {
+                Object s = chunk[i];
+                if (s != null) {
+                    action.accept((S) s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of slots allocated, live or not. Exposed for tests.
+     */
+    int capacity() {
+        return table.chunks.length * CHUNK_SIZE;
+    }
+
+    private Table grow(Table t) {
+        Object[][] chunks = Arrays.copyOf(t.chunks, t.chunks.length + 1);
+        chunks[t.chunks.length] = new Object[CHUNK_SIZE];
+        // shares the existing chunks, so readers of the old table still see
+        // every write to them
+        Table grown = new Table(chunks, t.high);
+        table = grown;
+        return grown;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compact(Table t) {
+        int chunkCount = (size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT;
+        Object[][] chunks = new Object[chunkCount][CHUNK_SIZE];
+        int next = 0;
+        int high = t.high;
+        for (int i = 0; i < high; i++) {
+            Object s = t.chunks[i >>> CHUNK_SHIFT][i & CHUNK_MASK];
+            if (s != null) {
+                chunks[next >>> CHUNK_SHIFT][next & CHUNK_MASK] = s;
+                positions.put((S) s, next);
+                next++;
+            }
+        }
+        freeCount = 0;
+        // old iterators keep the old chunks, which are no longer written
+        table = new Table(chunks, next);
+    }
+
+    private void pushFree(int slot) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = slot;
+    }
+
+    private final class Itr implements Iterator<S> {
+        private final Object[][] chunks;
+        private final int high;
+        private Object[] chunk;
+        private int chunkIndex = -1;
+        private int slot; // next slot to read in chunk
+        private int limit; // slots to read in chunk
+        private Object next;
+
+        Itr(Table t, int high) {
+            this.chunks = t.chunks;
+            this.high = high;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public S next() {
+            Object current = next;
+            if (current == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return (S) current;
+        }
+
+        private void advance() {
+            while (true) {
+                while (slot < limit) {
+                    Object s = chunk[slot++];
+                    if (s != null) {
+                        next = s;
+                        return;
+                    }
+                }
+                int base = ++chunkIndex << CHUNK_SHIFT;
+                if (base >= high) {
+                    next = null;
+                    return;
+                }
+                chunk = chunks[chunkIndex];
+                slot = 0;
+                limit = Math.min(CHUNK_SIZE, high - base);
+            }
+        }
+    }
+}
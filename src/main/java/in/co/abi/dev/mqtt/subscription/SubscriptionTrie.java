@@ -0,0 +1,342 @@
+package in.co.abi.dev.mqtt.subscription;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent trie of topic filters, one level per node. Matching a published
+ * topic walks the exact, {@code +} and {@code #} branches level by level, so
+ * its cost depends on the depth of the topic rather than on how many
+ * subscriptions exist.
+ *
+ * <p>
+ * Reads take no locks: child maps are concurrent and subscribers sit in a
+ * {@link SubscriberSet}, which iterates without locking and adds or removes
+ * without copying. Writers lock one node at a time, except when pruning an
+ * emptied node, which locks it together with its parent. A pruned node is
+ * marked removed, and a writer that finds itself on a removed node starts over
+ * from the root, so a subscribe racing with a prune is never lost.
+ *
+ * @param <S> Subscriber type
+ */
+public final class SubscriptionTrie<S> {
+
+    public static final String SINGLE_LEVEL = "+";
+    public static final String MULTI_LEVEL = "#";
+
+    private final Node<S> root = new Node<>(null, null);
+
+    /**
+     * Adds a subscriber to a filter.
+     *
+     * @param filter     A valid topic filter, see {@link #isValidFilter(String)}
+     * @param subscriber The subscriber
+     * @return true if the subscriber was not already on this filter
+     */
+    public boolean subscribe(String filter, S subscriber) {
+        String[] levels = split(filter);
+        while (true) {
+            Node<S> node = root;
+            for (String level : levels) {
+                node = node.child(level);
+                if (node == null) {
+                    break;
+                }
+            }
+            if (node == null) {
+                continue; // walked onto a pruned branch
+            }
+            synchronized (node) {
+                if (!node.removed) {
+                    return node.subscribers.add(subscriber);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a subscriber from a filter, pruning nodes left empty.
+     *
+     * @param filter     The topic filter
+     * @param subscriber The subscriber
+     * @return true if the subscriber was on this filter
+     */
+    public boolean unsubscribe(String filter, S subscriber) {
+        Node<S> node = root;
+        for (String level : split(filter)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return false;
+            }
+        }
+        boolean removed;
+        synchronized (node) {
+            removed = node.subscribers.remove(subscriber);
+        }
+        if (removed) {
+            prune(node);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a subscriber from every filter by walking the whole trie.
+     *
+     * @param subscriber The subscriber
+     * @return Number of filters it was removed from
+     */
+    public int unsubscribeAll(S subscriber) {
+        return unsubscribeAll(root, subscriber);
+    }
+
+    /**
+     * Finds the subscribers of every filter matching a topic name. A
+     * subscriber matched by several filters is returned once.
+     *
+     * @param topic A topic name, without wildcards
+     * @return The matching subscribers; must not be modified
+     */
+    public Collection<S> match(String topic) {
+        List<SubscriberSet<S>> hits = new ArrayList<>(2);
+        String[] levels = split(topic);
+        // wildcards at the first level never match topics starting with '$'
+        boolean system = topic.startsWith("$");
+        match(root, levels, 0, system, hits);
+
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (hits.size() == 1) {
+            return hits.get(0);
+        }
+        Set<S> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<S> merged = new ArrayList<>();
+        for (SubscriberSet<S> hit : hits) {
+            hit.forEach(s -> {
+                if (seen.add(s)) {
+                    merged.add(s);
+                }
+            });
+        }
+        return merged;
+    }
+
+    /**
+     * Whether the trie holds no subscriptions at all.
+     */
+    public boolean isEmpty() {
+        return root.children.isEmpty() && root.subscribers.isEmpty();
+    }
+
+    /**
+     * Checks a topic filter: {@code +} and {@code #} must occupy a whole level
+     * and {@code #} must be the last level.
+     *
+     * @param filter The filter
+     * @return true if the filter is well formed
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        int start = 0;
+        int length = filter.length();
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            for (int i = start; i < end; i++) {
+                char c = filter.charAt(i);
+                if ((c == '+' || c == '#') && end - start != 1) {
+                    return false;
+                }
+                if (c == '#' && end != length) {
+                    return false;
+                }
+            }
+            if (end == length) {
+                return true;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Checks a topic name used in PUBLISH: it must be non-empty and contain
+     * no wildcards.
+     *
+     * @param topic The topic name
+     * @return true if the name is well formed
+     */
+    public static boolean isValidTopicName(String topic) {
+        return topic != null && !topic.isEmpty() && topic.indexOf('+') < 0 && topic.indexOf('#') < 0;
+    }
+
+    /**
+     * Matches a single filter against a topic name with the same rules as
+     * {@link #match(String)}, without building a trie.
+     *
+     * @param filter A valid topic filter
+     * @param topic  A topic name, without wildcards
+     * @return true if the filter matches the topic
+     */
+    public static boolean matches(String filter, String topic) {
+        if (topic.startsWith("$") && (filter.startsWith(SINGLE_LEVEL) || filter.startsWith(MULTI_LEVEL))) {
+            return false;
+        }
+        int f = 0;
+        int t = 0;
+        while (true) {
+            int fEnd = levelEnd(filter, f);
+            if (fEnd - f == 1 && filter.charAt(f) == '#') {
+                return true;
+            }
+            int tEnd = levelEnd(topic, t);
+            boolean single = fEnd - f == 1 && filter.charAt(f) == '+';
+            if (!single && (fEnd - f != tEnd - t || !filter.regionMatches(f, topic, t, fEnd - f))) {
+                return false;
+            }
+            boolean filterDone = fEnd == filter.length();
+            if (tEnd == topic.length()) {
+                // "a/#" also matches "a" itself
+                return filterDone || filter.length() - fEnd == 2 && filter.charAt(fEnd + 1) == '#';
+            }
+            if (filterDone) {
+                return false;
+            }
+            f = fEnd + 1;
+            t = tEnd + 1;
+        }
+    }
+
+    private static int levelEnd(String s, int from) {
+        int end = s.indexOf('/', from);
+        return end < 0 ? s.length() : end;
+    }
+
+    private void match(Node<S> node, String[] levels, int depth, boolean system, List<SubscriberSet<S>> hits) {
+        boolean wildcards = depth > 0 || !system;
+        if (wildcards) {
+            // "a/#" also matches "a" itself
+            Node<S> multi = node.children.get(MULTI_LEVEL);
+            if (multi != null && !multi.subscribers.isEmpty()) {
+                hits.add(multi.subscribers);
+            }
+        }
+        if (depth == levels.length) {
+            if (!node.subscribers.isEmpty()) {
+                hits.add(node.subscribers);
+            }
+            return;
+        }
+        Node<S> exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            match(exact, levels, depth + 1, system, hits);
+        }
+        if (wildcards) {
+            Node<S> single = node.children.get(SINGLE_LEVEL);
+            if (single != null) {
+                match(single, levels, depth + 1, system, hits);
+            }
+        }
+    }
+
+    private int unsubscribeAll(Node<S> node, S subscriber) {
+        int count = 0;
+        for (Node<S> child : node.children.values()) {
+            count += unsubscribeAll(child, subscriber);
+        }
+        boolean removed;
+        synchronized (node) {
+            removed = node.subscribers.remove(subscriber);
+        }
+        if (removed) {
+            count++;
+            prune(node);
+        }
+        return count;
+    }
+
+    /**
+     * Unlinks a node and then its ancestors for as long as they are empty.
+     */
+    private void prune(Node<S> node) {
+        while (node.parent != null) {
+            Node<S> parent = node.parent;
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || !node.isEmpty()) {
+                        return;
+                    }
+                    node.removed = true;
+                    parent.children.remove(node.level, node);
+                }
+            }
+            node = parent;
+        }
+    }
+
+    /**
+     * Splits a topic or filter into levels. Empty levels are kept, so "a//b"
+     * has three levels and "/a" starts with an empty one.
+     */
+    static String[] split(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int end = topic.indexOf('/', start);
+            levels[i] = topic.substring(start, end);
+            start = end + 1;
+        }
+        levels[count - 1] = topic.substring(start);
+        return levels;
+    }
+
+    private static final class Node<S> {
+        final Node<S> parent;
+        final String level;
+        final Map<String, Node<S>> children = new ConcurrentHashMap<>();
+        final SubscriberSet<S> subscribers = new SubscriberSet<>();
+        // Set under the locks of this node and its parent once unlinked
+        boolean removed;
+
+        Node(Node<S> parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+
+        /**
+         * Returns the child for a level, creating it if needed, or null if
+         * this node has been pruned.
+         */
+        Node<S> child(String level) {
+            Node<S> child = children.get(level);
+            if (child != null) {
+                return child;
+            }
+            synchronized (this) {
+                if (removed) {
+                    return null;
+                }
+                return children.computeIfAbsent(level, l -> new Node<>(this, l));
+            }
+        }
+
+        boolean isEmpty() {
+            return subscribers.isEmpty() && children.isEmpty();
+        }
+    }
+}
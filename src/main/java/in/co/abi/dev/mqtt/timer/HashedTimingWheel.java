@@ -0,0 +1,267 @@
+package in.co.abi.dev.mqtt.timer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Hashed timing wheel: one thread and a ring of buckets serve any number of
+ * timeouts. A timeout lands in the bucket its deadline hashes to, carrying how
+ * many full turns of the wheel remain; each tick only visits one bucket, so
+ * the cost per tick does not grow with the number of timeouts outstanding
+ * elsewhere in the wheel. Deadlines are honoured with tick granularity and
+ * never fire early.
+ *
+ * <p>
+ * Any thread may schedule or cancel. New timeouts are handed to the worker
+ * through a queue; cancelled ones are unlinked when the worker next visits
+ * their bucket. Tasks run on the worker thread and must be short.
+ */
+public final class HashedTimingWheel {
+    private static final Logger logger = LogManager.getLogger(HashedTimingWheel.class);
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * Prevents the task from running.
+         *
+         * @return true if the task had neither run nor been cancelled yet
+         */
+        boolean cancel();
+
+        boolean isCancelled();
+
+        boolean isExpired();
+    }
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final String name;
+    private final boolean manual;
+    private final long tickNanos;
+    private final Entry[] heads;
+    private final int mask;
+    private final LongSupplier clock;
+    private final long startTime;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean running = true;
+    private long tick; // next tick to process, only touched by the worker
+
+    /**
+     * Creates a wheel driven by its own worker thread, started on first use.
+     *
+     * @param name         Worker thread name
+     * @param tickDuration Granularity of the wheel
+     * @param unit         Unit of {@code tickDuration}
+     * @param wheelSize    Number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this(name, tickDuration, unit, wheelSize, System::nanoTime, false);
+    }
+
+    /**
+     * Creates a wheel without a worker thread, reading time from
+     * {@code clock}. Its owner drives it by calling {@link #advance(long)}.
+     *
+     * @param tickDuration Granularity of the wheel
+     * @param unit         Unit of {@code tickDuration}
+     * @param wheelSize    Number of buckets, rounded up to a power of two
+     * @param clock        Nanosecond clock, like {@link System#nanoTime()}
+     */
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize, LongSupplier clock) {
+        this(null, tickDuration, unit, wheelSize, clock, true);
+    }
+
+    private HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, LongSupplier clock,
+            boolean manual) {
+        this.name = name;
+        this.manual = manual;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.heads = new Entry[size];
+        this.mask = size - 1;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+    }
+
+    /**
+     * Schedules a task. Safe to call from any thread, including from a task.
+     *
+     * @param task  The task to run
+     * @param delay How long to wait
+     * @param unit  Unit of {@code delay}
+     * @return A handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!manual) {
+            startIfNeeded();
+        }
+        long deadline = clock.getAsLong() + Math.max(0, unit.toNanos(delay)) - startTime;
+        Entry entry = new Entry(task, deadline);
+        outstanding.incrementAndGet();
+        pending.add(entry);
+        return entry;
+    }
+
+    /**
+     * Stops the worker. Timeouts still outstanding never run.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Number of timeouts scheduled that have neither run nor been unlinked
+     * after cancellation.
+     */
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Processes every tick whose time has come. Called by the worker thread,
+     * or by the owner of a wheel created without one.
+     *
+     * @param now Current clock reading
+     */
+    public void advance(long now) {
+        long elapsed = now - startTime;
+        while ((tick + 1) * tickNanos <= elapsed) {
+            transferPending();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    private void startIfNeeded() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            Thread worker = new Thread(this::run, name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - clock.getAsLong();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            advance(clock.getAsLong());
+        }
+    }
+
+    private void transferPending() {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (entry.state.get() == ST_CANCELLED) {
+                outstanding.decrementAndGet();
+                continue;
+            }
+            long due = entry.deadline / tickNanos;
+            entry.remainingRounds = (due - tick) / heads.length;
+            // already overdue: fire on this tick
+            int index = (int) (Math.max(due, tick) & mask);
+            link(index, entry);
+        }
+    }
+
+    private void expire(long index) {
+        int bucket = (int) index;
+        Entry entry = heads[bucket];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.state.get() == ST_CANCELLED) {
+                unlink(bucket, entry);
+            } else if (entry.remainingRounds <= 0) {
+                unlink(bucket, entry);
+                entry.expire();
+            } else {
+                entry.remainingRounds--;
+            }
+            entry = next;
+        }
+    }
+
+    private void link(int bucket, Entry entry) {
+        Entry head = heads[bucket];
+        entry.next = head;
+        if (head != null) {
+            head.prev = entry;
+        }
+        heads[bucket] = entry;
+    }
+
+    private void unlink(int bucket, Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            heads[bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        outstanding.decrementAndGet();
+    }
+
+    private static final class Entry implements Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+        // Wheel position, only touched by the worker
+        private long remainingRounds;
+        private Entry prev;
+        private Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            return state.compareAndSet(ST_PENDING, ST_CANCELLED);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state.get() == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn("Timer task failed", t);
+            }
+        }
+    }
+}
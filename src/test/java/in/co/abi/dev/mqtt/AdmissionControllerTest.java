@@ -0,0 +1,92 @@
+package in.co.abi.dev.mqtt;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for AdmissionController.
+ */
+public class AdmissionControllerTest {
+
+    /**
+     * Manually advanced clock.
+     */
+    private static class FakeClock {
+        long nanos;
+
+        void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    @Test
+    public void testTryAdmit_EnforcesConnectionLimit() {
+        AdmissionController admission = new AdmissionController(2, 0, 1);
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        assertEquals(2, admission.getActiveConnections());
+        assertEquals(1, admission.getRejectedByLimit());
+    }
+
+    @Test
+    public void testRelease_FreesSlot() {
+        AdmissionController admission = new AdmissionController(1, 0, 1);
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        admission.release();
+        assertTrue(admission.tryAdmit());
+    }
+
+    @Test
+    public void testTryAdmit_NoLimitWhenZero() {
+        AdmissionController admission = new AdmissionController(0, 0, 1);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(admission.tryAdmit());
+        }
+    }
+
+    @Test
+    public void testTryAdmit_BurstThenRate() {
+        FakeClock clock = new FakeClock();
+        AdmissionController admission = new AdmissionController(0, 10, 3, () -> clock.nanos);
+
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        assertEquals(1, admission.getRejectedByRate());
+
+        // 10 per second: one token every 100 ms
+        clock.advanceMillis(50);
+        assertFalse(admission.tryAdmit());
+        clock.advanceMillis(50);
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+    }
+
+    @Test
+    public void testTryAdmit_TokensCappedAtBurst() {
+        FakeClock clock = new FakeClock();
+        AdmissionController admission = new AdmissionController(0, 10, 2, () -> clock.nanos);
+
+        clock.advanceMillis(10_000);
+        assertTrue(admission.tryAdmit());
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+    }
+
+    @Test
+    public void testTryAdmit_RateRejectionDoesNotHoldSlot() {
+        FakeClock clock = new FakeClock();
+        AdmissionController admission = new AdmissionController(5, 1, 1, () -> clock.nanos);
+
+        assertTrue(admission.tryAdmit());
+        assertFalse(admission.tryAdmit());
+        assertEquals(1, admission.getActiveConnections());
+        assertEquals(0, admission.getRejectedByLimit());
+    }
+}
@@ -0,0 +1,212 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for FanOutDispatcher.
+ */
+public class FanOutDispatcherTest {
+
+    private static final FanOutDispatcher.Delivery SEND = (session, topic, payload, qos) -> session
+            .send(OutboundFrame.publish(topic, payload));
+
+    /**
+     * Session that records the topic of every frame it is sent.
+     */
+    private static class RecordingSession extends ClientSession {
+        final List<String> topics = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingSession(String clientId) throws IOException {
+            super(SocketChannel.open(), clientId, task -> {
+            });
+        }
+
+        @Override
+        public void send(OutboundFrame frame) {
+            topics.add(frame.topic());
+            frame.release();
+        }
+    }
+
+    private static List<ClientSession> sessions(int count) throws IOException {
+        List<ClientSession> sessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            sessions.add(new RecordingSession("c" + i));
+        }
+        return sessions;
+    }
+
+    private static SharedPayload payload(String topic) {
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(2 + name.length + 1);
+        encoded.putShort((short) name.length).put(name).put((byte) 1).flip();
+        return SharedPayload.wrap(encoded);
+    }
+
+    private static void dispatch(FanOutDispatcher dispatcher, String topic, List<ClientSession> subscribers) {
+        SharedPayload shared = payload(topic);
+        try {
+            dispatcher.dispatch(topic, subscribers, shared, 0);
+        } finally {
+            shared.release();
+        }
+    }
+
+    private static void runAll(Queue<Runnable> tasks) {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static List<String> received(ClientSession session) {
+        return ((RecordingSession) session).topics;
+    }
+
+    @Test
+    public void testDispatch_SmallFanOutRunsInline() throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        FanOutDispatcher dispatcher = new FanOutDispatcher(10, 4, tasks::add, SEND);
+        List<ClientSession> subs = sessions(3);
+
+        dispatch(dispatcher, "a", subs);
+
+        assertTrue(tasks.isEmpty());
+        for (ClientSession s : subs) {
+            assertEquals(Collections.singletonList("a"), received(s));
+        }
+    }
+
+    @Test
+    public void testDispatch_LargeFanOutIsPartitioned() throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        FanOutDispatcher dispatcher = new FanOutDispatcher(5, 4, tasks::add, SEND);
+        List<ClientSession> subs = sessions(50);
+        SharedPayload shared = payload("big");
+
+        dispatcher.dispatch("big", subs, shared, 0);
+        assertEquals(4, tasks.size());
+        assertEquals(5, shared.refCount());
+        assertTrue(received(subs.get(0)).isEmpty());
+
+        runAll(tasks);
+        for (ClientSession s : subs) {
+            assertEquals(Collections.singletonList("big"), received(s));
+        }
+        assertEquals(1, shared.refCount());
+        shared.release();
+    }
+
+    @Test
+    public void testDispatch_PartitionsSnapshotOfSubscribers() throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        FanOutDispatcher dispatcher = new FanOutDispatcher(5, 4, tasks::add, SEND);
+        List<ClientSession> subs = sessions(50);
+        List<ClientSession> live = new ArrayList<>(subs);
+
+        dispatch(dispatcher, "big", live);
+        live.clear(); // everyone unsubscribes before the lanes run
+        runAll(tasks);
+
+        for (ClientSession s : subs) {
+            assertEquals(Collections.singletonList("big"), received(s));
+        }
+    }
+
+    @Test
+    public void testDispatch_SmallFanOutQueuesBehindPendingPartitions() throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        FanOutDispatcher dispatcher = new FanOutDispatcher(5, 4, tasks::add, SEND);
+        List<ClientSession> subs = sessions(20);
+
+        dispatch(dispatcher, "big", subs);
+        dispatch(dispatcher, "small", subs.subList(0, 2));
+        assertTrue(received(subs.get(0)).isEmpty());
+
+        runAll(tasks);
+        assertEquals(Arrays.asList("big", "small"), received(subs.get(0)));
+        assertEquals(Arrays.asList("big", "small"), received(subs.get(1)));
+
+        // partitions done: small fan-outs are inline again
+        dispatch(dispatcher, "after", subs.subList(0, 1));
+        assertTrue(tasks.isEmpty());
+        assertEquals("after", received(subs.get(0)).get(2));
+    }
+
+    @Test
+    public void testDispatch_LaneSurvivesFailingTask() throws IOException {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        List<ClientSession> subs = sessions(50); // both lanes get subscribers
+        FanOutDispatcher dispatcher = new FanOutDispatcher(1, 2, tasks::add, (session, topic, payload, qos) -> {
+            if (session == subs.get(0) && topic.equals("boom")) {
+                throw new IllegalStateException("boom");
+            }
+            if (topic.equals("fatal")) {
+                throw new AssertionError("fatal");
+            }
+            SEND.deliver(session, topic, payload, qos);
+        });
+
+        dispatch(dispatcher, "boom", subs);
+        runAll(tasks);
+        assertTrue(received(subs.get(0)).isEmpty());
+        assertEquals(Collections.singletonList("boom"), received(subs.get(1)));
+
+        dispatch(dispatcher, "fatal", subs);
+        int errors = 0;
+        while (!tasks.isEmpty()) {
+            try {
+                tasks.poll().run();
+            } catch (AssertionError expected) {
+                errors++; // escapes its lane, which must still run again
+            }
+        }
+        assertEquals(2, errors);
+
+        dispatch(dispatcher, "after", subs);
+        runAll(tasks);
+        for (ClientSession s : subs) {
+            assertEquals("after", received(s).get(received(s).size() - 1));
+        }
+    }
+
+    @Test
+    public void testDispatch_KeepsPerSubscriberOrderOnPool() throws IOException {
+        ForkJoinPool pool = FanOutDispatcher.newPool(4);
+        try {
+            FanOutDispatcher dispatcher = new FanOutDispatcher(50, 4, pool, SEND);
+            List<ClientSession> subs = sessions(200);
+            for (int i = 0; i < 200; i++) {
+                // alternate large and small fan-outs over the same subscribers
+                dispatch(dispatcher, Integer.toString(i), i % 2 == 0 ? subs : subs.subList(0, 10));
+            }
+            assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < subs.size(); i++) {
+                List<String> topics = received(subs.get(i));
+                assertEquals(i < 10 ? 200 : 100, topics.size());
+                for (int j = 1; j < topics.size(); j++) {
+                    assertTrue(Integer.parseInt(topics.get(j - 1)) < Integer.parseInt(topics.get(j)));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
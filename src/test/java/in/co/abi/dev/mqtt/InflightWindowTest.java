@@ -0,0 +1,229 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for InflightWindow.
+ */
+public class InflightWindowTest {
+
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final AtomicLong now = new AtomicLong();
+    private final HashedTimingWheel wheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 64, now::get);
+    private final RecordingSession session = new RecordingSession();
+    private final SharedPayload payload = payload();
+
+    /**
+     * Session that keeps the first byte and packet id of every frame sent.
+     */
+    private static class RecordingSession extends ClientSession {
+        final List<int[]> sent = new ArrayList<>();
+
+        RecordingSession() {
+            super(null, "client", Runnable::run);
+        }
+
+        @Override
+        public void send(OutboundFrame frame) {
+            ByteBuffer[] parts = frame.parts();
+            // PUBLISH: header, topic, packet id, payload; acks: one buffer
+            int packetId = parts.length == 1 ? parts[0].getShort(2) : parts[2].getShort(0);
+            sent.add(new int[] { parts[0].get(0) & 0xFF, packetId & 0xFFFF });
+            frame.release();
+        }
+    }
+
+    private static SharedPayload payload() {
+        ByteBuffer encoded = ByteBuffer.allocate(4);
+        encoded.putShort((short) 1).put((byte) 't').put((byte) 1).flip();
+        return SharedPayload.wrap(encoded);
+    }
+
+    private InflightWindow window(int capacity, int maxQueued) {
+        return new InflightWindow(session, capacity, maxQueued, wheel, RETRY_NANOS, now::get);
+    }
+
+    private void advanceMillis(long millis) {
+        long step = TimeUnit.MILLISECONDS.toNanos(100);
+        for (long end = now.get() + TimeUnit.MILLISECONDS.toNanos(millis); now.get() < end;) {
+            now.addAndGet(step);
+            wheel.advance(now.get());
+        }
+    }
+
+    @Test
+    public void testPublish_AllocatesDistinctPacketIds() throws IOException {
+        InflightWindow window = window(4, 10);
+        window.publish("t", payload, 1);
+        window.publish("t", payload, 1);
+
+        assertEquals(2, session.sent.size());
+        assertEquals(0x32, session.sent.get(0)[0]);
+        assertNotEquals(session.sent.get(0)[1], session.sent.get(1)[1]);
+        assertEquals(2, window.inFlight());
+        assertEquals(3, payload.refCount());
+    }
+
+    @Test
+    public void testAcknowledge_SendsQueuedMessage() throws IOException {
+        InflightWindow window = window(2, 10);
+        for (int i = 0; i < 3; i++) {
+            window.publish("t", payload, 1);
+        }
+        assertEquals(2, session.sent.size());
+        assertEquals(1, window.queued());
+
+        assertTrue(window.acknowledge(session.sent.get(0)[1]));
+        assertEquals(3, session.sent.size());
+        assertEquals(2, window.inFlight());
+        assertEquals(0, window.queued());
+        assertFalse(window.acknowledge(session.sent.get(0)[1]));
+    }
+
+    @Test
+    public void testPublish_DropsBeyondQueueLimit() throws IOException {
+        InflightWindow window = window(1, 1);
+        for (int i = 0; i < 3; i++) {
+            window.publish("t", payload, 1);
+        }
+        assertEquals(1, window.queued());
+        assertEquals(1, window.getDropped());
+        assertEquals(3, payload.refCount());
+    }
+
+    @Test
+    public void testRedeliversWithDupUntilAcknowledged() throws IOException {
+        InflightWindow window = window(4, 10);
+        window.publish("t", payload, 1);
+        int packetId = session.sent.get(0)[1];
+
+        advanceMillis(4_800);
+        assertEquals(1, session.sent.size());
+        advanceMillis(400);
+        assertEquals(2, session.sent.size());
+        assertEquals(0x3A, session.sent.get(1)[0]);
+        assertEquals(packetId, session.sent.get(1)[1]);
+
+        window.acknowledge(packetId);
+        advanceMillis(10_000);
+        assertEquals(2, session.sent.size());
+        assertEquals(0, wheel.outstanding());
+    }
+
+    @Test
+    public void testClear_ReleasesEverything() throws IOException {
+        InflightWindow window = window(1, 10);
+        window.publish("t", payload, 1);
+        window.publish("t", payload, 1);
+        window.clear();
+
+        assertEquals(1, payload.refCount());
+        assertEquals(0, window.inFlight());
+        window.publish("t", payload, 1);
+        assertEquals(1, session.sent.size());
+    }
+
+    @Test
+    public void testQos2_ReleasedOnPubRecCompletedOnPubComp() throws IOException {
+        InflightWindow window = window(4, 10);
+        window.publish("t", payload, 2);
+        int packetId = session.sent.get(0)[1];
+        assertEquals(0x34, session.sent.get(0)[0]);
+        assertFalse(window.acknowledge(packetId));
+
+        assertTrue(window.received(packetId));
+        assertEquals(0x62, session.sent.get(1)[0]);
+        assertEquals(packetId, session.sent.get(1)[1]);
+        assertEquals(1, payload.refCount());
+        assertEquals(1, window.inFlight());
+
+        assertTrue(window.completed(packetId));
+        assertEquals(0, window.inFlight());
+        assertFalse(window.completed(packetId));
+    }
+
+    @Test
+    public void testQos2_ResendsPubRelUntilCompleted() throws IOException {
+        InflightWindow window = window(4, 10);
+        window.publish("t", payload, 2);
+        int packetId = session.sent.get(0)[1];
+        window.received(packetId);
+
+        advanceMillis(5_200);
+        assertEquals(3, session.sent.size());
+        assertEquals(0x62, session.sent.get(2)[0]);
+
+        window.completed(packetId);
+        advanceMillis(10_000);
+        assertEquals(3, session.sent.size());
+    }
+
+    @Test
+    public void testResume_ResendsUnderOriginalIds() throws IOException {
+        InflightWindow first = window(4, 10);
+        first.publish("t", payload, 1);
+        first.publish("t", payload, 2);
+        first.publish("t", payload, 2);
+        first.received(session.sent.get(2)[1]); // only PUBREL outstanding
+        first.publish("t", payload, 1);
+        first.publish("t", payload, 1); // queued, never sent
+        List<int[]> unfinished = new ArrayList<>();
+        first.clear((packetId, topic, p, qos) -> unfinished.add(new int[] { packetId, p == null ? 0 : qos }));
+        assertEquals(5, unfinished.size());
+        assertEquals(0, unfinished.get(4)[0]);
+        assertEquals(0, unfinished.get(2)[1]);
+        assertEquals(1, payload.refCount());
+
+        session.sent.clear();
+        InflightWindow second = window(4, 10);
+        second.resume(unfinished.get(0)[0], "t", payload, 1);
+        second.resume(unfinished.get(1)[0], "t", payload, 2);
+        second.resumeRelease(unfinished.get(2)[0]);
+        assertEquals(0x3A, session.sent.get(0)[0]); // DUP, QoS 1
+        assertEquals(0x3C, session.sent.get(1)[0]); // DUP, QoS 2
+        assertEquals(0x62, session.sent.get(2)[0]);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(unfinished.get(i)[0], session.sent.get(i)[1]);
+        }
+
+        // new messages do not reuse the resumed ids
+        second.publish("t", payload, 1);
+        int fresh = session.sent.get(3)[1];
+        for (int i = 0; i < 3; i++) {
+            assertNotEquals(unfinished.get(i)[0], fresh);
+        }
+        assertTrue(second.acknowledge(unfinished.get(0)[0]));
+        assertTrue(second.received(unfinished.get(1)[0]));
+        assertTrue(second.completed(unfinished.get(2)[0]));
+        assertEquals(2, second.inFlight());
+    }
+
+    @Test
+    public void testHundredsInFlight_CompletedOutOfOrder() throws IOException {
+        InflightWindow window = window(500, 0);
+        for (int i = 0; i < 500; i++) {
+            window.publish("t", payload, 2);
+        }
+        assertEquals(500, window.inFlight());
+        for (int i = 499; i >= 0; i -= 2) {
+            assertTrue(window.received(session.sent.get(i)[1]));
+            assertTrue(window.completed(session.sent.get(i)[1]));
+        }
+        assertEquals(250, window.inFlight());
+        // freed slots are reused with ids not in flight
+        window.publish("t", payload, 2);
+        assertEquals(251, window.inFlight());
+    }
+}
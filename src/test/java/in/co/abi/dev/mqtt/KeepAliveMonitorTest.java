@@ -0,0 +1,84 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.timer.HashedTimingWheel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for KeepAliveMonitor.
+ */
+public class KeepAliveMonitorTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<ClientSession> evicted = new ArrayList<>();
+    private final HashedTimingWheel wheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 64,
+            now::get);
+    private final KeepAliveMonitor monitor = new KeepAliveMonitor(wheel, evicted::add, now::get);
+
+    private void advanceMillis(long millis) {
+        long step = TimeUnit.MILLISECONDS.toNanos(100);
+        for (long end = now.get() + TimeUnit.MILLISECONDS.toNanos(millis); now.get() < end;) {
+            now.addAndGet(step);
+            wheel.advance(now.get());
+        }
+    }
+
+    private static ClientSession session(String clientId) {
+        return new ClientSession(null, clientId, Runnable::run);
+    }
+
+    @Test
+    public void testIdleSessionEvictedAtOneAndAHalfKeepAlive() {
+        ClientSession session = session("idle");
+        monitor.watch(session, 10);
+
+        advanceMillis(14_800);
+        assertTrue(evicted.isEmpty());
+        advanceMillis(400);
+        assertEquals(1, evicted.size());
+        assertSame(session, evicted.get(0));
+        assertEquals(1, monitor.getEvictions());
+    }
+
+    @Test
+    public void testActivityPostponesEviction() {
+        ClientSession session = session("active");
+        monitor.watch(session, 10);
+
+        for (int i = 0; i < 5; i++) {
+            advanceMillis(10_000);
+            session.touch(now.get());
+        }
+        assertTrue(evicted.isEmpty());
+
+        advanceMillis(15_200);
+        assertEquals(1, evicted.size());
+    }
+
+    @Test
+    public void testZeroKeepAliveIsNotWatched() {
+        ClientSession session = session("forever");
+        monitor.watch(session, 0);
+
+        advanceMillis(100_000);
+        assertTrue(evicted.isEmpty());
+        assertNull(session.getKeepAliveTimeout());
+    }
+
+    @Test
+    public void testUnwatchCancels() {
+        ClientSession session = session("gone");
+        monitor.watch(session, 1);
+        monitor.unwatch(session);
+
+        advanceMillis(5_000);
+        assertTrue(evicted.isEmpty());
+        assertEquals(0, wheel.outstanding());
+    }
+}
@@ -110,6 +110,10 @@ public class MqttBrokerTest {
     }
 
     private static byte[] buildConnectFrame(String clientId) throws IOException {
+        return buildConnectFrame(clientId, 60);
+    }
+
+    private static byte[] buildConnectFrame(String clientId, int keepAlive) throws IOException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         ByteArrayOutputStream variable = new ByteArrayOutputStream();
 
@@ -121,9 +125,9 @@ public class MqttBrokerTest {
         variable.write(0x04);
         // Connect Flags: Clean Session
         variable.write(0x02);
-        // Keep Alive 60
-        variable.write(0x00);
-        variable.write(0x3C);
+        // Keep Alive
+        variable.write((keepAlive >> 8) & 0xFF);
+        variable.write(keepAlive & 0xFF);
 
         // Payload: ClientId
         byte[] cid = clientId.getBytes("UTF-8");
@@ -432,6 +436,108 @@ public class MqttBrokerTest {
         anonSock.close();
     }
 
+    @Test
+    public void testPublishSubscribe_NioTransport() throws Exception {
+        // Same flow as testPublishSubscribe but over the selector event loops,
+        // with the PUBLISH split across two writes to exercise partial reads
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+
+        Thread brokerThread = new Thread(() -> {
+            try {
+                new MqttBroker(port, TransportMode.NIO).start();
+            } catch (IOException e) {
+            }
+        });
+        brokerThread.setDaemon(true);
+        brokerThread.start();
+        waitForBroker(port, 2000);
+
+        final String topic = "test/nio";
+        final String payload = "hello-nio";
+
+        // subscriber
+        Socket subSock = new Socket("127.0.0.1", port);
+        subSock.setSoTimeout(3000);
+        DataOutputStream subOut = new DataOutputStream(subSock.getOutputStream());
+        DataInputStream subIn = new DataInputStream(subSock.getInputStream());
+        subOut.write(buildConnectFrame("nio-sub"));
+        subOut.flush();
+        readAndAssertConnack(subIn);
+        subOut.write(buildSubscribeFrame(1, topic));
+        subOut.flush();
+        readAndAssertSuback(subIn, 1);
+
+        // publisher
+        Socket pubSock = new Socket("127.0.0.1", port);
+        pubSock.setSoTimeout(3000);
+        DataOutputStream pubOut = new DataOutputStream(pubSock.getOutputStream());
+        DataInputStream pubIn = new DataInputStream(pubSock.getInputStream());
+        pubOut.write(buildConnectFrame("nio-pub"));
+        pubOut.flush();
+        readAndAssertConnack(pubIn);
+
+        byte[] frame = buildPublishFrame(topic, payload.getBytes("UTF-8"));
+        pubOut.write(frame, 0, 3);
+        pubOut.flush();
+        Thread.sleep(100);
+        pubOut.write(frame, 3, frame.length - 3);
+        pubOut.flush();
+
+        // verify subscriber receives the forwarded PUBLISH
+        int first = subIn.readUnsignedByte();
+        Assert.assertEquals(3, (first >> 4) & 0x0F);
+        int remaining = readRemainingLength(subIn);
+        byte[] buf = new byte[remaining];
+        subIn.readFully(buf);
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(buf));
+        int tlen = din.readUnsignedShort();
+        byte[] tbytes = new byte[tlen];
+        din.readFully(tbytes);
+        Assert.assertEquals(topic, new String(tbytes, "UTF-8"));
+        byte[] pay = new byte[din.available()];
+        din.readFully(pay);
+        Assert.assertEquals(payload, new String(pay, "UTF-8"));
+
+        subSock.close();
+        pubSock.close();
+    }
+
+    @Test
+    public void testKeepAliveEvictsSilentClient() throws Exception {
+        int port;
+        try (ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+
+        Thread brokerThread = new Thread(() -> {
+            try {
+                new MqttBroker(port).start();
+            } catch (IOException e) {
+            }
+        });
+        brokerThread.setDaemon(true);
+        brokerThread.start();
+        waitForBroker(port, 2000);
+
+        // keep-alive 1s: the broker must drop the connection after 1.5s of silence
+        try (Socket sock = new Socket("127.0.0.1", port)) {
+            sock.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            out.write(buildConnectFrame("idle-client", 1));
+            out.flush();
+            readAndAssertConnack(in);
+
+            long start = System.nanoTime();
+            Assert.assertEquals("Expected connection closed by broker", -1, in.read());
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertTrue("Evicted too early: " + elapsedMs + " ms", elapsedMs >= 1400);
+        }
+    }
+
     // Helper to build CONNECT frame with authentication
     private static byte[] buildConnectFrameWithAuth(String clientId, String username, String password)
             throws IOException {
@@ -0,0 +1,372 @@
+package in.co.abi.dev.mqtt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for OutboundQueue.
+ */
+public class OutboundQueueTest {
+
+    /**
+     * Channel that records each gathered write and accepts at most
+     * {@code budget} bytes per call.
+     */
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writes;
+        int budget = Integer.MAX_VALUE;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length && total < budget; i++) {
+                while (srcs[i].hasRemaining() && total < budget) {
+                    written.write(srcs[i].get());
+                    total++;
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static OutboundFrame frame(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return OutboundFrame.of(ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void testOffer_FirstOfferClaimsDrain() throws IOException {
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+    }
+
+    @Test
+    public void testDrain_CoalescesFramesIntoOneWrite() throws IOException {
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i));
+        }
+        RecordingChannel channel = new RecordingChannel();
+
+        assertTrue(queue.drainTo(channel));
+        assertEquals(1, channel.writes);
+        assertArrayEquals(new byte[] { 0, 1, 2, 3, 4 }, channel.written.toByteArray());
+        assertFalse(queue.finishDrain());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testDrain_RespectsFrameLimit() throws IOException {
+        OutboundQueue queue = new OutboundQueue(2, 1024);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame(i));
+        }
+        RecordingChannel channel = new RecordingChannel();
+
+        assertTrue(queue.drainTo(channel));
+        assertEquals(3, channel.writes);
+        assertEquals(5, channel.written.size());
+    }
+
+    @Test
+    public void testDrain_PartialWriteResumes() throws IOException {
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        queue.offer(frame(1, 2, 3));
+        queue.offer(frame(4, 5));
+        RecordingChannel channel = new RecordingChannel();
+        channel.budget = 2;
+
+        assertFalse(queue.drainTo(channel));
+        assertFalse(queue.isEmpty());
+        channel.budget = Integer.MAX_VALUE;
+        assertTrue(queue.drainTo(channel));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, channel.written.toByteArray());
+    }
+
+    @Test
+    public void testFinishDrain_ReclaimsWhenFramesArrived() throws IOException {
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        queue.offer(frame(1));
+        assertTrue(queue.drainTo(new RecordingChannel()));
+
+        // a frame queued while the drainer still owns the queue does not reschedule
+        assertFalse(queue.offer(frame(2)));
+        assertTrue(queue.finishDrain());
+    }
+
+    @Test
+    public void testDrain_PublishSharesPayloadAndReleasesIt() throws IOException {
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 't', 42 }));
+        OutboundQueue first = new OutboundQueue(8, 1024);
+        OutboundQueue second = new OutboundQueue(8, 1024);
+        first.offer(OutboundFrame.publish("t", shared));
+        second.offer(OutboundFrame.publish("t", shared));
+        shared.release();
+        assertEquals(2, shared.refCount());
+
+        RecordingChannel a = new RecordingChannel();
+        RecordingChannel b = new RecordingChannel();
+        first.drainTo(a);
+        assertEquals(1, shared.refCount());
+        second.drainTo(b);
+        assertEquals(0, shared.refCount());
+
+        byte[] expected = { 0x30, 4, 0, 1, 't', 42 };
+        assertArrayEquals(expected, a.written.toByteArray());
+        assertArrayEquals(expected, b.written.toByteArray());
+    }
+
+    @Test
+    public void testClear_ReleasesQueuedFrames() throws IOException {
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 't', 42 }));
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        queue.offer(OutboundFrame.publish("t", shared));
+        queue.clear();
+        assertEquals(1, shared.refCount());
+    }
+
+    @Test
+    public void testClear_OwnerReleasesPartiallyWrittenBatch() throws IOException {
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 't', 42 }));
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        assertTrue(queue.offer(OutboundFrame.publish("t", shared)));
+        RecordingChannel channel = new RecordingChannel();
+        channel.budget = 2;
+        assertFalse(queue.drainTo(channel)); // slow consumer: the frame sits in the batch
+
+        queue.clear(); // the drain is owned, so the batch is left to its owner
+        assertEquals(2, shared.refCount());
+        assertTrue(queue.drainTo(channel));
+        assertEquals(1, shared.refCount());
+        assertFalse(queue.finishDrain());
+    }
+
+    @Test
+    public void testAbandonDrain_ReleasesBatchAfterFailedWrite() throws IOException {
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 't', 42 }));
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        queue.offer(OutboundFrame.publish("t", shared));
+        queue.offer(OutboundFrame.publish("t", shared));
+        RecordingChannel channel = new RecordingChannel();
+        channel.budget = 2;
+        queue.drainTo(channel);
+
+        queue.clear();
+        queue.abandonDrain();
+        assertEquals(1, shared.refCount());
+    }
+
+    @Test
+    public void testClear_ReleasesLaterOffers() throws IOException {
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 't', 42 }));
+        OutboundQueue queue = new OutboundQueue(8, 1024);
+        queue.clear();
+
+        assertFalse(queue.offer(OutboundFrame.publish("t", shared)));
+        assertEquals(1, shared.refCount());
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.schedule()); // the drain stays claimed
+    }
+
+    private static OutboundFrame publish(String topic, int value) {
+        ByteBuffer body = ByteBuffer.allocate(2 + topic.length() + 1);
+        body.putShort((short) topic.length()).put(topic.getBytes()).put((byte) value).flip();
+        SharedPayload shared = SharedPayload.wrap(body);
+        OutboundFrame frame = OutboundFrame.publish(topic, shared);
+        shared.release();
+        return frame;
+    }
+
+    private static OutboundQueue bounded(int maxFrames, OverflowPolicy policy, OverflowCounters counters) {
+        return new OutboundQueue(8, 1024, maxFrames, Long.MAX_VALUE, policy, counters);
+    }
+
+    /**
+     * Last payload byte of each PUBLISH written, in order.
+     */
+    private static byte[] drainValues(OutboundQueue queue) throws IOException {
+        RecordingChannel channel = new RecordingChannel();
+        queue.drainTo(channel);
+        byte[] raw = channel.written.toByteArray();
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < raw.length) {
+            int end = i + 2 + raw[i + 1];
+            values.write(raw[end - 1]);
+            i = end;
+        }
+        return values.toByteArray();
+    }
+
+    @Test
+    public void testOverflow_DropOldest() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(2, OverflowPolicy.DROP_OLDEST, counters);
+        queue.offer(publish("a", 1));
+        queue.offer(publish("a", 2));
+        queue.offer(publish("a", 3));
+
+        assertEquals(2, queue.queuedFrames());
+        assertEquals(1, counters.getDroppedOldest());
+        assertArrayEquals(new byte[] { 2, 3 }, drainValues(queue));
+        assertEquals(0, queue.queuedFrames());
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    public void testOverflow_DropNewest() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(2, OverflowPolicy.DROP_NEWEST, counters);
+        queue.offer(publish("a", 1));
+        queue.offer(publish("a", 2));
+        assertFalse(queue.offer(publish("a", 3)));
+
+        assertEquals(1, counters.getDroppedNewest());
+        assertArrayEquals(new byte[] { 1, 2 }, drainValues(queue));
+    }
+
+    @Test(expected = OutboundOverflowException.class)
+    public void testOverflow_Disconnect() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(1, OverflowPolicy.DISCONNECT, counters);
+        queue.offer(publish("a", 1));
+        try {
+            queue.offer(publish("a", 2));
+        } finally {
+            assertEquals(1, counters.getDisconnects());
+            assertEquals(1, queue.queuedFrames());
+        }
+    }
+
+    @Test
+    public void testOverflow_ConflateKeepsLatestPerTopic() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(3, OverflowPolicy.CONFLATE, counters);
+        queue.offer(publish("a", 1));
+        queue.offer(publish("b", 2));
+        queue.offer(publish("a", 3));
+        queue.offer(publish("b", 4));
+
+        assertEquals(2, counters.getConflated());
+        assertEquals(0, counters.getDroppedOldest());
+        assertArrayEquals(new byte[] { 3, 4 }, drainValues(queue));
+    }
+
+    @Test
+    public void testOverflow_ConflateSkipsFramesAlreadyDrained() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(3, OverflowPolicy.CONFLATE, counters);
+        queue.offer(publish("a", 1));
+        queue.offer(publish("a", 2)); // replaces 1, under the limit: nothing dropped yet
+        assertArrayEquals(new byte[] { 1, 2 }, drainValues(queue));
+
+        queue.offer(publish("a", 3));
+        queue.offer(publish("b", 4));
+        queue.offer(publish("a", 5));
+        queue.offer(publish("b", 6));
+
+        assertEquals(2, counters.getConflated());
+        assertEquals(2, queue.queuedFrames());
+        assertArrayEquals(new byte[] { 5, 6 }, drainValues(queue));
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    public void testOverflow_DiscardedFramesAreSkippedAndReleased() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(2, OverflowPolicy.CONFLATE, counters);
+        SharedPayload shared = SharedPayload.wrap(ByteBuffer.wrap(new byte[] { 0, 1, 'a', 42 }));
+        for (int i = 0; i < 10; i++) {
+            queue.offer(OutboundFrame.publish("a", shared));
+        }
+
+        // conflation only runs once the limit is exceeded, leaving the last two
+        assertEquals(8, counters.getConflated());
+        assertEquals(3, shared.refCount()); // the creator's and the two queued frames
+        RecordingChannel channel = new RecordingChannel();
+        assertTrue(queue.drainTo(channel));
+        assertEquals(2 * 6, channel.written.size());
+        assertEquals(1, shared.refCount());
+    }
+
+    @Test
+    public void testOverflow_ConflateFallsBackToDropOldest() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(2, OverflowPolicy.CONFLATE, counters);
+        queue.offer(publish("a", 1));
+        queue.offer(publish("b", 2));
+        queue.offer(publish("c", 3));
+
+        assertEquals(0, counters.getConflated());
+        assertEquals(1, counters.getDroppedOldest());
+        assertArrayEquals(new byte[] { 2, 3 }, drainValues(queue));
+    }
+
+    @Test
+    public void testOverflow_ControlFramesAreNeverDropped() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundQueue queue = bounded(1, OverflowPolicy.DROP_OLDEST, counters);
+        queue.offer(frame(0x20, 2, 0, 0)); // CONNACK
+        queue.offer(publish("a", 1));
+
+        assertEquals(1, counters.getDroppedOldest());
+        RecordingChannel channel = new RecordingChannel();
+        queue.drainTo(channel);
+        assertArrayEquals(new byte[] { 0x20, 2, 0, 0 }, channel.written.toByteArray());
+    }
+
+    @Test
+    public void testOverflow_ByteLimit() throws IOException {
+        OverflowCounters counters = new OverflowCounters();
+        OutboundFrame first = publish("a", 1);
+        OutboundQueue queue = new OutboundQueue(8, 1024, Integer.MAX_VALUE, first.size() * 2L,
+                OverflowPolicy.DROP_OLDEST, counters);
+        queue.offer(first);
+        queue.offer(publish("a", 2));
+        queue.offer(publish("a", 3));
+
+        assertEquals(first.size() * 2L, queue.queuedBytes());
+        assertArrayEquals(new byte[] { 2, 3 }, drainValues(queue));
+    }
+
+    @Test
+    public void testOverflowPolicy_FromProperty() {
+        assertEquals(OverflowPolicy.CONFLATE, OverflowPolicy.fromProperty("conflate"));
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.fromProperty("drop-newest"));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromProperty(null));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.fromProperty("bogus"));
+    }
+}
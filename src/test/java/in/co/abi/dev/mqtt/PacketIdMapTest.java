@@ -0,0 +1,91 @@
+package in.co.abi.dev.mqtt;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PacketIdMap.
+ */
+public class PacketIdMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        PacketIdMap map = new PacketIdMap();
+        assertEquals(-1, map.put(1, 10));
+        assertEquals(-1, map.put(65535, 0));
+        assertEquals(10, map.put(1, 11));
+
+        assertEquals(11, map.get(1));
+        assertEquals(0, map.get(65535));
+        assertEquals(-1, map.get(2));
+        assertEquals(2, map.size());
+
+        assertEquals(11, map.remove(1));
+        assertEquals(-1, map.remove(1));
+        assertFalse(map.containsKey(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPut_RejectsZeroId() {
+        new PacketIdMap().put(0, 1);
+    }
+
+    @Test
+    public void testRemove_KeepsCollidingEntriesReachable() {
+        PacketIdMap map = new PacketIdMap(4); // 8 slots
+        // 1, 9 and 17 share a home slot; 2 lands behind them
+        map.put(1, 1);
+        map.put(9, 9);
+        map.put(2, 2);
+        map.put(17, 17);
+        map.remove(1);
+        assertEquals(9, map.get(9));
+        assertEquals(17, map.get(17));
+        assertEquals(2, map.get(2));
+        map.remove(9);
+        assertEquals(17, map.get(17));
+        assertEquals(2, map.get(2));
+    }
+
+    @Test
+    public void testGrowsAndStaysCompact() {
+        PacketIdMap map = new PacketIdMap(500);
+        for (int id = 1; id <= 500; id++) {
+            map.put(id, id);
+        }
+        assertEquals(500, map.size());
+        // four bytes per slot: a few KB for hundreds of ids
+        assertTrue(map.capacity() * 4 <= 4096);
+        for (int id = 1; id <= 500; id++) {
+            assertEquals(id, map.get(id));
+        }
+    }
+
+    @Test
+    public void testRandomOperationsMatchHashMap() {
+        Random random = new Random(42);
+        PacketIdMap map = new PacketIdMap();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            int id = 1 + random.nextInt(300);
+            if (random.nextBoolean()) {
+                int value = random.nextInt(0x10000);
+                Integer previous = expected.put(id, value);
+                assertEquals(previous == null ? -1 : previous, map.put(id, value));
+            } else {
+                Integer previous = expected.remove(id);
+                assertEquals(previous == null ? -1 : previous, map.remove(id));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int id = 1; id <= 300; id++) {
+            assertEquals(expected.containsKey(id) ? expected.get(id) : -1, map.get(id));
+        }
+    }
+}
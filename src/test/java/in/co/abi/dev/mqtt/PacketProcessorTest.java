@@ -0,0 +1,573 @@
+package in.co.abi.dev.mqtt;
+
+import in.co.abi.dev.mqtt.persistence.RecoveryStats;
+import in.co.abi.dev.mqtt.persistence.WriteAheadLog;
+import in.co.abi.dev.mqtt.session.SessionStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for PacketProcessor.
+ */
+public class PacketProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PacketProcessor processor = new PacketProcessor();
+
+    /**
+     * Session on an unconnected channel whose writes are never drained, so
+     * queued frames can be counted.
+     */
+    private static ClientSession session(String clientId) throws IOException {
+        return new ClientSession(SocketChannel.open(), clientId, task -> {
+        });
+    }
+
+    /**
+     * Session that keeps the first byte and packet id of every frame sent.
+     */
+    private static class RecordingSession extends ClientSession {
+        final List<int[]> sent = new ArrayList<>();
+
+        RecordingSession(String clientId) throws IOException {
+            super(SocketChannel.open(), clientId, task -> {
+            });
+        }
+
+        @Override
+        public void send(OutboundFrame frame) {
+            ByteBuffer[] parts = frame.parts();
+            // PUBLISH: header, topic, packet id, payload; acks: one buffer
+            int packetId = parts.length > 2 ? parts[2].getShort(0) : parts[0].getShort(2);
+            sent.add(new int[] { parts[0].get(0) & 0xFF, packetId & 0xFFFF });
+            frame.release();
+        }
+
+        int[] publishedIds() {
+            return sent.stream().filter(frame -> (frame[0] & 0xF0) == 0x30).mapToInt(frame -> frame[1]).toArray();
+        }
+    }
+
+    private void process(int header, byte[] body, ClientSession session) throws IOException {
+        processor.process(header, ByteBuffer.wrap(body), 0, body.length, session);
+    }
+
+    private void subscribe(ClientSession session, int packetId, String filter) throws IOException {
+        subscribe(session, packetId, filter, 0);
+    }
+
+    private void subscribe(ClientSession session, int packetId, String filter, int qos) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(packetId >> 8);
+        body.write(packetId);
+        writeString(body, filter);
+        body.write(qos);
+        process(0x82, body.toByteArray(), session);
+    }
+
+    private void publishQos1(ClientSession session, String topic, int packetId, String payload)
+            throws IOException {
+        publish(session, topic, 1, packetId, payload);
+    }
+
+    private void publish(ClientSession session, String topic, int qos, int packetId, String payload)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, topic);
+        body.write(packetId >> 8);
+        body.write(packetId);
+        body.write(payload.getBytes(StandardCharsets.UTF_8));
+        process(0x30 | (qos << 1), body.toByteArray(), session);
+    }
+
+    private void publish(ClientSession session, String topic, String payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, topic);
+        body.write(payload.getBytes(StandardCharsets.UTF_8));
+        process(0x30, body.toByteArray(), session);
+    }
+
+    private void connect(ClientSession session, String clientId, boolean cleanSession) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, "MQTT");
+        body.write(4); // protocol level
+        body.write(cleanSession ? 0x02 : 0x00);
+        body.write(0);
+        body.write(60); // keep-alive
+        writeString(body, clientId);
+        process(0x10, body.toByteArray(), session);
+    }
+
+    private void usePersistentSessions() throws IOException {
+        processor = new PacketProcessor(new SessionStore(folder.newFolder().toPath(), 4096, 100), null);
+    }
+
+    private void drop(ClientSession session) {
+        session.close();
+        processor.disconnect(session);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testSubscribe_IndexedOnSession() throws IOException {
+        ClientSession sub = session("sub");
+        subscribe(sub, 1, "a/b");
+        subscribe(sub, 2, "sensors/+/temp");
+
+        assertEquals(2, sub.getSubscriptions().size());
+        assertTrue(sub.getSubscriptions().contains("sensors/+/temp"));
+    }
+
+    @Test
+    public void testDisconnect_RemovesOnlyOwnSubscriptions() throws IOException {
+        ClientSession gone = session("gone");
+        ClientSession stays = session("stays");
+        ClientSession pub = session("pub");
+        subscribe(gone, 1, "a/#");
+        subscribe(stays, 1, "a/b");
+        int goneQueued = gone.getOutbound().queuedFrames();
+        int staysQueued = stays.getOutbound().queuedFrames();
+
+        processor.disconnect(gone);
+        assertTrue(gone.getSubscriptions().isEmpty());
+
+        publish(pub, "a/b", "x");
+        assertEquals(goneQueued, gone.getOutbound().queuedFrames());
+        assertEquals(staysQueued + 1, stays.getOutbound().queuedFrames());
+    }
+
+    @Test
+    public void testSubscribe_AfterCloseIsUndone() throws IOException {
+        ClientSession late = session("late");
+        late.close();
+        try {
+            subscribe(late, 1, "a/b");
+        } catch (IOException expected) {
+            // SUBACK cannot be sent on a closed session
+        }
+        assertTrue(late.getSubscriptions().isEmpty());
+    }
+
+    @Test
+    public void testPublish_SharedGroupDeliversToOneMember() throws IOException {
+        ClientSession w1 = session("w1");
+        ClientSession w2 = session("w2");
+        ClientSession plain = session("plain");
+        ClientSession pub = session("pub");
+        subscribe(w1, 1, "$share/workers/jobs/+");
+        subscribe(w2, 1, "$share/workers/jobs/+");
+        subscribe(plain, 1, "jobs/+");
+        int w1Queued = w1.getOutbound().queuedFrames();
+        int w2Queued = w2.getOutbound().queuedFrames();
+        int plainQueued = plain.getOutbound().queuedFrames();
+
+        for (int i = 0; i < 4; i++) {
+            publish(pub, "jobs/a", "x");
+        }
+        assertEquals(w1Queued + 2, w1.getOutbound().queuedFrames());
+        assertEquals(w2Queued + 2, w2.getOutbound().queuedFrames());
+        assertEquals(plainQueued + 4, plain.getOutbound().queuedFrames());
+
+        processor.disconnect(w1);
+        publish(pub, "jobs/a", "x");
+        assertEquals(w1Queued + 2, w1.getOutbound().queuedFrames());
+        assertEquals(w2Queued + 3, w2.getOutbound().queuedFrames());
+    }
+
+    @Test
+    public void testSubscribe_InvalidShareRejected() throws IOException {
+        ClientSession sub = session("sub");
+        subscribe(sub, 1, "$share/workers");
+        assertTrue(sub.getSubscriptions().isEmpty());
+    }
+
+    @Test
+    public void testPublishQos1_AckedAndForwardedAtGrantedQos() throws IOException {
+        ClientSession qos1 = session("qos1");
+        ClientSession qos0 = session("qos0");
+        ClientSession pub = session("pub");
+        subscribe(qos1, 1, "a/+", 1);
+        subscribe(qos0, 1, "a/+", 0);
+        int pubQueued = pub.getOutbound().queuedFrames();
+
+        publishQos1(pub, "a/b", 7, "x");
+
+        // PUBACK to the publisher
+        assertEquals(pubQueued + 1, pub.getOutbound().queuedFrames());
+        assertEquals(1, qos1.getInflight().inFlight());
+        assertNull(qos0.getInflight());
+    }
+
+    @Test
+    public void testPubAck_CompletesDelivery() throws IOException {
+        ClientSession sub = session("sub");
+        ClientSession pub = session("pub");
+        subscribe(sub, 1, "a/b", 1);
+        publishQos1(pub, "a/b", 1, "x");
+        publishQos1(pub, "a/b", 2, "y");
+        assertEquals(2, sub.getInflight().inFlight());
+
+        // the window allocates ids from 1
+        process(0x40, new byte[] { 0, 1 }, sub);
+        assertEquals(1, sub.getInflight().inFlight());
+
+        processor.disconnect(sub);
+        assertEquals(0, sub.getInflight().inFlight());
+    }
+
+    @Test
+    public void testPublishQos2_ForwardedOnceUntilReleased() throws IOException {
+        ClientSession sub = session("sub");
+        ClientSession pub = session("pub");
+        subscribe(sub, 1, "billing", 0);
+        int subQueued = sub.getOutbound().queuedFrames();
+        int pubQueued = pub.getOutbound().queuedFrames();
+
+        publish(pub, "billing", 2, 9, "x");
+        publish(pub, "billing", 2, 9, "x"); // DUP before PUBREL
+        assertEquals(subQueued + 1, sub.getOutbound().queuedFrames());
+        assertEquals(pubQueued + 2, pub.getOutbound().queuedFrames()); // PUBREC twice
+
+        process(0x62, new byte[] { 0, 9 }, pub);
+        assertEquals(pubQueued + 3, pub.getOutbound().queuedFrames()); // PUBCOMP
+
+        // the id may now be reused for a new message
+        publish(pub, "billing", 2, 9, "y");
+        assertEquals(subQueued + 2, sub.getOutbound().queuedFrames());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPublishQos2_PacketIdZeroIsMalformed() throws IOException {
+        publish(session("pub"), "billing", 2, 0, "x");
+    }
+
+    @Test
+    public void testPublishQos2_DeliveredAtQos2() throws IOException {
+        ClientSession sub = session("sub");
+        ClientSession pub = session("pub");
+        subscribe(sub, 1, "billing", 2);
+        publish(pub, "billing", 2, 1, "x");
+        assertEquals(1, sub.getInflight().inFlight());
+
+        process(0x50, new byte[] { 0, 1 }, sub); // PUBREC
+        assertEquals(1, sub.getInflight().inFlight());
+        process(0x70, new byte[] { 0, 1 }, sub); // PUBCOMP
+        assertEquals(0, sub.getInflight().inFlight());
+    }
+
+    @Test
+    public void testSubscribe_DeliversRetainedMessages() throws IOException {
+        ClientSession pub = session("pub");
+        ClientSession sub = session("sub");
+        process(0x31, retainedBody("site/a/temp", "21"), pub);
+        process(0x31, retainedBody("site/b/temp", "22"), pub);
+        process(0x31, retainedBody("site/c/temp", "23"), pub);
+        process(0x31, retainedBody("site/c/temp", ""), pub); // clears
+
+        subscribe(sub, 1, "site/+/temp");
+        // SUBACK plus the two retained messages
+        assertEquals(3, sub.getOutbound().queuedFrames());
+        assertEquals(2, processor.getRetainedStore().size());
+    }
+
+    private static byte[] retainedBody(String topic, String payload) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeString(body, topic);
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        body.write(bytes, 0, bytes.length);
+        return body.toByteArray();
+    }
+
+    @Test
+    public void testReconnect_RestoresSubscriptionsAndQueuedMessages() throws IOException {
+        usePersistentSessions();
+        ClientSession first = session("tcp-1");
+        connect(first, "device", false);
+        subscribe(first, 1, "alerts/#", 1);
+        drop(first);
+
+        ClientSession pub = session("pub");
+        publishQos1(pub, "alerts/fire", 1, "a");
+        publishQos1(pub, "alerts/flood", 2, "b");
+        publish(pub, "alerts/info", "qos0 is not queued");
+        assertEquals(2, processor.getSessionStore().get("device").backlogSize());
+
+        ClientSession second = session("tcp-2");
+        connect(second, "device", false);
+        assertTrue(second.getSubscriptions().contains("alerts/#"));
+        assertEquals(2, second.getInflight().inFlight());
+        assertEquals(0, processor.getSessionStore().get("device").backlogSize());
+
+        // live again: new messages bypass the queue
+        publishQos1(pub, "alerts/fire", 3, "c");
+        assertEquals(3, second.getInflight().inFlight());
+    }
+
+    @Test
+    public void testReconnect_RequeuesUnacknowledgedMessages() throws IOException {
+        usePersistentSessions();
+        ClientSession first = session("tcp-1");
+        connect(first, "device", false);
+        subscribe(first, 1, "a/b", 1);
+        ClientSession pub = session("pub");
+        publishQos1(pub, "a/b", 1, "x");
+        publishQos1(pub, "a/b", 2, "y");
+        process(0x40, new byte[] { 0, 1 }, first); // only the first is acknowledged
+        drop(first);
+        publishQos1(pub, "a/b", 3, "z");
+
+        ClientSession second = session("tcp-2");
+        connect(second, "device", false);
+        assertEquals(2, second.getInflight().inFlight());
+    }
+
+    @Test
+    public void testReconnect_ResendsInFlightUnderOriginalIds() throws IOException {
+        usePersistentSessions();
+        RecordingSession first = new RecordingSession("tcp-1");
+        connect(first, "device", false);
+        subscribe(first, 1, "a/b", 2);
+        ClientSession pub = session("pub");
+        publishQos1(pub, "a/b", 1, "x");
+        publish(pub, "a/b", 2, 2, "y");
+        publish(pub, "a/b", 2, 3, "z");
+        int[] ids = first.publishedIds();
+        process(0x50, new byte[] { (byte) (ids[2] >> 8), (byte) ids[2] }, first); // PUBREC: PUBREL outstanding
+        drop(first);
+        assertEquals(3, processor.getSessionStore().get("device").inflightSize());
+
+        RecordingSession second = new RecordingSession("tcp-2");
+        connect(second, "device", false);
+        assertEquals(3, second.getInflight().inFlight());
+        List<int[]> resent = second.sent.subList(1, 4); // after CONNACK
+        assertArrayEquals(new int[] { 0x3A, ids[0] }, resent.get(0)); // PUBLISH, DUP, QoS 1
+        assertArrayEquals(new int[] { 0x3C, ids[1] }, resent.get(1)); // PUBLISH, DUP, QoS 2
+        assertArrayEquals(new int[] { 0x62, ids[2] }, resent.get(2)); // PUBREL
+
+        process(0x70, new byte[] { (byte) (ids[2] >> 8), (byte) ids[2] }, second); // PUBCOMP
+        assertEquals(2, second.getInflight().inFlight());
+        assertEquals(0, processor.getSessionStore().get("device").inflightSize());
+    }
+
+    @Test
+    public void testConnect_CleanSessionDiscardsStoredSession() throws IOException {
+        usePersistentSessions();
+        ClientSession first = session("tcp-1");
+        connect(first, "device", false);
+        subscribe(first, 1, "a/b", 1);
+        drop(first);
+
+        ClientSession second = session("tcp-2");
+        connect(second, "device", true);
+        assertNull(processor.getSessionStore().get("device"));
+        assertTrue(second.getSubscriptions().isEmpty());
+
+        publishQos1(session("pub"), "a/b", 1, "x");
+        assertNull(second.getInflight());
+    }
+
+    @Test
+    public void testConnect_SameClientIdTakesOver() throws IOException {
+        usePersistentSessions();
+        ClientSession first = session("tcp-1");
+        connect(first, "device", false);
+        subscribe(first, 1, "a/b", 1);
+
+        ClientSession second = session("tcp-2");
+        connect(second, "device", false);
+        assertTrue(first.isClosed());
+        assertTrue(second.getSubscriptions().contains("a/b"));
+
+        publishQos1(session("pub"), "a/b", 1, "x");
+        assertEquals(1, second.getInflight().inFlight());
+    }
+
+    @Test
+    public void testConnect_EmptyIdWithoutCleanSessionRejected() throws IOException {
+        usePersistentSessions();
+        ClientSession session = session("tcp-1");
+        connect(session, "", false);
+        assertEquals(0, processor.getSessionStore().size());
+    }
+
+    @Test
+    public void testPublishQos1_AcknowledgedOnceLogged() throws Exception {
+        // a batch of two that waits up to a minute for its second record
+        WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 1 << 20, 2,
+                TimeUnit.MINUTES.toNanos(1), 64);
+        processor = new PacketProcessor(new SessionStore(folder.newFolder().toPath(), 4096, 100), wal);
+        ClientSession pub = session("pub");
+        int queued = pub.getOutbound().queuedFrames();
+
+        publishQos1(pub, "a/b", 1, "x");
+        assertEquals(queued, pub.getOutbound().queuedFrames());
+
+        publishQos1(pub, "a/b", 2, "y"); // fills the batch
+        wal.close();
+        assertEquals(queued + 2, pub.getOutbound().queuedFrames());
+        assertEquals(1, wal.getBatches());
+    }
+
+    @Test
+    public void testRecover_SnapshotPlusLogTail() throws Exception {
+        Path walDir = folder.newFolder().toPath();
+        Path queueDir = folder.newFolder().toPath();
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), wal);
+        ClientSession device = session("tcp-1");
+        connect(device, "device", false);
+        subscribe(device, 1, "alerts/#", 1);
+        drop(device);
+        ClientSession pub = session("pub");
+        publishQos1(pub, "alerts/a", 1, "before snapshot");
+        processor.snapshot();
+        publishQos1(pub, "alerts/b", 2, "after snapshot");
+        publishQos1(pub, "other", 3, "not subscribed");
+        wal.close();
+
+        // restart
+        WriteAheadLog reopened = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), reopened);
+        RecoveryStats stats = processor.recover();
+        assertEquals(1, stats.getSessions());
+        assertEquals(2, stats.getReplayedRecords());
+        assertEquals(2, processor.getSessionStore().get("device").backlogSize());
+
+        ClientSession back = session("tcp-2");
+        connect(back, "device", false);
+        assertTrue(back.getSubscriptions().contains("alerts/#"));
+        assertEquals(2, back.getInflight().inFlight());
+        reopened.close();
+    }
+
+    @Test
+    public void testRecover_RequeuesQos2Deliveries() throws Exception {
+        Path walDir = folder.newFolder().toPath();
+        Path queueDir = folder.newFolder().toPath();
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), wal);
+        ClientSession once = session("tcp-1");
+        connect(once, "once", false);
+        subscribe(once, 1, "a/#", 2);
+        drop(once);
+        ClientSession least = session("tcp-2");
+        connect(least, "least", false);
+        subscribe(least, 1, "a/#", 1);
+        drop(least);
+        publish(session("pub"), "a/b", 2, 1, "x");
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), reopened);
+        processor.recover();
+        assertEquals(1, processor.getSessionStore().get("once").backlogSize());
+        assertEquals(1, processor.getSessionStore().get("least").backlogSize()); // downgraded to QoS 1
+        reopened.close();
+    }
+
+    @Test
+    public void testRecover_SkipsDeliveriesCompletedBeforeTheRestart() throws Exception {
+        Path walDir = folder.newFolder().toPath();
+        Path queueDir = folder.newFolder().toPath();
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), wal);
+        RecordingSession device = new RecordingSession("tcp-1");
+        connect(device, "device", false);
+        subscribe(device, 1, "a/#", 2);
+        ClientSession pub = session("pub");
+        publishQos1(pub, "a/b", 1, "acked");
+        publishQos1(pub, "a/b", 2, "unacked");
+        publish(pub, "a/b", 2, 3, "received");
+        int[] ids = device.publishedIds();
+        process(0x40, new byte[] { (byte) (ids[0] >> 8), (byte) ids[0] }, device); // PUBACK
+        process(0x50, new byte[] { (byte) (ids[2] >> 8), (byte) ids[2] }, device); // PUBREC
+        wal.close(); // the broker stops with the device still connected
+
+        WriteAheadLog reopened = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), reopened);
+        processor.recover();
+        assertEquals(1, processor.getSessionStore().get("device").backlogSize());
+        assertEquals(1, processor.getSessionStore().get("device").inflightSize());
+
+        RecordingSession back = new RecordingSession("tcp-2");
+        connect(back, "device", false);
+        assertArrayEquals(new int[] { 0x62, ids[2] }, back.sent.get(1)); // PUBREL, not the message again
+        assertEquals(0x32, back.sent.get(2)[0]); // "unacked", sent afresh
+        assertEquals(2, back.getInflight().inFlight());
+        reopened.close();
+    }
+
+    @Test
+    public void testSnapshot_KeepsInflightOfConnectedSessions() throws Exception {
+        Path walDir = folder.newFolder().toPath();
+        Path queueDir = folder.newFolder().toPath();
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), wal);
+        RecordingSession device = new RecordingSession("tcp-1");
+        connect(device, "device", false);
+        subscribe(device, 1, "a/#", 2);
+        publish(session("pub"), "a/b", 2, 1, "x");
+        int id = device.publishedIds()[0];
+        processor.snapshot();
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), reopened);
+        RecoveryStats stats = processor.recover();
+        assertEquals(0, stats.getReplayedRecords());
+        assertEquals(1, processor.getSessionStore().get("device").inflightSize());
+
+        RecordingSession back = new RecordingSession("tcp-2");
+        connect(back, "device", false);
+        assertArrayEquals(new int[] { 0x3C, id }, back.sent.get(1)); // PUBLISH, DUP, QoS 2, same id
+        reopened.close();
+    }
+
+    @Test
+    public void testRecover_SessionsCreatedAfterSnapshotFromLog() throws Exception {
+        Path walDir = folder.newFolder().toPath();
+        Path queueDir = folder.newFolder().toPath();
+        WriteAheadLog wal = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), wal);
+        ClientSession kept = session("tcp-1");
+        connect(kept, "kept", false);
+        subscribe(kept, 1, "a/#", 1);
+        drop(kept);
+        ClientSession dropped = session("tcp-2");
+        connect(dropped, "dropped", false);
+        subscribe(dropped, 1, "a/#", 1);
+        drop(dropped);
+        connect(session("tcp-3"), "dropped", true); // clean session discards it
+        publishQos1(session("pub"), "a/b", 1, "x");
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(walDir, 1 << 20, 16, 0, 64);
+        processor = new PacketProcessor(new SessionStore(queueDir, 4096, 100), reopened);
+        RecoveryStats stats = processor.recover();
+        assertEquals(-1, stats.getSnapshotOffset());
+        assertEquals(1, stats.getSessions());
+        assertEquals(1, processor.getSessionStore().get("kept").backlogSize());
+        reopened.close();
+    }
+}
@@ -0,0 +1,92 @@
+package in.co.abi.dev.mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SharedSubscriptionGroup.
+ */
+public class SharedSubscriptionGroupTest {
+
+    private static ClientSession session(String clientId) throws IOException {
+        return new ClientSession(SocketChannel.open(), clientId, task -> {
+        });
+    }
+
+    @Test
+    public void testGroupOf_ValidShare() {
+        assertEquals("workers", SharedSubscriptionGroup.groupOf("$share/workers/telemetry/+"));
+        assertEquals("telemetry/+", SharedSubscriptionGroup.filterOf("$share/workers/telemetry/+"));
+    }
+
+    @Test
+    public void testGroupOf_InvalidShare() {
+        assertNull(SharedSubscriptionGroup.groupOf("telemetry"));
+        assertNull(SharedSubscriptionGroup.groupOf("$share//telemetry"));
+        assertNull(SharedSubscriptionGroup.groupOf("$share/workers"));
+        assertNull(SharedSubscriptionGroup.groupOf("$share/workers/"));
+        assertNull(SharedSubscriptionGroup.groupOf("$share/w+/telemetry"));
+        assertNull(SharedSubscriptionGroup.groupOf("$share/workers/a/#/b"));
+    }
+
+    @Test
+    public void testPick_RoundRobin() throws IOException {
+        SharedSubscriptionGroup group = new SharedSubscriptionGroup("g", "t", ShareStrategy.ROUND_ROBIN);
+        ClientSession a = session("a");
+        ClientSession b = session("b");
+        assertTrue(group.add(a));
+        assertTrue(group.add(b));
+        assertFalse(group.add(a));
+
+        ClientSession first = group.pick();
+        ClientSession second = group.pick();
+        assertNotSame(first, second);
+        assertSame(first, group.pick());
+    }
+
+    @Test
+    public void testPick_SkipsClosedMembers() throws IOException {
+        SharedSubscriptionGroup group = new SharedSubscriptionGroup("g", "t", ShareStrategy.ROUND_ROBIN);
+        ClientSession open = session("open");
+        ClientSession closed = session("closed");
+        group.add(open);
+        group.add(closed);
+        closed.close();
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(open, group.pick());
+        }
+        group.remove(open);
+        assertNull(group.pick());
+    }
+
+    @Test
+    public void testPick_LeastOutstandingBytes() throws IOException {
+        SharedSubscriptionGroup group = new SharedSubscriptionGroup("g", "t",
+                ShareStrategy.LEAST_OUTSTANDING_BYTES);
+        ClientSession busy = session("busy");
+        ClientSession idle = session("idle");
+        group.add(busy);
+        group.add(idle);
+        busy.send(OutboundFrame.of(ByteBuffer.allocate(1000)));
+
+        for (int i = 0; i < 4; i++) {
+            assertSame(idle, group.pick());
+        }
+    }
+
+    @Test
+    public void testRemove_LastMemberEmptiesGroup() throws IOException {
+        SharedSubscriptionGroup group = new SharedSubscriptionGroup("g", "t", ShareStrategy.ROUND_ROBIN);
+        ClientSession a = session("a");
+        group.add(a);
+        assertTrue(group.remove(a));
+        assertFalse(group.remove(a));
+        assertTrue(group.isEmpty());
+    }
+}
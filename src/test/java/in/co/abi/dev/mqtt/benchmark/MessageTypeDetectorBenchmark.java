@@ -0,0 +1,114 @@
+package in.co.abi.dev.mqtt.benchmark;
+
+import in.co.abi.dev.mqtt.message.JsonUtil;
+import in.co.abi.dev.mqtt.message.MessageType;
+import in.co.abi.dev.mqtt.message.MessageTypeDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload type detection: the Jackson tree plus String round trip the broker
+ * used before versus the single-pass {@link MessageTypeDetector}.
+ *
+ * <ul>
+ * <li>treeAndRoundTrip: the previous detector, kept here for comparison</li>
+ * <li>singlePass: the streaming classifier over the whole payload</li>
+ * <li>singlePassPrefix: the same, limited to the default 64 KB inspected</li>
+ * </ul>
+ *
+ * Run with {@code -prof gc} to see the allocation per detection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTypeDetectorBenchmark {
+
+    @Param({ "100", "10240", "1048576" })
+    public int size;
+
+    @Param({ "json", "text", "binary" })
+    public String kind;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        if ("binary".equals(kind)) {
+            payload = new byte[size];
+            new Random(42).nextBytes(payload);
+            return;
+        }
+        StringBuilder out = new StringBuilder(size + 64);
+        if ("json".equals(kind)) {
+            out.append('[');
+            for (int i = 0; out.length() < size - 64; i++) {
+                out.append(i == 0 ? "" : ",").append("{\"id\":").append(i)
+                        .append(",\"temp\":21.5,\"ok\":true,\"tag\":\"s\\u00e9ns\"}");
+            }
+            out.append(']');
+        } else {
+            while (out.length() < size) {
+                out.append("sensor reading ok, temperature nominal; ");
+            }
+            out.setLength(size);
+        }
+        payload = out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public MessageType treeAndRoundTrip() {
+        return legacyDetect(payload);
+    }
+
+    @Benchmark
+    public MessageType singlePass() {
+        return MessageTypeDetector.detect(payload, 0);
+    }
+
+    @Benchmark
+    public MessageType singlePassPrefix() {
+        return MessageTypeDetector.detect(payload, 64 * 1024);
+    }
+
+    private static MessageType legacyDetect(byte[] payload) {
+        if (payload.length == 0) {
+            return MessageType.BYTES;
+        }
+        int start = 0;
+        while (start < payload.length && (payload[start] == ' ' || payload[start] == '\t'
+                || payload[start] == '\n' || payload[start] == '\r')) {
+            start++;
+        }
+        if (payload.length >= 2 && start < payload.length && (payload[start] == '{' || payload[start] == '[')
+                && JsonUtil.isValidJson(payload)) {
+            return MessageType.JSON;
+        }
+        String decoded = new String(payload, StandardCharsets.UTF_8);
+        if (decoded.getBytes(StandardCharsets.UTF_8).length != payload.length) {
+            return MessageType.BYTES;
+        }
+        int printable = 0;
+        for (char c : decoded.toCharArray()) {
+            if (!Character.isISOControl(c) || c == '\n' || c == '\r' || c == '\t') {
+                printable++;
+            }
+        }
+        return (double) printable / decoded.length() > 0.8 ? MessageType.STRING : MessageType.BYTES;
+    }
+}
@@ -0,0 +1,97 @@
+package in.co.abi.dev.mqtt.benchmark;
+
+import in.co.abi.dev.mqtt.subscription.SubscriberSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscriber collection of one popular topic: the copy-on-write list the
+ * broker used before versus {@link SubscriberSet}.
+ *
+ * <ul>
+ * <li>churn: one device disconnects and another takes its place</li>
+ * <li>fanOut: one PUBLISH iterates every subscriber</li>
+ * </ul>
+ *
+ * Run with {@code -prof gc} to see the allocation per churn operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriberSetBenchmark {
+
+    @Param({ "100", "10000" })
+    public int subscribers;
+
+    private CopyOnWriteArrayList<Object> cowList;
+    private SubscriberSet<Object> chunkedSet;
+    private Object[] members;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        cowList = new CopyOnWriteArrayList<>();
+        chunkedSet = new SubscriberSet<>();
+        members = new Object[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            members[i] = new Object();
+            cowList.add(members[i]);
+            chunkedSet.add(members[i]);
+        }
+    }
+
+    private Object nextMember() {
+        Object m = members[next];
+        next = (next + 1) % subscribers;
+        return m;
+    }
+
+    @Benchmark
+    public boolean churnCopyOnWriteList() {
+        Object m = nextMember();
+        cowList.remove(m);
+        return cowList.addIfAbsent(m);
+    }
+
+    @Benchmark
+    public boolean churnSubscriberSet() {
+        Object m = nextMember();
+        chunkedSet.remove(m);
+        return chunkedSet.add(m);
+    }
+
+    @Benchmark
+    public void fanOutCopyOnWriteList(Blackhole bh) {
+        for (Object s : cowList) {
+            bh.consume(s);
+        }
+    }
+
+    @Benchmark
+    public void fanOutSubscriberSet(Blackhole bh) {
+        for (Object s : chunkedSet) {
+            bh.consume(s);
+        }
+    }
+
+    @Benchmark
+    public void fanOutSubscriberSetForEach(Blackhole bh) {
+        chunkedSet.forEach(bh::consume);
+    }
+}
@@ -0,0 +1,102 @@
+package in.co.abi.dev.mqtt.benchmark;
+
+import in.co.abi.dev.mqtt.subscription.SubscriptionTrie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of removing one disconnected client from a broker holding about one
+ * million subscriptions: walking every subscription versus visiting only the
+ * filters recorded in the client's own index.
+ *
+ * <p>
+ * Each client holds one private filter and nine filters shared with other
+ * clients. Every operation disconnects one client and re-subscribes it, so
+ * the trie stays the same size; the re-subscribe costs the same in both
+ * variants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SubscriptionIndexBenchmark {
+
+    private static final int FILTERS_PER_CLIENT = 10;
+    private static final int SHARED_FILTERS = 1000;
+
+    @Param({ "100000" })
+    public int clients;
+
+    private SubscriptionTrie<Object> trie;
+    private Object[] sessions;
+    private List<List<String>> index;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        trie = new SubscriptionTrie<>();
+        sessions = new Object[clients];
+        index = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Object session = new Object();
+            List<String> filters = new ArrayList<>(FILTERS_PER_CLIENT);
+            filters.add("devices/" + i + "/cmd");
+            for (int k = 1; k < FILTERS_PER_CLIENT; k++) {
+                filters.add("fleet/" + ((i * (FILTERS_PER_CLIENT - 1) + k) % SHARED_FILTERS) + "/status");
+            }
+            for (String filter : filters) {
+                trie.subscribe(filter, session);
+            }
+            sessions[i] = session;
+            index.add(filters);
+        }
+    }
+
+    @Benchmark
+    public int disconnectByFullWalk() {
+        int i = nextClient();
+        int removed = trie.unsubscribeAll(sessions[i]);
+        resubscribe(i);
+        return removed;
+    }
+
+    @Benchmark
+    public int disconnectByIndex() {
+        int i = nextClient();
+        int removed = 0;
+        for (String filter : index.get(i)) {
+            if (trie.unsubscribe(filter, sessions[i])) {
+                removed++;
+            }
+        }
+        resubscribe(i);
+        return removed;
+    }
+
+    private int nextClient() {
+        int i = next;
+        next = (i + 1) % clients;
+        return i;
+    }
+
+    private void resubscribe(int i) {
+        for (String filter : index.get(i)) {
+            trie.subscribe(filter, sessions[i]);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package in.co.abi.dev.mqtt.benchmark;
+
+import in.co.abi.dev.mqtt.persistence.WriteAheadLog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable QoS 1 publishes per second against the write-ahead log. Each
+ * benchmark thread is a publisher waiting for its acknowledgement before the
+ * next message, as a client with one message in flight would. A batch size of
+ * one is an fsync per message; larger batches let concurrent publishers share
+ * fsyncs, and the latency limit trades acknowledgement delay for bigger
+ * groups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(16)
+public class WriteAheadLogBenchmark {
+
+    @Param({ "1", "512" })
+    public int batchSize;
+
+    @Param({ "0", "250", "2000" })
+    public int maxLatencyMicros;
+
+    @Param({ "256" })
+    public int payloadBytes;
+
+    private Path dir;
+    private WriteAheadLog wal;
+    private ByteBuffer payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wal-bench");
+        wal = new WriteAheadLog(dir, 64 * 1024 * 1024, batchSize,
+                TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros), 65536);
+        payload = ByteBuffer.allocate(payloadBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        wal.close();
+        for (Path segment : wal.segments()) {
+            Files.deleteIfExists(segment);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public void durablePublish() throws IOException, InterruptedException {
+        CountDownLatch acked = new CountDownLatch(1);
+        wal.append(payload, error -> acked.countDown());
+        acked.await();
+    }
+}
@@ -0,0 +1,140 @@
+package in.co.abi.dev.mqtt.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MqttFrameDecoder.
+ */
+public class MqttFrameDecoderTest {
+
+    private final List<int[]> frames = new ArrayList<>();
+    private final List<byte[]> bodies = new ArrayList<>();
+    private final MqttFrameDecoder.FrameHandler recorder = (header, buffer, offset, length) -> {
+        frames.add(new int[] { header, length });
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = buffer.get(offset + i);
+        }
+        bodies.add(body);
+    };
+
+    @Test
+    public void testDecode_SingleFrame() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        ByteBuffer in = ByteBuffer.wrap(new byte[] { (byte) 0xC0, 0x00 });
+        decoder.decode(in, recorder);
+
+        assertEquals(1, frames.size());
+        assertEquals(0xC0, frames.get(0)[0]);
+        assertEquals(0, frames.get(0)[1]);
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testDecode_MultipleFramesInOneRead() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        ByteBuffer in = ByteBuffer.wrap(new byte[] { 0x30, 0x03, 'a', 'b', 'c', (byte) 0xC0, 0x00 });
+        decoder.decode(in, recorder);
+
+        assertEquals(2, frames.size());
+        assertArrayEquals("abc".getBytes(), bodies.get(0));
+        assertEquals(0xC0, frames.get(1)[0]);
+    }
+
+    @Test
+    public void testDecode_ByteAtATime() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        byte[] frame = { 0x30, 0x03, 'x', 'y', 'z' };
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        for (byte b : frame) {
+            buffer.put(b);
+            buffer.flip();
+            decoder.decode(buffer, recorder);
+            buffer.compact();
+        }
+
+        assertEquals(1, frames.size());
+        assertArrayEquals("xyz".getBytes(), bodies.get(0));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testDecode_MultiByteRemainingLength() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        int length = 321; // encodes as 0xC1 0x02
+        ByteBuffer in = ByteBuffer.allocate(3 + length);
+        in.put((byte) 0x30).put((byte) 0xC1).put((byte) 0x02);
+        in.put(new byte[length]);
+        in.flip();
+        decoder.decode(in, recorder);
+
+        assertEquals(1, frames.size());
+        assertEquals(length, frames.get(0)[1]);
+    }
+
+    @Test
+    public void testEnsureCapacity_GrowsForLargeBody() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        // header announcing a 200 byte body, followed by the first 4 body bytes
+        buffer.put(new byte[] { 0x30, (byte) 0xC8, 0x01, 1, 2, 3, 4 });
+        buffer.flip();
+        decoder.decode(buffer, recorder);
+        buffer.compact();
+        buffer = decoder.ensureCapacity(buffer);
+
+        assertTrue(buffer.capacity() >= 200);
+        assertEquals(4, buffer.position());
+        assertTrue(frames.isEmpty());
+
+        buffer.put(new byte[196]);
+        buffer.flip();
+        decoder.decode(buffer, recorder);
+        assertEquals(1, frames.size());
+        assertEquals(1, bodies.get(0)[0]);
+        assertEquals(200, bodies.get(0).length);
+    }
+
+    @Test
+    public void testEnsureCapacity_ShrinksAfterLargeBody() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.put(new byte[] { 0x30, (byte) 0xC8, 0x01 });
+        buffer.flip();
+        decoder.decode(buffer, recorder);
+        buffer.compact();
+        buffer = decoder.ensureCapacity(buffer);
+        assertEquals(200, buffer.capacity());
+
+        buffer.put(new byte[200]);
+        buffer.flip();
+        decoder.decode(buffer, recorder);
+        buffer.compact();
+        buffer = decoder.ensureCapacity(buffer);
+
+        assertEquals(1, frames.size());
+        assertEquals(8, buffer.capacity());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecode_MalformedRemainingLength() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder();
+        ByteBuffer in = ByteBuffer.wrap(new byte[] { 0x30, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 });
+        decoder.decode(in, recorder);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecode_ExceedsMaxFrameSize() throws IOException {
+        MqttFrameDecoder decoder = new MqttFrameDecoder(100);
+        ByteBuffer in = ByteBuffer.wrap(new byte[] { 0x30, (byte) 0xC8, 0x01 });
+        decoder.decode(in, recorder);
+    }
+}
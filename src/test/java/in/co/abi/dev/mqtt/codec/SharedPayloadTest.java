@@ -0,0 +1,111 @@
+package in.co.abi.dev.mqtt.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SharedPayload and BufferPool.
+ */
+public class SharedPayloadTest {
+
+    private static ByteBuffer publishBody(String topic, byte[] payload) {
+        byte[] t = topic.getBytes();
+        ByteBuffer body = ByteBuffer.allocate(2 + t.length + payload.length);
+        body.putShort((short) t.length).put(t).put(payload);
+        body.flip();
+        return body;
+    }
+
+    private static byte[] bytes(ByteBuffer view) {
+        byte[] out = new byte[view.remaining()];
+        view.duplicate().get(out);
+        return out;
+    }
+
+    @Test
+    public void testCopyOf_ViewsCoverTopicAndPayload() {
+        BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+        ByteBuffer body = publishBody("a/b", new byte[] { 1, 2, 3 });
+
+        SharedPayload shared = SharedPayload.copyOf(body, 0, 5, 3, pool);
+
+        assertEquals(8, shared.length());
+        assertEquals(5, shared.topicFieldLength());
+        assertEquals(3, shared.payloadLength());
+        assertArrayEquals(new byte[] { 0, 3, 'a', '/', 'b' }, bytes(shared.topicView()));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, bytes(shared.payloadView()));
+        assertEquals(8, shared.bodyView().remaining());
+        assertTrue(shared.bodyView().isReadOnly());
+    }
+
+    @Test
+    public void testCopyOf_SkipsBytesBetweenTopicAndPayload() {
+        BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+        // topic "x", two packet-id bytes, then payload
+        ByteBuffer body = ByteBuffer.wrap(new byte[] { 0, 1, 'x', 0, 7, 9, 9 });
+
+        SharedPayload shared = SharedPayload.copyOf(body, 0, 5, 2, pool);
+
+        assertArrayEquals(new byte[] { 0, 1, 'x', 9, 9 }, bytes(shared.bodyView()));
+    }
+
+    @Test
+    public void testRelease_ReturnsBufferToPoolOnLastReference() {
+        BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+        SharedPayload shared = SharedPayload.copyOf(publishBody("t", new byte[100]), 0, 3, 100, pool);
+
+        shared.retain();
+        shared.retain();
+        shared.release();
+        shared.release();
+        assertEquals(0, pool.idleCount());
+
+        shared.release();
+        assertEquals(0, shared.refCount());
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRetain_AfterReleaseFails() {
+        SharedPayload shared = SharedPayload.wrap(publishBody("t", new byte[] { 1 }));
+        shared.release();
+        shared.retain();
+    }
+
+    @Test
+    public void testBufferPool_ReusesBuffers() {
+        BufferPool pool = new BufferPool(64 * 1024, 1024 * 1024);
+        ByteBuffer first = pool.acquire(3000);
+        assertTrue(first.isDirect());
+        assertEquals(3000, first.limit());
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(2500);
+        assertSame(first, second);
+        assertEquals(2500, second.limit());
+    }
+
+    @Test
+    public void testBufferPool_OversizedRequestsAreUnpooled() {
+        BufferPool pool = new BufferPool(4096, 1024 * 1024);
+        ByteBuffer big = pool.acquire(10000);
+        assertFalse(big.isDirect());
+        pool.release(big);
+        assertEquals(0, pool.idleCount());
+    }
+
+    @Test
+    public void testBufferPool_RespectsIdleBudget() {
+        BufferPool pool = new BufferPool(64 * 1024, 2048);
+        ByteBuffer a = pool.acquire(1024);
+        ByteBuffer b = pool.acquire(1024);
+        ByteBuffer c = pool.acquire(1024);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.idleCount());
+    }
+}
@@ -0,0 +1,59 @@
+package in.co.abi.dev.mqtt.expiry;
+
+import in.co.abi.dev.mqtt.message.MqttMessage;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ExpiryPolicy.
+ */
+public class ExpiryPolicyTest {
+
+    @Test
+    public void testIntervalFor_ShortestMatchingFilterWins() {
+        ExpiryPolicy policy = new ExpiryPolicy(60, ExpiryPolicy.parse("telemetry/#=86400, telemetry/+/gps=300"));
+        assertEquals(300, policy.intervalFor("telemetry/car/gps"));
+        assertEquals(86400, policy.intervalFor("telemetry/car/speed"));
+        assertEquals(60, policy.intervalFor("alerts/fire"));
+        assertTrue(policy.isEnabled());
+    }
+
+    @Test
+    public void testIntervalFor_ZeroExemptsFromDefault() {
+        ExpiryPolicy policy = new ExpiryPolicy(60, ExpiryPolicy.parse("config/#=0"));
+        assertEquals(0, policy.intervalFor("config/device"));
+        assertEquals(60, policy.intervalFor("other"));
+    }
+
+    @Test
+    public void testParse_SkipsMalformedEntries() {
+        Map<String, Long> filters = ExpiryPolicy.parse("a/#=10,,nonsense,b/#/c=5,c=x, d = 7 ");
+        assertEquals(2, filters.size());
+        assertEquals(Long.valueOf(10), filters.get("a/#"));
+        assertEquals(Long.valueOf(7), filters.get("d"));
+    }
+
+    @Test
+    public void testDisabledWithoutRules() {
+        ExpiryPolicy policy = new ExpiryPolicy(0, Collections.emptyMap());
+        assertFalse(policy.isEnabled());
+        assertEquals(0, policy.intervalFor("any/topic"));
+    }
+
+    @Test
+    public void testMessageExpiry_CountsFromTimestamp() {
+        MqttMessage message = MqttMessage.fromString("t", "x");
+        assertEquals(0, message.getExpiresAt());
+        assertFalse(message.isExpired(Long.MAX_VALUE));
+
+        MqttMessage expiring = message.withExpiryInterval(30);
+        assertEquals(message.getTimestamp() + 30000, expiring.getExpiresAt());
+        assertEquals(message.getTimestamp(), expiring.getTimestamp());
+        assertFalse(expiring.isExpired(message.getTimestamp() + 29999));
+        assertTrue(expiring.isExpired(message.getTimestamp() + 30000));
+    }
+}
@@ -0,0 +1,313 @@
+package in.co.abi.dev.mqtt.message;
+
+import in.co.abi.dev.mqtt.ClientSession;
+import in.co.abi.dev.mqtt.TransportMode;
+import in.co.abi.dev.mqtt.codec.BufferPool;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for HandlerPipeline.
+ */
+public class HandlerPipelineTest {
+
+    /**
+     * Records the payloads it handles. Worker threads wait on a gate first;
+     * the publishing thread does not.
+     */
+    private static final class RecordingHandler extends DefaultMessageHandler {
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch gate;
+        final CountDownLatch done;
+
+        RecordingHandler(CountDownLatch gate, int expected) {
+            this.gate = gate;
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void handleString(String topic, String payload, ClientSession session) {
+            try {
+                if (Thread.currentThread().getName().startsWith("mqtt-handler-")) {
+                    gate.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add(topic + ":" + payload);
+            threads.add(Thread.currentThread().getName());
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("handler did not finish", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private HandlerPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    private static MqttMessage text(String topic, String payload) {
+        return MqttMessage.fromString(topic, payload);
+    }
+
+    @Test
+    public void testSubmit_InlineWithoutWorkers() {
+        RecordingHandler handler = new RecordingHandler(new CountDownLatch(0), 1);
+        pipeline = new HandlerPipeline(handler, 0, 16, BackpressurePolicy.BLOCK);
+
+        pipeline.submit(text("a", "1"), null);
+
+        assertFalse(pipeline.isAsync());
+        assertEquals(Collections.singletonList("a:1"), handler.handled);
+        assertEquals(Thread.currentThread().getName(), handler.threads.get(0));
+        assertEquals(1, pipeline.getHandledCount());
+    }
+
+    @Test
+    public void testSubmit_RunsOnWorkersInTopicOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler(new CountDownLatch(0), 200);
+        pipeline = new HandlerPipeline(handler, 4, 1024, BackpressurePolicy.BLOCK);
+
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit(text("a", Integer.toString(i)), null);
+            pipeline.submit(text("b", Integer.toString(i)), null);
+        }
+        handler.await();
+
+        List<String> a = new ArrayList<>();
+        List<String> b = new ArrayList<>();
+        synchronized (handler.handled) {
+            for (String entry : handler.handled) {
+                (entry.startsWith("a:") ? a : b).add(entry.substring(2));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.toString(i), a.get(i));
+            assertEquals(Integer.toString(i), b.get(i));
+        }
+        assertTrue(handler.threads.get(0).startsWith("mqtt-handler-"));
+        waitForHandled(200);
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testBackpressure_DropNewestWhenLaneFull() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(gate, 3);
+        pipeline = new HandlerPipeline(handler, 1, 2, BackpressurePolicy.DROP_NEWEST);
+
+        pipeline.submit(text("t", "0"), null);
+        waitForDepth(0); // the worker holds message 0 at the gate
+        pipeline.submit(text("t", "1"), null);
+        pipeline.submit(text("t", "2"), null);
+        pipeline.submit(text("t", "3"), null);
+        assertEquals(2, pipeline.getQueueDepth());
+        assertEquals(2, pipeline.getPeakQueueDepth());
+        assertEquals(1, pipeline.getDroppedCount());
+
+        gate.countDown();
+        handler.await();
+        assertEquals(Arrays.asList("t:0", "t:1", "t:2"), handler.handled);
+    }
+
+    @Test
+    public void testBackpressure_DropOldestWhenLaneFull() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(gate, 3);
+        pipeline = new HandlerPipeline(handler, 1, 2, BackpressurePolicy.DROP_OLDEST);
+
+        pipeline.submit(text("t", "0"), null);
+        waitForDepth(0);
+        pipeline.submit(text("t", "1"), null);
+        pipeline.submit(text("t", "2"), null);
+        pipeline.submit(text("t", "3"), null);
+        assertEquals(1, pipeline.getDroppedCount());
+
+        gate.countDown();
+        handler.await();
+        assertEquals(Arrays.asList("t:0", "t:2", "t:3"), handler.handled);
+    }
+
+    @Test
+    public void testBackpressure_CallerRunsWhenLaneFull() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(gate, 3);
+        pipeline = new HandlerPipeline(handler, 1, 1, BackpressurePolicy.CALLER_RUNS);
+
+        pipeline.submit(text("t", "0"), null);
+        waitForDepth(0);
+        pipeline.submit(text("t", "1"), null);
+        pipeline.submit(text("t", "2"), null); // lane full: handled right here
+        assertEquals(Collections.singletonList("t:2"), handler.handled);
+        assertEquals(Thread.currentThread().getName(), handler.threads.get(0));
+
+        gate.countDown();
+        handler.await();
+        assertEquals(1, pipeline.getCallerRunsCount());
+        assertEquals(Arrays.asList("t:2", "t:0", "t:1"), handler.handled);
+    }
+
+    @Test
+    public void testSubmit_RetainsPooledPayloadUntilHandled() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(gate, 1);
+        pipeline = new HandlerPipeline(handler, 1, 4, BackpressurePolicy.BLOCK);
+        BufferPool pool = new BufferPool(4096, 1 << 20);
+        byte[] topic = "t".getBytes(StandardCharsets.UTF_8);
+        byte[] body = "queued".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(2 + topic.length + body.length);
+        frame.putShort((short) topic.length).put(topic).put(body).flip();
+        SharedPayload shared = SharedPayload.copyOf(frame, 0, 2 + topic.length, body.length, pool);
+
+        pipeline.submit(MqttMessage.wrap("t", shared, MessageType.STRING), null);
+        shared.release(); // the publish path is done with it
+        assertEquals(0, pool.idleCount());
+
+        gate.countDown();
+        handler.await();
+        assertEquals(Collections.singletonList("t:queued"), handler.handled);
+        for (int i = 0; i < 100 && pool.idleCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void testMetrics_CountFailuresAndLatency() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        MessageHandler failing = new DefaultMessageHandler() {
+            @Override
+            public void handleString(String topic, String payload, ClientSession session) {
+                done.countDown();
+                if ("bad".equals(payload)) {
+                    throw new IllegalStateException("boom");
+                }
+            }
+        };
+        pipeline = new HandlerPipeline(failing, 1, 4, BackpressurePolicy.BLOCK);
+
+        pipeline.submit(text("t", "bad"), null);
+        pipeline.submit(text("t", "good"), null);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForHandled(2);
+
+        assertEquals(1, pipeline.getFailedCount());
+        assertTrue(pipeline.getMeanHandlerMicros() >= 0);
+        assertTrue(pipeline.getMeanQueueWaitMicros() >= 0);
+        assertTrue(pipeline.toString().contains("failed=1"));
+    }
+
+    @Test
+    public void testWorker_SurvivesHandlerError() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        MessageHandler failing = new DefaultMessageHandler() {
+            @Override
+            public void handleString(String topic, String payload, ClientSession session) {
+                done.countDown();
+                if ("bad".equals(payload)) {
+                    throw new StackOverflowError();
+                }
+            }
+        };
+        pipeline = new HandlerPipeline(failing, 1, 4, BackpressurePolicy.BLOCK);
+
+        pipeline.submit(text("t", "bad"), null);
+        pipeline.submit(text("t", "good"), null);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        waitForHandled(2);
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    @Test
+    public void testSubmit_InlineFailureCounted() {
+        MessageHandler failing = new DefaultMessageHandler() {
+            @Override
+            public void handleString(String topic, String payload, ClientSession session) {
+                throw new IllegalStateException("boom");
+            }
+        };
+        pipeline = new HandlerPipeline(failing, 0, 4, BackpressurePolicy.BLOCK);
+
+        pipeline.submit(text("t", "bad"), null);
+        assertEquals(1, pipeline.getHandledCount());
+        assertEquals(1, pipeline.getFailedCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testSubmit_DeadLaneRejectsMessages() throws Exception {
+        ByteBuffer frame = ByteBuffer.allocate(3);
+        frame.putShort((short) 1).put((byte) 't').flip();
+        SharedPayload shared = SharedPayload.wrap(frame);
+        MessageHandler releasing = new DefaultMessageHandler() {
+            @Override
+            public void handleString(String topic, String payload, ClientSession session) {
+                // one release too many: the worker's own release then fails
+                shared.release();
+            }
+        };
+        pipeline = new HandlerPipeline(releasing, 1, 1, BackpressurePolicy.BLOCK);
+
+        pipeline.submit(MqttMessage.wrap("t", shared, MessageType.STRING), null);
+        shared.release();
+        waitForHandled(1);
+        Thread.sleep(50); // let the worker die
+
+        // a live lane would queue the first and block on the second forever
+        pipeline.submit(text("t", "1"), null);
+        pipeline.submit(text("t", "2"), null);
+        assertEquals(2, pipeline.getDroppedCount());
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testFromProperty_FallsBackToBlock() {
+        assertEquals(BackpressurePolicy.DROP_OLDEST, BackpressurePolicy.fromProperty("drop-oldest"));
+        assertEquals(BackpressurePolicy.CALLER_RUNS, BackpressurePolicy.fromProperty(" caller_runs "));
+        assertEquals(BackpressurePolicy.BLOCK, BackpressurePolicy.fromProperty("bogus"));
+        assertEquals(BackpressurePolicy.BLOCK, BackpressurePolicy.fromProperty(null));
+    }
+
+    @Test
+    public void testPolicyFor_NioNeverBlocks() {
+        assertEquals(BackpressurePolicy.BLOCK, HandlerPipeline.policyFor(null, TransportMode.BLOCKING));
+        assertEquals(BackpressurePolicy.CALLER_RUNS, HandlerPipeline.policyFor(null, TransportMode.NIO));
+        assertEquals(BackpressurePolicy.CALLER_RUNS, HandlerPipeline.policyFor("block", TransportMode.NIO));
+        assertEquals(BackpressurePolicy.DROP_NEWEST,
+                HandlerPipeline.policyFor("drop_newest", TransportMode.NIO));
+    }
+
+    // the handler returns before its call is counted
+    private void waitForHandled(long expected) throws InterruptedException {
+        for (int i = 0; i < 500 && pipeline.getHandledCount() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, pipeline.getHandledCount());
+    }
+
+    private void waitForDepth(int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && pipeline.getQueueDepth() != expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, pipeline.getQueueDepth());
+    }
+}
@@ -1,6 +1,11 @@
 package in.co.abi.dev.mqtt.message;
 
 import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 /**
@@ -89,4 +94,114 @@ public class MessageTypeDetectorTest {
         byte[] payload = "{\"name\": \"test\"".getBytes(); // Missing closing brace
         assertEquals(MessageType.STRING, MessageTypeDetector.detect(payload));
     }
+
+    @Test
+    public void testDetectJson_ScalarsAndEscapes() {
+        byte[] payload = ("{\"n\":-0.5e+10,\"i\":0,\"b\":[true,false,null],"
+                + "\"s\":\"a\\\"b\\u00e9\\n\",\"u\":\"\u00fc\u20ac\"}").getBytes(StandardCharsets.UTF_8);
+        assertEquals(MessageType.JSON, MessageTypeDetector.detect(payload));
+    }
+
+    @Test
+    public void testDetectString_MalformedJsonTokens() {
+        String[] malformed = { "[01]", "[1.]", "[1e]", "[-]", "{\"a\":tru}", "[1,]", "{\"a\":1,}", "{\"a\" 1}",
+                "[\"\\x\"]", "[\"\\u12G4\"]", "{\"a\":1}}", "{\"a\":1} extra", "[\"tab\there\"]" };
+        for (String json : malformed) {
+            byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+            assertEquals(json, MessageType.STRING, MessageTypeDetector.detect(payload));
+        }
+    }
+
+    @Test
+    public void testDetect_AgreesWithJackson() {
+        String[] samples = { "{}", "[]", "[ ]", "{\"a\":{}}", "[[[[1]]]]", "[1, 2.5, -3e2, \"x\"]", "{\"a\":[{}]}",
+                "[1 2]", "{\"a\"}", "[\"unterminated]", "[\"\\/\"]", "[0.0E-1]", "[-01]", "{,}", "[nul]" };
+        for (String json : samples) {
+            byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+            boolean jackson = JsonUtil.isValidJson(payload);
+            assertEquals(json, jackson, MessageTypeDetector.detect(payload) == MessageType.JSON);
+        }
+    }
+
+    @Test
+    public void testDetectJson_DeepNestingFallsBackToJackson() {
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            json.append('[');
+        }
+        for (int i = 0; i < 100; i++) {
+            json.append(']');
+        }
+        assertEquals(MessageType.JSON, MessageTypeDetector.detect(json.toString().getBytes()));
+        json.setLength(json.length() - 1);
+        assertEquals(MessageType.STRING, MessageTypeDetector.detect(json.toString().getBytes()));
+    }
+
+    @Test
+    public void testDetect_InspectsOnlyPrefix() {
+        byte[] payload = "{\"a\":\"0123456789\"} and then garbage".getBytes(StandardCharsets.UTF_8);
+        assertEquals(MessageType.STRING, MessageTypeDetector.detect(payload, 0));
+        assertEquals(MessageType.JSON, MessageTypeDetector.detect(payload, 10));
+
+        // a multi-byte character cut by the limit is not malformed
+        byte[] text = "abc\u20ac".getBytes(StandardCharsets.UTF_8);
+        assertEquals(MessageType.STRING, MessageTypeDetector.detect(text, 4));
+        assertEquals(MessageType.BYTES, MessageTypeDetector.detect(Arrays.copyOf(text, 4), 0));
+    }
+
+    @Test
+    public void testDetect_InspectsWholePayloadByDefault() {
+        StringBuilder json = new StringBuilder("{\"a\":\"");
+        while (json.length() < 128 * 1024) {
+            json.append("0123456789");
+        }
+        json.append("\"} and then garbage");
+        assertEquals(MessageType.STRING, MessageTypeDetector.detect(json.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testDetectBytes_MalformedUtf8() {
+        byte[][] malformed = { { 'a', (byte) 0xC0, (byte) 0x80 }, // overlong
+                { 'a', (byte) 0xED, (byte) 0xA0, (byte) 0x80 }, // surrogate
+                { 'a', (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 }, // above U+10FFFF
+                { 'a', (byte) 0xE2, 'b', 'c' } }; // missing continuation
+        for (byte[] payload : malformed) {
+            assertEquals(MessageType.BYTES, MessageTypeDetector.detect(payload));
+        }
+    }
+
+    @Test
+    public void testDetect_PrintableRatioCountsC1Controls() {
+        // four C1 controls among sixteen characters: exactly 80% printable
+        StringBuilder text = new StringBuilder("abcdefghijkl");
+        for (int i = 0; i < 4; i++) {
+            text.append('\u0085');
+        }
+        assertEquals(MessageType.BYTES, MessageTypeDetector.detect(text.toString().getBytes(StandardCharsets.UTF_8)));
+        text.insert(0, "vwxyz"); // 17 of 21
+        assertEquals(MessageType.STRING, MessageTypeDetector.detect(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testDetect_ByteBufferMatchesArray() {
+        String[] samples = { "{\"a\":[1,2,{\"b\":null}]}", "plain text", "[1,2" };
+        for (String sample : samples) {
+            byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+            MessageType expected = MessageTypeDetector.detect(bytes);
+
+            ByteBuffer heap = ByteBuffer.allocate(bytes.length + 4);
+            heap.position(2);
+            heap.put(bytes).flip().position(2);
+            assertEquals(sample, expected, MessageTypeDetector.detectBuffer(heap.slice()));
+            assertEquals(sample, 2, heap.position());
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes).flip();
+            assertEquals(sample, expected, MessageTypeDetector.detectBuffer(direct.asReadOnlyBuffer()));
+            assertEquals(sample, 0, direct.position());
+        }
+        byte[] binary = { 0, 1, 2, 3 };
+        assertEquals(MessageType.BYTES, MessageTypeDetector.detectBuffer(ByteBuffer.wrap(binary)));
+        assertEquals(MessageType.BYTES, MessageTypeDetector.detectBuffer(ByteBuffer.allocate(0)));
+    }
 }
@@ -0,0 +1,265 @@
+package in.co.abi.dev.mqtt.message;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import in.co.abi.dev.mqtt.ClientSession;
+import in.co.abi.dev.mqtt.codec.BufferPool;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MqttMessage.
+ */
+public class MqttMessageTest {
+
+    /**
+     * Records which handler method each message reached.
+     */
+    private static final class RecordingHandler extends DefaultMessageHandler {
+        final List<String> calls = new ArrayList<>();
+
+        RecordingHandler(String... bytesOnlyFilters) {
+            super(Arrays.asList(bytesOnlyFilters));
+        }
+
+        @Override
+        public void handleBytes(String topic, byte[] payload, ClientSession session) {
+            calls.add("bytes:" + topic);
+        }
+
+        @Override
+        public void handleString(String topic, String payload, ClientSession session) {
+            calls.add("string:" + topic);
+        }
+
+        @Override
+        public void handleJson(String topic, MqttMessage message, ClientSession session) {
+            calls.add("json:" + topic);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testGetType_DetectedOnFirstUseAndRemembered() {
+        MqttMessage message = new MqttMessage("t", utf8("{\"a\":1}"));
+        assertFalse(message.isTypeKnown());
+
+        assertEquals(MessageType.JSON, message.getType());
+        assertTrue(message.isTypeKnown());
+        assertSame(message.getType(), message.getType());
+    }
+
+    @Test
+    public void testGetType_ExplicitTypeSkipsDetection() {
+        MqttMessage message = new MqttMessage("t", utf8("{\"a\":1}"), MessageType.BYTES);
+        assertTrue(message.isTypeKnown());
+        assertEquals(MessageType.BYTES, message.getType());
+    }
+
+    @Test
+    public void testAccessors_DetectLazily() throws Exception {
+        MqttMessage message = new MqttMessage("t", utf8("{\"a\":1}"));
+        assertEquals(1, message.asJsonNode().get("a").asInt());
+        assertTrue(message.isTypeKnown());
+
+        MqttMessage text = new MqttMessage("t", utf8("plain"));
+        try {
+            text.asJsonNode();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("STRING"));
+        }
+    }
+
+    @Test
+    public void testWithExpiryInterval_KeepsLazyType() {
+        MqttMessage message = new MqttMessage("t", utf8("hello")).withExpiryInterval(10);
+        assertFalse(message.isTypeKnown());
+        assertEquals(MessageType.STRING, message.getType());
+    }
+
+    @Test
+    public void testHandle_BytesOnlyTopicsSkipDetection() {
+        RecordingHandler handler = new RecordingHandler("raw/#");
+        MqttMessage raw = new MqttMessage("raw/sensor", utf8("{\"a\":1}"));
+        MqttMessage json = new MqttMessage("app/state", utf8("{\"a\":1}"));
+
+        assertTrue(handler.isBytesOnly("raw/sensor"));
+        assertFalse(handler.isBytesOnly("app/state"));
+        handler.handle(raw, null);
+        handler.handle(json, null);
+
+        assertEquals(Arrays.asList("bytes:raw/sensor", "json:app/state"), handler.calls);
+        assertFalse(raw.isTypeKnown());
+    }
+
+    private static SharedPayload encode(String topic, byte[] payload, BufferPool pool) {
+        byte[] name = utf8(topic);
+        ByteBuffer frame = ByteBuffer.allocate(2 + name.length + payload.length);
+        frame.putShort((short) name.length).put(name).put(payload).flip();
+        return SharedPayload.copyOf(frame, 0, 2 + name.length, payload.length, pool);
+    }
+
+    @Test
+    public void testWrap_ViewsBufferWithoutCopy() {
+        ByteBuffer frame = ByteBuffer.wrap(utf8("xx{\"a\":1}yy"));
+        frame.position(2).limit(9);
+        MqttMessage message = MqttMessage.wrap("t", frame, null);
+
+        assertEquals(7, message.getPayloadSize());
+        assertEquals(2, frame.position()); // caller's buffer untouched
+        frame.put(7, (byte) '2');
+        assertEquals("{\"a\":2}", message.asString());
+        assertEquals(MessageType.JSON, message.getType());
+    }
+
+    @Test
+    public void testAsByteBuffer_ReadOnlyIndependentViews() {
+        MqttMessage message = new MqttMessage("t", utf8("hello"));
+        ByteBuffer first = message.asByteBuffer();
+        assertTrue(first.isReadOnly());
+        assertEquals(5, first.remaining());
+        first.get();
+
+        assertEquals(5, message.asByteBuffer().remaining());
+        try {
+            first.put(0, (byte) 'j');
+            fail("Expected ReadOnlyBufferException");
+        } catch (ReadOnlyBufferException e) {
+            // expected
+        }
+        assertEquals("hello", message.asString());
+    }
+
+    @Test
+    public void testWriteTo_WritesWholePayload() throws Exception {
+        MqttMessage message = new MqttMessage("t", utf8("hello world"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(11, message.writeTo(Channels.newChannel(out)));
+        assertEquals("hello world", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(11, message.asByteBuffer().remaining());
+    }
+
+    @Test
+    public void testWrap_PooledPayloadDetectsAndReadsInPlace() throws Exception {
+        BufferPool pool = new BufferPool(4096, 1 << 20);
+        SharedPayload shared = encode("a/b", utf8("{\"n\":[1,2]}"), pool);
+        MqttMessage message = MqttMessage.wrap("a/b", shared, null);
+
+        assertTrue(message.asByteBuffer().isDirect());
+        assertEquals(MessageType.JSON, message.getType());
+        assertEquals(2, message.asJsonNode().get("n").size());
+        assertArrayEquals(utf8("{\"n\":[1,2]}"), message.asBytes());
+        shared.release();
+    }
+
+    @Test
+    public void testRetainRelease_ReturnsBufferToPoolOnLastRelease() {
+        BufferPool pool = new BufferPool(4096, 1 << 20);
+        SharedPayload shared = encode("t", utf8("data"), pool);
+        MqttMessage message = MqttMessage.wrap("t", shared, MessageType.BYTES).withExpiryInterval(5);
+
+        message.retain();
+        shared.release(); // the broker is done; the handler still holds the message
+        assertEquals(0, pool.idleCount());
+        assertEquals("data", message.asString());
+
+        message.release();
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void testRetainRelease_NoOpForOwnedPayload() {
+        MqttMessage message = new MqttMessage("t", utf8("data"));
+        assertSame(message, message.retain());
+        message.release();
+        message.release();
+        assertEquals("data", message.asString());
+    }
+
+    @Test
+    public void testHandle_BytesReachHandleBytesAsCopy() {
+        final byte[][] seen = new byte[1][];
+        DefaultMessageHandler handler = new DefaultMessageHandler() {
+            @Override
+            public void handleBytes(String topic, byte[] payload, ClientSession session) {
+                seen[0] = payload;
+            }
+        };
+        byte[] binary = { 0, 1, 2, (byte) 0xFF };
+        handler.handle(MqttMessage.wrap("t", ByteBuffer.wrap(binary), null), null);
+
+        assertArrayEquals(binary, seen[0]);
+        assertNotSame(binary, seen[0]);
+    }
+
+    public static final class Reading {
+        public int id;
+        public double temp;
+    }
+
+    @Test
+    public void testAsJsonNode_ParsedOnceAndShared() throws Exception {
+        MqttMessage message = new MqttMessage("t", utf8("{\"id\":7,\"temp\":21.5}"));
+        assertFalse(message.isJsonCached());
+
+        JsonNode first = message.asJsonNode();
+        assertTrue(message.isJsonCached());
+        assertSame(first, message.asJsonNode());
+        assertSame(first, message.withExpiryInterval(10).asJsonNode());
+    }
+
+    @Test
+    public void testAsJson_ConvertsFromCachedTree() throws Exception {
+        MqttMessage message = new MqttMessage("t", utf8("{\"id\":7,\"temp\":21.5}"));
+        Reading direct = message.asJson(Reading.class);
+        assertFalse(message.isJsonCached()); // no tree built for a single conversion
+        assertEquals(7, direct.id);
+
+        message.asJsonNode();
+        Reading fromTree = message.asJson(Reading.class);
+        assertEquals(7, fromTree.id);
+        assertEquals(21.5, fromTree.temp, 0.0);
+    }
+
+    @Test
+    public void testAsJsonNode_LargePayloadNotCached() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        while (json.length() < 1024 * 1024 + 16) {
+            json.append("1234567890,");
+        }
+        json.append("0]");
+        MqttMessage message = new MqttMessage("t", utf8(json.toString()), MessageType.JSON);
+
+        JsonNode first = message.asJsonNode();
+        assertFalse(message.isJsonCached());
+        assertNotSame(first, message.asJsonNode());
+        assertEquals(first, message.asJsonNode());
+    }
+
+    @Test
+    public void testAsJsonNode_OutlivesPooledPayload() throws Exception {
+        BufferPool pool = new BufferPool(4096, 1 << 20);
+        SharedPayload shared = encode("t", utf8("{\"a\":1}"), pool);
+        MqttMessage message = MqttMessage.wrap("t", shared, null);
+        JsonNode node = message.asJsonNode();
+        shared.release();
+
+        assertSame(node, message.asJsonNode());
+        assertEquals(1, node.get("a").asInt());
+    }
+}
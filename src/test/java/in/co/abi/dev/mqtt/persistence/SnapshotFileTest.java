@@ -0,0 +1,56 @@
+package in.co.abi.dev.mqtt.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SnapshotFile.
+ */
+public class SnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWrite_ReadLatestRoundTrip() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        SnapshotFile.write(dir, 100, out -> out.writeInt(1));
+        SnapshotFile.write(dir, 250, out -> {
+            out.writeInt(2);
+            out.writeLong(42);
+        });
+
+        SnapshotFile snapshot = SnapshotFile.readLatest(dir);
+        assertEquals(250, snapshot.getWalOffset());
+        ByteBuffer body = snapshot.getBody();
+        assertEquals(12, body.remaining());
+        assertEquals(2, body.getInt());
+        assertEquals(42, body.getLong());
+        // the older snapshot is gone
+        assertEquals(1, Files.list(dir).count());
+    }
+
+    @Test
+    public void testReadLatest_IgnoresDamagedSnapshot() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        Path file = SnapshotFile.write(dir, 7, out -> out.writeInt(123456));
+        byte[] data = Files.readAllBytes(file);
+        data[data.length - 5] ^= 0x01; // body byte
+        Files.write(file, data);
+
+        assertNull(SnapshotFile.readLatest(dir));
+    }
+
+    @Test
+    public void testReadLatest_NoDirectory() throws IOException {
+        assertNull(SnapshotFile.readLatest(folder.getRoot().toPath().resolve("missing")));
+    }
+}
@@ -0,0 +1,380 @@
+package in.co.abi.dev.mqtt.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for WriteAheadLog.
+ */
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Segment channel whose next gathering write stops halfway and throws,
+     * as a full disk would.
+     */
+    private static final class FailingChannel extends FileChannel {
+        final FileChannel delegate;
+        final AtomicBoolean failNext;
+
+        FailingChannel(FileChannel delegate, AtomicBoolean failNext) {
+            this.delegate = delegate;
+            this.failNext = failNext;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failNext.compareAndSet(true, false)) {
+                ByteBuffer half = srcs[offset].duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                delegate.write(half);
+                throw new IOException("No space left on device");
+            }
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+
+    @Test
+    public void testAppend_CallbackAfterRecordIsWritten() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        CountDownLatch done = new CountDownLatch(1);
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 16, 0, 64)) {
+            wal.append(bytes("hello"), error -> {
+                assertNull(error);
+                done.countDown();
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            List<Path> segments = wal.segments();
+            assertEquals(1, segments.size());
+            ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(segments.get(0)));
+            assertEquals(5, file.getInt());
+            int crc = file.getInt();
+            CRC32 expected = new CRC32();
+            expected.update("hello".getBytes(StandardCharsets.UTF_8));
+            assertEquals((int) expected.getValue(), crc);
+            assertEquals(13, file.limit());
+        }
+    }
+
+    @Test
+    public void testAppend_ManyWritersShareFsyncs() throws Exception {
+        int writers = 4;
+        int perWriter = 500;
+        AtomicInteger durable = new AtomicInteger();
+        try (WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 1 << 20, 256,
+                TimeUnit.MILLISECONDS.toNanos(1), 4096)) {
+            Thread[] threads = new Thread[writers];
+            for (int t = 0; t < writers; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < perWriter; i++) {
+                        try {
+                            wal.append(bytes("record"), error -> durable.incrementAndGet());
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            wal.close();
+            assertEquals(writers * perWriter, durable.get());
+            assertEquals(writers * perWriter, wal.getRecords());
+            assertTrue(wal.getBatches() < wal.getRecords());
+        }
+    }
+
+    @Test
+    public void testBarrier_WaitsForEarlierRecords() throws Exception {
+        List<String> order = new CopyOnWriteArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 1 << 20, 16, 0, 64)) {
+            wal.append(bytes("a"), error -> order.add("record"));
+            wal.barrier(error -> order.add("barrier"));
+            wal.close();
+            assertEquals(2, order.size());
+            assertEquals("record", order.get(0));
+            assertEquals(1, wal.getRecords());
+        }
+    }
+
+    @Test
+    public void testAppend_RollsSegmentsAndKeepsThemOnReopen() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 4096, 1, 0, 64)) {
+            for (int i = 0; i < 10; i++) {
+                wal.append(ByteBuffer.allocate(1000), error -> {
+                });
+            }
+            wal.close();
+            assertTrue(wal.segments().size() > 1);
+        }
+        try (WriteAheadLog reopened = new WriteAheadLog(dir, 4096, 1, 0, 64)) {
+            List<Path> segments = reopened.segments();
+            long end = WriteAheadLog.baseOf(segments.get(segments.size() - 1));
+            assertEquals(10 * (1000 + WriteAheadLog.HEADER_BYTES), end);
+        }
+    }
+
+    @Test
+    public void testAppend_FailedWriteKeepsLaterOffsets() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        AtomicBoolean failNext = new AtomicBoolean();
+        List<String> outcomes = new CopyOnWriteArrayList<>();
+        WriteAheadLog.Callback record = error -> outcomes.add(error == null ? "durable" : "failed");
+        Map<Long, String> replayed = new TreeMap<>();
+        long third;
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 1, 0, 64,
+                path -> new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND), failNext))) {
+            wal.append(bytes("one"), error -> {
+            });
+            awaitBarrier(wal);
+            failNext.set(true);
+            long lost = wal.position();
+            wal.append(bytes("lost"), record);
+            awaitBarrier(wal);
+            third = wal.position();
+            wal.append(bytes("three"), record);
+            awaitBarrier(wal);
+
+            assertEquals(Arrays.asList("failed", "durable"), outcomes);
+            assertFalse(wal.isFailed());
+            assertEquals(lost + WriteAheadLog.HEADER_BYTES + 4, third);
+            assertEquals(2, wal.segments().size());
+            wal.replay(0, (offset, body) -> replayed.put(offset, StandardCharsets.UTF_8.decode(body).toString()));
+        }
+        assertEquals(2, replayed.size());
+        assertEquals("one", replayed.get(0L));
+        assertEquals("three", replayed.get(third)); // at the offset append handed out
+    }
+
+    @Test
+    public void testAppend_RefusedOnceSegmentCannotBeReplaced() throws Exception {
+        AtomicBoolean failNext = new AtomicBoolean();
+        AtomicInteger opened = new AtomicInteger();
+        try (WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 1 << 20, 1, 0, 64, path -> {
+            if (opened.getAndIncrement() > 0) {
+                throw new IOException("Read-only file system");
+            }
+            return new FailingChannel(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND), failNext);
+        })) {
+            failNext.set(true);
+            CountDownLatch done = new CountDownLatch(1);
+            wal.append(bytes("lost"), error -> done.countDown());
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertTrue(wal.isFailed());
+            try {
+                wal.append(bytes("late"), error -> {
+                });
+                fail("append accepted by a failed log");
+            } catch (IOException expected) {
+                // refused
+            }
+        }
+    }
+
+    private static void awaitBarrier(WriteAheadLog wal) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        wal.barrier(error -> done.countDown());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IOException.class)
+    public void testAppend_AfterCloseFails() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 1 << 20, 16, 0, 64);
+        wal.close();
+        wal.append(bytes("late"), error -> {
+        });
+    }
+
+    @Test
+    public void testReplay_FromOffsetStopsAtTornRecord() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        long second;
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 16, 0, 64)) {
+            wal.append(bytes("one"), error -> {
+            });
+            second = wal.position();
+            wal.append(bytes("two"), error -> {
+            });
+            wal.append(bytes("three"), error -> {
+            });
+        }
+        // tear the last record, as a crash mid-write would
+        Path segment = dir.resolve(String.format("%020d.wal", 0));
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 1] ^= 0x55;
+        Files.write(segment, data);
+
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 16, 0, 64)) {
+            long count = wal.replay(second, (offset, body) -> replayed.add(StandardCharsets.UTF_8.decode(body)
+                    .toString()));
+            assertEquals(1, count);
+        }
+        assertEquals(Collections.singletonList("two"), replayed);
+    }
+
+    @Test
+    public void testReopen_StartsAfterNewestSnapshot() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 16, 0, 64)) {
+            wal.append(bytes("one"), error -> {
+            });
+        }
+        // a snapshot taken at an offset whose records were lost in a crash
+        SnapshotFile.write(dir, 1000, out -> out.writeInt(0));
+
+        List<String> replayed = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1 << 20, 16, 0, 64)) {
+            assertEquals(1000, wal.position());
+            wal.append(bytes("two"), error -> {
+            });
+            wal.sync();
+            // from falls in the gap after the first segment
+            assertEquals(1, wal.replay(500, (offset, body) -> replayed.add(StandardCharsets.UTF_8.decode(body)
+                    .toString())));
+        }
+        assertEquals(Collections.singletonList("two"), replayed);
+    }
+
+    @Test
+    public void testTruncateBefore_DeletesCoveredSegments() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(folder.newFolder().toPath(), 4096, 1, 0, 64)) {
+            for (int i = 0; i < 10; i++) {
+                wal.append(ByteBuffer.allocate(1000), error -> {
+                });
+            }
+            CountDownLatch written = new CountDownLatch(1);
+            wal.barrier(error -> written.countDown());
+            assertTrue(written.await(5, TimeUnit.SECONDS));
+            int before = wal.segments().size();
+            long position = wal.position();
+
+            int deleted = wal.truncateBefore(position);
+            assertEquals(before - 1, deleted);
+            assertEquals(1, wal.segments().size());
+            assertEquals(0, wal.replay(position, (offset, body) -> fail()));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package in.co.abi.dev.mqtt.retained;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RetainedStore.
+ */
+public class RetainedStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(RetainedMessage message) {
+        return new String(message.getPayload(), StandardCharsets.UTF_8);
+    }
+
+    private static Set<String> topics(List<RetainedMessage> messages) {
+        Set<String> topics = new HashSet<>();
+        for (RetainedMessage message : messages) {
+            topics.add(message.getTopic());
+        }
+        return topics;
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testPut_ReplacesAndEmptyPayloadClears() {
+        RetainedStore store = new RetainedStore();
+        store.put("a/b", 1, bytes("one"));
+        store.put("a/b", 0, bytes("two"));
+        assertEquals("two", text(store.get("a/b")));
+        assertEquals(0, store.get("a/b").getQos());
+        assertEquals(1, store.size());
+
+        store.put("a/b", 0, ByteBuffer.allocate(0));
+        assertNull(store.get("a/b"));
+        assertEquals(0, store.size());
+        assertTrue(store.match("#").isEmpty());
+    }
+
+    @Test
+    public void testMatch_Wildcards() {
+        RetainedStore store = new RetainedStore();
+        for (String topic : new String[] { "site", "site/a/temp", "site/b/temp", "site/b/hum", "other",
+                "$SYS/uptime" }) {
+            store.put(topic, 0, bytes(topic));
+        }
+        assertEquals(set("site", "site/a/temp", "site/b/temp", "site/b/hum"), topics(store.match("site/#")));
+        assertEquals(set("site/a/temp", "site/b/temp"), topics(store.match("site/+/temp")));
+        assertEquals(set("site", "other"), topics(store.match("+")));
+        assertEquals(set("site", "site/a/temp", "site/b/temp", "site/b/hum", "other"), topics(store.match("#")));
+        assertEquals(set("$SYS/uptime"), topics(store.match("$SYS/#")));
+        assertEquals(set("site/b/hum"), topics(store.match("site/b/hum")));
+    }
+
+    @Test
+    public void testLargePayloadsServedFromMapping() throws IOException {
+        RetainedStore store = new RetainedStore(folder.getRoot().toPath().resolve("retained.dat"), 8, 64 * 1024);
+        store.put("small", 0, bytes("tiny"));
+        store.put("large", 1, bytes("a payload over eight bytes"));
+
+        assertFalse(store.get("small").isMapped());
+        assertTrue(store.get("large").isMapped());
+        assertEquals("a payload over eight bytes", text(store.get("large")));
+        assertEquals(1, store.get("large").getQos());
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("retained.dat");
+        RetainedStore store = new RetainedStore(file, 8, 64 * 1024);
+        store.put("keep", 1, bytes("kept across restarts"));
+        store.put("gone", 0, bytes("x"));
+        store.put("replaced", 0, bytes("old"));
+        store.put("replaced", 0, bytes("new"));
+        store.remove("gone");
+        store.force();
+
+        RetainedStore reopened = new RetainedStore(file, 8, 64 * 1024);
+        assertEquals(2, reopened.size());
+        assertEquals("kept across restarts", text(reopened.get("keep")));
+        assertEquals(1, reopened.get("keep").getQos());
+        assertEquals("new", text(reopened.get("replaced")));
+        assertNull(reopened.get("gone"));
+    }
+
+    @Test
+    public void testCompactsWhenMappingIsFull() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("retained.dat");
+        RetainedStore store = new RetainedStore(file, 8, 1024);
+        store.put("stable", 0, bytes("a large stable payload"));
+        for (int i = 0; i < 500; i++) {
+            store.put("counter", 0, bytes("value-" + i));
+        }
+        assertEquals("value-499", text(store.get("counter")));
+        assertEquals("a large stable payload", text(store.get("stable")));
+
+        RetainedStore reopened = new RetainedStore(file, 8, 1024);
+        assertEquals("value-499", text(reopened.get("counter")));
+        assertEquals("a large stable payload", text(reopened.get("stable")));
+    }
+
+    @Test
+    public void testExpiredMessagesAreNotMatched() {
+        RetainedStore store = new RetainedStore();
+        store.put("a/old", 0, bytes("x"), 1);
+        store.put("a/new", 0, bytes("y"), Long.MAX_VALUE);
+
+        assertEquals(set("a/new"), topics(store.match("a/#")));
+        assertNull(store.get("a/old"));
+        assertEquals(Long.MAX_VALUE, store.get("a/new").getExpiresAt());
+    }
+
+    @Test
+    public void testSweepExpired_InExpiryOrderWithinBudget() {
+        RetainedStore store = new RetainedStore();
+        store.put("a", 0, bytes("1"), 3000);
+        store.put("b", 0, bytes("2"), 1000);
+        store.put("c", 0, bytes("3"), 2000);
+        store.put("d", 0, bytes("4"));
+
+        assertEquals(0, store.sweepExpired(999, 10));
+        assertEquals(1, store.sweepExpired(5000, 1));
+        assertEquals(3, store.size());
+        assertEquals(2, store.sweepExpired(5000, 10));
+        assertEquals(1, store.size());
+        assertEquals(3, store.getExpiredCount());
+    }
+
+    @Test
+    public void testSweepExpired_ReplacedMessageKeepsItsOwnExpiry() {
+        RetainedStore store = new RetainedStore();
+        store.put("t", 0, bytes("short"), 1000);
+        store.put("t", 0, bytes("long"), 5000);
+
+        assertEquals(0, store.sweepExpired(2000, 10));
+        assertEquals(1, store.size());
+        assertEquals(1, store.sweepExpired(5000, 10));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testRestartSkipsExpiredRecords() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("retained.dat");
+        RetainedStore store = new RetainedStore(file, 8, 64 * 1024);
+        store.put("expired", 0, bytes("x"), 1);
+        store.put("valid", 0, bytes("y"), Long.MAX_VALUE);
+        store.force();
+
+        RetainedStore reopened = new RetainedStore(file, 8, 64 * 1024);
+        assertEquals(1, reopened.size());
+        assertEquals("y", text(reopened.get("valid")));
+        assertEquals(Long.MAX_VALUE, reopened.get("valid").getExpiresAt());
+    }
+}
@@ -118,6 +118,23 @@ public class AuthenticationManagerTest {
                 authManager.canSubscribe(null, "sensors/temp"));
     }
 
+    @Test
+    public void testCanSubscribe_WildcardReachingPrivateTopicRequiresAuth() {
+        // Assuming mqtt.private.topics=admin/commands,system/config,private/data
+        assertFalse(authManager.canSubscribe(null, "#"));
+        assertFalse(authManager.canSubscribe(null, "admin/+"));
+        assertFalse(authManager.canSubscribe(null, "+/config"));
+        assertFalse(authManager.canSubscribe(null, "private/data/#"));
+        assertTrue(authManager.canSubscribe("admin", "#"));
+    }
+
+    @Test
+    public void testCanSubscribe_WildcardAvoidingPrivateTopics() {
+        assertEquals(authManager.isAnonymousAllowed(), authManager.canSubscribe(null, "sensors/#"));
+        assertEquals(authManager.isAnonymousAllowed(), authManager.canSubscribe(null, "+/temp"));
+        assertEquals(authManager.isAnonymousAllowed(), authManager.canSubscribe(null, "admin/status/+"));
+    }
+
     @Test
     public void testIsAuthEnabled() {
         // Should match mqtt.auth.enabled property
@@ -0,0 +1,82 @@
+package in.co.abi.dev.mqtt.session;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SegmentLog.
+ */
+public class SegmentLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer buffer) {
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testAppend_ReadBackByOffset() throws IOException {
+        try (SegmentLog log = new SegmentLog(folder.newFolder().toPath(), 4096)) {
+            long first = log.append(bytes("first"));
+            long second = log.append(bytes("second"));
+
+            assertEquals(0, first);
+            assertEquals(4 + 5, second);
+            assertEquals("second", text(log.read(second)));
+            assertEquals("first", text(log.read(first)));
+        }
+    }
+
+    @Test
+    public void testAppend_RollsSegments() throws IOException {
+        try (SegmentLog log = new SegmentLog(folder.newFolder().toPath(), 1024)) {
+            long[] offsets = new long[10];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = log.append(ByteBuffer.allocate(300));
+            }
+            assertTrue(log.segmentCount() > 1);
+            assertEquals(300, log.read(offsets[9]).remaining());
+        }
+    }
+
+    @Test
+    public void testRelease_DeletesConsumedSegments() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (SegmentLog log = new SegmentLog(dir, 1024)) {
+            long[] offsets = new long[9];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = log.append(ByteBuffer.allocate(300));
+            }
+            int segments = log.segmentCount();
+            log.release(offsets[0]);
+            log.release(offsets[1]);
+            assertEquals(segments, log.segmentCount()); // one record still live
+            log.release(offsets[2]);
+            assertEquals(segments - 1, log.segmentCount());
+            assertEquals(segments - 1, Files.list(dir).count());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRead_UnknownOffset() throws IOException {
+        try (SegmentLog log = new SegmentLog(folder.newFolder().toPath(), 4096)) {
+            log.append(bytes("only"));
+            log.read(1000);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package in.co.abi.dev.mqtt.session;
+
+import in.co.abi.dev.mqtt.codec.BufferPool;
+import in.co.abi.dev.mqtt.codec.SharedPayload;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SessionStore.
+ */
+public class SessionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BufferPool pool = new BufferPool(4096, 1 << 20);
+
+    private SharedPayload payload(String topic, String payload) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        body.write(name.length >> 8);
+        body.write(name.length);
+        body.write(name, 0, name.length);
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        body.write(data, 0, data.length);
+        byte[] bytes = body.toByteArray();
+        return SharedPayload.copyOf(ByteBuffer.wrap(bytes), 0, 2 + name.length, data.length, pool);
+    }
+
+    private static String text(SharedPayload payload) {
+        ByteBuffer view = payload.payloadView();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private SessionStore store(int maxOfflineMessages) throws IOException {
+        return new SessionStore(folder.newFolder().toPath(), 4096, maxOfflineMessages);
+    }
+
+    @Test
+    public void testEnqueue_ReadBackInOrder() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        assertTrue(store.enqueue(session, 1, "a/b", payload("a/b", "one")));
+        assertTrue(store.enqueue(session, 2, "a/c", payload("a/c", "two")));
+
+        OfflineMessage first = store.read(session.poll());
+        assertEquals("a/b", first.getTopic());
+        assertEquals(1, first.getQos());
+        assertEquals("one", text(first.getPayload()));
+        OfflineMessage second = store.read(session.poll());
+        assertEquals("a/c", second.getTopic());
+        assertEquals(2, second.getQos());
+        assertEquals(-1, session.poll());
+    }
+
+    @Test
+    public void testEnqueue_BoundedPerSession() throws IOException {
+        SessionStore store = store(2);
+        PersistentSession session = store.getOrCreate("device");
+        assertTrue(store.enqueue(session, 1, "t", payload("t", "1")));
+        assertTrue(store.enqueue(session, 1, "t", payload("t", "2")));
+        assertFalse(store.enqueue(session, 1, "t", payload("t", "3")));
+        assertEquals(2, session.backlogSize());
+    }
+
+    @Test
+    public void testRequeueFirst_KeepsOrderAheadOfBacklog() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        store.enqueue(session, 1, "t", payload("t", "queued"));
+        long[] offsets = { store.write(session, 1, payload("t", "a")), store.write(session, 1, payload("t", "b")) };
+        store.requeueFirst(session, offsets, 2);
+
+        assertEquals("a", text(store.read(session.poll()).getPayload()));
+        assertEquals("b", text(store.read(session.poll()).getPayload()));
+        assertEquals("queued", text(store.read(session.poll()).getPayload()));
+    }
+
+    @Test
+    public void testEnqueue_SharedMessageWrittenOnce() throws IOException {
+        SessionStore store = new SessionStore(folder.newFolder().toPath(), 1024, 100);
+        PersistentSession[] sessions = new PersistentSession[3];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = store.getOrCreate("device" + i);
+        }
+        String body = new String(new char[600]);
+        assertEquals(3, store.enqueue(sessions, new int[] { 0, 1, 2 }, 3, "t", payload("t", body), 0));
+        assertEquals(1, store.getLog().segmentCount()); // three copies would not fit one segment
+        store.enqueue(sessions[0], 1, "t", payload("t", body)); // rolls to a second segment
+        assertEquals(2, store.getLog().segmentCount());
+
+        for (int i = 0; i < sessions.length; i++) {
+            long entry = sessions[i].poll();
+            OfflineMessage message = store.read(entry);
+            assertEquals(i, message.getQos());
+            assertEquals(body, text(message.getPayload()));
+            store.release(entry);
+            // the segment goes once the last session has released the message
+            assertEquals(i < 2 ? 2 : 1, store.getLog().segmentCount());
+        }
+    }
+
+    @Test
+    public void testEnqueue_SkipsFullBacklogs() throws IOException {
+        SessionStore store = store(1);
+        PersistentSession full = store.getOrCreate("full");
+        store.enqueue(full, 1, "t", payload("t", "first"));
+        PersistentSession[] sessions = { full, store.getOrCreate("empty") };
+        int[] qos = { 1, 2 };
+
+        assertEquals(1, store.enqueue(sessions, qos, 2, "t", payload("t", "second"), 0));
+        assertEquals("empty", sessions[0].getClientId());
+        assertEquals(2, qos[0]);
+        assertEquals(1, full.backlogSize());
+    }
+
+    @Test
+    public void testSubscriptionQos_IgnoresSharedFilters() {
+        PersistentSession session = new PersistentSession("device");
+        session.setSubscriptions(Collections.singletonMap("$share/g/a/#", 2));
+        assertEquals(-1, session.subscriptionQos("a/b"));
+        session.setSubscriptions(Collections.singletonMap("a/+", 1));
+        assertEquals(1, session.subscriptionQos("a/b"));
+    }
+
+    @Test
+    public void testRemove_ReleasesQueuedMessages() throws IOException {
+        SessionStore store = new SessionStore(folder.newFolder().toPath(), 1024, 100);
+        PersistentSession session = store.getOrCreate("device");
+        for (int i = 0; i < 10; i++) {
+            store.enqueue(session, 1, "t", payload("t", new String(new char[200])));
+        }
+        assertTrue(store.getLog().segmentCount() > 1);
+
+        store.remove("device");
+        assertNull(store.get("device"));
+        assertEquals(1, store.getLog().segmentCount()); // only the active segment is left
+    }
+
+    @Test
+    public void testSweepExpired_DropsOnlyExpiredKeepingOrder() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        store.enqueue(session, 1, "t", payload("t", "old"), 1000);
+        store.enqueue(session, 1, "t", payload("t", "forever"), 0);
+        store.enqueue(session, 1, "t", payload("t", "later"), 5000);
+        assertFalse(session.mayHaveExpired(999));
+
+        assertEquals(1, store.sweepExpired(2000, 100));
+        assertEquals(2, session.backlogSize());
+        assertEquals(1, store.getExpiredCount());
+        assertEquals("forever", text(store.read(session.poll()).getPayload()));
+        OfflineMessage later = store.read(session.poll());
+        assertEquals("later", text(later.getPayload()));
+        assertEquals(5000, later.getExpiresAt());
+        assertTrue(later.isExpired(5000));
+    }
+
+    @Test
+    public void testSweepExpired_ResumesAcrossCalls() throws IOException {
+        SessionStore store = store(10);
+        for (int i = 0; i < 4; i++) {
+            PersistentSession session = store.getOrCreate("device" + i);
+            store.enqueue(session, 1, "t", payload("t", "x"), 1000);
+        }
+        // two messages per call: each session costs itself plus its backlog
+        assertEquals(1, store.sweepExpired(2000, 2));
+        assertEquals(1, store.sweepExpired(2000, 2));
+        assertEquals(2, store.sweepExpired(2000, 10));
+        assertEquals(0, store.sweepExpired(2000, 10));
+        assertEquals(4, store.getExpiredCount());
+    }
+
+    @Test
+    public void testSnapshot_SkipsExpiredMessages() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        store.enqueue(session, 1, "t", payload("t", "gone"), 1);
+        store.enqueue(session, 1, "t", payload("t", "kept"), Long.MAX_VALUE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writeSnapshot(store.capture(), new DataOutputStream(bytes));
+        SessionStore restored = store(10);
+        PersistentSession copy = restored.loadSnapshot(ByteBuffer.wrap(bytes.toByteArray())).get(0);
+
+        assertEquals(1, copy.backlogSize());
+        OfflineMessage message = restored.read(copy.poll());
+        assertEquals("kept", text(message.getPayload()));
+        assertEquals(Long.MAX_VALUE, message.getExpiresAt());
+    }
+
+    @Test
+    public void testSnapshot_SharedMessageRestoredOnce() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession[] sessions = { store.getOrCreate("a"), store.getOrCreate("b") };
+        store.enqueue(sessions, new int[] { 1, 2 }, 2, "t", payload("t", "shared"), 0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writeSnapshot(store.capture(), new DataOutputStream(bytes));
+        SessionStore restored = store(10);
+        restored.loadSnapshot(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(4 + 16 + 2 + 1 + 6, restored.getLog().size()); // one record for both sessions
+        for (String clientId : new String[] { "a", "b" }) {
+            OfflineMessage message = restored.read(restored.get(clientId).poll());
+            assertEquals("shared", text(message.getPayload()));
+            assertEquals("a".equals(clientId) ? 1 : 2, message.getQos());
+        }
+    }
+
+    @Test
+    public void testSnapshot_KeepsInflightDeliveriesWithPacketIds() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        store.keepInflight(session, 7, 2, payload("t", "parked").setLogOffset(42));
+        store.keepInflight(session, 9, 2, null); // PUBREL outstanding
+        store.enqueue(session, 1, "t", payload("t", "queued"));
+        List<SessionImage> images = store.capture();
+        images.get(0).addLive(3, 1, payload("t", "live"));
+        images.get(0).addLive(0, 1, payload("t", "waiting"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writeSnapshot(images, new DataOutputStream(bytes));
+        images.get(0).release();
+        SessionStore restored = store(10);
+        PersistentSession copy = restored.loadSnapshot(ByteBuffer.wrap(bytes.toByteArray())).get(0);
+
+        assertEquals(3, copy.inflightSize());
+        assertEquals(2, copy.backlogSize());
+        List<String> resumed = new ArrayList<>();
+        restored.resumeInflight(copy, (packetId, message) -> {
+            resumed.add(packetId + (message == null ? "" : ":" + text(message.getPayload())));
+            if (message != null) {
+                assertEquals(packetId == 7 ? 42 : -1, message.getPayload().getLogOffset());
+                message.getPayload().release();
+            }
+        });
+        assertEquals(Arrays.asList("7:parked", "9", "3:live"), resumed);
+        assertEquals("waiting", text(restored.read(copy.poll()).getPayload()));
+        assertEquals("queued", text(restored.read(copy.poll()).getPayload()));
+    }
+
+    @Test
+    public void testRemoveDelivered_DropsAcknowledgedMessages() throws IOException {
+        SessionStore store = store(10);
+        PersistentSession session = store.getOrCreate("device");
+        for (int i = 1; i <= 3; i++) {
+            store.enqueue(session, 1, "t", payload("t", "m" + i).setLogOffset(i * 10));
+        }
+        store.keepInflight(session, 5, 1, payload("t", "sent").setLogOffset(40));
+        store.keepInflight(session, 6, 2, null);
+
+        assertEquals(2, store.removeDelivered(session, new HashSet<>(Arrays.asList(20L, 40L))));
+        assertEquals(1, session.inflightSize());
+        assertEquals("m1", text(store.read(session.poll()).getPayload()));
+        assertEquals("m3", text(store.read(session.poll()).getPayload()));
+        assertTrue(store.completeInflight(session, 6));
+        assertEquals(0, session.inflightSize());
+    }
+}
@@ -0,0 +1,159 @@
+package in.co.abi.dev.mqtt.subscription;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SubscriberSet.
+ */
+public class SubscriberSetTest {
+
+    private final SubscriberSet<String> set = new SubscriberSet<>();
+
+    private static Set<String> toSet(Iterable<String> items) {
+        Set<String> out = new HashSet<>();
+        for (String s : items) {
+            assertTrue("duplicate " + s, out.add(s));
+        }
+        return out;
+    }
+
+    @Test
+    public void testAddRemoveContains() {
+        assertTrue(set.add("a"));
+        assertFalse(set.add("a"));
+        assertTrue(set.add("b"));
+        assertEquals(2, set.size());
+        assertTrue(set.contains("a"));
+
+        assertTrue(set.remove("a"));
+        assertFalse(set.remove("a"));
+        assertFalse(set.contains("a"));
+        assertEquals(1, set.size());
+        assertEquals(toSet(set), new HashSet<>(Collections.singletonList("b")));
+    }
+
+    @Test
+    public void testRemovedSlotIsReused() {
+        for (int i = 0; i < SubscriberSet.CHUNK_SIZE; i++) {
+            set.add("s" + i);
+        }
+        int capacity = set.capacity();
+        set.remove("s3");
+        set.add("new");
+        assertEquals(capacity, set.capacity());
+        assertTrue(toSet(set).contains("new"));
+    }
+
+    @Test
+    public void testGrowsAcrossChunks() {
+        int n = SubscriberSet.CHUNK_SIZE * 5 + 3;
+        for (int i = 0; i < n; i++) {
+            set.add("s" + i);
+        }
+        assertEquals(n, set.size());
+        assertEquals(n, toSet(set).size());
+    }
+
+    @Test
+    public void testCompactsWhenMostlyTombstones() {
+        int n = SubscriberSet.CHUNK_SIZE * 8;
+        for (int i = 0; i < n; i++) {
+            set.add("s" + i);
+        }
+        for (int i = 0; i < n - 10; i++) {
+            set.remove("s" + i);
+        }
+        assertTrue("capacity " + set.capacity(), set.capacity() <= SubscriberSet.CHUNK_SIZE * 2);
+        Set<String> remaining = toSet(set);
+        assertEquals(10, remaining.size());
+        assertTrue(remaining.contains("s" + (n - 1)));
+
+        // positions were rewritten, so removal still finds them
+        assertTrue(set.remove("s" + (n - 1)));
+        assertEquals(9, toSet(set).size());
+    }
+
+    @Test
+    public void testEmptySetReleasesChunks() {
+        set.add("a");
+        set.remove("a");
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.capacity());
+        assertFalse(set.iterator().hasNext());
+    }
+
+    @Test
+    public void testIteratorUnaffectedByCompaction() {
+        int n = SubscriberSet.CHUNK_SIZE * 4;
+        for (int i = 0; i < n; i++) {
+            set.add("s" + i);
+        }
+        Iterator<String> it = set.iterator();
+        assertEquals("s0", it.next());
+        // compaction swaps tables under the running iterator
+        for (int i = 1; i < n - 1; i++) {
+            set.remove("s" + i);
+        }
+        List<String> rest = new ArrayList<>();
+        while (it.hasNext()) {
+            rest.add(it.next());
+        }
+        assertTrue(rest.contains("s" + (n - 1)));
+        assertEquals(new HashSet<>(rest).size(), rest.size());
+    }
+
+    @Test
+    public void testConcurrentChurn_StableMembersAlwaysSeenOnce() throws Exception {
+        int stable = 200;
+        for (int i = 0; i < stable; i++) {
+            set.add("stable-" + i);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                String id = "churn-" + (i++ % 1000);
+                set.add(id);
+                if (i % 3 != 0) {
+                    set.remove(id);
+                }
+            }
+        });
+        churn.start();
+
+        AtomicReference<AssertionError> failure = new AtomicReference<>();
+        try {
+            for (int round = 0; round < 2000; round++) {
+                int seen = 0;
+                Set<String> unique = new HashSet<>();
+                for (String s : set) {
+                    if (s.startsWith("stable-")) {
+                        seen++;
+                        unique.add(s);
+                    }
+                }
+                assertEquals(stable, seen);
+                assertEquals(stable, unique.size());
+            }
+        } catch (AssertionError e) {
+            failure.set(e);
+        } finally {
+            running.set(false);
+            churn.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package in.co.abi.dev.mqtt.subscription;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SubscriptionTrie.
+ */
+public class SubscriptionTrieTest {
+
+    private final SubscriptionTrie<String> trie = new SubscriptionTrie<>();
+
+    private static void assertMatches(Collection<String> actual, String... expected) {
+        assertEquals(new HashSet<>(Arrays.asList(expected)), new HashSet<>(actual));
+        assertEquals("duplicate subscriber in " + actual, expected.length, actual.size());
+    }
+
+    @Test
+    public void testMatch_ExactTopic() {
+        trie.subscribe("sensors/room1/temp", "a");
+        assertMatches(trie.match("sensors/room1/temp"), "a");
+        assertMatches(trie.match("sensors/room1"));
+        assertMatches(trie.match("sensors/room1/temp/x"));
+    }
+
+    @Test
+    public void testMatch_SingleLevelWildcard() {
+        trie.subscribe("sensors/+/temp", "a");
+        assertMatches(trie.match("sensors/room1/temp"), "a");
+        assertMatches(trie.match("sensors/room2/temp"), "a");
+        assertMatches(trie.match("sensors/room1/humidity"));
+        assertMatches(trie.match("sensors/room1/x/temp"));
+    }
+
+    @Test
+    public void testMatch_SingleLevelWildcardMatchesEmptyLevel() {
+        trie.subscribe("a/+/c", "s");
+        assertMatches(trie.match("a//c"), "s");
+    }
+
+    @Test
+    public void testMatch_MultiLevelWildcard() {
+        trie.subscribe("site/#", "a");
+        assertMatches(trie.match("site"), "a");
+        assertMatches(trie.match("site/x"), "a");
+        assertMatches(trie.match("site/x/y/z"), "a");
+        assertMatches(trie.match("other/x"));
+    }
+
+    @Test
+    public void testMatch_RootMultiLevelWildcard() {
+        trie.subscribe("#", "all");
+        assertMatches(trie.match("a/b"), "all");
+        assertMatches(trie.match("/leading"), "all");
+    }
+
+    @Test
+    public void testMatch_WildcardsSkipSystemTopics() {
+        trie.subscribe("#", "all");
+        trie.subscribe("+/broker", "plus");
+        trie.subscribe("$SYS/#", "sys");
+        assertMatches(trie.match("$SYS/broker"), "sys");
+    }
+
+    @Test
+    public void testMatch_OverlappingFiltersDeliverOnce() {
+        trie.subscribe("a/b", "s");
+        trie.subscribe("a/+", "s");
+        trie.subscribe("a/#", "s");
+        trie.subscribe("a/+", "t");
+        assertMatches(trie.match("a/b"), "s", "t");
+    }
+
+    @Test
+    public void testSubscribe_DuplicateIgnored() {
+        assertTrue(trie.subscribe("a/b", "s"));
+        assertFalse(trie.subscribe("a/b", "s"));
+        assertMatches(trie.match("a/b"), "s");
+    }
+
+    @Test
+    public void testUnsubscribe_PrunesEmptyNodes() {
+        trie.subscribe("a/b/c", "s");
+        trie.subscribe("a/+", "t");
+        assertTrue(trie.unsubscribe("a/b/c", "s"));
+        assertFalse(trie.unsubscribe("a/b/c", "s"));
+        assertMatches(trie.match("a/b/c"));
+        assertMatches(trie.match("a/b"), "t");
+
+        trie.unsubscribe("a/+", "t");
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testUnsubscribeAll() {
+        trie.subscribe("a/b", "s");
+        trie.subscribe("x/#", "s");
+        trie.subscribe("x/#", "t");
+        assertEquals(2, trie.unsubscribeAll("s"));
+        assertMatches(trie.match("a/b"));
+        assertMatches(trie.match("x/y"), "t");
+    }
+
+    @Test
+    public void testIsValidFilter() {
+        assertTrue(SubscriptionTrie.isValidFilter("a/b"));
+        assertTrue(SubscriptionTrie.isValidFilter("#"));
+        assertTrue(SubscriptionTrie.isValidFilter("a/+/c/#"));
+        assertTrue(SubscriptionTrie.isValidFilter("+"));
+        assertTrue(SubscriptionTrie.isValidFilter("/"));
+        assertFalse(SubscriptionTrie.isValidFilter(""));
+        assertFalse(SubscriptionTrie.isValidFilter("a/#/c"));
+        assertFalse(SubscriptionTrie.isValidFilter("a/b#"));
+        assertFalse(SubscriptionTrie.isValidFilter("a+/b"));
+    }
+
+    @Test
+    public void testIsValidTopicName() {
+        assertTrue(SubscriptionTrie.isValidTopicName("a/b"));
+        assertFalse(SubscriptionTrie.isValidTopicName("a/+"));
+        assertFalse(SubscriptionTrie.isValidTopicName("#"));
+        assertFalse(SubscriptionTrie.isValidTopicName(""));
+    }
+
+    @Test
+    public void testSplit_KeepsEmptyLevels() {
+        assertArrayEquals(new String[] { "", "a", "" }, SubscriptionTrie.split("/a/"));
+        assertArrayEquals(new String[] { "a" }, SubscriptionTrie.split("a"));
+    }
+
+    @Test
+    public void testConcurrentChurn_StableSubscriberNeverMissed() throws Exception {
+        trie.subscribe("fleet/+/status", "stable");
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 3; t++) {
+            String id = "churn-" + t;
+            threads.add(new Thread(() -> {
+                started.countDown();
+                int i = 0;
+                while (running.get()) {
+                    String filter = "fleet/" + (i++ % 16) + "/status";
+                    trie.subscribe(filter, id);
+                    trie.unsubscribe(filter, id);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            started.countDown();
+            try {
+                for (int i = 0; i < 20_000; i++) {
+                    assertTrue(trie.match("fleet/" + (i % 16) + "/status").contains("stable"));
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        threads.get(3).join();
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+
+        // churned subscriptions all gone, stable one intact
+        trie.unsubscribe("fleet/+/status", "stable");
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentSubscribeAndPrune_NoSubscriptionLost() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            SubscriptionTrie<String> t = new SubscriptionTrie<>();
+            t.subscribe("a/b/c", "x");
+            CountDownLatch go = new CountDownLatch(1);
+            Thread pruner = new Thread(() -> {
+                awaitQuietly(go);
+                t.unsubscribe("a/b/c", "x");
+            });
+            Thread subscriber = new Thread(() -> {
+                awaitQuietly(go);
+                t.subscribe("a/b/c/d", "y");
+            });
+            pruner.start();
+            subscriber.start();
+            go.countDown();
+            pruner.join();
+            subscriber.join();
+            assertMatches(t.match("a/b/c/d"), "y");
+        }
+    }
+
+    @Test
+    public void testMatches_AgreesWithTrie() {
+        String[] filters = { "a/b", "a/+", "a/#", "#", "+/b", "+", "a/+/c", "/a", "+/+", "$SYS/#", "a//b" };
+        String[] topics = { "a", "a/b", "a/c", "a/b/c", "b", "/a", "$SYS/x", "a//b", "a/" };
+        for (String filter : filters) {
+            SubscriptionTrie<String> t = new SubscriptionTrie<>();
+            t.subscribe(filter, "s");
+            for (String topic : topics) {
+                assertEquals(filter + " vs " + topic, !t.match(topic).isEmpty(),
+                        SubscriptionTrie.matches(filter, topic));
+            }
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package in.co.abi.dev.mqtt.timer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for HashedTimingWheel.
+ */
+public class HashedTimingWheelTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 10 ms ticks, 8 buckets, manual clock
+    private long now;
+    private final HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 8,
+            () -> now);
+
+    private void advanceMillis(long millis) {
+        now += millis * MS;
+        wheel.advance(now);
+    }
+
+    @Test
+    public void testTimeout_FiresAfterDeadlineNotBefore() {
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(() -> fired.add("a"), 25, TimeUnit.MILLISECONDS);
+
+        advanceMillis(20);
+        assertTrue(fired.isEmpty());
+        advanceMillis(10);
+        assertEquals(1, fired.size());
+        assertEquals(0, wheel.outstanding());
+    }
+
+    @Test
+    public void testTimeout_BeyondOneRotation() {
+        List<String> fired = new ArrayList<>();
+        // 8 buckets x 10 ms = 80 ms per rotation
+        HashedTimingWheel.Timeout t = wheel.schedule(() -> fired.add("late"), 205, TimeUnit.MILLISECONDS);
+
+        advanceMillis(200);
+        assertTrue(fired.isEmpty());
+        assertFalse(t.isExpired());
+        advanceMillis(10);
+        assertEquals(1, fired.size());
+        assertTrue(t.isExpired());
+    }
+
+    @Test
+    public void testTimeout_OrderAcrossBuckets() {
+        List<Integer> fired = new ArrayList<>();
+        wheel.schedule(() -> fired.add(3), 35, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add(1), 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add(2), 15, TimeUnit.MILLISECONDS);
+
+        advanceMillis(100);
+        assertEquals(3, fired.size());
+        assertEquals(Integer.valueOf(1), fired.get(0));
+        assertEquals(Integer.valueOf(2), fired.get(1));
+        assertEquals(Integer.valueOf(3), fired.get(2));
+    }
+
+    @Test
+    public void testCancel_PreventsRunAndIsUnlinked() {
+        List<String> fired = new ArrayList<>();
+        HashedTimingWheel.Timeout t = wheel.schedule(() -> fired.add("x"), 15, TimeUnit.MILLISECONDS);
+        advanceMillis(10);
+        assertEquals(1, wheel.outstanding());
+
+        assertTrue(t.cancel());
+        assertFalse(t.cancel());
+        advanceMillis(100);
+        assertTrue(fired.isEmpty());
+        assertTrue(t.isCancelled());
+        assertEquals(0, wheel.outstanding());
+    }
+
+    @Test
+    public void testTask_CanReschedule() {
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add(now / MS);
+                if (fired.size() < 3) {
+                    wheel.schedule(this, 20, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 20; i++) {
+            advanceMillis(10);
+        }
+        assertEquals(3, fired.size());
+    }
+
+    @Test
+    public void testTask_FailureDoesNotStopWheel() {
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("boom");
+        }, 5, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("ok"), 5, TimeUnit.MILLISECONDS);
+
+        advanceMillis(20);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testSchedule_WorkerThreadRunsTask() throws InterruptedException {
+        HashedTimingWheel real = new HashedTimingWheel("test-worker", 5, TimeUnit.MILLISECONDS, 16);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            real.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            real.stop();
+        }
+    }
+}